@@ -0,0 +1,20 @@
+package clearvolume.exceptions;
+
+public class ClearVolumeCompressionException extends
+																						ClearVolumeException
+{
+
+	private static final long serialVersionUID = 1L;
+
+	public ClearVolumeCompressionException(	String pMessage,
+																					Throwable pCause)
+	{
+		super(pMessage, pCause);
+	}
+
+	public ClearVolumeCompressionException(String pMessage)
+	{
+		super(pMessage, null);
+	}
+
+}
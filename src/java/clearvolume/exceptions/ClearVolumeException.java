@@ -12,6 +12,7 @@ public class ClearVolumeException extends RuntimeException
 
 	public ClearVolumeException(String pString)
 	{
+		super(pString);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package clearvolume.exceptions;
+
+public class ClearVolumeMemoryBudgetException extends
+																						ClearVolumeException
+{
+
+	private static final long serialVersionUID = 1L;
+
+	public ClearVolumeMemoryBudgetException(String pMessage,
+																					Throwable pCause)
+	{
+		super(pMessage, pCause);
+	}
+
+	public ClearVolumeMemoryBudgetException(String pMessage)
+	{
+		super(pMessage, null);
+	}
+
+}
@@ -15,6 +15,7 @@ import org.bridj.Pointer;
 import org.bridj.Pointer.Releaser;
 import org.bridj.PointerIO;
 
+import clearvolume.exceptions.ClearVolumeException;
 import clearvolume.network.serialization.ClearVolumeSerialization;
 import clearvolume.network.server.ClearVolumeTCPServerSink;
 import clearvolume.renderer.ClearVolumeRendererInterface;
@@ -528,6 +529,9 @@ public class ClearVolumeC
 																																							pWidthInVoxels,
 																																							pHeightInVoxels,
 																																							pDepthInVoxels);
+			if (lRequestedVolume == null)
+				throw new ClearVolumeException(	"Interrupted while waiting for a volume",
+																						null);
 
 			final String lChannelName = sChannelIDToChannelName.get(pChannelId);
 			if (lChannelName != null)
@@ -612,6 +616,9 @@ public class ClearVolumeC
 																																							pWidthInVoxels,
 																																							pHeightInVoxels,
 																																							pDepthInVoxels);
+			if (lRequestedVolume == null)
+				throw new ClearVolumeException(	"Interrupted while waiting for a volume",
+																						null);
 
 			setCurrentVolumeMetadata(pSinkId, pChannelId, lRequestedVolume);
 
@@ -731,6 +738,9 @@ public class ClearVolumeC
 																																							pWidthInVoxels,
 																																							pHeightInVoxels,
 																																							pDepthInVoxels);
+			if (lRequestedVolume == null)
+				throw new ClearVolumeException(	"Interrupted while waiting for a volume",
+																						null);
 
 			lRequestedVolume.setChannelID(pChannelId);
 
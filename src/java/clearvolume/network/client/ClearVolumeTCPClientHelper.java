@@ -17,7 +17,9 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 
 import clearvolume.renderer.listeners.VolumeCaptureListener;
 import clearvolume.volume.sink.AsynchronousVolumeSinkAdapter;
+import clearvolume.volume.sink.ConflatingVolumeSinkAdapter;
 import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeSinkInterface;
 import clearvolume.volume.sink.filter.ChannelFilterSink;
 import clearvolume.volume.sink.filter.gui.ChannelFilterSinkJFrame;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
@@ -107,12 +109,26 @@ public abstract class ClearVolumeTCPClientHelper
 					lSinkAfterAsynchronousVolumeSinkAdapter = lTimeShiftingSink;
 				}
 
-				final AsynchronousVolumeSinkAdapter lAsynchronousVolumeSinkAdapter = new AsynchronousVolumeSinkAdapter(	lSinkAfterAsynchronousVolumeSinkAdapter,
-																																																								cMaxQueueLength,
-																																																								cMaxMillisecondsToWait,
-																																																								TimeUnit.MILLISECONDS);
+				// time shifting must record every volume, live display only needs the
+				// newest one of each channel:
+				AsynchronousVolumeSinkAdapter lAsynchronousVolumeSinkAdapter = null;
+				ConflatingVolumeSinkAdapter lConflatingVolumeSinkAdapter = null;
+				final VolumeSinkInterface lClientVolumeSink;
+				if (pTimeShift)
+				{
+					lAsynchronousVolumeSinkAdapter = new AsynchronousVolumeSinkAdapter(	lSinkAfterAsynchronousVolumeSinkAdapter,
+																																							cMaxQueueLength,
+																																							cMaxMillisecondsToWait,
+																																							TimeUnit.MILLISECONDS);
+					lClientVolumeSink = lAsynchronousVolumeSinkAdapter;
+				}
+				else
+				{
+					lConflatingVolumeSinkAdapter = new ConflatingVolumeSinkAdapter(lSinkAfterAsynchronousVolumeSinkAdapter);
+					lClientVolumeSink = lConflatingVolumeSinkAdapter;
+				}
 
-				final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(lAsynchronousVolumeSinkAdapter);
+				final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(lClientVolumeSink);
 
 				final SocketAddress lClientSocketAddress = new InetSocketAddress(	pServerAddress,
 																																					pPortNumber);
@@ -120,7 +136,10 @@ public abstract class ClearVolumeTCPClientHelper
 
 				assertTrue(lClearVolumeTCPClient.start());
 
-				assertTrue(lAsynchronousVolumeSinkAdapter.start());
+				if (lAsynchronousVolumeSinkAdapter != null)
+					assertTrue(lAsynchronousVolumeSinkAdapter.start());
+				else
+					assertTrue(lConflatingVolumeSinkAdapter.start());
 
 				lClearVolumeRendererSink.setVisible(true);
 
@@ -139,7 +158,10 @@ public abstract class ClearVolumeTCPClientHelper
 					}
 				}
 
-				assertTrue(lAsynchronousVolumeSinkAdapter.stop());
+				if (lAsynchronousVolumeSinkAdapter != null)
+					assertTrue(lAsynchronousVolumeSinkAdapter.stop());
+				else
+					assertTrue(lConflatingVolumeSinkAdapter.stop());
 				if (lTimeShiftingSink != null)
 				{
 					lTimeShiftingSinkJFrame.setVisible(false);
@@ -4,6 +4,7 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
 import clearvolume.network.serialization.ClearVolumeSerialization;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
@@ -12,6 +13,7 @@ import clearvolume.volume.sink.VolumeSinkInterface;
 public class ClearVolumeTCPClientRunnable implements Runnable
 {
 	private static final int cMaxpreAllocatedVolumes = 10;
+	private static final long cVolumeRequestTimeOutInSeconds = 1;
 
 	private final SocketChannel mSocketChannel;
 	private final VolumeSinkInterface mVolumeSink;
@@ -45,16 +47,19 @@ public class ClearVolumeTCPClientRunnable implements Runnable
 			{
 				try
 				{
-					Volume lVolume = mVolumeManager.requestAndWaitForNextAvailableVolume(	1,
-																																								TimeUnit.MILLISECONDS);
-
-					lVolume = ClearVolumeSerialization.deserialize(	mSocketChannel,
-																													lVolume);
-
-					lVolume.setManager(mVolumeManager);
+					// the header tells the manager which volume to hand out:
+					final Volume lVolume = ClearVolumeSerialization.deserialize(mSocketChannel,
+																																			mVolumeManager,
+																																			cVolumeRequestTimeOutInSeconds,
+																																			TimeUnit.SECONDS);
 
 					mVolumeSink.sendVolume(lVolume);
 				}
+				catch (final ClearVolumeMemoryBudgetException e)
+				{
+					// the volume has been skipped, the next one may fit:
+					System.err.println(e.getMessage());
+				}
 				catch (final OutOfMemoryError e)
 				{
 					System.gc();
@@ -1,59 +1,460 @@
 package clearvolume.network.ringbuffer;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer. Each slot
+ * carries a mark telling whether it is free for the producer of a given
+ * sequence number (twice that number) or holds an entry for the consumer of
+ * that sequence number (twice plus one), so that producers and consumers only
+ * ever compete through a compare-and-set on their own cursor. Doubling keeps
+ * the two states apart even when the capacity is one. Producers can claim
+ * several consecutive slots at once, fill them and publish them together. The
+ * capacity is rounded up to a power of two.
+ *
+ * Offers and polls never block. Threads waiting with the Park strategy block
+ * on a condition once they have spun for a while, and are signalled by the
+ * next poll or publication, which only take a lock when such a thread exists.
+ *
+ * @param <T>
+ *          entry type
+ *
+ * @author Loic Royer (2015)
+ *
+ */
 public class RingBuffer<T>
 {
-	private final int mRingBufferMaxLength;
-	private volatile int mPointer;
-	private final ArrayList<T> mArrayList;
+	private final int mCapacity;
+	private final int mMask;
+	private final AtomicReferenceArray<T> mEntries;
+	private final AtomicLongArray mSequences;
+	private final RingBufferWaitStrategy mWaitStrategy;
 
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+
+	// threads blocked by the Park strategy, signalled only if there are any:
 	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final Condition mNotFull = mLock.newCondition();
+	private final AtomicInteger mNumberOfWaitingConsumers = new AtomicInteger();
+	private final AtomicInteger mNumberOfWaitingProducers = new AtomicInteger();
+
+	/**
+	 * Constructs a ring buffer that parks waiting threads.
+	 *
+	 * @param pMinCapacity
+	 *          minimal capacity, rounded up to the next power of two
+	 */
+	public RingBuffer(final int pMinCapacity)
+	{
+		this(pMinCapacity, RingBufferWaitStrategy.Park);
+	}
+
+	/**
+	 * Constructs a ring buffer.
+	 *
+	 * @param pMinCapacity
+	 *          minimal capacity, rounded up to the next power of two
+	 * @param pWaitStrategy
+	 *          how threads wait on a full or empty buffer
+	 */
+	public RingBuffer(final int pMinCapacity,
+										final RingBufferWaitStrategy pWaitStrategy)
+	{
+		if (pMinCapacity < 1 || pMinCapacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid ring buffer capacity: " + pMinCapacity);
+		int lCapacity = 1;
+		while (lCapacity < pMinCapacity)
+			lCapacity <<= 1;
+		mCapacity = lCapacity;
+		mMask = mCapacity - 1;
+		mWaitStrategy = pWaitStrategy;
+		mEntries = new AtomicReferenceArray<T>(mCapacity);
+		mSequences = new AtomicLongArray(mCapacity);
+		for (int i = 0; i < mCapacity; i++)
+			mSequences.set(i, freeMark(i));
+	}
+
+	/**
+	 * Claims a number of consecutive slots. The slots must then be filled with
+	 * set() and made visible to consumers with publish().
+	 *
+	 * @param pCount
+	 *          number of slots, at most the capacity
+	 * @return sequence number of the first slot, or -1 if there is not enough
+	 *         room
+	 */
+	public long tryClaim(int pCount)
+	{
+		if (pCount < 1 || pCount > mCapacity)
+			throw new IllegalArgumentException("Invalid number of slots to claim: " + pCount);
+		while (true)
+		{
+			final long lTail = mTail.get();
+			boolean lAllFree = true;
+			for (int i = 0; i < pCount && lAllFree; i++)
+			{
+				final long lMark = mSequences.get(index(lTail + i));
+				// an entry of the previous lap has not been consumed yet:
+				if (lMark < freeMark(lTail + i))
+					return -1;
+				// otherwise another producer got there first:
+				lAllFree = lMark == freeMark(lTail + i);
+			}
+			if (lAllFree && mTail.compareAndSet(lTail, lTail + pCount))
+				return lTail;
+		}
+	}
+
+	/**
+	 * Claims consecutive slots, waiting for room according to the wait strategy.
+	 *
+	 * @param pCount
+	 *          number of slots, at most the capacity
+	 * @return sequence number of the first slot
+	 * @throws InterruptedException
+	 *           if interrupted while waiting
+	 */
+	public long claim(int pCount) throws InterruptedException
+	{
+		int lAttempt = 0;
+		long lSequence;
+		while ((lSequence = tryClaim(pCount)) < 0)
+			waitForRoom(lAttempt++, pCount, Long.MAX_VALUE);
+		return lSequence;
+	}
+
+	/**
+	 * Fills a claimed slot.
+	 *
+	 * @param pSequence
+	 *          sequence number of a claimed slot
+	 * @param pEntry
+	 *          entry
+	 */
+	public void set(long pSequence, T pEntry)
+	{
+		mEntries.lazySet(index(pSequence), pEntry);
+	}
+
+	/**
+	 * Makes claimed and filled slots visible to consumers.
+	 *
+	 * @param pFirstSequence
+	 *          sequence number returned by claim
+	 * @param pCount
+	 *          number of slots claimed
+	 */
+	public void publish(long pFirstSequence, int pCount)
+	{
+		for (int i = 0; i < pCount; i++)
+			mSequences.set(	index(pFirstSequence + i),
+											publishedMark(pFirstSequence + i));
+		signal(mNumberOfWaitingConsumers, mNotEmpty);
+	}
+
+	/**
+	 * Adds an entry if there is room.
+	 *
+	 * @param pEntry
+	 *          entry
+	 * @return true if added
+	 */
+	public boolean offer(T pEntry)
+	{
+		while (true)
+		{
+			final long lTail = mTail.get();
+			final int lIndex = index(lTail);
+			final long lDifference = mSequences.get(lIndex) - freeMark(lTail);
+			if (lDifference < 0)
+				return false;
+			if (lDifference == 0 && mTail.compareAndSet(lTail, lTail + 1))
+			{
+				mEntries.lazySet(lIndex, pEntry);
+				mSequences.set(lIndex, publishedMark(lTail));
+				signal(mNumberOfWaitingConsumers, mNotEmpty);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry, waiting for room up to a given time.
+	 *
+	 * @param pEntry
+	 *          entry
+	 * @param pTimeOut
+	 *          time out
+	 * @param pTimeUnit
+	 *          time out unit
+	 * @return true if added, false if timed out
+	 * @throws InterruptedException
+	 *           if interrupted while waiting
+	 */
+	public boolean offer(T pEntry, long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+		int lAttempt = 0;
+		while (!offer(pEntry))
+		{
+			if (System.nanoTime() - lDeadline >= 0)
+				return false;
+			waitForRoom(lAttempt++, 1, lDeadline - System.nanoTime());
+		}
+		return true;
+	}
+
+	/**
+	 * Adds an entry, waiting for room as long as necessary.
+	 *
+	 * @param pEntry
+	 *          entry
+	 * @throws InterruptedException
+	 *           if interrupted while waiting
+	 */
+	public void put(T pEntry) throws InterruptedException
+	{
+		int lAttempt = 0;
+		while (!offer(pEntry))
+			waitForRoom(lAttempt++, 1, Long.MAX_VALUE);
+	}
 
-	public RingBuffer(final int pRingBufferMaxLength)
+	/**
+	 * Removes the oldest entry.
+	 *
+	 * @return oldest entry or null if empty
+	 */
+	public T poll()
 	{
-		mRingBufferMaxLength = pRingBufferMaxLength;
-		mArrayList = new ArrayList<T>(mRingBufferMaxLength);
-		for (int i = 0; i < mRingBufferMaxLength; i++)
-			mArrayList.add(null);
+		while (true)
+		{
+			final long lHead = mHead.get();
+			final int lIndex = index(lHead);
+			final long lDifference = mSequences.get(lIndex) - publishedMark(lHead);
+			if (lDifference < 0)
+				return null;
+			if (lDifference == 0 && mHead.compareAndSet(lHead, lHead + 1))
+			{
+				final T lEntry = mEntries.get(lIndex);
+				mEntries.lazySet(lIndex, null);
+				mSequences.set(lIndex, freeMark(lHead + mCapacity));
+				signal(mNumberOfWaitingProducers, mNotFull);
+				return lEntry;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest entry, waiting up to a given time.
+	 *
+	 * @param pTimeOut
+	 *          time out
+	 * @param pTimeUnit
+	 *          time out unit
+	 * @return oldest entry or null if timed out
+	 * @throws InterruptedException
+	 *           if interrupted while waiting
+	 */
+	public T poll(long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+		int lAttempt = 0;
+		T lEntry;
+		while ((lEntry = poll()) == null)
+		{
+			if (System.nanoTime() - lDeadline >= 0)
+				return null;
+			waitForEntry(lAttempt++, lDeadline - System.nanoTime());
+		}
+		return lEntry;
+	}
+
+	/**
+	 * Removes the oldest entry, waiting as long as necessary.
+	 *
+	 * @return oldest entry
+	 * @throws InterruptedException
+	 *           if interrupted while waiting
+	 */
+	public T take() throws InterruptedException
+	{
+		int lAttempt = 0;
+		T lEntry;
+		while ((lEntry = poll()) == null)
+			waitForEntry(lAttempt++, Long.MAX_VALUE);
+		return lEntry;
 	}
 
-	public int advance()
+	/**
+	 * Removes up to a given number of entries at once.
+	 *
+	 * @param pCollection
+	 *          receives the entries, oldest first
+	 * @param pMaxEntries
+	 *          maximal number of entries
+	 * @return number of entries removed
+	 */
+	public int drainTo(Collection<? super T> pCollection, int pMaxEntries)
 	{
+		int lCount = 0;
+		T lEntry;
+		while (lCount < pMaxEntries && (lEntry = poll()) != null)
+		{
+			pCollection.add(lEntry);
+			lCount++;
+		}
+		return lCount;
+	}
+
+	/**
+	 * Returns the oldest entry without removing it. Another consumer may remove
+	 * it right after.
+	 *
+	 * @return oldest entry or null if empty
+	 */
+	public T peek()
+	{
+		final long lHead = mHead.get();
+		final int lIndex = index(lHead);
+		if (mSequences.get(lIndex) != publishedMark(lHead))
+			return null;
+		return mEntries.get(lIndex);
+	}
+
+	/**
+	 * Returns the number of entries, exact only when no thread is using the
+	 * buffer.
+	 *
+	 * @return number of entries
+	 */
+	public int size()
+	{
+		final long lSize = mTail.get() - mHead.get();
+		return (int) Math.max(0, Math.min(lSize, mCapacity));
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	public int getCapacity()
+	{
+		return mCapacity;
+	}
+
+	public RingBufferWaitStrategy getWaitStrategy()
+	{
+		return mWaitStrategy;
+	}
+
+	private void waitForRoom(	final int pAttempt,
+														final int pCount,
+														final long pRemainingNanos) throws InterruptedException
+	{
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if (mWaitStrategy.spin(pAttempt))
+			return;
+
 		mLock.lock();
 		try
 		{
-			mPointer = normalizePointer(mPointer + 1);
-			final int lPointer = mPointer;
-			return lPointer;
+			mNumberOfWaitingProducers.incrementAndGet();
+			try
+			{
+				// checked after registering, so that a consumer freeing a slot now
+				// either is seen here or sees this producer and signals it:
+				if (!hasRoom(pCount) && pRemainingNanos > 0)
+					mNotFull.awaitNanos(pRemainingNanos);
+			}
+			finally
+			{
+				mNumberOfWaitingProducers.decrementAndGet();
+			}
 		}
 		finally
 		{
-			if (mLock.isHeldByCurrentThread())
-				mLock.unlock();
+			mLock.unlock();
 		}
-
 	}
 
-	public void set(T pNewEntry)
+	private void waitForEntry(final int pAttempt,
+														final long pRemainingNanos) throws InterruptedException
 	{
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if (mWaitStrategy.spin(pAttempt))
+			return;
+
 		mLock.lock();
-		mArrayList.set(mPointer, pNewEntry);
-		mLock.unlock();
+		try
+		{
+			mNumberOfWaitingConsumers.incrementAndGet();
+			try
+			{
+				// checked after registering, so that a producer publishing now
+				// either is seen here or sees this consumer and signals it:
+				if (peek() == null && pRemainingNanos > 0)
+					mNotEmpty.awaitNanos(pRemainingNanos);
+			}
+			finally
+			{
+				mNumberOfWaitingConsumers.decrementAndGet();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
 	}
 
-	public T get()
+	private boolean hasRoom(final int pCount)
 	{
+		final long lLastSequence = mTail.get() + pCount - 1;
+		return mSequences.get(index(lLastSequence)) >= freeMark(lLastSequence);
+	}
+
+	// only takes the lock when a thread is blocked, the common case costs a
+	// volatile read:
+	private void signal(final AtomicInteger pNumberOfWaiters,
+											final Condition pCondition)
+	{
+		if (pNumberOfWaiters.get() == 0)
+			return;
 		mLock.lock();
-		final T lEntry = mArrayList.get(mPointer);
-		mLock.unlock();
-		return lEntry;
+		try
+		{
+			pCondition.signalAll();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	private int index(long pSequence)
+	{
+		return (int) pSequence & mMask;
+	}
+
+	private static long freeMark(long pSequence)
+	{
+		return pSequence << 1;
 	}
 
-	private int normalizePointer(int pPointer)
+	private static long publishedMark(long pSequence)
 	{
-		return pPointer % mRingBufferMaxLength;
+		return (pSequence << 1) + 1;
 	}
 
 }
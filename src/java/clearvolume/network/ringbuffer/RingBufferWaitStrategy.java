@@ -0,0 +1,66 @@
+package clearvolume.network.ringbuffer;
+
+/**
+ * How a thread waits on a ring buffer that is empty (consumers) or full
+ * (producers). The strategies trade hand-off latency against CPU use:
+ *
+ * BusySpin retries without pause: hand-offs take well under a microsecond, but
+ * each waiting thread burns a core even when nothing arrives for minutes.
+ *
+ * Yield retries after giving up the time slice: hand-offs take a few
+ * microseconds when cores are free, other threads can run on an oversubscribed
+ * machine, but an idle waiter still keeps a core busy.
+ *
+ * Park spins and yields briefly, so that back-to-back hand-offs stay fast, and
+ * then blocks until the other side signals. Waking a blocked thread costs a few
+ * tens of microseconds, idle waiters use no CPU at all, and the other side only
+ * pays for signalling when a thread is actually blocked.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public enum RingBufferWaitStrategy
+{
+	BusySpin
+	{
+		@Override
+		public boolean spin(int pAttempt)
+		{
+			return true;
+		}
+	},
+	Yield
+	{
+		@Override
+		public boolean spin(int pAttempt)
+		{
+			Thread.yield();
+			return true;
+		}
+	},
+	Park
+	{
+		@Override
+		public boolean spin(int pAttempt)
+		{
+			if (pAttempt < 64)
+				return true;
+			else if (pAttempt < 128)
+			{
+				Thread.yield();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Waits a little before the next attempt, or tells that the thread should
+	 * rather block until signalled.
+	 *
+	 * @param pAttempt
+	 *          number of unsuccessful attempts so far
+	 * @return true to attempt again, false to block
+	 */
+	public abstract boolean spin(int pAttempt);
+}
@@ -1,31 +1,215 @@
 package clearvolume.network.ringbuffer.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.junit.Test;
 
 import clearvolume.network.ringbuffer.RingBuffer;
+import clearvolume.network.ringbuffer.RingBufferWaitStrategy;
 
 public class RingBufferTests
 {
 
 	@Test
-	public void test()
+	public void test() throws InterruptedException
+	{
+		final RingBuffer<String> lRingBuffer = new RingBuffer<String>(3);
+		assertEquals(4, lRingBuffer.getCapacity());
+
+		assertTrue(lRingBuffer.offer("1"));
+		assertTrue(lRingBuffer.offer("2"));
+		assertTrue(lRingBuffer.offer("3"));
+		assertTrue(lRingBuffer.offer("4"));
+		assertFalse(lRingBuffer.offer("5"));
+		assertFalse(lRingBuffer.offer("5", 1, TimeUnit.MILLISECONDS));
+		assertEquals(4, lRingBuffer.size());
+
+		assertEquals("1", lRingBuffer.peek());
+		assertEquals("1", lRingBuffer.poll());
+		assertEquals("2", lRingBuffer.take());
+		assertTrue(lRingBuffer.offer("5"));
+		assertEquals("3", lRingBuffer.poll());
+		assertEquals("4", lRingBuffer.poll());
+		assertEquals("5", lRingBuffer.poll());
+		assertNull(lRingBuffer.poll());
+		assertNull(lRingBuffer.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCapacityOne() throws InterruptedException
+	{
+		final RingBuffer<String> lRingBuffer = new RingBuffer<String>(1);
+		assertEquals(1, lRingBuffer.getCapacity());
+
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(lRingBuffer.offer("a" + i));
+			// the entry must not be overwritten before it is consumed:
+			assertFalse(lRingBuffer.offer("b" + i));
+			assertEquals(-1, lRingBuffer.tryClaim(1));
+			assertEquals("a" + i, lRingBuffer.peek());
+			assertEquals("a" + i, lRingBuffer.poll());
+			assertNull(lRingBuffer.poll(1, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	public void testParkedConsumerIsSignalled() throws InterruptedException
 	{
-		RingBuffer<String> lRingBuffer = new RingBuffer<String>(3);
-
-		lRingBuffer.set("1");
-		lRingBuffer.advance();
-		lRingBuffer.set("2");
-		lRingBuffer.advance();
-		lRingBuffer.set("3");
-		lRingBuffer.advance();
-		assertEquals("1", lRingBuffer.get());
-		lRingBuffer.advance();
-		assertEquals("2", lRingBuffer.get());
-		lRingBuffer.advance();
-		assertEquals("3", lRingBuffer.get());
+		final RingBuffer<String> lRingBuffer = new RingBuffer<String>(4,
+																																	RingBufferWaitStrategy.Park);
+		final String[] lTaken = new String[1];
+		final Thread lThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					lTaken[0] = lRingBuffer.take();
+				}
+				catch (final InterruptedException e)
+				{
+				}
+			}
+		};
+		lThread.start();
+
+		// the idle consumer blocks on the buffer instead of polling on a timer:
+		final long lDeadline = System.currentTimeMillis() + 10000;
+		while (LockSupport.getBlocker(lThread) == null && System.currentTimeMillis() < lDeadline)
+			Thread.sleep(1);
+		assertNotNull(LockSupport.getBlocker(lThread));
+
+		assertTrue(lRingBuffer.offer("1"));
+		lThread.join(10000);
+		assertFalse(lThread.isAlive());
+		assertEquals("1", lTaken[0]);
+	}
+
+	@Test
+	public void testBatchedClaim()
+	{
+		final RingBuffer<Integer> lRingBuffer = new RingBuffer<Integer>(8);
+		assertTrue(lRingBuffer.offer(0));
+
+		final long lSequence = lRingBuffer.tryClaim(5);
+		assertEquals(1, lSequence);
+		for (int i = 0; i < 5; i++)
+			lRingBuffer.set(lSequence + i, 1 + i);
+
+		// nothing is visible before publishing, beyond what was offered:
+		assertEquals(0, (int) lRingBuffer.poll());
+		assertNull(lRingBuffer.poll());
+		assertEquals(-1, lRingBuffer.tryClaim(4));
+
+		lRingBuffer.publish(lSequence, 5);
+		final ArrayList<Integer> lList = new ArrayList<Integer>();
+		assertEquals(5, lRingBuffer.drainTo(lList, 100));
+		for (int i = 0; i < 5; i++)
+			assertEquals(1 + i, (int) lList.get(i));
+	}
+
+	@Test
+	public void testMultipleProducersAndConsumers() throws InterruptedException
+	{
+		for (final RingBufferWaitStrategy lWaitStrategy : RingBufferWaitStrategy.values())
+			stress(lWaitStrategy, 3, 2, 20000);
+	}
+
+	private void stress(final RingBufferWaitStrategy pWaitStrategy,
+											final int pNumberOfProducers,
+											final int pNumberOfConsumers,
+											final int pNumberOfEntriesPerProducer) throws InterruptedException
+	{
+		final RingBuffer<Integer> lRingBuffer = new RingBuffer<Integer>(	64,
+																																	pWaitStrategy);
+		final int lTotal = pNumberOfProducers * pNumberOfEntriesPerProducer;
+		final AtomicIntegerArray lReceived = new AtomicIntegerArray(lTotal);
+		final AtomicInteger lNumberOfReceived = new AtomicInteger();
+
+		final ArrayList<Thread> lThreads = new ArrayList<Thread>();
+		for (int p = 0; p < pNumberOfProducers; p++)
+		{
+			final int lProducer = p;
+			lThreads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						final int lStart = lProducer * pNumberOfEntriesPerProducer;
+						for (int i = 0; i < pNumberOfEntriesPerProducer;)
+						{
+							// alternates single entries and batches:
+							if (i % 2 == 0 || i + 4 > pNumberOfEntriesPerProducer)
+							{
+								lRingBuffer.put(lStart + i);
+								i++;
+							}
+							else
+							{
+								final long lSequence = lRingBuffer.claim(4);
+								for (int j = 0; j < 4; j++)
+									lRingBuffer.set(lSequence + j, lStart + i + j);
+								lRingBuffer.publish(lSequence, 4);
+								i += 4;
+							}
+						}
+					}
+					catch (final InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		for (int c = 0; c < pNumberOfConsumers; c++)
+			lThreads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (lNumberOfReceived.get() < lTotal)
+						{
+							final Integer lEntry = lRingBuffer.poll(1,
+																											TimeUnit.MILLISECONDS);
+							if (lEntry != null)
+							{
+								lReceived.incrementAndGet(lEntry);
+								lNumberOfReceived.incrementAndGet();
+							}
+						}
+					}
+					catch (final InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+
+		for (final Thread lThread : lThreads)
+			lThread.start();
+		for (final Thread lThread : lThreads)
+			lThread.join();
 
+		for (int i = 0; i < lTotal; i++)
+			assertEquals(pWaitStrategy + " entry " + i, 1, lReceived.get(i));
+		assertTrue(lRingBuffer.isEmpty());
 	}
 
 }
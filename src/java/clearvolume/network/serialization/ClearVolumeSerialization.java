@@ -1,15 +1,24 @@
 package clearvolume.network.serialization;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import clearvolume.exceptions.ClearVolumeException;
+import clearvolume.network.serialization.compression.VolumeCodec;
+import clearvolume.network.serialization.compression.VolumeCompression;
 import clearvolume.network.serialization.keyvalue.KeyValueMaps;
 import clearvolume.utils.ToIntExact;
 import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import coremem.types.NativeTypeEnum;
 
 public class ClearVolumeSerialization
 {
@@ -17,13 +26,36 @@ public class ClearVolumeSerialization
 	public static final int cStandardTCPPort = 9140;
 	private static final int cLongSizeInBytes = 8;
 
+	// binary header: 'CVHD' magic number, version and fixed length part:
+	public static final int cBinaryHeaderMagic = 0x43564844;
+	public static final short cBinaryHeaderVersion = 1;
+	// version 2 appends the codec of compressed voxel data (short):
+	public static final short cCompressedBinaryHeaderVersion = 2;
+	private static final int cColorLength = 4;
+	private static final int cViewMatrixLength = 16;
+	private static final int cBinaryHeaderFixedLength = 4 + 2 + 2 + 8 + 8 + 4 + 4
+																											+ 4 * 8
+																											+ 3 * 8
+																											+ (2 + 4 * cColorLength)
+																											+ (2 + 4 * cViewMatrixLength);
+
+	// type codes used in the binary header, do not reorder:
+	private static final NativeTypeEnum[] cTypeCodes = new NativeTypeEnum[]
+	{ NativeTypeEnum.Byte,
+		NativeTypeEnum.UnsignedByte,
+		NativeTypeEnum.Short,
+		NativeTypeEnum.UnsignedShort,
+		NativeTypeEnum.Int,
+		NativeTypeEnum.UnsignedInt,
+		NativeTypeEnum.Long,
+		NativeTypeEnum.UnsignedLong,
+		NativeTypeEnum.Float,
+		NativeTypeEnum.Double };
+
 	public static final ByteBuffer serialize(	Volume pVolume,
 																						ByteBuffer pByteBuffer)
 	{
-		final StringBuilder lStringBuilder = new StringBuilder();
-		writeVolumeHeader(pVolume, lStringBuilder);
-
-		final int lHeaderLength = lStringBuilder.length();
+		final int lHeaderLength = getVolumeHeaderLength(pVolume);
 
 		final long lDataLength = pVolume.getDataSizeInBytes();
 		final int lNeededBufferLength = ToIntExact.toIntExact(3 * cLongSizeInBytes
@@ -36,48 +68,413 @@ public class ClearVolumeSerialization
 		}
 		pByteBuffer.clear();
 
-		pByteBuffer.putLong(lNeededBufferLength);
-		pByteBuffer.putLong(lHeaderLength);
-		pByteBuffer.put(lStringBuilder.toString().getBytes());
-		pByteBuffer.putLong(lDataLength);
+		writePreamble(pVolume, lHeaderLength, pByteBuffer);
 		pVolume.writeToByteBuffer(pByteBuffer);
 
 		return pByteBuffer;
 	};
 
-	private static void writeVolumeHeader(Volume pVolume,
-																				StringBuilder pStringBuilder)
-	{
-
-		final LinkedHashMap<String, String> lHeaderMap = new LinkedHashMap<String, String>();
-		lHeaderMap.put("index", "" + pVolume.getTimeIndex());
-		lHeaderMap.put("time", "" + pVolume.getTimeInSeconds());
-		lHeaderMap.put("channel", "" + pVolume.getChannelID());
-		lHeaderMap.put("channelname", pVolume.getChannelName());
-		lHeaderMap.put("color", serializeFloatArray(pVolume.getColor()));
-		lHeaderMap.put(	"viewmatrix",
-										serializeFloatArray(pVolume.getViewMatrix()));
-		lHeaderMap.put("dim", "" + pVolume.getDimension());
-		lHeaderMap.put("type", "" + pVolume.getTypeName());
-		lHeaderMap.put("bytespervoxel", "" + pVolume.getBytesPerVoxel());
-		lHeaderMap.put("elementsize", "" + pVolume.getElementSize());
-		lHeaderMap.put("width", "" + pVolume.getWidthInVoxels());
-		lHeaderMap.put("height", "" + pVolume.getHeightInVoxels());
-		lHeaderMap.put("depth", "" + pVolume.getDepthInVoxels());
-		lHeaderMap.put(	"voxelwidth",
-										"" + pVolume.getVoxelWidthInRealUnits());
-		lHeaderMap.put(	"voxelheight",
-										"" + pVolume.getVoxelHeightInRealUnits());
-		lHeaderMap.put(	"voxeldepth",
-										"" + pVolume.getVoxelDepthInRealUnits());
-		lHeaderMap.put("realunit", pVolume.getRealUnitName());
-
-		KeyValueMaps.writeStringFromMap(lHeaderMap, pStringBuilder);
-	}
-
-	static void readVolumeHeader(	ByteBuffer pByteBuffer,
-																int pHeaderLength,
-																Volume pVolume)
+	/**
+	 * Serializes a volume, compressing its voxel data with a given codec. The
+	 * buffer's limit is set to the end of the serialized volume.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pByteBuffer
+	 *          buffer to reuse if large enough, can be null
+	 * @param pVolumeCodec
+	 *          codec for the voxel data
+	 * @return buffer holding the serialized volume
+	 */
+	public static final ByteBuffer serialize(	Volume pVolume,
+																						ByteBuffer pByteBuffer,
+																						VolumeCodec pVolumeCodec)
+	{
+		if (pVolumeCodec == null || pVolumeCodec == VolumeCodec.None)
+			return serialize(pVolume, pByteBuffer);
+
+		final int lHeaderLength = getVolumeHeaderLength(pVolume, pVolumeCodec);
+		final int lDataLength = ToIntExact.toIntExact(pVolume.getDataSizeInBytes());
+		final int lPlaneLength = getPlaneLength(pVolume);
+		final int lMaxBufferLength = ToIntExact.toIntExact(3L * cLongSizeInBytes
+																												+ lHeaderLength
+																												+ VolumeCompression.getMaxCompressedLength(	lDataLength,
+																																																		lPlaneLength));
+		if (pByteBuffer == null || pByteBuffer.capacity() < lMaxBufferLength)
+		{
+			pByteBuffer = ByteBuffer.allocateDirect(lMaxBufferLength);
+			pByteBuffer.order(ByteOrder.nativeOrder());
+		}
+		pByteBuffer.clear();
+
+		pByteBuffer.putLong(0);
+		pByteBuffer.putLong(lHeaderLength);
+		writeVolumeHeader(pVolume, pVolumeCodec, pByteBuffer);
+		final int lDataLengthPosition = pByteBuffer.position();
+		pByteBuffer.putLong(0);
+
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer().duplicate();
+		lDataBuffer.clear();
+		lDataBuffer.limit(lDataLength);
+		final int lCompressedLength = VolumeCompression.compress(	pVolumeCodec,
+																															lDataBuffer,
+																															pVolume.getBytesPerVoxel(),
+																															lPlaneLength,
+																															pByteBuffer);
+
+		pByteBuffer.putLong(0, pByteBuffer.position());
+		pByteBuffer.putLong(lDataLengthPosition, lCompressedLength);
+		pByteBuffer.limit(pByteBuffer.position());
+
+		return pByteBuffer;
+	}
+
+	private static int getPlaneLength(Volume pVolume)
+	{
+		return ToIntExact.toIntExact(pVolume.getWidthInVoxels() * pVolume.getHeightInVoxels()
+																	* pVolume.getBytesPerVoxel()
+																	* pVolume.getElementSize());
+	}
+
+	/**
+	 * Serializes everything but the voxel data of a volume: lengths and header.
+	 * The returned buffer is ready to be written, and followed by the volume's
+	 * data buffer it forms a complete serialized volume.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pHeaderBuffer
+	 *          buffer to reuse if large enough, can be null
+	 * @return buffer holding the serialized lengths and header
+	 */
+	public static final ByteBuffer serializeHeader(	Volume pVolume,
+																									ByteBuffer pHeaderBuffer)
+	{
+		final int lHeaderLength = getVolumeHeaderLength(pVolume);
+		final int lNeededBufferLength = 3 * cLongSizeInBytes + lHeaderLength;
+
+		if (pHeaderBuffer == null || pHeaderBuffer.capacity() < lNeededBufferLength)
+		{
+			pHeaderBuffer = ByteBuffer.allocateDirect(lNeededBufferLength);
+			pHeaderBuffer.order(ByteOrder.nativeOrder());
+		}
+		pHeaderBuffer.clear();
+
+		writePreamble(pVolume, lHeaderLength, pHeaderBuffer);
+		pHeaderBuffer.flip();
+
+		return pHeaderBuffer;
+	}
+
+	/**
+	 * Writes a volume to a channel without copying its voxel data: the header
+	 * and the volume's own data buffer are written together with a gathering
+	 * write.
+	 *
+	 * @param pGatheringByteChannel
+	 *          channel to write to
+	 * @param pVolume
+	 *          volume
+	 * @param pHeaderBuffer
+	 *          buffer to reuse for the header if large enough, can be null
+	 * @return header buffer, to be reused for the next call
+	 * @throws IOException
+	 *           if writing fails
+	 */
+	public static final ByteBuffer write(	GatheringByteChannel pGatheringByteChannel,
+																				Volume pVolume,
+																				ByteBuffer pHeaderBuffer) throws IOException
+	{
+		pHeaderBuffer = serializeHeader(pVolume, pHeaderBuffer);
+
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer().duplicate();
+		lDataBuffer.clear();
+		lDataBuffer.limit(ToIntExact.toIntExact(pVolume.getDataSizeInBytes()));
+
+		final ByteBuffer[] lByteBuffers = new ByteBuffer[]
+		{ pHeaderBuffer, lDataBuffer };
+
+		// the header alone is written for empty volumes:
+		while (pHeaderBuffer.hasRemaining() || lDataBuffer.hasRemaining())
+			pGatheringByteChannel.write(lByteBuffers);
+
+		return pHeaderBuffer;
+	}
+
+	private static void writePreamble(Volume pVolume,
+																		int pHeaderLength,
+																		ByteBuffer pByteBuffer)
+	{
+		final long lDataLength = pVolume.getDataSizeInBytes();
+		pByteBuffer.putLong(3 * cLongSizeInBytes + pHeaderLength
+												+ lDataLength);
+		pByteBuffer.putLong(pHeaderLength);
+		writeVolumeHeader(pVolume, pByteBuffer);
+		pByteBuffer.putLong(lDataLength);
+	}
+
+	/**
+	 * Returns the length in bytes of the binary header of a given volume.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @return header length in bytes
+	 */
+	public static final int getVolumeHeaderLength(Volume pVolume)
+	{
+		return getVolumeHeaderLength(pVolume, VolumeCodec.None);
+	}
+
+	/**
+	 * Returns the length in bytes of the binary header of a given volume sent
+	 * with a given codec.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pVolumeCodec
+	 *          codec for the voxel data
+	 * @return header length in bytes
+	 */
+	public static final int getVolumeHeaderLength(Volume pVolume,
+																								VolumeCodec pVolumeCodec)
+	{
+		return cBinaryHeaderFixedLength + getStringLength(pVolume.getRealUnitName())
+						+ getStringLength(pVolume.getChannelName())
+						+ (pVolumeCodec == VolumeCodec.None ? 0 : 2);
+	}
+
+	/**
+	 * Writes the binary header of a volume at the current position of a buffer.
+	 * Layout (buffer order): magic (int), version (short), type (short), index
+	 * (long), time (double), channel (int), dimension (int), element size, width,
+	 * height, depth (4 longs), voxel width, height, depth (3 doubles), color
+	 * (short count + 4 floats), view matrix (short count + 16 floats), real unit
+	 * name and channel name (char count + chars).
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pByteBuffer
+	 *          destination buffer
+	 */
+	public static final void writeVolumeHeader(	Volume pVolume,
+																							ByteBuffer pByteBuffer)
+	{
+		writeVolumeHeader(pVolume, VolumeCodec.None, pByteBuffer);
+	}
+
+	/**
+	 * Writes the binary header of a volume sent with a given codec. Raw volumes
+	 * get a version 1 header, compressed volumes a version 2 header that
+	 * additionally holds the codec code (short) so that older readers refuse
+	 * them instead of misreading the voxel data.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pVolumeCodec
+	 *          codec for the voxel data
+	 * @param pByteBuffer
+	 *          destination buffer
+	 */
+	public static final void writeVolumeHeader(	Volume pVolume,
+																							VolumeCodec pVolumeCodec,
+																							ByteBuffer pByteBuffer)
+	{
+		final boolean lCompressed = pVolumeCodec != VolumeCodec.None;
+		pByteBuffer.putInt(cBinaryHeaderMagic);
+		pByteBuffer.putShort(lCompressed ? cCompressedBinaryHeaderVersion
+																		: cBinaryHeaderVersion);
+		pByteBuffer.putShort(getTypeCode(pVolume.getNativeType()));
+		pByteBuffer.putLong(pVolume.getTimeIndex());
+		pByteBuffer.putDouble(pVolume.getTimeInSeconds());
+		pByteBuffer.putInt(pVolume.getChannelID());
+		pByteBuffer.putInt(pVolume.getDimension());
+		pByteBuffer.putLong(pVolume.getElementSize());
+		pByteBuffer.putLong(pVolume.getWidthInVoxels());
+		pByteBuffer.putLong(pVolume.getHeightInVoxels());
+		pByteBuffer.putLong(pVolume.getDepthInVoxels());
+		pByteBuffer.putDouble(pVolume.getVoxelWidthInRealUnits());
+		pByteBuffer.putDouble(pVolume.getVoxelHeightInRealUnits());
+		pByteBuffer.putDouble(pVolume.getVoxelDepthInRealUnits());
+		writeFloatArray(pByteBuffer, pVolume.getColor(), cColorLength);
+		writeFloatArray(pByteBuffer,
+										pVolume.getViewMatrix(),
+										cViewMatrixLength);
+		writeString(pByteBuffer, pVolume.getRealUnitName());
+		writeString(pByteBuffer, pVolume.getChannelName());
+		if (lCompressed)
+			pByteBuffer.putShort(pVolumeCodec.getCode());
+	}
+
+	private static short getTypeCode(NativeTypeEnum pNativeType)
+	{
+		for (short i = 0; i < cTypeCodes.length; i++)
+			if (cTypeCodes[i] == pNativeType)
+				return i;
+		return -1;
+	}
+
+	private static void writeFloatArray(ByteBuffer pByteBuffer,
+																			float[] pFloatArray,
+																			int pLength)
+	{
+		final int lCount = pFloatArray == null	? 0
+																						: Math.min(	pFloatArray.length,
+																												pLength);
+		pByteBuffer.putShort((short) lCount);
+		for (int i = 0; i < pLength; i++)
+			pByteBuffer.putFloat(i < lCount ? pFloatArray[i] : 0);
+	}
+
+	private static int getStringLength(String pString)
+	{
+		final int lLength = pString == null ? 0
+																				: Math.min(	pString.length(),
+																										Character.MAX_VALUE);
+		return 2 + 2 * lLength;
+	}
+
+	private static void writeString(ByteBuffer pByteBuffer,
+																	String pString)
+	{
+		final int lLength = (getStringLength(pString) - 2) / 2;
+		pByteBuffer.putChar((char) lLength);
+		for (int i = 0; i < lLength; i++)
+			pByteBuffer.putChar(pString.charAt(i));
+	}
+
+	static VolumeCodec readVolumeHeader(ByteBuffer pByteBuffer,
+																			int pHeaderLength,
+																			Volume pVolume) throws IOException
+	{
+		if (pByteBuffer.get(pByteBuffer.position()) == '[')
+		{
+			readLegacyVolumeHeader(pByteBuffer, pHeaderLength, pVolume);
+			return VolumeCodec.None;
+		}
+		else
+			return readBinaryVolumeHeader(pByteBuffer,
+																		pHeaderLength,
+																		pVolume);
+	}
+
+	private static VolumeCodec readBinaryVolumeHeader(	ByteBuffer pByteBuffer,
+																							int pHeaderLength,
+																							Volume pVolume) throws IOException
+	{
+		final int lHeaderStart = pByteBuffer.position();
+
+		final int lMagic = pByteBuffer.getInt();
+		if (lMagic != cBinaryHeaderMagic)
+			throw new IllegalArgumentException(String.format(	"Invalid volume header magic number: %08x",
+																												lMagic));
+		final short lVersion = pByteBuffer.getShort();
+		if (lVersion > cCompressedBinaryHeaderVersion)
+			throw new IllegalArgumentException("Unsupported volume header version: " + lVersion);
+
+		final short lTypeCode = pByteBuffer.getShort();
+		if (lTypeCode < 0 || lTypeCode >= cTypeCodes.length)
+			throw new IOException("Unknown volume type code: " + lTypeCode);
+		pVolume.setType(cTypeCodes[lTypeCode]);
+		pVolume.setTimeIndex(pByteBuffer.getLong());
+		pVolume.setTimeInSeconds(pByteBuffer.getDouble());
+		pVolume.setChannelID(pByteBuffer.getInt());
+
+		// the dimension is informative, the header always holds 4 dimensions:
+		pByteBuffer.getInt();
+		long[] lDimensions = pVolume.getDimensionsInVoxels();
+		double[] lVoxelSizes = pVolume.getDimensionsInRealUnits();
+		if (lDimensions == null || lDimensions.length != 4)
+			lDimensions = new long[4];
+		if (lVoxelSizes == null || lVoxelSizes.length < 3)
+			lVoxelSizes = new double[3];
+
+		lDimensions[0] = pByteBuffer.getLong();
+		lDimensions[1] = pByteBuffer.getLong();
+		lDimensions[2] = pByteBuffer.getLong();
+		lDimensions[3] = pByteBuffer.getLong();
+		pVolume.setDimensionsInVoxels(lDimensions);
+
+		lVoxelSizes[0] = pByteBuffer.getDouble();
+		lVoxelSizes[1] = pByteBuffer.getDouble();
+		lVoxelSizes[2] = pByteBuffer.getDouble();
+
+		pVolume.setColor(readFloatArray(pByteBuffer,
+																		pVolume.getColor(),
+																		cColorLength));
+		pVolume.setViewMatrix(readFloatArray(	pByteBuffer,
+																					pVolume.getViewMatrix(),
+																					cViewMatrixLength));
+
+		pVolume.setVoxelSizeInRealUnits(readString(	pByteBuffer,
+																								pVolume.getRealUnitName()),
+																		lVoxelSizes);
+		pVolume.setChannelName(readString(pByteBuffer,
+																			pVolume.getChannelName()));
+
+		VolumeCodec lVolumeCodec = VolumeCodec.None;
+		if (lVersion >= cCompressedBinaryHeaderVersion)
+		{
+			final short lCodecCode = pByteBuffer.getShort();
+			lVolumeCodec = VolumeCodec.fromCode(lCodecCode);
+			if (lVolumeCodec == null)
+				throw new IllegalArgumentException("Unsupported volume codec: " + lCodecCode);
+		}
+
+		// skips fields appended by later revisions of the same version:
+		pByteBuffer.position(lHeaderStart + pHeaderLength);
+
+		return lVolumeCodec;
+	}
+
+	private static float[] readFloatArray(ByteBuffer pByteBuffer,
+																				float[] pFloatArray,
+																				int pLength)
+	{
+		final int lCount = pByteBuffer.getShort();
+		if (lCount == 0)
+		{
+			pByteBuffer.position(pByteBuffer.position() + 4 * pLength);
+			return null;
+		}
+
+		// reuses the existing array if possible:
+		final float[] lFloatArray = pFloatArray != null && pFloatArray.length == lCount	? pFloatArray
+																																										: new float[lCount];
+		for (int i = 0; i < pLength; i++)
+		{
+			final float lValue = pByteBuffer.getFloat();
+			if (i < lCount)
+				lFloatArray[i] = lValue;
+		}
+		return lFloatArray;
+	}
+
+	private static String readString(	ByteBuffer pByteBuffer,
+																		String pString)
+	{
+		final int lLength = pByteBuffer.getChar();
+		final int lStart = pByteBuffer.position();
+
+		// reuses the existing string if it is the same:
+		boolean lSame = pString != null && pString.length() == lLength;
+		for (int i = 0; lSame && i < lLength; i++)
+			lSame = pByteBuffer.getChar(lStart + 2 * i) == pString.charAt(i);
+
+		if (lSame)
+		{
+			pByteBuffer.position(lStart + 2 * lLength);
+			return pString;
+		}
+
+		final char[] lChars = new char[lLength];
+		for (int i = 0; i < lLength; i++)
+			lChars[i] = pByteBuffer.getChar();
+		return new String(lChars);
+	}
+
+	private static void readLegacyVolumeHeader(	ByteBuffer pByteBuffer,
+																							int pHeaderLength,
+																							Volume pVolume)
 	{
 
 		final Map<String, String> lHeaderMap = KeyValueMaps.readMapFromBuffer(pByteBuffer,
@@ -213,21 +610,6 @@ public class ClearVolumeSerialization
 		return (pString == null) ? defaultValue : Long.parseLong(pString);
 	}
 
-	private static String serializeFloatArray(float[] pFloatArray)
-	{
-		if (pFloatArray == null)
-			return "";
-		final StringBuilder lStringBuilder = new StringBuilder();
-		for (int i = 0; i < pFloatArray.length; i++)
-		{
-			final float lValue = pFloatArray[i];
-			lStringBuilder.append(lValue);
-			if (i != pFloatArray.length - 1)
-				lStringBuilder.append(" ");
-		}
-		return lStringBuilder.toString();
-	}
-
 	private static float[] deserializeFloatArray(String pString)
 	{
 		if (pString == null || pString.isEmpty())
@@ -251,6 +633,21 @@ public class ClearVolumeSerialization
 
 	private static ThreadLocal<ByteBuffer> sScratchBufferThreadLocal = new ThreadLocal<ByteBuffer>();
 
+	/**
+	 * Reads a volume from a socket channel. The voxel data is read straight into
+	 * the volume's data buffer, which must have the right size, volumes without
+	 * data buffer get one of their own. Works with blocking channels and with
+	 * non-blocking channels, for which we wait on a selector until data is
+	 * available.
+	 *
+	 * @param pSocketChannel
+	 *          socket channel to read from
+	 * @param pVolume
+	 *          volume to reuse, can be null
+	 * @return deserialized volume
+	 * @throws IOException
+	 *           if reading fails or the channel reaches end-of-stream
+	 */
 	public static final Volume deserialize(	SocketChannel pSocketChannel,
 																					Volume pVolume) throws IOException
 	{
@@ -259,41 +656,157 @@ public class ClearVolumeSerialization
 			pVolume = new Volume();
 		}
 
-		ByteBuffer pScratchBuffer = sScratchBufferThreadLocal.get();
-		if (pScratchBuffer == null || pScratchBuffer.capacity() == 0)
+		final VolumeCodec lVolumeCodec = readVolumeHeader(pSocketChannel,
+																											pVolume);
+		readVolumeData(pSocketChannel, lVolumeCodec, pVolume);
+
+		return pVolume;
+	}
+
+	/**
+	 * Reads a volume from a socket channel into a volume requested from a volume
+	 * manager. The header is read first so that the manager is asked for a volume
+	 * of the right type and dimensions, the voxel data is then read straight into
+	 * it. If the manager's memory budget does not allow the volume, its data is
+	 * skipped so that the next volume can still be read, and the budget exception
+	 * is rethrown. Without manager, the volume gets a data buffer of its own.
+	 *
+	 * @param pSocketChannel
+	 *          socket channel to read from
+	 * @param pVolumeManager
+	 *          volume manager, can be null
+	 * @param pTimeOut
+	 *          max time to wait for the manager's budget
+	 * @param pTimeUnit
+	 *          time unit
+	 * @return deserialized volume
+	 * @throws IOException
+	 *           if reading fails or the channel reaches end-of-stream
+	 */
+	public static final Volume deserialize(	SocketChannel pSocketChannel,
+																					VolumeManager pVolumeManager,
+																					long pTimeOut,
+																					TimeUnit pTimeUnit) throws IOException
+	{
+		final Volume lHeaderVolume = new Volume();
+		final VolumeCodec lVolumeCodec = readVolumeHeader(pSocketChannel,
+																											lHeaderVolume);
+		if (pVolumeManager == null)
 		{
-			pScratchBuffer = ByteBuffer.allocateDirect(cLongSizeInBytes);
-			pScratchBuffer.order(ByteOrder.nativeOrder());
+			readVolumeData(pSocketChannel, lVolumeCodec, lHeaderVolume);
+			return lHeaderVolume;
 		}
 
+		final Volume lVolume;
+		try
+		{
+			lVolume = requestVolumeLike(pVolumeManager,
+																	pTimeOut,
+																	pTimeUnit,
+																	lHeaderVolume);
+		}
+		catch (final RuntimeException e)
+		{
+			skipVolumeData(pSocketChannel);
+			throw e;
+		}
+
+		boolean lRead = false;
+		try
+		{
+			readVolumeData(pSocketChannel, lVolumeCodec, lVolume);
+			lRead = true;
+			return lVolume;
+		}
+		finally
+		{
+			if (!lRead)
+				lVolume.makeAvailableToManager();
+		}
+	}
+
+	private static Volume requestVolumeLike(VolumeManager pVolumeManager,
+																					long pTimeOut,
+																					TimeUnit pTimeUnit,
+																					Volume pHeaderVolume)
+	{
+		if (pHeaderVolume.getNativeType() == null)
+			throw new IllegalArgumentException("Volume header has no type, cannot request a volume for it");
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(pTimeOut,
+																																	pTimeUnit,
+																																	pHeaderVolume.getNativeType(),
+																																	pHeaderVolume.getDimensionsInVoxels());
+		if (lVolume == null)
+			throw new ClearVolumeException("Interrupted while waiting for a volume",
+																			null);
+		lVolume.copyMetaDataFrom(pHeaderVolume);
+		return lVolume;
+	}
+
+	private static VolumeCodec readVolumeHeader(SocketChannel pSocketChannel,
+																							Volume pVolume) throws IOException
+	{
+		ByteBuffer pScratchBuffer = getScratchBuffer(cLongSizeInBytes);
+
 		readPartLength(pSocketChannel, pScratchBuffer);
 
 		final int lHeaderLength = readPartLength(	pSocketChannel,
 																							pScratchBuffer);
 
-		pScratchBuffer = ensureScratchBufferLengthIsEnough(	pScratchBuffer,
-																												lHeaderLength);
-
+		pScratchBuffer = getScratchBuffer(lHeaderLength);
 		readIntoScratchBuffer(pSocketChannel,
 													pScratchBuffer,
 													lHeaderLength);
-		readVolumeHeader(pScratchBuffer, lHeaderLength, pVolume);
+		return readVolumeHeader(pScratchBuffer, lHeaderLength, pVolume);
+	}
 
+	private static void readVolumeData(	SocketChannel pSocketChannel,
+																			VolumeCodec pVolumeCodec,
+																			Volume pVolume) throws IOException
+	{
+		ByteBuffer pScratchBuffer = getScratchBuffer(cLongSizeInBytes);
 		final int lDataLength = readPartLength(	pSocketChannel,
 																						pScratchBuffer);
 
-		if (pScratchBuffer.capacity() < lDataLength)
+		if (pVolumeCodec == VolumeCodec.None)
 		{
-			pScratchBuffer = ByteBuffer.allocateDirect(lDataLength);
-			pScratchBuffer.order(ByteOrder.nativeOrder());
-		}
+			ensureVolumeDataBuffer(lDataLength, pVolume);
 
-		readIntoScratchBuffer(pSocketChannel, pScratchBuffer, lDataLength);
-		readVolumeData(pScratchBuffer, lDataLength, pVolume);
+			final ByteBuffer lDataBuffer = pVolume.getDataBuffer().duplicate();
+			lDataBuffer.clear();
+			lDataBuffer.limit(lDataLength);
+			readFully(pSocketChannel, lDataBuffer);
+		}
+		else
+		{
+			pScratchBuffer = getScratchBuffer(lDataLength);
+			readIntoScratchBuffer(pSocketChannel, pScratchBuffer, lDataLength);
+			decompressVolumeData(	pVolumeCodec,
+														pScratchBuffer,
+														lDataLength,
+														pVolume);
+		}
+	}
 
-		sScratchBufferThreadLocal.set(pScratchBuffer);
+	private static void skipVolumeData(SocketChannel pSocketChannel) throws IOException
+	{
+		ByteBuffer pScratchBuffer = getScratchBuffer(cLongSizeInBytes);
+		int lRemaining = readPartLength(pSocketChannel, pScratchBuffer);
+		pScratchBuffer = getScratchBuffer(Math.min(lRemaining, 1 << 20));
+		while (lRemaining > 0)
+		{
+			final int lLength = Math.min(lRemaining, pScratchBuffer.capacity());
+			readIntoScratchBuffer(pSocketChannel, pScratchBuffer, lLength);
+			lRemaining -= lLength;
+		}
+	}
 
-		return pVolume;
+	private static ByteBuffer getScratchBuffer(int pLength)
+	{
+		final ByteBuffer lScratchBuffer = ensureScratchBufferLengthIsEnough(sScratchBufferThreadLocal.get(),
+																																				pLength);
+		sScratchBufferThreadLocal.set(lScratchBuffer);
+		return lScratchBuffer;
 	}
 
 	private static void readIntoScratchBuffer(SocketChannel pSocketChannel,
@@ -302,11 +815,7 @@ public class ClearVolumeSerialization
 	{
 		pScratchBuffer.clear();
 		pScratchBuffer.limit(lHeaderLength);
-		while (pScratchBuffer.hasRemaining())
-		{
-			pSocketChannel.read(pScratchBuffer);
-			sleep();
-		}
+		readFully(pSocketChannel, pScratchBuffer);
 		pScratchBuffer.rewind();
 	}
 
@@ -326,55 +835,172 @@ public class ClearVolumeSerialization
 	{
 		pScratchBuffer.clear();
 		pScratchBuffer.limit(cLongSizeInBytes);
-		while (pScratchBuffer.hasRemaining())
-		{
-			pSocketChannel.read(pScratchBuffer);
-			sleep();
-		}
+		readFully(pSocketChannel, pScratchBuffer);
 		pScratchBuffer.rewind();
 		final int lHeaderLength = ToIntExact.toIntExact(pScratchBuffer.getLong());
 		return lHeaderLength;
 	};
 
+	private static void readFully(SocketChannel pSocketChannel,
+																ByteBuffer pByteBuffer) throws IOException
+	{
+		Selector lSelector = null;
+		try
+		{
+			while (pByteBuffer.hasRemaining())
+			{
+				final int lNumberOfBytesRead = pSocketChannel.read(pByteBuffer);
+				if (lNumberOfBytesRead < 0)
+					throw new EOFException("Socket channel closed while reading volume");
+
+				if (lNumberOfBytesRead == 0 && !pSocketChannel.isBlocking())
+				{
+					// non-blocking channel: wait for data instead of spinning:
+					if (lSelector == null)
+					{
+						lSelector = Selector.open();
+						pSocketChannel.register(lSelector, SelectionKey.OP_READ);
+					}
+					lSelector.select();
+					lSelector.selectedKeys().clear();
+				}
+			}
+		}
+		finally
+		{
+			if (lSelector != null)
+				lSelector.close();
+		}
+	}
+
 	public static final Volume deserialize(	ByteBuffer pByteBuffer,
 																					Volume pVolume)
 	{
-		pByteBuffer.rewind();
-		final int lWholeLength = ToIntExact.toIntExact(pByteBuffer.getLong());
-		final int lHeaderLength = ToIntExact.toIntExact(pByteBuffer.getLong());
-		readVolumeHeader(pByteBuffer, lHeaderLength, pVolume);
-		final long lDataLength = pByteBuffer.getLong();
-		readVolumeData(pByteBuffer, lDataLength, pVolume);
+		final VolumeCodec lVolumeCodec = readVolumeHeader(pByteBuffer,
+																											pVolume);
+		readVolumeData(pByteBuffer, lVolumeCodec, pVolume);
 		return pVolume;
 	}
 
-	static void readVolumeData(	ByteBuffer pByteBuffer,
-															long pDataLength,
-															Volume pVolume)
+	/**
+	 * Reads a volume from a buffer into a volume requested from a volume
+	 * manager, see {@link #deserialize(SocketChannel, VolumeManager, long, TimeUnit)}.
+	 *
+	 * @param pByteBuffer
+	 *          buffer holding a serialized volume
+	 * @param pVolumeManager
+	 *          volume manager, can be null
+	 * @param pTimeOut
+	 *          max time to wait for the manager's budget
+	 * @param pTimeUnit
+	 *          time unit
+	 * @return deserialized volume
+	 */
+	public static final Volume deserialize(	ByteBuffer pByteBuffer,
+																					VolumeManager pVolumeManager,
+																					long pTimeOut,
+																					TimeUnit pTimeUnit)
 	{
-
-		if (pVolume.getDataBuffer() == null || pVolume.getDataBuffer()
-																									.capacity() != pDataLength)
+		final Volume lHeaderVolume = new Volume();
+		final VolumeCodec lVolumeCodec = readVolumeHeader(pByteBuffer,
+																											lHeaderVolume);
+		if (pVolumeManager == null)
 		{
-			final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(ToIntExact.toIntExact(pDataLength));
-			lByteBuffer.order(ByteOrder.nativeOrder());
-			lByteBuffer.clear();
-			pVolume.setDataBuffer(lByteBuffer);
+			readVolumeData(pByteBuffer, lVolumeCodec, lHeaderVolume);
+			return lHeaderVolume;
 		}
 
-		pVolume.readFromByteBuffer(pByteBuffer);
+		final Volume lVolume = requestVolumeLike(	pVolumeManager,
+																							pTimeOut,
+																							pTimeUnit,
+																							lHeaderVolume);
+		boolean lRead = false;
+		try
+		{
+			readVolumeData(pByteBuffer, lVolumeCodec, lVolume);
+			lRead = true;
+			return lVolume;
+		}
+		finally
+		{
+			if (!lRead)
+				lVolume.makeAvailableToManager();
+		}
 	}
 
-	private static void sleep()
+	private static VolumeCodec readVolumeHeader(ByteBuffer pByteBuffer,
+																							Volume pVolume)
 	{
+		pByteBuffer.rewind();
+		// the whole length is not needed when the volume is already in memory:
+		pByteBuffer.getLong();
+		final int lHeaderLength = ToIntExact.toIntExact(pByteBuffer.getLong());
 		try
 		{
-			Thread.sleep(1);
+			return readVolumeHeader(pByteBuffer, lHeaderLength, pVolume);
 		}
-		catch (final InterruptedException e)
+		catch (final IOException e)
 		{
-			e.printStackTrace();
+			// invalid buffer contents, as for the other header checks:
+			throw new IllegalArgumentException(e.getMessage(), e);
 		}
 	}
 
+	private static void readVolumeData(	ByteBuffer pByteBuffer,
+																			VolumeCodec pVolumeCodec,
+																			Volume pVolume)
+	{
+		final long lDataLength = pByteBuffer.getLong();
+		if (pVolumeCodec == VolumeCodec.None)
+			readVolumeData(pByteBuffer, lDataLength, pVolume);
+		else
+			decompressVolumeData(	pVolumeCodec,
+														pByteBuffer,
+														ToIntExact.toIntExact(lDataLength),
+														pVolume);
+	}
+
+	static void readVolumeData(	ByteBuffer pByteBuffer,
+															long pDataLength,
+															Volume pVolume)
+	{
+		ensureVolumeDataBuffer(pDataLength, pVolume);
+		pVolume.readFromByteBuffer(pByteBuffer);
+	}
+
+	private static void decompressVolumeData(	VolumeCodec pVolumeCodec,
+																						ByteBuffer pByteBuffer,
+																						int pCompressedLength,
+																						Volume pVolume)
+	{
+		final ByteBuffer lCompressed = pByteBuffer.duplicate();
+		lCompressed.order(pByteBuffer.order());
+		lCompressed.limit(lCompressed.position() + pCompressedLength);
+
+		final long lDataLength = pVolume.getDataSizeInBytes();
+		ensureVolumeDataBuffer(lDataLength, pVolume);
+
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer().duplicate();
+		lDataBuffer.clear();
+		lDataBuffer.limit(ToIntExact.toIntExact(lDataLength));
+		VolumeCompression.decompress(	pVolumeCodec,
+																	lCompressed,
+																	pVolume.getBytesPerVoxel(),
+																	lDataBuffer);
+	}
+
+	private static void ensureVolumeDataBuffer(	long pDataLength,
+																							Volume pVolume)
+	{
+		// a volume without data gets a buffer of its own, but buffers of the
+		// wrong size are not replaced behind the back of their volume manager:
+		if (pVolume.getDataBuffer() == null)
+			pVolume.allocateDataBuffer(pDataLength);
+		else if (pVolume.getDataBuffer().capacity() != pDataLength)
+			throw new IllegalArgumentException(String.format(	"Volume data buffer of %d bytes does not match the %d bytes of volume data, volumes should be requested from the volume manager with the type and dimensions of the header",
+																												pVolume.getDataBuffer()
+																																.capacity(),
+																												pDataLength));
+	}
+
 }
@@ -0,0 +1,337 @@
+package clearvolume.network.serialization.compression;
+
+import java.util.Arrays;
+
+import clearvolume.exceptions.ClearVolumeCompressionException;
+
+/**
+ * Pure Java implementation of the LZ4 block format. Compression uses a single
+ * hash table probe per position (the 'fast' LZ4 mode), which is what matters
+ * for mostly dark microscopy volumes: long runs of background compress into a
+ * handful of sequences.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class LZ4
+{
+	private static final int cMinMatch = 4;
+	private static final int cLastLiterals = 5;
+	private static final int cMatchFindLimit = 12;
+	private static final int cMaxOffset = 0xFFFF;
+	private static final int cHashLog = 14;
+
+	/**
+	 * Returns the worst case length of the compressed form of a given number of
+	 * bytes.
+	 *
+	 * @param pLength
+	 *          uncompressed length
+	 * @return maximal compressed length
+	 */
+	public static int getMaxCompressedLength(int pLength)
+	{
+		return pLength + pLength / 255 + 16;
+	}
+
+	/**
+	 * Returns a hash table suitable for compress.
+	 *
+	 * @return new hash table
+	 */
+	public static int[] newHashTable()
+	{
+		return new int[1 << cHashLog];
+	}
+
+	/**
+	 * Compresses bytes into the LZ4 block format.
+	 *
+	 * @param pSource
+	 *          source array
+	 * @param pSourceOffset
+	 *          offset of the first byte to compress
+	 * @param pSourceLength
+	 *          number of bytes to compress
+	 * @param pDestination
+	 *          destination array, must have room for
+	 *          getMaxCompressedLength(pSourceLength) bytes
+	 * @param pDestinationOffset
+	 *          offset in the destination array
+	 * @param pHashTable
+	 *          hash table obtained from newHashTable(), reused across calls
+	 * @return compressed length
+	 */
+	public static int compress(	byte[] pSource,
+															int pSourceOffset,
+															int pSourceLength,
+															byte[] pDestination,
+															int pDestinationOffset,
+															int[] pHashTable)
+	{
+		final int lSourceEnd = pSourceOffset + pSourceLength;
+		int lAnchor = pSourceOffset;
+		int lOutput = pDestinationOffset;
+
+		if (pSourceLength >= cMatchFindLimit + 1)
+		{
+			Arrays.fill(pHashTable, -1);
+			final int lMatchFindLimit = lSourceEnd - cMatchFindLimit;
+			final int lMatchLimit = lSourceEnd - cLastLiterals;
+
+			int lInput = pSourceOffset;
+			while (lInput < lMatchFindLimit)
+			{
+				final int lSequence = readInt(pSource, lInput);
+				final int lHash = hash(lSequence);
+				int lReference = pHashTable[lHash];
+				pHashTable[lHash] = lInput;
+
+				if (lReference < 0 || lInput - lReference > cMaxOffset
+						|| readInt(pSource, lReference) != lSequence)
+				{
+					// skips faster through incompressible data:
+					lInput += 1 + ((lInput - lAnchor) >>> 6);
+					continue;
+				}
+
+				// extends the match backwards:
+				while (lInput > lAnchor && lReference > pSourceOffset
+								&& pSource[lInput - 1] == pSource[lReference - 1])
+				{
+					lInput--;
+					lReference--;
+				}
+
+				// extends the match forwards:
+				int lMatchLength = cMinMatch;
+				while (lInput + lMatchLength < lMatchLimit
+								&& pSource[lInput + lMatchLength] == pSource[lReference + lMatchLength])
+					lMatchLength++;
+
+				lOutput = writeSequence(pSource,
+																lAnchor,
+																lInput - lAnchor,
+																lInput - lReference,
+																lMatchLength,
+																pDestination,
+																lOutput);
+
+				lInput += lMatchLength;
+				lAnchor = lInput;
+
+				if (lInput - 2 < lMatchFindLimit)
+					pHashTable[hash(readInt(pSource, lInput - 2))] = lInput - 2;
+			}
+		}
+
+		lOutput = writeLastLiterals(pSource,
+																lAnchor,
+																lSourceEnd - lAnchor,
+																pDestination,
+																lOutput);
+
+		return lOutput - pDestinationOffset;
+	}
+
+	/**
+	 * Decompresses a LZ4 block.
+	 *
+	 * @param pSource
+	 *          source array
+	 * @param pSourceOffset
+	 *          offset of the compressed block
+	 * @param pSourceLength
+	 *          length of the compressed block
+	 * @param pDestination
+	 *          destination array
+	 * @param pDestinationOffset
+	 *          offset in the destination array
+	 * @param pDestinationLength
+	 *          expected decompressed length
+	 * @throws ClearVolumeCompressionException
+	 *           if the block is corrupted
+	 */
+	public static void decompress(byte[] pSource,
+																int pSourceOffset,
+																int pSourceLength,
+																byte[] pDestination,
+																int pDestinationOffset,
+																int pDestinationLength)
+	{
+		final int lSourceEnd = pSourceOffset + pSourceLength;
+		final int lDestinationEnd = pDestinationOffset + pDestinationLength;
+		int lInput = pSourceOffset;
+		int lOutput = pDestinationOffset;
+
+		try
+		{
+			while (lInput < lSourceEnd)
+			{
+				final int lToken = pSource[lInput++] & 0xFF;
+
+				// literals:
+				int lLiteralLength = lToken >>> 4;
+				if (lLiteralLength == 15)
+				{
+					int lByte;
+					do
+					{
+						lByte = pSource[lInput++] & 0xFF;
+						lLiteralLength += lByte;
+					}
+					while (lByte == 255);
+				}
+				if (lInput + lLiteralLength > lSourceEnd || lOutput + lLiteralLength > lDestinationEnd)
+					throw new ClearVolumeCompressionException("Corrupted LZ4 block: literals out of bounds");
+				System.arraycopy(	pSource,
+													lInput,
+													pDestination,
+													lOutput,
+													lLiteralLength);
+				lInput += lLiteralLength;
+				lOutput += lLiteralLength;
+
+				// the last sequence has no match:
+				if (lInput == lSourceEnd)
+					break;
+
+				// match:
+				final int lOffset = (pSource[lInput] & 0xFF) | ((pSource[lInput + 1] & 0xFF) << 8);
+				lInput += 2;
+				int lMatchLength = lToken & 0x0F;
+				if (lMatchLength == 15)
+				{
+					int lByte;
+					do
+					{
+						lByte = pSource[lInput++] & 0xFF;
+						lMatchLength += lByte;
+					}
+					while (lByte == 255);
+				}
+				lMatchLength += cMinMatch;
+
+				final int lReference = lOutput - lOffset;
+				if (lOffset == 0 || lReference < pDestinationOffset
+						|| lOutput + lMatchLength > lDestinationEnd)
+					throw new ClearVolumeCompressionException("Corrupted LZ4 block: match out of bounds");
+
+				// overlapping matches encode runs: the bytes between reference and
+				// output repeat, so we copy ever larger chunks of that period.
+				final int lMatchEnd = lOutput + lMatchLength;
+				while (lOutput < lMatchEnd)
+				{
+					final int lChunkLength = Math.min(lOutput - lReference,
+																						lMatchEnd - lOutput);
+					System.arraycopy(	pDestination,
+														lReference,
+														pDestination,
+														lOutput,
+														lChunkLength);
+					lOutput += lChunkLength;
+				}
+			}
+		}
+		catch (final ArrayIndexOutOfBoundsException e)
+		{
+			throw new ClearVolumeCompressionException("Corrupted LZ4 block",
+																								e);
+		}
+
+		if (lOutput != lDestinationEnd)
+			throw new ClearVolumeCompressionException(String.format("Corrupted LZ4 block: decompressed %d bytes instead of %d",
+																															lOutput - pDestinationOffset,
+																															pDestinationLength));
+	}
+
+	private static int writeSequence(	byte[] pSource,
+																		int pLiteralStart,
+																		int pLiteralLength,
+																		int pOffset,
+																		int pMatchLength,
+																		byte[] pDestination,
+																		int pOutput)
+	{
+		final int lTokenPosition = pOutput++;
+		int lToken;
+
+		if (pLiteralLength >= 15)
+		{
+			lToken = 15 << 4;
+			pOutput = writeLength(pLiteralLength - 15, pDestination, pOutput);
+		}
+		else
+			lToken = pLiteralLength << 4;
+
+		System.arraycopy(	pSource,
+											pLiteralStart,
+											pDestination,
+											pOutput,
+											pLiteralLength);
+		pOutput += pLiteralLength;
+
+		pDestination[pOutput++] = (byte) pOffset;
+		pDestination[pOutput++] = (byte) (pOffset >>> 8);
+
+		final int lMatchLength = pMatchLength - cMinMatch;
+		if (lMatchLength >= 15)
+		{
+			lToken |= 15;
+			pOutput = writeLength(lMatchLength - 15, pDestination, pOutput);
+		}
+		else
+			lToken |= lMatchLength;
+
+		pDestination[lTokenPosition] = (byte) lToken;
+		return pOutput;
+	}
+
+	private static int writeLastLiterals(	byte[] pSource,
+																				int pLiteralStart,
+																				int pLiteralLength,
+																				byte[] pDestination,
+																				int pOutput)
+	{
+		if (pLiteralLength >= 15)
+		{
+			pDestination[pOutput++] = (byte) (15 << 4);
+			pOutput = writeLength(pLiteralLength - 15, pDestination, pOutput);
+		}
+		else
+			pDestination[pOutput++] = (byte) (pLiteralLength << 4);
+
+		System.arraycopy(	pSource,
+											pLiteralStart,
+											pDestination,
+											pOutput,
+											pLiteralLength);
+		return pOutput + pLiteralLength;
+	}
+
+	private static int writeLength(	int pLength,
+																	byte[] pDestination,
+																	int pOutput)
+	{
+		while (pLength >= 255)
+		{
+			pDestination[pOutput++] = (byte) 255;
+			pLength -= 255;
+		}
+		pDestination[pOutput++] = (byte) pLength;
+		return pOutput;
+	}
+
+	private static int readInt(byte[] pArray, int pOffset)
+	{
+		return (pArray[pOffset] & 0xFF) | ((pArray[pOffset + 1] & 0xFF) << 8)
+						| ((pArray[pOffset + 2] & 0xFF) << 16)
+						| ((pArray[pOffset + 3] & 0xFF) << 24);
+	}
+
+	private static int hash(int pSequence)
+	{
+		return (pSequence * -1640531535) >>> (32 - cHashLog);
+	}
+
+}
@@ -0,0 +1,94 @@
+package clearvolume.network.serialization.compression;
+
+/**
+ * Reversible pre-filter for multi-byte voxels: bytes are first shuffled so that
+ * all the first bytes of each voxel come first, then all second bytes, and so
+ * on. Each of these byte planes is then delta encoded. For 16 bit microscopy
+ * data this turns the mostly constant high bytes into long runs of zeros and
+ * the slowly varying low bytes into small values, which LZ4 compresses much
+ * better than the raw interleaved bytes.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ShuffleDelta
+{
+
+	/**
+	 * Shuffles and delta encodes bytes.
+	 *
+	 * @param pSource
+	 *          source array
+	 * @param pDestination
+	 *          destination array
+	 * @param pLength
+	 *          number of bytes to encode, a trailing partial element is copied
+	 *          unchanged
+	 * @param pElementSize
+	 *          element size in bytes
+	 */
+	public static void encode(byte[] pSource,
+														byte[] pDestination,
+														int pLength,
+														int pElementSize)
+	{
+		final int lNumberOfElements = pLength / pElementSize;
+		for (int b = 0; b < pElementSize; b++)
+		{
+			final int lPlaneOffset = b * lNumberOfElements;
+			byte lPrevious = 0;
+			for (int i = 0, s = b; i < lNumberOfElements; i++, s += pElementSize)
+			{
+				final byte lValue = pSource[s];
+				pDestination[lPlaneOffset + i] = (byte) (lValue - lPrevious);
+				lPrevious = lValue;
+			}
+		}
+		copyRemainder(pSource, pDestination, pLength, pElementSize);
+	}
+
+	/**
+	 * Reverts encode.
+	 *
+	 * @param pSource
+	 *          encoded bytes
+	 * @param pDestination
+	 *          destination array
+	 * @param pLength
+	 *          number of bytes to decode
+	 * @param pElementSize
+	 *          element size in bytes
+	 */
+	public static void decode(byte[] pSource,
+														byte[] pDestination,
+														int pLength,
+														int pElementSize)
+	{
+		final int lNumberOfElements = pLength / pElementSize;
+		for (int b = 0; b < pElementSize; b++)
+		{
+			final int lPlaneOffset = b * lNumberOfElements;
+			byte lValue = 0;
+			for (int i = 0, d = b; i < lNumberOfElements; i++, d += pElementSize)
+			{
+				lValue += pSource[lPlaneOffset + i];
+				pDestination[d] = lValue;
+			}
+		}
+		copyRemainder(pSource, pDestination, pLength, pElementSize);
+	}
+
+	private static void copyRemainder(byte[] pSource,
+																		byte[] pDestination,
+																		int pLength,
+																		int pElementSize)
+	{
+		final int lRemainderStart = pLength - pLength % pElementSize;
+		System.arraycopy(	pSource,
+											lRemainderStart,
+											pDestination,
+											lRemainderStart,
+											pLength - lRemainderStart);
+	}
+
+}
@@ -0,0 +1,49 @@
+package clearvolume.network.serialization.compression;
+
+/**
+ * Lossless codecs for the voxel data of serialized volumes. The codec used is
+ * recorded in the volume header, so receivers decode whatever they are sent.
+ * Codes are part of the wire format and must not change.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public enum VolumeCodec
+{
+	/**
+	 * Raw voxels.
+	 */
+	None(0),
+
+	/**
+	 * LZ4 block compression of the raw voxels.
+	 */
+	LZ4(1),
+
+	/**
+	 * Byte shuffle and byte-wise delta followed by LZ4, best for 16 bit and
+	 * wider voxels.
+	 */
+	ShuffleDeltaLZ4(2);
+
+	private final short mCode;
+
+	private VolumeCodec(int pCode)
+	{
+		mCode = (short) pCode;
+	}
+
+	public short getCode()
+	{
+		return mCode;
+	}
+
+	public static VolumeCodec fromCode(int pCode)
+	{
+		for (final VolumeCodec lVolumeCodec : values())
+			if (lVolumeCodec.mCode == pCode)
+				return lVolumeCodec;
+		return null;
+	}
+
+}
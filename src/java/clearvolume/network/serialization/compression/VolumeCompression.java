@@ -0,0 +1,365 @@
+package clearvolume.network.serialization.compression;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import clearvolume.exceptions.ClearVolumeCompressionException;
+
+/**
+ * Compresses and decompresses voxel data with a given codec. The data is cut
+ * into blocks of whole Z planes that are processed in parallel, on both the
+ * sending and receiving side. Compressed layout (buffer order): number of
+ * blocks (int), then for each block its uncompressed and stored length (2
+ * ints), then the blocks themselves. A negative stored length marks a block
+ * that did not compress and is stored after filtering only.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class VolumeCompression
+{
+	private static final int cMaxBlockLength = 4 * 1024 * 1024;
+	private static final int cBlocksPerThread = 4;
+	private static final int cNumberOfThreads = Runtime.getRuntime()
+																											.availableProcessors();
+
+	private static final ThreadFactory cDaemonThreadFactory = new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable pRunnable)
+		{
+			final Thread lThread = new Thread(pRunnable,
+																				VolumeCompression.class.getSimpleName() + "Thread");
+			lThread.setDaemon(true);
+			return lThread;
+		}
+	};
+
+	private static final ExecutorService sExecutorService = Executors.newFixedThreadPool(	cNumberOfThreads,
+																																										cDaemonThreadFactory);
+
+	private static final ThreadLocal<WorkArrays> sWorkArrays = new ThreadLocal<WorkArrays>()
+	{
+		@Override
+		protected WorkArrays initialValue()
+		{
+			return new WorkArrays();
+		}
+	};
+
+	private static final ThreadLocal<byte[][]> sBlockArrays = new ThreadLocal<byte[][]>();
+
+	private static class WorkArrays
+	{
+		byte[] mArrayA = new byte[0];
+		byte[] mArrayB = new byte[0];
+		int[] mHashTable = LZ4.newHashTable();
+
+		void ensureLength(int pLength)
+		{
+			if (mArrayA.length < pLength)
+			{
+				mArrayA = new byte[pLength];
+				mArrayB = new byte[pLength];
+			}
+		}
+	}
+
+	/**
+	 * Returns the worst case length of compressed voxel data.
+	 *
+	 * @param pDataLength
+	 *          uncompressed length in bytes
+	 * @param pPlaneLength
+	 *          length in bytes of one Z plane
+	 * @return maximal compressed length
+	 */
+	public static int getMaxCompressedLength(	int pDataLength,
+																						int pPlaneLength)
+	{
+		final int lBlockLength = getBlockLength(pDataLength, pPlaneLength);
+		final int lNumberOfBlocks = getNumberOfBlocks(pDataLength,
+																									lBlockLength);
+		return 4 + 8 * lNumberOfBlocks
+						+ lNumberOfBlocks
+						* LZ4.getMaxCompressedLength(lBlockLength);
+	}
+
+	/**
+	 * Compresses the remaining bytes of a source buffer into a destination
+	 * buffer, starting at its current position.
+	 *
+	 * @param pVolumeCodec
+	 *          codec, must not be None
+	 * @param pSource
+	 *          voxel data between position and limit, the position is not
+	 *          modified
+	 * @param pElementSize
+	 *          size in bytes of one voxel value
+	 * @param pPlaneLength
+	 *          length in bytes of one Z plane
+	 * @param pDestination
+	 *          destination buffer, its position is advanced by the compressed
+	 *          length
+	 * @return compressed length in bytes
+	 */
+	public static int compress(	final VolumeCodec pVolumeCodec,
+															final ByteBuffer pSource,
+															final int pElementSize,
+															int pPlaneLength,
+															ByteBuffer pDestination)
+	{
+		final int lSourceStart = pSource.position();
+		final int lDataLength = pSource.remaining();
+		final int lBlockLength = getBlockLength(lDataLength, pPlaneLength);
+		final int lNumberOfBlocks = getNumberOfBlocks(lDataLength,
+																									lBlockLength);
+
+		final byte[][] lBlockArrays = getBlockArrays(	lNumberOfBlocks,
+																									LZ4.getMaxCompressedLength(lBlockLength));
+		final int[] lStoredLengths = new int[lNumberOfBlocks];
+
+		final List<Callable<Void>> lTasks = new ArrayList<Callable<Void>>(lNumberOfBlocks);
+		for (int i = 0; i < lNumberOfBlocks; i++)
+		{
+			final int lBlockIndex = i;
+			final int lStart = i * lBlockLength;
+			final int lLength = Math.min(lBlockLength, lDataLength - lStart);
+			lTasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					final WorkArrays lWorkArrays = sWorkArrays.get();
+					lWorkArrays.ensureLength(lLength);
+
+					final ByteBuffer lBlock = pSource.duplicate();
+					lBlock.position(lSourceStart + lStart);
+					lBlock.limit(lSourceStart + lStart + lLength);
+					lBlock.get(lWorkArrays.mArrayA, 0, lLength);
+
+					byte[] lFiltered = lWorkArrays.mArrayA;
+					if (pVolumeCodec == VolumeCodec.ShuffleDeltaLZ4)
+					{
+						ShuffleDelta.encode(lWorkArrays.mArrayA,
+																lWorkArrays.mArrayB,
+																lLength,
+																pElementSize);
+						lFiltered = lWorkArrays.mArrayB;
+					}
+
+					final byte[] lBlockArray = lBlockArrays[lBlockIndex];
+					final int lCompressedLength = LZ4.compress(	lFiltered,
+																											0,
+																											lLength,
+																											lBlockArray,
+																											0,
+																											lWorkArrays.mHashTable);
+					if (lCompressedLength < lLength)
+						lStoredLengths[lBlockIndex] = lCompressedLength;
+					else
+					{
+						System.arraycopy(lFiltered, 0, lBlockArray, 0, lLength);
+						lStoredLengths[lBlockIndex] = -lLength;
+					}
+					return null;
+				}
+			});
+		}
+		run(lTasks);
+
+		final int lDestinationStart = pDestination.position();
+		pDestination.putInt(lNumberOfBlocks);
+		for (int i = 0; i < lNumberOfBlocks; i++)
+		{
+			pDestination.putInt(Math.min(lBlockLength, lDataLength - i
+																									* lBlockLength));
+			pDestination.putInt(lStoredLengths[i]);
+		}
+		for (int i = 0; i < lNumberOfBlocks; i++)
+			pDestination.put(	lBlockArrays[i],
+												0,
+												Math.abs(lStoredLengths[i]));
+
+		return pDestination.position() - lDestinationStart;
+	}
+
+	/**
+	 * Decompresses voxel data.
+	 *
+	 * @param pVolumeCodec
+	 *          codec, must not be None
+	 * @param pSource
+	 *          compressed data between position and limit, the position is not
+	 *          modified
+	 * @param pElementSize
+	 *          size in bytes of one voxel value
+	 * @param pDestination
+	 *          receives the voxel data between position and limit, the position
+	 *          is not modified
+	 * @throws ClearVolumeCompressionException
+	 *           if the data is corrupted or does not match the destination length
+	 */
+	public static void decompress(final VolumeCodec pVolumeCodec,
+																final ByteBuffer pSource,
+																final int pElementSize,
+																final ByteBuffer pDestination)
+	{
+		final ByteBuffer lTable = pSource.duplicate();
+		lTable.order(pSource.order());
+		final int lNumberOfBlocks = lTable.getInt();
+		if (lNumberOfBlocks < 0 || 8L * lNumberOfBlocks > lTable.remaining())
+			throw new ClearVolumeCompressionException("Corrupted compressed volume: invalid number of blocks");
+
+		final List<Callable<Void>> lTasks = new ArrayList<Callable<Void>>(lNumberOfBlocks);
+		long lSourceOffset = lTable.position() + 8L * lNumberOfBlocks;
+		long lDestinationOffset = pDestination.position();
+		for (int i = 0; i < lNumberOfBlocks; i++)
+		{
+			final int lLength = lTable.getInt();
+			final int lStoredLength = lTable.getInt();
+			final boolean lRaw = lStoredLength < 0;
+			final int lCompressedLength = Math.abs(lStoredLength);
+			if (lLength < 0 || lRaw && lCompressedLength != lLength
+					|| lSourceOffset + lCompressedLength > pSource.limit()
+					|| lDestinationOffset + lLength > pDestination.limit())
+				throw new ClearVolumeCompressionException("Corrupted compressed volume: invalid block length");
+
+			final int lSourceStart = (int) lSourceOffset;
+			final int lDestinationStart = (int) lDestinationOffset;
+			lTasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					final WorkArrays lWorkArrays = sWorkArrays.get();
+					lWorkArrays.ensureLength(Math.max(lLength, lCompressedLength));
+
+					final ByteBuffer lBlock = pSource.duplicate();
+					lBlock.position(lSourceStart);
+					lBlock.limit(lSourceStart + lCompressedLength);
+					lBlock.get(lWorkArrays.mArrayA, 0, lCompressedLength);
+
+					byte[] lFiltered = lWorkArrays.mArrayA;
+					byte[] lFree = lWorkArrays.mArrayB;
+					if (!lRaw)
+					{
+						LZ4.decompress(	lWorkArrays.mArrayA,
+														0,
+														lCompressedLength,
+														lWorkArrays.mArrayB,
+														0,
+														lLength);
+						lFiltered = lWorkArrays.mArrayB;
+						lFree = lWorkArrays.mArrayA;
+					}
+
+					byte[] lVoxels = lFiltered;
+					if (pVolumeCodec == VolumeCodec.ShuffleDeltaLZ4)
+					{
+						ShuffleDelta.decode(lFiltered, lFree, lLength, pElementSize);
+						lVoxels = lFree;
+					}
+
+					final ByteBuffer lDestination = pDestination.duplicate();
+					lDestination.position(lDestinationStart);
+					lDestination.limit(lDestinationStart + lLength);
+					lDestination.put(lVoxels, 0, lLength);
+					return null;
+				}
+			});
+
+			lSourceOffset += lCompressedLength;
+			lDestinationOffset += lLength;
+		}
+
+		if (lDestinationOffset != pDestination.limit())
+			throw new ClearVolumeCompressionException(String.format("Compressed volume holds %d bytes instead of %d",
+																															lDestinationOffset - pDestination.position(),
+																															pDestination.remaining()));
+
+		run(lTasks);
+	}
+
+	private static int getBlockLength(int pDataLength, int pPlaneLength)
+	{
+		if (pPlaneLength <= 0 || pPlaneLength > pDataLength)
+			return Math.max(1, pDataLength);
+
+		// enough blocks to keep all cores busy, but not too large:
+		final int lNumberOfPlanes = pDataLength / pPlaneLength;
+		final int lMaxPlanesPerBlock = Math.max(1, cMaxBlockLength
+																								/ pPlaneLength);
+		final int lPlanesPerBlock = Math.min(	lMaxPlanesPerBlock,
+																					Math.max(	1,
+																										lNumberOfPlanes / (cBlocksPerThread * cNumberOfThreads)));
+		return lPlanesPerBlock * pPlaneLength;
+	}
+
+	private static int getNumberOfBlocks(int pDataLength, int pBlockLength)
+	{
+		return (pDataLength + pBlockLength - 1) / pBlockLength;
+	}
+
+	private static byte[][] getBlockArrays(	int pNumberOfBlocks,
+																					int pBlockArrayLength)
+	{
+		byte[][] lBlockArrays = sBlockArrays.get();
+		if (lBlockArrays == null || lBlockArrays.length < pNumberOfBlocks)
+		{
+			final byte[][] lNewBlockArrays = new byte[pNumberOfBlocks][];
+			if (lBlockArrays != null)
+				System.arraycopy(	lBlockArrays,
+													0,
+													lNewBlockArrays,
+													0,
+													lBlockArrays.length);
+			lBlockArrays = lNewBlockArrays;
+			sBlockArrays.set(lBlockArrays);
+		}
+		for (int i = 0; i < pNumberOfBlocks; i++)
+			if (lBlockArrays[i] == null || lBlockArrays[i].length < pBlockArrayLength)
+				lBlockArrays[i] = new byte[pBlockArrayLength];
+		return lBlockArrays;
+	}
+
+	private static void run(List<Callable<Void>> pTasks)
+	{
+		try
+		{
+			if (pTasks.size() == 1)
+			{
+				pTasks.get(0).call();
+				return;
+			}
+
+			final List<Future<Void>> lFutures = sExecutorService.invokeAll(pTasks);
+			for (final Future<Void> lFuture : lFutures)
+				lFuture.get();
+		}
+		catch (final ExecutionException e)
+		{
+			if (e.getCause() instanceof ClearVolumeCompressionException)
+				throw (ClearVolumeCompressionException) e.getCause();
+			throw new ClearVolumeCompressionException("Volume (de)compression failed",
+																								e.getCause());
+		}
+		catch (final ClearVolumeCompressionException e)
+		{
+			throw e;
+		}
+		catch (final Exception e)
+		{
+			throw new ClearVolumeCompressionException("Volume (de)compression failed",
+																								e);
+		}
+	}
+
+}
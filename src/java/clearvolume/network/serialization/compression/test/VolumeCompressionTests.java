@@ -0,0 +1,153 @@
+package clearvolume.network.serialization.compression.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import clearvolume.exceptions.ClearVolumeCompressionException;
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.compression.LZ4;
+import clearvolume.network.serialization.compression.ShuffleDelta;
+import clearvolume.network.serialization.compression.VolumeCodec;
+import clearvolume.network.serialization.compression.VolumeCompression;
+import clearvolume.volume.Volume;
+import coremem.types.NativeTypeEnum;
+
+public class VolumeCompressionTests
+{
+
+	@Test
+	public void testLZ4()
+	{
+		final Random lRandom = new Random(1);
+
+		final byte[][] lInputs = new byte[4][];
+		lInputs[0] = new byte[0];
+		lInputs[1] = new byte[100000];
+		lInputs[2] = new byte[100000];
+		lRandom.nextBytes(lInputs[2]);
+		lInputs[3] = new byte[100000];
+		for (int i = 0; i < lInputs[3].length; i++)
+			lInputs[3][i] = (byte) (i % 1000 < 900 ? 0 : lRandom.nextInt());
+
+		final int[] lHashTable = LZ4.newHashTable();
+		for (final byte[] lInput : lInputs)
+		{
+			final byte[] lCompressed = new byte[LZ4.getMaxCompressedLength(lInput.length)];
+			final int lCompressedLength = LZ4.compress(	lInput,
+																									0,
+																									lInput.length,
+																									lCompressed,
+																									0,
+																									lHashTable);
+			final byte[] lDecompressed = new byte[lInput.length];
+			LZ4.decompress(	lCompressed,
+											0,
+											lCompressedLength,
+											lDecompressed,
+											0,
+											lDecompressed.length);
+			assertArrayEquals(lInput, lDecompressed);
+		}
+	}
+
+	@Test
+	public void testShuffleDelta()
+	{
+		final Random lRandom = new Random(2);
+		final byte[] lInput = new byte[1001];
+		lRandom.nextBytes(lInput);
+
+		final byte[] lEncoded = new byte[lInput.length];
+		final byte[] lDecoded = new byte[lInput.length];
+		ShuffleDelta.encode(lInput, lEncoded, lInput.length, 2);
+		ShuffleDelta.decode(lEncoded, lDecoded, lInput.length, 2);
+		assertArrayEquals(lInput, lDecoded);
+	}
+
+	@Test
+	public void testVolumeRoundTrip()
+	{
+		final Volume lVolume = newDarkVolume(256, 256, 64);
+		final int lDataLength = (int) lVolume.getDataSizeInBytes();
+
+		for (final VolumeCodec lVolumeCodec : new VolumeCodec[]
+		{ VolumeCodec.LZ4, VolumeCodec.ShuffleDeltaLZ4 })
+		{
+			final ByteBuffer lBuffer = ClearVolumeSerialization.serialize(lVolume,
+																																		null,
+																																		lVolumeCodec);
+			// dark 16 bit data compresses well:
+			assertTrue(lBuffer.limit() < lDataLength / 3);
+
+			final Volume lDeserializedVolume = ClearVolumeSerialization.deserialize(lBuffer,
+																																							new Volume());
+			assertEquals(NativeTypeEnum.UnsignedShort,
+										lDeserializedVolume.getNativeType());
+			assertEquals(lVolume.getDataBuffer(),
+										lDeserializedVolume.getDataBuffer());
+		}
+	}
+
+	@Test
+	public void testCorruptedData()
+	{
+		final Volume lVolume = newDarkVolume(64, 64, 16);
+		final ByteBuffer lSource = lVolume.getDataBuffer().duplicate();
+		lSource.clear();
+
+		final ByteBuffer lCompressed = ByteBuffer.allocate(VolumeCompression.getMaxCompressedLength(	lSource.remaining(),
+																																															64 * 64 * 2));
+		lCompressed.order(ByteOrder.nativeOrder());
+		VolumeCompression.compress(	VolumeCodec.LZ4,
+																lSource,
+																2,
+																64 * 64 * 2,
+																lCompressed);
+		lCompressed.flip();
+
+		// destination one byte too short:
+		try
+		{
+			VolumeCompression.decompress(	VolumeCodec.LZ4,
+																		lCompressed,
+																		2,
+																		ByteBuffer.allocate(lSource.remaining() - 1));
+			fail();
+		}
+		catch (final ClearVolumeCompressionException e)
+		{
+		}
+	}
+
+	private static Volume newDarkVolume(int pWidth, int pHeight, int pDepth)
+	{
+		final Random lRandom = new Random(3);
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedShort,
+																			1,
+																			pWidth,
+																			pHeight,
+																			pDepth);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		lDataBuffer.order(ByteOrder.nativeOrder());
+		for (int z = 0; z < pDepth; z++)
+			for (int y = 0; y < pHeight; y++)
+				for (int x = 0; x < pWidth; x++)
+				{
+					final int dx = x - pWidth / 2, dy = y - pHeight / 2, dz = z - pDepth / 2;
+					final boolean lInside = dx * dx + dy * dy + 4 * dz * dz < pWidth * pWidth / 16;
+					final int lValue = lInside ? 1000 + lRandom.nextInt(64) : 100;
+					lDataBuffer.putShort((short) lValue);
+				}
+		lDataBuffer.rewind();
+		return lVolume;
+	}
+
+}
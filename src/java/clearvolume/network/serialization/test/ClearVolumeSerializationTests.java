@@ -1,13 +1,32 @@
 package clearvolume.network.serialization.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
 import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.keyvalue.KeyValueMaps;
 import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
 import coremem.types.NativeTypeEnum;
 
 public class ClearVolumeSerializationTests
@@ -71,4 +90,321 @@ public class ClearVolumeSerializationTests
 
 	}
 
+	@Test
+	public void testLegacyHeader()
+	{
+		final LinkedHashMap<String, String> lHeaderMap = new LinkedHashMap<String, String>();
+		lHeaderMap.put("index", "7");
+		lHeaderMap.put("time", "1.5");
+		lHeaderMap.put("channel", "1");
+		lHeaderMap.put("channelname", "legacy");
+		lHeaderMap.put("color", "1.0 0.0 0.0 1.0");
+		lHeaderMap.put("viewmatrix", "");
+		lHeaderMap.put("dim", "3");
+		lHeaderMap.put("type", "UnsignedShort");
+		lHeaderMap.put("bytespervoxel", "2");
+		lHeaderMap.put("elementsize", "1");
+		lHeaderMap.put("width", "4");
+		lHeaderMap.put("height", "3");
+		lHeaderMap.put("depth", "2");
+		lHeaderMap.put("voxelwidth", "0.5");
+		lHeaderMap.put("voxelheight", "0.5");
+		lHeaderMap.put("voxeldepth", "2.0");
+		lHeaderMap.put("realunit", "um");
+		final byte[] lHeader = KeyValueMaps.writeStringFromMap(	lHeaderMap,
+																														null)
+																				.toString()
+																				.getBytes();
+
+		final int lDataLength = 2 * 4 * 3 * 2;
+		final ByteBuffer lBuffer = ByteBuffer.allocateDirect(3 * 8
+																													+ lHeader.length
+																													+ lDataLength)
+																					.order(ByteOrder.nativeOrder());
+		lBuffer.putLong(lBuffer.capacity());
+		lBuffer.putLong(lHeader.length);
+		lBuffer.put(lHeader);
+		lBuffer.putLong(lDataLength);
+		lBuffer.putShort((short) 4321);
+
+		final Volume lVolume = new Volume();
+		ClearVolumeSerialization.deserialize(lBuffer, lVolume);
+
+		assertEquals(7, lVolume.getTimeIndex());
+		assertEquals(1.5, lVolume.getTimeInSeconds(), 0);
+		assertEquals(1, lVolume.getChannelID());
+		assertEquals("legacy", lVolume.getChannelName());
+		assertEquals(NativeTypeEnum.UnsignedShort, lVolume.getNativeType());
+		assertEquals(4, lVolume.getWidthInVoxels());
+		assertEquals(3, lVolume.getHeightInVoxels());
+		assertEquals(2, lVolume.getDepthInVoxels());
+		assertEquals(2.0, lVolume.getVoxelDepthInRealUnits(), 0);
+		assertEquals(lDataLength, lVolume.getDataBuffer().capacity());
+		assertEquals(4321, lVolume.getDataBuffer().getShort(0));
+	}
+
+	@Test
+	public void testDeserializeIntoManagedVolume()
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedShort,
+																			1,
+																			8,
+																			8,
+																			8);
+		lVolume.setChannelName("channel 5");
+		lVolume.getDataBuffer().put(0, (byte) 42);
+		final ByteBuffer lBuffer = ClearVolumeSerialization.serialize(lVolume,
+																																	null);
+
+		// the pooled volume does not have the size class of the header:
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+		final Volume lPooledVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																				TimeUnit.MILLISECONDS,
+																																				NativeTypeEnum.UnsignedByte,
+																																				1,
+																																				4,
+																																				4,
+																																				4);
+		lPooledVolume.makeAvailableToManager();
+
+		final Volume lDeserializedVolume = ClearVolumeSerialization.deserialize(lBuffer,
+																																						lVolumeManager,
+																																						1,
+																																						TimeUnit.MILLISECONDS);
+		assertNotSame(lPooledVolume, lDeserializedVolume);
+		assertEquals(2, lVolumeManager.getNumberOfAllocations());
+		assertEquals(NativeTypeEnum.UnsignedShort,
+									lDeserializedVolume.getNativeType());
+		assertEquals("channel 5", lDeserializedVolume.getChannelName());
+		assertEquals(lVolume.getDataBuffer(),
+									lDeserializedVolume.getDataBuffer());
+
+		// data buffers of the wrong size are not replaced:
+		try
+		{
+			ClearVolumeSerialization.deserialize(	lBuffer,
+																						new Volume(	NativeTypeEnum.UnsignedByte,
+																												1,
+																												4,
+																												4,
+																												4));
+			fail();
+		}
+		catch (final IllegalArgumentException e)
+		{
+		}
+
+		lVolumeManager.close();
+	}
+
+	@Test
+	public void testBinaryHeaderReuse()
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedShort,
+																			1,
+																			8,
+																			8,
+																			8);
+		lVolume.setChannelName("channel 2");
+		lVolume.setColor(0.1f, 0.2f, 0.3f, 1f);
+
+		final ByteBuffer lBuffer = ClearVolumeSerialization.serialize(lVolume,
+																																	null);
+
+		final Volume lDeserializedVolume = new Volume();
+		ClearVolumeSerialization.deserialize(lBuffer, lDeserializedVolume);
+		final String lChannelName = lDeserializedVolume.getChannelName();
+		final float[] lColor = lDeserializedVolume.getColor();
+		final long[] lDimensions = lDeserializedVolume.getDimensionsInVoxels();
+
+		// decoding the same header again reuses strings and arrays:
+		ClearVolumeSerialization.deserialize(lBuffer, lDeserializedVolume);
+		assertSame(lChannelName, lDeserializedVolume.getChannelName());
+		assertSame(lColor, lDeserializedVolume.getColor());
+		assertSame(lDimensions, lDeserializedVolume.getDimensionsInVoxels());
+		assertEquals(NativeTypeEnum.UnsignedShort,
+									lDeserializedVolume.getNativeType());
+		assertEquals(0.2f, lDeserializedVolume.getColor()[1], 0);
+	}
+
+	@Test
+	public void testGatheringWrite() throws IOException
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedShort,
+																			1,
+																			16,
+																			16,
+																			16);
+		lVolume.setChannelName("channel 3");
+		final ByteBuffer lVolumeData = lVolume.getDataBuffer();
+		for (int i = 0; i < lVolumeData.capacity(); i++)
+			lVolumeData.put(i, (byte) i);
+
+		final ByteBuffer lSerialized = ClearVolumeSerialization.serialize(lVolume,
+																																			null);
+		lSerialized.rewind();
+		lVolumeData.rewind();
+
+		final File lFile = File.createTempFile("ClearVolumeSerializationTests",
+																						".bin");
+		lFile.deleteOnExit();
+		try (final FileChannel lFileChannel = FileChannel.open(	lFile.toPath(),
+																														StandardOpenOption.READ,
+																														StandardOpenOption.WRITE))
+		{
+			final ByteBuffer lHeaderBuffer = ClearVolumeSerialization.write(lFileChannel,
+																																			lVolume,
+																																			null);
+			// the header buffer is reused for volumes of the same kind:
+			assertSame(lHeaderBuffer,
+									ClearVolumeSerialization.write(	lFileChannel,
+																									lVolume,
+																									lHeaderBuffer));
+
+			assertEquals(2 * lSerialized.capacity(), lFileChannel.size());
+
+			final ByteBuffer lWritten = ByteBuffer.allocateDirect(lSerialized.capacity());
+			lFileChannel.read(lWritten, lSerialized.capacity());
+			lWritten.flip();
+			assertEquals(lSerialized, lWritten);
+		}
+
+		// the volume's own buffer is left untouched:
+		assertEquals(0, lVolumeData.position());
+	}
+
+	@Test
+	public void testEmptyVolume() throws IOException
+	{
+		final Volume lVolume = new Volume();
+		lVolume.setType(NativeTypeEnum.UnsignedShort);
+		lVolume.setDimensionsInVoxels(1, 0, 0, 0);
+		lVolume.setDataBuffer(ByteBuffer.allocateDirect(0));
+		lVolume.setTimeIndex(5);
+		lVolume.setChannelName("empty");
+
+		final File lFile = File.createTempFile("ClearVolumeSerializationTests",
+																						".bin");
+		lFile.deleteOnExit();
+		try (final FileChannel lFileChannel = FileChannel.open(	lFile.toPath(),
+																														StandardOpenOption.READ,
+																														StandardOpenOption.WRITE))
+		{
+			// the header is written even if there is no voxel data:
+			ClearVolumeSerialization.write(lFileChannel, lVolume, null);
+			assertEquals(	3 * 8 + ClearVolumeSerialization.getVolumeHeaderLength(lVolume),
+										lFileChannel.size());
+
+			final ByteBuffer lWritten = lFileChannel.map(	MapMode.READ_ONLY,
+																										0,
+																										lFileChannel.size())
+																							.order(ByteOrder.nativeOrder());
+			final Volume lDeserializedVolume = new Volume();
+			lDeserializedVolume.setDataBuffer(ByteBuffer.allocateDirect(0));
+			ClearVolumeSerialization.deserialize(lWritten, lDeserializedVolume);
+			assertEquals(5, lDeserializedVolume.getTimeIndex());
+			assertEquals("empty", lDeserializedVolume.getChannelName());
+			assertEquals(0, lDeserializedVolume.getWidthInVoxels());
+		}
+	}
+
+	@Test
+	public void testUnknownTypeCode()
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedByte,
+																			1,
+																			4,
+																			4,
+																			4);
+		final ByteBuffer lBuffer = ClearVolumeSerialization.serialize(lVolume,
+																																	null);
+		// type code after the two lengths, the magic number and the version:
+		lBuffer.putShort(2 * 8 + 4 + 2, (short) 99);
+
+		final Volume lDeserializedVolume = new Volume();
+		try
+		{
+			ClearVolumeSerialization.deserialize(lBuffer, lDeserializedVolume);
+			fail();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertNull(lDeserializedVolume.getNativeType());
+	}
+
+	@Test
+	public void testSocketChannel() throws IOException,
+																	InterruptedException
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedByte,
+																			1,
+																			64,
+																			64,
+																			64);
+		lVolume.setChannelName("channel 4");
+		final ByteBuffer lVolumeData = lVolume.getDataBuffer();
+		for (int i = 0; i < lVolumeData.capacity(); i++)
+			lVolumeData.put(i, (byte) (i * 7));
+
+		try (final ServerSocketChannel lServerSocketChannel = ServerSocketChannel.open())
+		{
+			lServerSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+			final Thread lSenderThread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try (final SocketChannel lSocketChannel = lServerSocketChannel.accept())
+					{
+						ByteBuffer lHeaderBuffer = null;
+						for (int i = 0; i < 2; i++)
+							lHeaderBuffer = ClearVolumeSerialization.write(	lSocketChannel,
+																															lVolume,
+																															lHeaderBuffer);
+					}
+					catch (final IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			lSenderThread.start();
+
+			try (final SocketChannel lSocketChannel = SocketChannel.open(lServerSocketChannel.getLocalAddress()))
+			{
+				// first volume with a blocking read:
+				final Volume lReceivedVolume = ClearVolumeSerialization.deserialize(lSocketChannel,
+																																						null);
+				assertEquals("channel 4", lReceivedVolume.getChannelName());
+				assertEquals(lVolumeData, lReceivedVolume.getDataBuffer());
+
+				// second volume with a non-blocking read, data buffer is reused:
+				final ByteBuffer lReceivedVolumeData = lReceivedVolume.getDataBuffer();
+				lReceivedVolumeData.clear();
+				lReceivedVolumeData.put(0, (byte) 1);
+				lSocketChannel.configureBlocking(false);
+				assertSame(	lReceivedVolume,
+										ClearVolumeSerialization.deserialize(	lSocketChannel,
+																													lReceivedVolume));
+				assertSame(lReceivedVolumeData, lReceivedVolume.getDataBuffer());
+				assertEquals(lVolumeData, lReceivedVolume.getDataBuffer());
+
+				// the sender closed the connection:
+				lSenderThread.join();
+				try
+				{
+					ClearVolumeSerialization.deserialize(	lSocketChannel,
+																								lReceivedVolume);
+					fail();
+				}
+				catch (final EOFException e)
+				{
+				}
+			}
+		}
+	}
+
 }
@@ -8,6 +8,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.TimeUnit;
 
 import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.serialization.compression.VolumeCodec;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
@@ -24,13 +25,35 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter implements
 	private Thread mRunnableThread;
 
 	private final SourceToSinkBufferedAdapter mSourceToSinkBufferedAdapter;
+	private final int mClientQueueLength;
+	private volatile VolumeCodec mVolumeCodec = VolumeCodec.None;
 
 	private final VolumeManager mManager = new VolumeManager(2);
-	private volatile Volume mLastVolumeSeen;
+	private final Object mLastVolumeSeenLock = new Object();
+	private Volume mLastVolumeSeen;
+
+	public static final int cDefaultClientQueueLength = 2;
 
 	public ClearVolumeTCPServerSink(int pBufferMaxCapacity)
+	{
+		this(pBufferMaxCapacity, cDefaultClientQueueLength);
+	}
+
+	/**
+	 * Constructs a server sink that serves any number of clients. Each client
+	 * has its own send queue of the given length, when a client does not keep up
+	 * its oldest queued volumes are dropped.
+	 *
+	 * @param pBufferMaxCapacity
+	 *          number of volumes buffered before serialization
+	 * @param pClientQueueLength
+	 *          number of serialized volumes queued per client
+	 */
+	public ClearVolumeTCPServerSink(int pBufferMaxCapacity,
+																	int pClientQueueLength)
 	{
 		super();
+		mClientQueueLength = pClientQueueLength;
 		mSourceToSinkBufferedAdapter = new SourceToSinkBufferedAdapter(	getManager(),
 																																		pBufferMaxCapacity);
 	}
@@ -40,7 +63,8 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter implements
 		if (mServerSocketChannel != null && mServerSocketChannel.isOpen())
 			return false;
 		mServerSocketChannel = ServerSocketChannel.open();
-		mServerSocketChannel.configureBlocking(true);
+		// accepting is polled by the sending thread between volumes:
+		mServerSocketChannel.configureBlocking(false);
 		mServerSocketChannel.setOption(	StandardSocketOptions.SO_RCVBUF,
 																		ClearVolumeTCPClient.cSocketBufferLength);
 		mServerSocketChannel.socket().bind(pSocketAddress);
@@ -63,13 +87,21 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter implements
 		}
 
 		mServerSocketChannel = null;
+
+		synchronized (mLastVolumeSeenLock)
+		{
+			if (mLastVolumeSeen != null)
+				mLastVolumeSeen.makeAvailableToManager();
+			mLastVolumeSeen = null;
+		}
 	}
 
 	public boolean start()
 	{
 		lRunnable = new ClearVolumeTCPServerSinkRunnable(	this,
 																											mServerSocketChannel,
-																											mSourceToSinkBufferedAdapter);
+																											mSourceToSinkBufferedAdapter,
+																											mClientQueueLength);
 		mRunnableThread = new Thread(	lRunnable,
 																	ClearVolumeTCPServerSinkRunnable.class.getSimpleName() + "Thread");
 		mRunnableThread.setDaemon(true);
@@ -83,36 +115,80 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter implements
 		return true;
 	}
 
+	/**
+	 * Sets the codec used to compress the voxel data of the volumes sent.
+	 * Clients decode whatever codec is announced in the volume header.
+	 *
+	 * @param pVolumeCodec
+	 *          codec
+	 */
+	public void setVolumeCodec(VolumeCodec pVolumeCodec)
+	{
+		mVolumeCodec = pVolumeCodec == null ? VolumeCodec.None
+																				: pVolumeCodec;
+	}
+
+	public VolumeCodec getVolumeCodec()
+	{
+		return mVolumeCodec;
+	}
+
+	public int getNumberOfClients()
+	{
+		if (lRunnable == null)
+			return 0;
+		return lRunnable.getNumberOfClients();
+	}
+
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
 		if (pVolume != null)
 		{
-			Volume lNewLastSeenVolume;
-			if (mLastVolumeSeen == null)
+			synchronized (mLastVolumeSeenLock)
 			{
-				lNewLastSeenVolume = mManager.requestAndWaitForVolumeLike(1,
-																																	TimeUnit.MILLISECONDS,
-																																	pVolume);
+				// the last seen volume is overwritten only if no frame is sending it:
+				Volume lNewLastSeenVolume = mLastVolumeSeen;
+				if (lNewLastSeenVolume != null && lNewLastSeenVolume.getNumberOfHolders() > 1)
+				{
+					lNewLastSeenVolume.makeAvailableToManager();
+					lNewLastSeenVolume = null;
+				}
+				if (lNewLastSeenVolume == null)
+					lNewLastSeenVolume = mManager.requestAndWaitForVolumeLike(1,
+																																		TimeUnit.MILLISECONDS,
+																																		pVolume);
+
+				if (lNewLastSeenVolume != null)
+				{
+					lNewLastSeenVolume.copyMetaDataFrom(pVolume);
+					lNewLastSeenVolume.copyDataFrom(pVolume);
+				}
+
+				mLastVolumeSeen = lNewLastSeenVolume;
 			}
-			else
-				lNewLastSeenVolume = mLastVolumeSeen;
-
-			lNewLastSeenVolume.copyMetaDataFrom(pVolume);
-			lNewLastSeenVolume.copyDataFrom(pVolume);
-
-			mLastVolumeSeen = lNewLastSeenVolume;
-			// System.out.println(mLastVolumeSeen);
 
 			final boolean lSucceededInSending = mSourceToSinkBufferedAdapter.sendVolumeWithFeedback(pVolume);
 			if (!lSucceededInSending)
-				if (getRelaySink() != null)
-					getRelaySink().sendVolume(pVolume);
-				else
-					pVolume.makeAvailableToManager();
+				releaseOrForward(pVolume);
 		}
 	}
 
+	/**
+	 * Hands a volume over to the relay sink, or back to its manager if there is
+	 * no relay sink.
+	 *
+	 * @param pVolume
+	 *          volume
+	 */
+	void releaseOrForward(Volume pVolume)
+	{
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
 	@Override
 	public VolumeManager getManager()
 	{
@@ -123,7 +199,25 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter implements
 
 	public Volume getLastVolumeSeen()
 	{
-		return mLastVolumeSeen;
+		synchronized (mLastVolumeSeenLock)
+		{
+			return mLastVolumeSeen;
+		}
+	}
+
+	/**
+	 * Returns the last volume seen with an additional hold on it, so that it is
+	 * not overwritten until the hold is released with
+	 * {@link Volume#makeAvailableToManager()}.
+	 *
+	 * @return last volume seen, or null
+	 */
+	Volume retainLastVolumeSeen()
+	{
+		synchronized (mLastVolumeSeenLock)
+		{
+			return mLastVolumeSeen == null ? null : mLastVolumeSeen.retain();
+		}
 	}
 
 }
@@ -0,0 +1,142 @@
+package clearvolume.network.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends volumes to one client of a server sink. Each client has its
+ * own bounded queue: when the client does not keep up, the oldest queued
+ * volumes are dropped so that a slow client never stalls the server or the
+ * other clients.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ClearVolumeTCPServerSinkClientRunnable implements Runnable
+{
+	private final SocketChannel mSocketChannel;
+	private final BlockingDeque<ClearVolumeTCPServerSinkFrame> mFrameQueue;
+	private final AtomicLong mNumberOfSentVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedVolumes = new AtomicLong();
+
+	private volatile boolean mStopSignal = false;
+	private volatile boolean mStoppedSignal = false;
+
+	public ClearVolumeTCPServerSinkClientRunnable(SocketChannel pSocketChannel,
+																								int pQueueLength)
+	{
+		mSocketChannel = pSocketChannel;
+		mFrameQueue = new LinkedBlockingDeque<ClearVolumeTCPServerSinkFrame>(pQueueLength);
+	}
+
+	/**
+	 * Queues a frame for this client, dropping the oldest queued frames if the
+	 * queue is full. Never blocks.
+	 *
+	 * @param pFrame
+	 *          frame to send
+	 */
+	void offer(ClearVolumeTCPServerSinkFrame pFrame)
+	{
+		if (mStoppedSignal)
+			return;
+
+		pFrame.retain();
+		while (!mFrameQueue.offerLast(pFrame))
+		{
+			final ClearVolumeTCPServerSinkFrame lOldestFrame = mFrameQueue.pollFirst();
+			if (lOldestFrame != null)
+			{
+				lOldestFrame.release();
+				mNumberOfDroppedVolumes.incrementAndGet();
+			}
+		}
+
+		// the sender may have stopped while we were queueing:
+		if (mStoppedSignal)
+			drainQueue();
+	}
+
+	public void requestStop()
+	{
+		mStopSignal = true;
+	}
+
+	public boolean isStopped()
+	{
+		return mStoppedSignal;
+	}
+
+	public long getNumberOfSentVolumes()
+	{
+		return mNumberOfSentVolumes.get();
+	}
+
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes.get();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (!mStopSignal && mSocketChannel.isOpen()
+							&& mSocketChannel.isConnected())
+			{
+				final ClearVolumeTCPServerSinkFrame lFrame = mFrameQueue.poll(10,
+																																			TimeUnit.MILLISECONDS);
+				if (lFrame == null)
+					continue;
+
+				try
+				{
+					// the header alone is written for empty volumes:
+					final ByteBuffer[] lByteBuffers = lFrame.getByteBuffers();
+					final ByteBuffer lLastByteBuffer = lByteBuffers[lByteBuffers.length - 1];
+					while (lByteBuffers[0].hasRemaining()
+									|| lLastByteBuffer.hasRemaining())
+						mSocketChannel.write(lByteBuffers);
+					mNumberOfSentVolumes.incrementAndGet();
+				}
+				finally
+				{
+					lFrame.release();
+				}
+			}
+		}
+		catch (final IOException e)
+		{
+			// client disconnected.
+		}
+		catch (final InterruptedException e)
+		{
+		}
+		finally
+		{
+			mStoppedSignal = true;
+			drainQueue();
+			try
+			{
+				mSocketChannel.close();
+			}
+			catch (final IOException e)
+			{
+			}
+		}
+	}
+
+	private void drainQueue()
+	{
+		ClearVolumeTCPServerSinkFrame lFrame;
+		while ((lFrame = mFrameQueue.pollFirst()) != null)
+			lFrame.release();
+	}
+
+}
@@ -0,0 +1,121 @@
+package clearvolume.network.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.compression.VolumeCodec;
+import clearvolume.utils.ToIntExact;
+import clearvolume.volume.Volume;
+
+/**
+ * A volume prepared once and shared by all clients of a server sink. Frames are
+ * reference counted: each client queue holds a reference, and the frame goes
+ * back to its pool once every client has sent or dropped it.
+ *
+ * Uncompressed volumes are not copied: the frame holds the volume itself and
+ * clients send the serialized header and the volume's data buffer with a
+ * gathering write. The volume is handed back, or relayed, once the last client
+ * is done with the frame. Compressed volumes are encoded into the frame's own
+ * buffer and handed back right away.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+final class ClearVolumeTCPServerSinkFrame
+{
+	private final Queue<ClearVolumeTCPServerSinkFrame> mPool;
+	private final ClearVolumeTCPServerSink mServerSink;
+	private final AtomicInteger mReferenceCount = new AtomicInteger();
+	private ByteBuffer mHeaderByteBuffer;
+	private ByteBuffer mByteBuffer;
+	private Volume mVolume;
+	private boolean mRelayVolume;
+
+	ClearVolumeTCPServerSinkFrame(Queue<ClearVolumeTCPServerSinkFrame> pPool,
+																ClearVolumeTCPServerSink pServerSink)
+	{
+		mPool = pPool;
+		mServerSink = pServerSink;
+	}
+
+	/**
+	 * Prepares this frame for a volume. The frame takes over the caller's hold on
+	 * the volume, and holds one reference after this call.
+	 *
+	 * @param pVolume
+	 *          volume to send
+	 * @param pVolumeCodec
+	 *          codec for the voxel data
+	 * @param pRelayVolume
+	 *          true if the volume goes to the relay sink once sent, false if it
+	 *          is only handed back to its manager
+	 */
+	void set(Volume pVolume, VolumeCodec pVolumeCodec, boolean pRelayVolume)
+	{
+		mReferenceCount.set(1);
+
+		if (pVolumeCodec != VolumeCodec.None)
+		{
+			mByteBuffer = ClearVolumeSerialization.serialize(	pVolume,
+																												mByteBuffer,
+																												pVolumeCodec);
+			mByteBuffer.flip();
+			mVolume = null;
+			handBack(pVolume, pRelayVolume);
+			return;
+		}
+
+		mHeaderByteBuffer = ClearVolumeSerialization.serializeHeader(	pVolume,
+																																	mHeaderByteBuffer);
+		mVolume = pVolume;
+		mRelayVolume = pRelayVolume;
+	}
+
+	/**
+	 * Returns views of the bytes to send, each client gets its own views so that
+	 * positions are independent.
+	 *
+	 * @return buffers to write with a gathering write
+	 */
+	ByteBuffer[] getByteBuffers()
+	{
+		if (mVolume == null)
+			return new ByteBuffer[]
+			{ mByteBuffer.asReadOnlyBuffer() };
+
+		final ByteBuffer lDataBuffer = mVolume.getDataBuffer().duplicate();
+		lDataBuffer.clear();
+		lDataBuffer.limit(ToIntExact.toIntExact(mVolume.getDataSizeInBytes()));
+
+		return new ByteBuffer[]
+		{ mHeaderByteBuffer.duplicate(), lDataBuffer };
+	}
+
+	void retain()
+	{
+		mReferenceCount.incrementAndGet();
+	}
+
+	void release()
+	{
+		if (mReferenceCount.decrementAndGet() == 0)
+		{
+			final Volume lVolume = mVolume;
+			mVolume = null;
+			if (lVolume != null)
+				handBack(lVolume, mRelayVolume);
+			mPool.offer(this);
+		}
+	}
+
+	private void handBack(Volume pVolume, boolean pRelayVolume)
+	{
+		if (pRelayVolume)
+			mServerSink.releaseOrForward(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+}
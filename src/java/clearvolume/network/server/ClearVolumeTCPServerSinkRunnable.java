@@ -1,14 +1,15 @@
 package clearvolume.network.server;
 
-import java.io.IOException;
 import java.net.StandardSocketOptions;
-import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import clearvolume.network.client.ClearVolumeTCPClient;
-import clearvolume.network.serialization.ClearVolumeSerialization;
 import clearvolume.volume.Volume;
 import clearvolume.volume.source.SourceToSinkBufferedAdapter;
 
@@ -17,18 +18,23 @@ public class ClearVolumeTCPServerSinkRunnable implements Runnable
 	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
 	private final ServerSocketChannel mServerSocketChannel;
 	private final SourceToSinkBufferedAdapter mVolumeSource;
+	private final int mClientQueueLength;
+
+	private final List<ClearVolumeTCPServerSinkClientRunnable> mClientList = new CopyOnWriteArrayList<ClearVolumeTCPServerSinkClientRunnable>();
+	private final Queue<ClearVolumeTCPServerSinkFrame> mFramePool = new ConcurrentLinkedQueue<ClearVolumeTCPServerSinkFrame>();
 
 	private volatile boolean mStopSignal = false;
 	private volatile boolean mStoppedSignal = false;
-	private ByteBuffer mByteBuffer;
 
 	public ClearVolumeTCPServerSinkRunnable(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
 																					ServerSocketChannel pSocketChannel,
-																					SourceToSinkBufferedAdapter pVolumeSource)
+																					SourceToSinkBufferedAdapter pVolumeSource,
+																					int pClientQueueLength)
 	{
 		mClearVolumeTCPServerSink = pClearVolumeTCPServerSink;
 		mServerSocketChannel = pSocketChannel;
 		mVolumeSource = pVolumeSource;
+		mClientQueueLength = pClientQueueLength;
 	}
 
 	public void requestStop()
@@ -36,6 +42,20 @@ public class ClearVolumeTCPServerSinkRunnable implements Runnable
 		mStopSignal = true;
 	}
 
+	public int getNumberOfClients()
+	{
+		int lNumberOfClients = 0;
+		for (final ClearVolumeTCPServerSinkClientRunnable lClient : mClientList)
+			if (!lClient.isStopped())
+				lNumberOfClients++;
+		return lNumberOfClients;
+	}
+
+	public List<ClearVolumeTCPServerSinkClientRunnable> getClients()
+	{
+		return mClientList;
+	}
+
 	@Override
 	public void run()
 	{
@@ -43,81 +63,104 @@ public class ClearVolumeTCPServerSinkRunnable implements Runnable
 		{
 			while (!mStopSignal)
 			{
-				final SocketChannel lSocketChannel = mServerSocketChannel.accept();
-				// System.out.println("connection accepted");
-				lSocketChannel.setOption(	StandardSocketOptions.SO_SNDBUF,
-																	ClearVolumeTCPClient.cSocketBufferLength);
-
-				try
-				{
-					if (lSocketChannel.isOpen() && lSocketChannel.isConnected()
-							&& mClearVolumeTCPServerSink.getLastVolumeSeen() != null)
-					{
-						// System.out.println("sending last seen volume: " +
-						// mClearVolumeTCPServerSink.getLastVolumeSeen());
-						sendVolumeToClient(	lSocketChannel,
-																mClearVolumeTCPServerSink.getLastVolumeSeen(),
-																false);
-					}
-
-					while (lSocketChannel.isOpen() && lSocketChannel.isConnected()
-									&& !mStopSignal)
-					{
-						final Volume lVolumeToSend = mVolumeSource.requestVolumeAndWait(10,
-																																						TimeUnit.MILLISECONDS);
-						if (lVolumeToSend != null)
-							sendVolumeToClient(lSocketChannel, lVolumeToSend, true);
-
-					}
-				}
-				catch (final java.io.IOException e1)
-				{
-					continue;
-				}
-				catch (final Throwable e)
-				{
-					e.printStackTrace();
-				}
+				acceptNewClients();
 
+				final Volume lVolumeToSend = mVolumeSource.requestVolumeAndWait(10,
+																																				TimeUnit.MILLISECONDS);
+				if (lVolumeToSend != null)
+					sendVolumeToClients(lVolumeToSend);
+
+				removeStoppedClients();
 			}
 
 		}
 		catch (final java.nio.channels.AsynchronousCloseException e)
 		{
 		}
+		catch (final java.nio.channels.ClosedChannelException e)
+		{
+		}
 		catch (final Throwable e)
 		{
 			handleError(e);
 		}
 		finally
 		{
+			for (final ClearVolumeTCPServerSinkClientRunnable lClient : mClientList)
+				lClient.requestStop();
+			mClientList.clear();
 			mStoppedSignal = true;
 		}
 	}
 
-	private void sendVolumeToClient(SocketChannel lSocketChannel,
-																	Volume lVolumeToSend,
-																	boolean pReleaseOrForward) throws IOException
+	private void acceptNewClients() throws java.io.IOException
 	{
-		mByteBuffer = ClearVolumeSerialization.serialize(	lVolumeToSend,
-																											mByteBuffer);
-		mByteBuffer.rewind();
-		if (lSocketChannel.isConnected() && lSocketChannel.isOpen())
+		SocketChannel lSocketChannel;
+		while ((lSocketChannel = mServerSocketChannel.accept()) != null)
 		{
-			while (mByteBuffer.hasRemaining())
-				lSocketChannel.write(mByteBuffer);
+			// System.out.println("connection accepted");
+			lSocketChannel.configureBlocking(true);
+			lSocketChannel.setOption(	StandardSocketOptions.SO_SNDBUF,
+																ClearVolumeTCPClient.cSocketBufferLength);
 
-			if (pReleaseOrForward)
+			final ClearVolumeTCPServerSinkClientRunnable lClient = new ClearVolumeTCPServerSinkClientRunnable(lSocketChannel,
+																																																		mClientQueueLength);
+
+			// new clients first get the last seen volume:
+			final Volume lLastVolumeSeen = mClearVolumeTCPServerSink.retainLastVolumeSeen();
+			if (lLastVolumeSeen != null)
 			{
-				if (mClearVolumeTCPServerSink.getRelaySink() == null)
-					lVolumeToSend.makeAvailableToManager();
-				else
-					mClearVolumeTCPServerSink.getRelaySink()
-																		.sendVolume(lVolumeToSend);
+				final ClearVolumeTCPServerSinkFrame lFrame = newFrame(lLastVolumeSeen,
+																															false);
+				lClient.offer(lFrame);
+				lFrame.release();
 			}
+
+			final Thread lClientThread = new Thread(lClient,
+																							ClearVolumeTCPServerSinkClientRunnable.class.getSimpleName() + "Thread");
+			lClientThread.setDaemon(true);
+			lClientThread.start();
+
+			mClientList.add(lClient);
 		}
 	}
 
+	private void sendVolumeToClients(Volume pVolumeToSend)
+	{
+		if (mClientList.isEmpty())
+		{
+			mClearVolumeTCPServerSink.releaseOrForward(pVolumeToSend);
+			return;
+		}
+
+		// shared by all clients, the volume is relayed once all have sent it:
+		final ClearVolumeTCPServerSinkFrame lFrame = newFrame(pVolumeToSend,
+																													true);
+		for (final ClearVolumeTCPServerSinkClientRunnable lClient : mClientList)
+			lClient.offer(lFrame);
+		lFrame.release();
+	}
+
+	private ClearVolumeTCPServerSinkFrame newFrame(	Volume pVolume,
+																									boolean pRelayVolume)
+	{
+		ClearVolumeTCPServerSinkFrame lFrame = mFramePool.poll();
+		if (lFrame == null)
+			lFrame = new ClearVolumeTCPServerSinkFrame(	mFramePool,
+																									mClearVolumeTCPServerSink);
+		lFrame.set(	pVolume,
+								mClearVolumeTCPServerSink.getVolumeCodec(),
+								pRelayVolume);
+		return lFrame;
+	}
+
+	private void removeStoppedClients()
+	{
+		for (final ClearVolumeTCPServerSinkClientRunnable lClient : mClientList)
+			if (lClient.isStopped())
+				mClientList.remove(lClient);
+	}
+
 	private void handleError(Throwable pE)
 	{
 		pE.printStackTrace();
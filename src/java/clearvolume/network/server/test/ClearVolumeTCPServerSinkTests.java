@@ -0,0 +1,143 @@
+package clearvolume.network.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.compression.VolumeCodec;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.NullVolumeSink;
+import coremem.types.NativeTypeEnum;
+
+public class ClearVolumeTCPServerSinkTests
+{
+	private static final int cSize = 128;
+	private static final int cNumberOfVolumesToSend = 30;
+
+	@Test
+	public void testFanOutWithSlowClient()	throws IOException,
+																					InterruptedException
+	{
+		fanOut(VolumeCodec.None);
+	}
+
+	@Test
+	public void testCompressedFanOut() throws IOException,
+																		InterruptedException
+	{
+		fanOut(VolumeCodec.ShuffleDeltaLZ4);
+	}
+
+	private void fanOut(VolumeCodec pVolumeCodec) throws IOException,
+																								InterruptedException
+	{
+		final int lPort = ClearVolumeSerialization.cStandardTCPPort + 100
+											+ (int) (Math.random() * 100);
+
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4,
+																																														1);
+		// counts relayed volumes, which must not be overwritten before:
+		final AtomicInteger lNumberOfRelayedVolumes = new AtomicInteger();
+		final AtomicInteger lNumberOfCorruptedVolumes = new AtomicInteger();
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				if (pVolume.getDataBuffer().get(0) != (byte) pVolume.getTimeIndex())
+					lNumberOfCorruptedVolumes.incrementAndGet();
+				lNumberOfRelayedVolumes.incrementAndGet();
+			}
+		});
+		lClearVolumeTCPServerSink.setVolumeCodec(pVolumeCodec);
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final InetSocketAddress lAddress = new InetSocketAddress(	"localhost",
+																															lPort);
+
+		// this client connects but never reads:
+		final SocketChannel lSlowClient = SocketChannel.open(lAddress);
+
+		final AtomicLong lLastTimeIndex1 = new AtomicLong(-1);
+		final AtomicLong lLastTimeIndex2 = new AtomicLong(-1);
+		final Thread lClientThread1 = startClient(lAddress, lLastTimeIndex1);
+		final Thread lClientThread2 = startClient(lAddress, lLastTimeIndex2);
+
+		while (lClearVolumeTCPServerSink.getNumberOfClients() < 3)
+			Thread.sleep(1);
+
+		for (int i = 0; i < cNumberOfVolumesToSend; i++)
+		{
+			final Volume lVolume = new Volume(NativeTypeEnum.UnsignedByte,
+																				1,
+																				cSize,
+																				cSize,
+																				cSize);
+			lVolume.setTimeIndex(i);
+			lVolume.getDataBuffer().put(0, (byte) i);
+			lClearVolumeTCPServerSink.sendVolume(lVolume);
+			Thread.sleep(20);
+		}
+
+		lClientThread1.join(10000);
+		lClientThread2.join(10000);
+
+		// both clients got the last volume although the slow one is stuck:
+		assertEquals(cNumberOfVolumesToSend - 1, lLastTimeIndex1.get());
+		assertEquals(cNumberOfVolumesToSend - 1, lLastTimeIndex2.get());
+
+		lSlowClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+
+		// every volume is relayed once, after all clients are done with it:
+		final long lDeadline = System.currentTimeMillis() + 10000;
+		while (lNumberOfRelayedVolumes.get() < cNumberOfVolumesToSend
+						&& System.currentTimeMillis() < lDeadline)
+			Thread.sleep(10);
+		assertEquals(cNumberOfVolumesToSend, lNumberOfRelayedVolumes.get());
+		assertEquals(0, lNumberOfCorruptedVolumes.get());
+	}
+
+	private Thread startClient(	final InetSocketAddress pAddress,
+															final AtomicLong pLastTimeIndex) throws IOException
+	{
+		final SocketChannel lSocketChannel = SocketChannel.open(pAddress);
+		final Thread lThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Volume lVolume = null;
+					while (pLastTimeIndex.get() < cNumberOfVolumesToSend - 1)
+					{
+						lVolume = ClearVolumeSerialization.deserialize(	lSocketChannel,
+																														lVolume);
+						pLastTimeIndex.set(lVolume.getTimeIndex());
+					}
+					lSocketChannel.close();
+				}
+				catch (final IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		lThread.setDaemon(true);
+		lThread.start();
+		return lThread;
+	}
+
+}
@@ -2,6 +2,7 @@ package clearvolume.renderer;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import clearvolume.renderer.metrics.MetricsRegistry;
 import clearvolume.utils.math.lowdiscrepancy.ModularSequence;
 
 public class AdaptiveLODController
@@ -27,6 +28,8 @@ public class AdaptiveLODController
 	private volatile long mMaxTimeForFirstPassInMilliseconds = 55;
 	private volatile double mFilteredElapsedTimeInMs = mMaxTimeForFirstPassInMilliseconds;
 
+	private volatile MetricsRegistry mMetricsRegistry;
+
 	public AdaptiveLODController()
 	{
 		mCurrentNumberOfPasses = 1;
@@ -36,6 +39,18 @@ public class AdaptiveLODController
 		resetMultiPassRendering();
 	}
 
+	/**
+	 * Sets the registry in which render passes, completed multi-pass renders
+	 * and first pass latencies are recorded.
+	 *
+	 * @param pMetricsRegistry
+	 *          metrics registry, or null
+	 */
+	public void setMetricsRegistry(MetricsRegistry pMetricsRegistry)
+	{
+		mMetricsRegistry = pMetricsRegistry;
+	}
+
 	public void setActive(boolean pActive)
 	{
 		mActive = pActive;
@@ -168,9 +183,16 @@ public class AdaptiveLODController
 
 	public void afterRendering()
 	{
+		final MetricsRegistry lMetricsRegistry = mMetricsRegistry;
+		if (lMetricsRegistry != null)
+			lMetricsRegistry.mark(MetricsRegistry.cLODRenderPasses, 0);
+
 		if (mPassIndex == 0 && mFirstPassTimingStartTime != Long.MIN_VALUE)
 		{
 			mFirstPassTimingStopTime = System.nanoTime();
+			if (lMetricsRegistry != null)
+				lMetricsRegistry.recordLatency(	MetricsRegistry.cLODFirstPass,
+																				mFirstPassTimingStopTime - mFirstPassTimingStartTime);
 
 			final double lElapsedTimeInMs = ((mFirstPassTimingStopTime - mFirstPassTimingStartTime) * 1e-6);
 
@@ -236,6 +258,9 @@ public class AdaptiveLODController
 			// we are done:
 			println(this.getClass().getSimpleName() + ".proceedWithMultiPass -> all passes done! finished!");
 			mMultiPassRenderingInProgress = false;
+			final MetricsRegistry lMetricsRegistry = mMetricsRegistry;
+			if (lMetricsRegistry != null)
+				lMetricsRegistry.mark(MetricsRegistry.cLODCompletedRenders, 0);
 
 			resetMultiPassRendering();
 			return true;
@@ -23,7 +23,10 @@ import clearvolume.controller.RotationControllerInterface;
 import clearvolume.renderer.listeners.EyeRayListener;
 import clearvolume.renderer.listeners.ParameterChangeListener;
 import clearvolume.renderer.listeners.VolumeCaptureListener;
+import clearvolume.renderer.metrics.MetricsRegistry;
 import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorScheduler;
+import clearvolume.renderer.pyramid.VolumePyramid;
 import clearvolume.transferf.TransferFunction;
 import clearvolume.transferf.TransferFunctions;
 import clearvolume.volume.Volume;
@@ -126,6 +129,14 @@ public abstract class ClearVolumeRendererBase	implements
 	// data copy locking and waiting
 	private final Object[] mSetVolumeDataBufferLocks;
 	private final FragmentedMemoryInterface[] mVolumeDataByteBuffers;
+	private final ArrayList<VolumeDataRegion>[] mVolumeDataRegions;
+	private final FragmentedMemoryInterface[] mLastVolumeDataBuffers;
+	private final VolumeDataHostCopy[] mVolumeDataHostCopies;
+	private final int[] mVolumeDataLevels;
+	private final VolumePyramid[] mVolumePyramids;
+	private volatile long mMaximalVolumeSizeInBytes = Long.MAX_VALUE;
+	private volatile boolean mEmptySpaceSkipping = true;
+	private volatile float mEarlyRayTerminationOpacity = 0.99f;
 	private final CountDownLatch[] mDataBufferCopyIsFinishedArray;
 
 	// Control frame:
@@ -134,6 +145,12 @@ public abstract class ClearVolumeRendererBase	implements
 	// Map of processors:
 	protected Map<String, Processor<?>> mProcessorsMap = new ConcurrentHashMap<>();
 
+	// Scheduler deciding when and where processors run:
+	protected final ProcessorScheduler mProcessorScheduler = new ProcessorScheduler();
+
+	// Latencies and throughputs of processors, uploads and rendering:
+	protected final MetricsRegistry mMetricsRegistry = new MetricsRegistry();
+
 	// List of Capture Listeners
 	protected ArrayList<VolumeCaptureListener> mVolumeCaptureListenerList = new ArrayList<VolumeCaptureListener>();
 	protected volatile boolean mVolumeCaptureFlag = false;
@@ -157,6 +174,11 @@ public abstract class ClearVolumeRendererBase	implements
 		mNumberOfRenderLayers = pNumberOfRenderLayers;
 		mSetVolumeDataBufferLocks = new Object[pNumberOfRenderLayers];
 		mVolumeDataByteBuffers = new FragmentedMemoryInterface[pNumberOfRenderLayers];
+		mVolumeDataRegions = newVolumeDataRegionsArray(pNumberOfRenderLayers);
+		mLastVolumeDataBuffers = new FragmentedMemoryInterface[pNumberOfRenderLayers];
+		mVolumeDataHostCopies = new VolumeDataHostCopy[pNumberOfRenderLayers];
+		mVolumeDataLevels = new int[pNumberOfRenderLayers];
+		mVolumePyramids = new VolumePyramid[pNumberOfRenderLayers];
 		mDataBufferCopyIsFinishedArray = new CountDownLatch[pNumberOfRenderLayers];
 		mTransferFunctions = new TransferFunction[pNumberOfRenderLayers];
 		mLayerVisiblityFlagArray = new boolean[pNumberOfRenderLayers];
@@ -171,6 +193,7 @@ public abstract class ClearVolumeRendererBase	implements
 		for (int i = 0; i < pNumberOfRenderLayers; i++)
 		{
 			mSetVolumeDataBufferLocks[i] = new Object();
+			mVolumeDataRegions[i] = new ArrayList<VolumeDataRegion>();
 			mTransferFunctions[i] = TransferFunctions.getGradientForColor(i);
 			mLayerVisiblityFlagArray[i] = true;
 			mRenderAlgorithm[i] = RenderAlgorithm.MaxProjection;
@@ -186,6 +209,8 @@ public abstract class ClearVolumeRendererBase	implements
 			mTransferFunctions[0] = TransferFunctions.getDefault();
 
 		mAdaptiveLODController = new AdaptiveLODController();
+		mAdaptiveLODController.setMetricsRegistry(mMetricsRegistry);
+		mProcessorScheduler.setMetricsRegistry(mMetricsRegistry);
 
 		mAutoRotationController = new AutoRotationController();
 		mRotationControllerList.add(mAutoRotationController);
@@ -1249,6 +1274,12 @@ public abstract class ClearVolumeRendererBase	implements
 		for (final FragmentedMemoryInterface lFragmentedMemoryInterface : mVolumeDataByteBuffers)
 			if (lFragmentedMemoryInterface != null)
 				return true;
+		for (int i = 0; i < getNumberOfRenderLayers(); i++)
+			synchronized (getSetVolumeDataBufferLock(i))
+			{
+				if (!mVolumeDataRegions[i].isEmpty())
+					return true;
+			}
 		return false;
 	}
 
@@ -1275,6 +1306,26 @@ public abstract class ClearVolumeRendererBase	implements
 		mVolumeDataByteBuffers[pRenderLayerIndex] = null;
 	}
 
+	/**
+	 * Returns the volume data regions received for a given layer since the last
+	 * call, in order of arrival, and forgets them. Regions apply on top of the
+	 * volume data buffer, if any, of the same layer. The caller must hold the
+	 * set-volume-data-buffer lock of that layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @return list of regions, empty if none
+	 */
+	public ArrayList<VolumeDataRegion> pollVolumeDataRegions(final int pRenderLayerIndex)
+	{
+		final ArrayList<VolumeDataRegion> lVolumeDataRegions = mVolumeDataRegions[pRenderLayerIndex];
+		if (lVolumeDataRegions.isEmpty())
+			return lVolumeDataRegions;
+		final ArrayList<VolumeDataRegion> lPolledRegions = new ArrayList<VolumeDataRegion>(lVolumeDataRegions);
+		lVolumeDataRegions.clear();
+		return lPolledRegions;
+	}
+
 	/**
 	 * Returns object used for locking volume data copy for a given layer.
 	 *
@@ -1652,18 +1703,7 @@ public abstract class ClearVolumeRendererBase	implements
 																			final double pVoxelSizeZ)
 	{
 
-		FragmentedMemoryInterface lFragmentedMemoryInterface;
-		if (!pByteBuffer.isDirect())
-		{
-			final OffHeapMemory lOffHeapMemory = new OffHeapMemory(pByteBuffer.capacity());
-			lOffHeapMemory.copyFrom(pByteBuffer);
-			lFragmentedMemoryInterface = FragmentedMemory.wrap(lOffHeapMemory);
-		}
-		else
-		{
-			final OffHeapMemory lOffHeapMemory = OffHeapMemory.wrapBuffer(pByteBuffer);
-			lFragmentedMemoryInterface = FragmentedMemory.wrap(lOffHeapMemory);
-		}
+		final FragmentedMemoryInterface lFragmentedMemoryInterface = wrapByteBuffer(pByteBuffer);
 
 		return setVolumeDataBuffer(	pTimeOut,
 																pTimeUnit,
@@ -1782,8 +1822,31 @@ public abstract class ClearVolumeRendererBase	implements
 																			final double pVoxelSizeY,
 																			final double pVoxelSizeZ)
 	{
+		final int lLevel = selectVolumeDataLevel(	pVolumeSizeX,
+																							pVolumeSizeY,
+																							pVolumeSizeZ);
+		if (lLevel > 0)
+			return setDownsampledVolumeDataBuffer(pTimeOut,
+																						pTimeUnit,
+																						pRenderLayerIndex,
+																						lLevel,
+																						pFragmentedMemoryInterface,
+																						pVolumeSizeX,
+																						pVolumeSizeY,
+																						pVolumeSizeZ,
+																						pVoxelSizeX,
+																						pVoxelSizeY,
+																						pVoxelSizeZ);
+
+		preprocessVolumeDataBuffer(	pRenderLayerIndex,
+																pFragmentedMemoryInterface,
+																pVolumeSizeX,
+																pVolumeSizeY,
+																pVolumeSizeZ);
+
 		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
 		{
+			mVolumeDataLevels[pRenderLayerIndex] = 0;
 
 			if (mVolumeSizeX != pVolumeSizeX || mVolumeSizeY != pVolumeSizeY
 					|| mVolumeSizeZ != pVolumeSizeZ)
@@ -1799,8 +1862,22 @@ public abstract class ClearVolumeRendererBase	implements
 			mVoxelSizeY = pVoxelSizeY;
 			mVoxelSizeZ = pVoxelSizeZ;
 
+			// pending regions are superseded by the new volume, their waiters are
+			// released:
+			if (!mVolumeDataRegions[pRenderLayerIndex].isEmpty())
+			{
+				mVolumeDataRegions[pRenderLayerIndex].clear();
+				notifyCompletionOfDataBufferCopy(pRenderLayerIndex);
+			}
+
 			clearCompletionOfDataBufferCopy(pRenderLayerIndex);
 			mVolumeDataByteBuffers[pRenderLayerIndex] = pFragmentedMemoryInterface;
+			if (!isVolumeDataBufferRegionSupported())
+				keepForVolumeDataRegions(	pRenderLayerIndex,
+																	pFragmentedMemoryInterface);
+			mMetricsRegistry.mark(MetricsRegistry.layer(pRenderLayerIndex,
+																									"volumes"),
+														pFragmentedMemoryInterface.getSizeInBytes());
 
 			notifyChangeOfVolumeRenderingParameters();
 		}
@@ -1816,6 +1893,516 @@ public abstract class ClearVolumeRendererBase	implements
 		return lWaitResult;
 	}
 
+	/**
+	 * Called on the thread setting a volume, before the volume is handed to the
+	 * render thread, so that renderers can derive what they need from the voxels
+	 * without holding up rendering. Does nothing by default.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pFragmentedMemoryInterface
+	 *          volume voxels
+	 * @param pVolumeSizeX
+	 *          volume size in voxels along X
+	 * @param pVolumeSizeY
+	 *          volume size in voxels along Y
+	 * @param pVolumeSizeZ
+	 *          volume size in voxels along Z
+	 */
+	protected void preprocessVolumeDataBuffer(final int pRenderLayerIndex,
+																						final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																						final long pVolumeSizeX,
+																						final long pVolumeSizeY,
+																						final long pVolumeSizeZ)
+	{
+	}
+
+	/**
+	 * Displays a volume too large for this renderer through a level of its
+	 * multi-resolution pyramid. The level is built on the calling thread with
+	 * the pyramid's fork/join pool, and if this renderer supports regions, it is
+	 * streamed brick by brick as it is computed, so that the volume appears
+	 * progressively. The pyramid of each layer is kept as long as volumes keep
+	 * their type and dimensions, so that its level buffers are reused.
+	 *
+	 * Bricks are streamed in plane order and the whole level is resident on the
+	 * device: which bricks are uploaded does not depend on the view.
+	 */
+	private boolean setDownsampledVolumeDataBuffer(	final long pTimeOut,
+																									final TimeUnit pTimeUnit,
+																									final int pRenderLayerIndex,
+																									final int pLevel,
+																									final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																									final long pVolumeSizeX,
+																									final long pVolumeSizeY,
+																									final long pVolumeSizeZ,
+																									final double pVoxelSizeX,
+																									final double pVoxelSizeY,
+																									final double pVoxelSizeZ)
+	{
+		VolumePyramid lVolumePyramid = mVolumePyramids[pRenderLayerIndex];
+		if (lVolumePyramid != null && lVolumePyramid.hasShape(getNativeType(),
+																													pVolumeSizeX,
+																													pVolumeSizeY,
+																													pVolumeSizeZ))
+			lVolumePyramid.setSourceBuffer(pFragmentedMemoryInterface);
+		else
+		{
+			lVolumePyramid = new VolumePyramid(	getNativeType(),
+																					pFragmentedMemoryInterface,
+																					pVolumeSizeX,
+																					pVolumeSizeY,
+																					pVolumeSizeZ);
+			mVolumePyramids[pRenderLayerIndex] = lVolumePyramid;
+		}
+
+		final long lWidth = lVolumePyramid.getWidth(pLevel);
+		final long lHeight = lVolumePyramid.getHeight(pLevel);
+		final long lDepth = lVolumePyramid.getDepth(pLevel);
+
+		// voxels grow so that the volume keeps its physical extent:
+		final double lVoxelSizeX = pVoxelSizeX * pVolumeSizeX / lWidth;
+		final double lVoxelSizeY = pVoxelSizeY * pVolumeSizeY / lHeight;
+		final double lVoxelSizeZ = pVoxelSizeZ * pVolumeSizeZ / lDepth;
+
+		final boolean lStreamBricks = isVolumeDataBufferRegionSupported();
+		final boolean[] lNoTimeOut = new boolean[]
+		{ true };
+
+		final VolumePyramid.BrickListener lBrickListener = new VolumePyramid.BrickListener()
+		{
+			@Override
+			public void levelAllocated(	int pLevelIndex,
+																	FragmentedMemoryInterface pLevelBuffer)
+			{
+				if (lStreamBricks)
+					lNoTimeOut[0] &= setVolumeDataBuffer(	pTimeOut,
+																								pTimeUnit,
+																								pRenderLayerIndex,
+																								pLevelBuffer,
+																								lWidth,
+																								lHeight,
+																								lDepth,
+																								lVoxelSizeX,
+																								lVoxelSizeY,
+																								lVoxelSizeZ);
+			}
+
+			@Override
+			public void brick(int pLevelIndex,
+												long pPlaneIndex,
+												long pNumberOfPlanes,
+												FragmentedMemoryInterface pBrickBuffer)
+			{
+				if (lStreamBricks)
+					lNoTimeOut[0] &= setVolumeDataBufferRegion(	pTimeOut,
+																											pTimeUnit,
+																											pRenderLayerIndex,
+																											pBrickBuffer,
+																											0,
+																											0,
+																											pPlaneIndex,
+																											lWidth,
+																											lHeight,
+																											pNumberOfPlanes);
+			}
+		};
+
+		final FragmentedMemoryInterface lLevelBuffer = lVolumePyramid.getLevel(	pLevel,
+																																						lBrickListener);
+
+		if (!lStreamBricks)
+			lNoTimeOut[0] &= setVolumeDataBuffer(	pTimeOut,
+																						pTimeUnit,
+																						pRenderLayerIndex,
+																						lLevelBuffer,
+																						lWidth,
+																						lHeight,
+																						lDepth,
+																						lVoxelSizeX,
+																						lVoxelSizeY,
+																						lVoxelSizeZ);
+
+		mVolumeDataLevels[pRenderLayerIndex] = pLevel;
+		return lNoTimeOut[0];
+	}
+
+	private int selectVolumeDataLevel(final long pVolumeSizeX,
+																		final long pVolumeSizeY,
+																		final long pVolumeSizeZ)
+	{
+		final long[] lMaximalVolumeDimensions = getMaximalVolumeDimensions();
+		return VolumePyramid.selectLevel(	pVolumeSizeX,
+																			pVolumeSizeY,
+																			pVolumeSizeZ,
+																			getBytesPerVoxel(),
+																			lMaximalVolumeDimensions[0],
+																			lMaximalVolumeDimensions[1],
+																			lMaximalVolumeDimensions[2],
+																			min(mMaximalVolumeSizeInBytes,
+																					getMaximalDeviceVolumeSizeInBytes()));
+	}
+
+	/**
+	 * Returns the maximal volume dimensions that this renderer can display as
+	 * is, larger volumes are downsampled. Renderers with device limits should
+	 * override this method.
+	 *
+	 * @return maximal width, height and depth in voxels
+	 */
+	protected long[] getMaximalVolumeDimensions()
+	{
+		return new long[]
+		{ Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+	}
+
+	/**
+	 * Returns the maximal size in bytes of a volume that the device of this
+	 * renderer can hold. Renderers with device limits should override this
+	 * method.
+	 *
+	 * @return maximal size in bytes
+	 */
+	protected long getMaximalDeviceVolumeSizeInBytes()
+	{
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Sets the maximal size in bytes of the volumes displayed per render layer,
+	 * larger volumes are downsampled to the finest level of their pyramid that
+	 * fits.
+	 *
+	 * @param pMaximalVolumeSizeInBytes
+	 *          maximal size in bytes
+	 */
+	public void setMaximalVolumeSizeInBytes(final long pMaximalVolumeSizeInBytes)
+	{
+		mMaximalVolumeSizeInBytes = pMaximalVolumeSizeInBytes;
+	}
+
+	public long getMaximalVolumeSizeInBytes()
+	{
+		return mMaximalVolumeSizeInBytes;
+	}
+
+	/**
+	 * Sets whether rays skip the bricks of the volume that cannot contribute to
+	 * the rendered image given the transfer function range. Skipping does not
+	 * change the image, disabling it is only useful for comparisons.
+	 *
+	 * @param pEmptySpaceSkipping
+	 *          true to skip empty bricks
+	 */
+	public void setEmptySpaceSkipping(final boolean pEmptySpaceSkipping)
+	{
+		mEmptySpaceSkipping = pEmptySpaceSkipping;
+		notifyChangeOfVolumeRenderingParameters();
+	}
+
+	public boolean isEmptySpaceSkipping()
+	{
+		return mEmptySpaceSkipping;
+	}
+
+	/**
+	 * Sets the accumulated opacity at which rays stop marching when rendering
+	 * with alpha compositing. Whatever lies behind contributes at most the
+	 * remaining transparency to the pixel.
+	 *
+	 * @param pEarlyRayTerminationOpacity
+	 *          opacity threshold in ]0,1], 1 disables early ray termination
+	 */
+	public void setEarlyRayTerminationOpacity(final float pEarlyRayTerminationOpacity)
+	{
+		mEarlyRayTerminationOpacity = pEarlyRayTerminationOpacity;
+		notifyChangeOfVolumeRenderingParameters();
+	}
+
+	public float getEarlyRayTerminationOpacity()
+	{
+		return mEarlyRayTerminationOpacity;
+	}
+
+	/**
+	 * Returns the pyramid level of the volume displayed in a given render layer,
+	 * volume sizes and voxel sizes are those of that level.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @return 0 for full resolution, n for a downsampling by 2^n
+	 */
+	public int getVolumeDataLevel(final int pRenderLayerIndex)
+	{
+		return mVolumeDataLevels[pRenderLayerIndex];
+	}
+
+	private static FragmentedMemoryInterface wrapByteBuffer(final ByteBuffer pByteBuffer)
+	{
+		if (!pByteBuffer.isDirect())
+		{
+			final OffHeapMemory lOffHeapMemory = new OffHeapMemory(pByteBuffer.capacity());
+			lOffHeapMemory.copyFrom(pByteBuffer);
+			return FragmentedMemory.wrap(lOffHeapMemory);
+		}
+		else
+		{
+			final OffHeapMemory lOffHeapMemory = OffHeapMemory.wrapBuffer(pByteBuffer);
+			return FragmentedMemory.wrap(lOffHeapMemory);
+		}
+	}
+
+	/**
+	 * Replaces a box of voxels of the volume of a given render layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pByteBuffer
+	 *          NIO byte buffer holding the voxels of the box
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 * 
+	 * @return true if transfer was completed (no time out)
+	 */
+	@Override
+	public boolean setVolumeDataBufferRegion(	final int pRenderLayerIndex,
+																						final ByteBuffer pByteBuffer,
+																						final long pOffsetX,
+																						final long pOffsetY,
+																						final long pOffsetZ,
+																						final long pRegionSizeX,
+																						final long pRegionSizeY,
+																						final long pRegionSizeZ)
+	{
+		return setVolumeDataBufferRegion(	cDefaultSetVolumeDataBufferTimeout,
+																			TimeUnit.SECONDS,
+																			pRenderLayerIndex,
+																			wrapByteBuffer(pByteBuffer),
+																			pOffsetX,
+																			pOffsetY,
+																			pOffsetZ,
+																			pRegionSizeX,
+																			pRegionSizeY,
+																			pRegionSizeZ);
+	}
+
+	/**
+	 * Replaces a box of voxels of the volume of a given render layer. Regions
+	 * queue up until the renderer picks them, so consecutive planes of a rolling
+	 * acquisition are never lost, and a whole volume set afterwards supersedes
+	 * them.
+	 * 
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pFragmentedMemoryInterface
+	 *          voxels of the box, X fastest, then Y, then Z
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 * 
+	 * @return true if transfer was completed (no time out)
+	 */
+	@Override
+	public boolean setVolumeDataBufferRegion(	long pTimeOut,
+																						TimeUnit pTimeUnit,
+																						final int pRenderLayerIndex,
+																						final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																						final long pOffsetX,
+																						final long pOffsetY,
+																						final long pOffsetZ,
+																						final long pRegionSizeX,
+																						final long pRegionSizeY,
+																						final long pRegionSizeZ)
+	{
+		final VolumeDataRegion lVolumeDataRegion = new VolumeDataRegion(	pFragmentedMemoryInterface,
+																																			pOffsetX,
+																																			pOffsetY,
+																																			pOffsetZ,
+																																			pRegionSizeX,
+																																			pRegionSizeY,
+																																			pRegionSizeZ);
+
+		if (!isVolumeDataBufferRegionSupported())
+			return setVolumeDataBufferRegionOnHostCopy(	pTimeOut,
+																									pTimeUnit,
+																									pRenderLayerIndex,
+																									lVolumeDataRegion);
+
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			checkVolumeDataRegion(lVolumeDataRegion);
+
+			// a pending copy keeps its latch, so that its waiter is released too:
+			if (mVolumeDataByteBuffers[pRenderLayerIndex] == null && mVolumeDataRegions[pRenderLayerIndex].isEmpty())
+				clearCompletionOfDataBufferCopy(pRenderLayerIndex);
+
+			mVolumeDataRegions[pRenderLayerIndex].add(lVolumeDataRegion);
+
+			notifyChangeOfVolumeRenderingParameters();
+		}
+
+		return waitToFinishDataBufferCopy(pRenderLayerIndex,
+																			pTimeOut,
+																			pTimeUnit);
+	}
+
+	/**
+	 * Applies a region for renderers that cannot update boxes of voxels on the
+	 * device: the region is copied into a host copy of the volume of the layer,
+	 * which is then set as a whole volume. The host copy is made from the last
+	 * volume set on that layer when the first region arrives, and kept up to
+	 * date with the volumes set afterwards.
+	 */
+	private boolean setVolumeDataBufferRegionOnHostCopy(final long pTimeOut,
+																											final TimeUnit pTimeUnit,
+																											final int pRenderLayerIndex,
+																											final VolumeDataRegion pVolumeDataRegion)
+	{
+		final FragmentedMemoryInterface lDataBuffer;
+		final long lVolumeSizeX, lVolumeSizeY, lVolumeSizeZ;
+		final double lVoxelSizeX, lVoxelSizeY, lVoxelSizeZ;
+		final int lLevel;
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			checkVolumeDataRegion(pVolumeDataRegion);
+
+			lVolumeSizeX = mVolumeSizeX;
+			lVolumeSizeY = mVolumeSizeY;
+			lVolumeSizeZ = mVolumeSizeZ;
+			lVoxelSizeX = mVoxelSizeX;
+			lVoxelSizeY = mVoxelSizeY;
+			lVoxelSizeZ = mVoxelSizeZ;
+			lLevel = mVolumeDataLevels[pRenderLayerIndex];
+
+			VolumeDataHostCopy lHostCopy = mVolumeDataHostCopies[pRenderLayerIndex];
+			if (lHostCopy == null || !lHostCopy.hasShape(	lVolumeSizeX,
+																										lVolumeSizeY,
+																										lVolumeSizeZ,
+																										(int) getBytesPerVoxel()))
+			{
+				final FragmentedMemoryInterface lLastVolumeDataBuffer = mLastVolumeDataBuffers[pRenderLayerIndex];
+				if (lLastVolumeDataBuffer == null)
+					throw new IllegalStateException("A whole volume must be set on render layer " + pRenderLayerIndex
+																					+ " before regions");
+				lHostCopy = new VolumeDataHostCopy(	lLastVolumeDataBuffer,
+																						lVolumeSizeX,
+																						lVolumeSizeY,
+																						lVolumeSizeZ,
+																						(int) getBytesPerVoxel());
+				mVolumeDataHostCopies[pRenderLayerIndex] = lHostCopy;
+			}
+
+			lHostCopy.copyRegionFrom(pVolumeDataRegion);
+			lDataBuffer = lHostCopy.getDataBuffer();
+		}
+
+		final boolean lNoTimeOut = setVolumeDataBuffer(	pTimeOut,
+																										pTimeUnit,
+																										pRenderLayerIndex,
+																										lDataBuffer,
+																										lVolumeSizeX,
+																										lVolumeSizeY,
+																										lVolumeSizeZ,
+																										lVoxelSizeX,
+																										lVoxelSizeY,
+																										lVoxelSizeZ);
+		// the host copy is the displayed level, not a new full resolution volume:
+		mVolumeDataLevels[pRenderLayerIndex] = lLevel;
+		return lNoTimeOut;
+	}
+
+	// remembers the volume set on a layer, to make a host copy from it if
+	// regions arrive, and keeps an existing host copy up to date:
+	private void keepForVolumeDataRegions(final int pRenderLayerIndex,
+																				final FragmentedMemoryInterface pFragmentedMemoryInterface)
+	{
+		mLastVolumeDataBuffers[pRenderLayerIndex] = pFragmentedMemoryInterface;
+
+		final VolumeDataHostCopy lHostCopy = mVolumeDataHostCopies[pRenderLayerIndex];
+		if (lHostCopy == null)
+			return;
+		if (lHostCopy.hasShape(	mVolumeSizeX,
+														mVolumeSizeY,
+														mVolumeSizeZ,
+														(int) getBytesPerVoxel()))
+			lHostCopy.copyFrom(pFragmentedMemoryInterface);
+		else
+			mVolumeDataHostCopies[pRenderLayerIndex] = null;
+	}
+
+	private void checkVolumeDataRegion(final VolumeDataRegion pVolumeDataRegion)
+	{
+		final long lOffsetX = pVolumeDataRegion.getOffsetX();
+		final long lOffsetY = pVolumeDataRegion.getOffsetY();
+		final long lOffsetZ = pVolumeDataRegion.getOffsetZ();
+		final long lRegionSizeX = pVolumeDataRegion.getSizeX();
+		final long lRegionSizeY = pVolumeDataRegion.getSizeY();
+		final long lRegionSizeZ = pVolumeDataRegion.getSizeZ();
+
+		if (lOffsetX < 0 || lOffsetY < 0
+				|| lOffsetZ < 0
+				|| lRegionSizeX <= 0
+				|| lRegionSizeY <= 0
+				|| lRegionSizeZ <= 0
+				|| lOffsetX + lRegionSizeX > mVolumeSizeX
+				|| lOffsetY + lRegionSizeY > mVolumeSizeY
+				|| lOffsetZ + lRegionSizeZ > mVolumeSizeZ)
+			throw new IllegalArgumentException(String.format(	"Region at (%d,%d,%d) of size (%d,%d,%d) does not fit in volume of size (%d,%d,%d)",
+																												lOffsetX,
+																												lOffsetY,
+																												lOffsetZ,
+																												lRegionSizeX,
+																												lRegionSizeY,
+																												lRegionSizeZ,
+																												mVolumeSizeX,
+																												mVolumeSizeY,
+																												mVolumeSizeZ));
+
+		if (pVolumeDataRegion.getDataBuffer().getSizeInBytes() != getBytesPerVoxel() * lRegionSizeX
+																																* lRegionSizeY
+																																* lRegionSizeZ)
+			throw new IllegalArgumentException("Buffer size not consistent with region size!");
+	}
+
+	/**
+	 * Returns true if this renderer applies volume data regions on the device,
+	 * renderers that do should override this method. Otherwise regions are
+	 * applied to a host copy of the volume that is set as a whole.
+	 *
+	 * @return false by default
+	 */
+	@Override
+	public boolean isVolumeDataBufferRegionSupported()
+	{
+		return false;
+	}
+
+	@SuppressWarnings(
+	{ "unchecked", "rawtypes" })
+	private static ArrayList<VolumeDataRegion>[] newVolumeDataRegionsArray(final int pNumberOfRenderLayers)
+	{
+		return new ArrayList[pNumberOfRenderLayers];
+	}
+
 	@Override
 	public VolumeManager createCompatibleVolumeManager(final int pMaxAvailableVolumes)
 	{
@@ -1967,6 +2554,18 @@ public abstract class ClearVolumeRendererBase	implements
 		return mProcessorsMap.values();
 	}
 
+	@Override
+	public ProcessorScheduler getProcessorScheduler()
+	{
+		return mProcessorScheduler;
+	}
+
+	@Override
+	public MetricsRegistry getMetricsRegistry()
+	{
+		return mMetricsRegistry;
+	}
+
 	/**
 	 * Toggles the display of the Control Frame;
 	 */
@@ -2094,6 +2693,9 @@ public abstract class ClearVolumeRendererBase	implements
 	@Override
 	public void close()
 	{
+		mProcessorScheduler.close();
+		mMetricsRegistry.close();
+
 		if (mControlFrame != null)
 			try
 			{
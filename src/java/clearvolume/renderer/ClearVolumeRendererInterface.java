@@ -13,7 +13,9 @@ import clearvolume.renderer.cleargl.overlay.Overlay;
 import clearvolume.renderer.listeners.EyeRayListener;
 import clearvolume.renderer.listeners.ParameterChangeListener;
 import clearvolume.renderer.listeners.VolumeCaptureListener;
+import clearvolume.renderer.metrics.MetricsRegistry;
 import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorScheduler;
 import clearvolume.transferf.TransferFunction;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
@@ -755,6 +757,87 @@ public interface ClearVolumeRendererInterface	extends
 	public boolean setVolumeDataBuffer(	int pRenderLayerIndex,
 																			Volume pVolume);
 
+	/**
+	 * Replaces a box of voxels of the volume currently displayed in a given
+	 * render layer, only that box is transferred to the device. A whole volume
+	 * must have been set before for that layer, and the box must lie within it.
+	 * Coordinates are those of the volume as displayed, which differ from those
+	 * of the volume set if it had to be downsampled. Can be used to display
+	 * rolling acquisitions plane by plane. Renderers that do not support regions
+	 * copy the box into a host copy of the volume and transfer it whole.
+	 *
+	 * @param pTimeOut
+	 *          time out delay
+	 * @param pTimeUnit
+	 *          time unit for time out delay
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pFragmentedMemoryInterface
+	 *          voxels of the box, X fastest, then Y, then Z
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 * @return true if buffer fully copied
+	 */
+	public boolean setVolumeDataBufferRegion(	long pTimeOut,
+																						TimeUnit pTimeUnit,
+																						int pRenderLayerIndex,
+																						FragmentedMemoryInterface pFragmentedMemoryInterface,
+																						long pOffsetX,
+																						long pOffsetY,
+																						long pOffsetZ,
+																						long pRegionSizeX,
+																						long pRegionSizeY,
+																						long pRegionSizeZ);
+
+	/**
+	 * Replaces a box of voxels of the volume currently displayed in a given
+	 * render layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pByteBuffer
+	 *          NIO byte buffer holding the voxels of the box
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 * @return true if buffer fully copied
+	 */
+	public boolean setVolumeDataBufferRegion(	int pRenderLayerIndex,
+																						ByteBuffer pByteBuffer,
+																						long pOffsetX,
+																						long pOffsetY,
+																						long pOffsetZ,
+																						long pRegionSizeX,
+																						long pRegionSizeY,
+																						long pRegionSizeZ);
+
+	/**
+	 * Returns true if this renderer can update boxes of voxels without
+	 * re-uploading whole volumes, otherwise regions are slower but still applied.
+	 *
+	 * @return true if setVolumeDataBufferRegion is supported
+	 */
+	public boolean isVolumeDataBufferRegionSupported();
+
 	/**
 	 * Creates a compatible VolumeManager - possibly capable of allocating pinned
 	 * memory or memory optimised in other ways. pMaxAvailableVolumes is the
@@ -1038,6 +1121,25 @@ public interface ClearVolumeRendererInterface	extends
 	 */
 	public Collection<Processor<?>> getProcessors();
 
+	/**
+	 * Returns the scheduler deciding when and where processors run, it can be
+	 * used to set their priorities, volume intervals and whether they run
+	 * asynchronously.
+	 *
+	 * @return processor scheduler
+	 */
+	public ProcessorScheduler getProcessorScheduler();
+
+	/**
+	 * Returns the registry of latencies and throughputs of this renderer:
+	 * processors, volumes received and uploaded, rendering and render passes. A
+	 * snapshot of all metrics can be taken at any time, and the registry can be
+	 * exposed through JMX.
+	 *
+	 * @return metrics registry
+	 */
+	public MetricsRegistry getMetricsRegistry();
+
 	/**
 	 * Returns a Canvas that can be used to embed this renderer.
 	 *
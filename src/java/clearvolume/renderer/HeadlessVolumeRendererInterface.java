@@ -0,0 +1,89 @@
+package clearvolume.renderer;
+
+import java.nio.ByteBuffer;
+
+import com.jogamp.opengl.math.Quaternion;
+
+/**
+ * Interface HeadlessVolumeRendererInterface
+ *
+ * Classes that implement this interface render volumes offscreen without any
+ * window, Swing component or OpenGL context. Frames are written into
+ * caller-supplied RGBA byte buffers (4 bytes per pixel, R first) of size
+ * getRenderWidth()*getRenderHeight(). Once the volume data has been set, any
+ * number of frames can be rendered from different view points without
+ * uploading the data again.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public interface HeadlessVolumeRendererInterface extends
+																								ClearVolumeRendererInterface
+{
+
+	/**
+	 * Returns the width of the rendered frames.
+	 *
+	 * @return render width in pixels
+	 */
+	public int getRenderWidth();
+
+	/**
+	 * Returns the height of the rendered frames.
+	 *
+	 * @return render height in pixels
+	 */
+	public int getRenderHeight();
+
+	/**
+	 * Sets the size of the rendered frames.
+	 *
+	 * @param pRenderWidth
+	 *          render width in pixels
+	 * @param pRenderHeight
+	 *          render height in pixels
+	 */
+	public void setRenderSize(int pRenderWidth, int pRenderHeight);
+
+	/**
+	 * Returns the model-view matrix (4x4, column-major as in OpenGL) for a given
+	 * rotation. The current translation and the aspect ratio of the volume are
+	 * taken into account exactly as for the interactive renderers.
+	 *
+	 * @param pRotation
+	 *          rotation quaternion
+	 * @return model-view matrix
+	 */
+	public float[] getModelViewMatrix(Quaternion pRotation);
+
+	/**
+	 * Renders all visible layers using the current rotation and translation.
+	 *
+	 * @param pRGBAByteBuffer
+	 *          destination buffer, must hold at least 4*width*height bytes.
+	 */
+	public void render(ByteBuffer pRGBAByteBuffer);
+
+	/**
+	 * Renders all visible layers for a given model-view matrix.
+	 *
+	 * @param pModelViewMatrix
+	 *          model-view matrix (4x4, column-major as in OpenGL)
+	 * @param pRGBAByteBuffer
+	 *          destination buffer, must hold at least 4*width*height bytes.
+	 */
+	public void render(float[] pModelViewMatrix, ByteBuffer pRGBAByteBuffer);
+
+	/**
+	 * Renders one frame per model-view matrix from the same volume data, for
+	 * example all the frames of a turntable movie.
+	 *
+	 * @param pModelViewMatrices
+	 *          model-view matrices (4x4, column-major as in OpenGL)
+	 * @param pRGBAByteBuffers
+	 *          destination buffers, one per model-view matrix.
+	 */
+	public void render(	float[][] pModelViewMatrices,
+											ByteBuffer[] pRGBAByteBuffers);
+
+}
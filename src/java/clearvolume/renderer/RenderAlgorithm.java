@@ -17,7 +17,12 @@ public enum RenderAlgorithm
 	/**
 	 * Iso surface rendering.
 	 */
-	IsoSurface;
+	IsoSurface,
+	/**
+	 * Direct volume rendering: front-to-back alpha compositing of the transfer
+	 * function colors, rays stop once they are opaque.
+	 */
+	AlphaCompositing;
 
 	public RenderAlgorithm next()
 	{
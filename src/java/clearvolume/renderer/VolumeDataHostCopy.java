@@ -0,0 +1,152 @@
+package clearvolume.renderer;
+
+import static java.lang.Math.min;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import clearvolume.exceptions.ClearVolumeUnsupportedOperationException;
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemory;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+/**
+ * Class VolumeDataHostCopy
+ *
+ * Host copy of the volume of a render layer, for renderers that cannot update
+ * boxes of voxels on the device. Volume data regions are copied into it, and
+ * it is then uploaded whole in place of the volume.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+final class VolumeDataHostCopy
+{
+	private final long mWidth, mHeight, mDepth;
+	private final int mBytesPerVoxel;
+	private final ByteBuffer mByteBuffer;
+	private final FragmentedMemoryInterface mDataBuffer;
+
+	/**
+	 * Allocates a host copy of a volume and copies its voxels.
+	 *
+	 * @param pVolumeDataBuffer
+	 *          voxels of the volume
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @param pBytesPerVoxel
+	 *          bytes per voxel
+	 */
+	VolumeDataHostCopy(	final FragmentedMemoryInterface pVolumeDataBuffer,
+											final long pWidth,
+											final long pHeight,
+											final long pDepth,
+											final int pBytesPerVoxel)
+	{
+		final long lSizeInBytes = pBytesPerVoxel * pWidth * pHeight * pDepth;
+		if (lSizeInBytes > Integer.MAX_VALUE)
+			throw new ClearVolumeUnsupportedOperationException(String.format("Cannot keep a host copy of a volume of %d bytes to apply regions to, set whole volumes instead",
+																																				lSizeInBytes));
+
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = pDepth;
+		mBytesPerVoxel = pBytesPerVoxel;
+		mByteBuffer = ByteBuffer.allocateDirect((int) lSizeInBytes)
+														.order(ByteOrder.nativeOrder());
+		mDataBuffer = FragmentedMemory.wrap(OffHeapMemory.wrapBuffer(mByteBuffer));
+		copyFrom(pVolumeDataBuffer);
+	}
+
+	boolean hasShape(	final long pWidth,
+										final long pHeight,
+										final long pDepth,
+										final int pBytesPerVoxel)
+	{
+		return mWidth == pWidth && mHeight == pHeight
+						&& mDepth == pDepth
+						&& mBytesPerVoxel == pBytesPerVoxel;
+	}
+
+	/**
+	 * Returns the voxels of this copy, to be uploaded as a whole volume.
+	 *
+	 * @return data buffer
+	 */
+	FragmentedMemoryInterface getDataBuffer()
+	{
+		return mDataBuffer;
+	}
+
+	/**
+	 * Copies all voxels of a volume of the same shape.
+	 *
+	 * @param pVolumeDataBuffer
+	 *          voxels of the volume
+	 */
+	void copyFrom(final FragmentedMemoryInterface pVolumeDataBuffer)
+	{
+		if (pVolumeDataBuffer == mDataBuffer)
+			return;
+
+		final ByteBuffer lDestination = mByteBuffer.duplicate();
+		lDestination.clear();
+		for (final ContiguousMemoryInterface lFragment : pVolumeDataBuffer)
+		{
+			final ByteBuffer lSource = lFragment.getBridJPointer(Byte.class)
+																					.getByteBuffer();
+			lSource.limit(lSource.position() + (int) min(	lSource.remaining(),
+																										lDestination.remaining()));
+			lDestination.put(lSource);
+		}
+	}
+
+	/**
+	 * Copies the voxels of a region, the rest of the volume is left untouched.
+	 *
+	 * @param pVolumeDataRegion
+	 *          region, within the volume
+	 */
+	void copyRegionFrom(final VolumeDataRegion pVolumeDataRegion)
+	{
+		final int lRowLength = (int) (mBytesPerVoxel * pVolumeDataRegion.getSizeX());
+		final long lRegionSizeY = pVolumeDataRegion.getSizeY();
+		final long lSizeInBytes = lRowLength * lRegionSizeY
+															* pVolumeDataRegion.getSizeZ();
+
+		// rows of the region may straddle fragments, we thus copy run by run:
+		long lRegionByteIndex = 0;
+		for (final ContiguousMemoryInterface lFragment : pVolumeDataRegion.getDataBuffer())
+		{
+			final ByteBuffer lSource = lFragment.getBridJPointer(Byte.class)
+																					.getByteBuffer();
+			while (lSource.hasRemaining() && lRegionByteIndex < lSizeInBytes)
+			{
+				final long lRow = lRegionByteIndex / lRowLength;
+				final int lX = (int) (lRegionByteIndex % lRowLength);
+				final long lY = pVolumeDataRegion.getOffsetY() + lRow
+												% lRegionSizeY;
+				final long lZ = pVolumeDataRegion.getOffsetZ() + lRow
+												/ lRegionSizeY;
+				final int lRunLength = min(lRowLength - lX, lSource.remaining());
+
+				final ByteBuffer lRun = lSource.duplicate();
+				lRun.limit(lRun.position() + lRunLength);
+				final ByteBuffer lDestination = mByteBuffer.duplicate();
+				lDestination.position((int) (mBytesPerVoxel * (pVolumeDataRegion.getOffsetX() + mWidth
+																																				* (lY + mHeight
+																																						* lZ)) + lX));
+				lDestination.put(lRun);
+
+				lSource.position(lSource.position() + lRunLength);
+				lRegionByteIndex += lRunLength;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package clearvolume.renderer;
+
+import coremem.fragmented.FragmentedMemoryInterface;
+
+/**
+ * Class VolumeDataRegion
+ *
+ * Box of voxels replacing part of the volume of a render layer. The data is
+ * laid out as a volume of its own: X fastest, then Y, then Z.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class VolumeDataRegion
+{
+	private final FragmentedMemoryInterface mDataBuffer;
+	private final long mOffsetX, mOffsetY, mOffsetZ;
+	private final long mSizeX, mSizeY, mSizeZ;
+
+	/**
+	 * Constructs a region from its data, offset and extent in voxels.
+	 *
+	 * @param pDataBuffer
+	 *          voxels of the region
+	 * @param pOffsetX
+	 *          offset along X
+	 * @param pOffsetY
+	 *          offset along Y
+	 * @param pOffsetZ
+	 *          offset along Z
+	 * @param pSizeX
+	 *          extent along X
+	 * @param pSizeY
+	 *          extent along Y
+	 * @param pSizeZ
+	 *          extent along Z
+	 */
+	public VolumeDataRegion(FragmentedMemoryInterface pDataBuffer,
+													long pOffsetX,
+													long pOffsetY,
+													long pOffsetZ,
+													long pSizeX,
+													long pSizeY,
+													long pSizeZ)
+	{
+		super();
+		mDataBuffer = pDataBuffer;
+		mOffsetX = pOffsetX;
+		mOffsetY = pOffsetY;
+		mOffsetZ = pOffsetZ;
+		mSizeX = pSizeX;
+		mSizeY = pSizeY;
+		mSizeZ = pSizeZ;
+	}
+
+	public FragmentedMemoryInterface getDataBuffer()
+	{
+		return mDataBuffer;
+	}
+
+	public long getOffsetX()
+	{
+		return mOffsetX;
+	}
+
+	public long getOffsetY()
+	{
+		return mOffsetY;
+	}
+
+	public long getOffsetZ()
+	{
+		return mOffsetZ;
+	}
+
+	public long getSizeX()
+	{
+		return mSizeX;
+	}
+
+	public long getSizeY()
+	{
+		return mSizeY;
+	}
+
+	public long getSizeZ()
+	{
+		return mSizeZ;
+	}
+
+	public long getNumberOfVoxels()
+	{
+		return mSizeX * mSizeY * mSizeZ;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"VolumeDataRegion [offset=(%d,%d,%d), size=(%d,%d,%d)]",
+													mOffsetX,
+													mOffsetY,
+													mOffsetZ,
+													mSizeX,
+													mSizeY,
+													mSizeZ);
+	}
+
+}
@@ -36,7 +36,9 @@ import clearcuda.CudaDevicePointer;
 import clearcuda.CudaFunction;
 import clearcuda.CudaModule;
 import clearcuda.CudaTextureReference;
+import clearvolume.renderer.RenderAlgorithm;
 import clearvolume.renderer.cleargl.ClearGLVolumeRenderer;
+import clearvolume.renderer.metrics.MetricsRegistry;
 import clearvolume.renderer.processors.CUDAProcessor;
 import clearvolume.renderer.processors.Processor;
 
@@ -82,7 +84,8 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 	 * Volume rendering CUDA function
 	 */
 	private CudaFunction mCurrentRenderKernel,
-			mMaxProjectionRenderKernel, mIsoSurfaceRenderKernel;
+			mMaxProjectionRenderKernel, mIsoSurfaceRenderKernel,
+			mAlphaCompositingRenderKernel;
 
 	/**
 	 * We use these buffers when rendering to standard CUDA buffers.
@@ -313,6 +316,16 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 			mMaxProjectionRenderKernel = mCudaModule.getFunction("maxproj_render");
 			mIsoSurfaceRenderKernel = mCudaModule.getFunction("isosurface_render");
+			try
+			{
+				mAlphaCompositingRenderKernel = mCudaModule.getFunction("composite_render");
+			}
+			catch (final CudaException e)
+			{
+				// the precompiled backup kernels predate alpha compositing:
+				System.err.println("Alpha compositing not available, falling back to max projection.");
+				mAlphaCompositingRenderKernel = null;
+			}
 
 			for (int i = 0; i < getNumberOfRenderLayers(); i++)
 				prepareVolumeDataArray(i, null);
@@ -822,7 +835,10 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 			{
 				if (mVolumeDataCudaArrays[i] != null)
 				{
+					final long lLayerStartTime = System.nanoTime();
 					runKernel(i);
+					mMetricsRegistry.recordLatency(	MetricsRegistry.layer(i, "render"),
+																					System.nanoTime() - lLayerStartTime);
 					lUpdatedLayer[i] = true;
 				}
 			}
@@ -848,7 +864,11 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 		{
 			// synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
 			{
-				switch (getRenderAlgorithm(pRenderLayerIndex))
+				RenderAlgorithm lRenderAlgorithm = getRenderAlgorithm(pRenderLayerIndex);
+				if (lRenderAlgorithm == RenderAlgorithm.AlphaCompositing && mAlphaCompositingRenderKernel == null)
+					lRenderAlgorithm = RenderAlgorithm.MaxProjection;
+
+				switch (lRenderAlgorithm)
 				{
 				case MaxProjection:
 					mCurrentRenderKernel = mMaxProjectionRenderKernel;
@@ -856,6 +876,9 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 				case IsoSurface:
 					mCurrentRenderKernel = mIsoSurfaceRenderKernel;
 					break;
+				case AlphaCompositing:
+					mCurrentRenderKernel = mAlphaCompositingRenderKernel;
+					break;
 				}
 
 				copyTransferFunctionArray(pRenderLayerIndex);
@@ -882,7 +905,7 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 				float lPhase = 0;
 				int lClear = 0;
 
-				switch (getRenderAlgorithm(pRenderLayerIndex))
+				switch (lRenderAlgorithm)
 				{
 				case MaxProjection:
 					lMaxSteps = max(16, lMaxNumberSteps / lNumberOfPasses);
@@ -929,6 +952,27 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 																			lPhase,
 																			lClear);
 
+					break;
+				case AlphaCompositing:
+					lMaxSteps = max(16,
+													(lMaxNumberSteps * (1 + lPassIndex)) / lNumberOfPasses);
+					lDithering = getDithering(pRenderLayerIndex) * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses);
+					lPhase = 0;
+					lClear = 0;
+
+					mCurrentRenderKernel.launch(lCudaDevicePointer,
+																			getRenderWidth(),
+																			getRenderHeight(),
+																			(float) getBrightness(pRenderLayerIndex),
+																			(float) getTransferRangeMin(pRenderLayerIndex),
+																			(float) getTransferRangeMax(pRenderLayerIndex),
+																			(float) getGamma(pRenderLayerIndex),
+																			lMaxSteps,
+																			lDithering,
+																			lPhase,
+																			lClear,
+																			getEarlyRayTerminationOpacity());
+
 					break;
 				}
 
@@ -970,10 +1014,13 @@ public class JCudaClearVolumeRenderer extends ClearGLVolumeRenderer	implements
 						lCUDAProcessor.applyToArray(mVolumeDataCudaArrays[pRenderLayerIndex]);
 
 					}
+					final long lStartTime = System.nanoTime();
 					lProcessor.process(	pRenderLayerIndex,
 															getVolumeSizeX(),
 															getVolumeSizeY(),
 															getVolumeSizeZ());
+					mMetricsRegistry.recordLatency(	MetricsRegistry.processor(lProcessor.getName()),
+																					System.nanoTime() - lStartTime);
 				}
 			}
 	}
@@ -519,3 +519,119 @@ isosurface_render(
 
 }
 
+
+
+/****************************************************************************************************************/
+// front-to-back alpha compositing, rays stop once the accumulated opacity reaches opacitythreshold:
+extern "C" __global__ void
+composite_render(     uint *d_output, 
+							const uint imageW, 
+							const uint imageH,
+							const float brightness, 
+							const float trangemin, 
+							const float trangemax, 
+							const float gamma, 
+							const int   maxsteps,
+							const float dithering,
+							const float phase,
+							const int   clear,
+							const float opacitythreshold)
+{
+		
+		// convert range bounds to linear map:
+    const float ta = 1.0f/(trangemax-trangemin);
+    const float tb = trangemin/(trangemin-trangemax); 
+    
+   	// box bounds:
+    const float3 boxMin = make_float3(-1.f, -1.f, -1.f);
+    const float3 boxMax = make_float3(1.f,1.f,1.f);
+
+		// thread int coordinates:
+    const uint x = blockIdx.x*blockDim.x + threadIdx.x;
+    const uint y = blockIdx.y*blockDim.y + threadIdx.y;
+
+    if ((x >= imageW) || (y >= imageH)) return;
+
+		// thread float coordinates:
+    const float u = (x / (float) imageW)*2.0f-1.0f;
+    const float v = (y / (float) imageH)*2.0f-1.0f;
+
+		// Back and front before all transformations.
+   	const float4 front = make_float4(u,v,-1.f,1.f);
+		const float4 back = make_float4(u,v,1.f,1.f);
+
+    // calculate eye ray in world space
+    float4 orig0, orig;
+    float4 direc0, direc;
+  
+  	// Origin point
+    orig0 = mult(c_invProjectionMatrix,front);
+		orig0 *= 1.f/orig0.w;
+    orig = mult(c_invViewMatrix,orig0);
+		orig *= 1.f/orig.w;
+  
+  	// Direction:
+    direc0 = mult(c_invProjectionMatrix,back);
+		direc0 *= 1.f/direc0.w;
+		direc0 = normalize(direc0-orig0);
+		direc = mult(c_invViewMatrix,direc0);
+		direc.w = 0.0f;
+
+    // eye ray in world space:
+    Ray eyeRay;
+		eyeRay.o = make_float3(orig);
+		eyeRay.d = make_float3(direc);	
+	
+    // find intersection with box
+    float tnear, tfar;
+    const int hit = intersectBox(eyeRay, boxMin, boxMax, &tnear, &tfar);
+
+    if (!hit || tfar<=0) 
+    {
+	  	d_output[x+imageW*y] = 0.f;
+	    return;
+    }
+
+    // clamp to near plane:
+		if (tnear < 0.0f) tnear = 0.0f;
+
+		// compute step size:		
+		const float tstep = abs(tnear-tfar)/((maxsteps/LOOPUNROLL)*LOOPUNROLL);
+
+		// apply phase:
+		orig += phase*tstep*direc;
+
+		// randomize origin point a bit:
+		const uint entropy = (uint)( 6779514*length(orig) + 6257327*length(direc) );
+		orig += dithering*tstep*random(entropy+x,entropy+y)*direc;
+		
+		// precompute vectors: 
+		const float4 vecstep = 0.5f*tstep*direc;
+		float4 pos = orig*0.5f+0.5f + tnear*0.5f*direc;
+
+		// Loop unrolling setup: 
+    const int unrolledmaxsteps = (maxsteps/LOOPUNROLL);
+
+		// transfer function opacities are per voxel, the step length in voxels corrects them:
+		const float voxelstep = 0.5f*tstep*max(max(c_volumeArrayWidth,c_volumeArrayHeight),c_volumeArrayDepth);
+		
+		// raycasting loop, accumulates premultiplied colors front to back:
+		float4 acc = make_float4(0.f,0.f,0.f,0.f);
+		for(int i=0; i<unrolledmaxsteps && acc.w<opacitythreshold; i++) 
+		{
+			for(int j=1; j<LOOPUNROLL; j++)
+			{
+				const float mappedsample = __saturatef(powf(fmaxf(0.f,ta*tex3D(tex, pos.x,pos.y,pos.z)+tb),gamma));
+				const float4 color = tex1D(transferTex,mappedsample);
+				const float alpha = (1.f-acc.w)*(1.f-powf(1.f-__saturatef(color.w),voxelstep));
+				acc.x += alpha*color.x;
+				acc.y += alpha*color.y;
+				acc.z += alpha*color.z;
+				acc.w += alpha;
+		  	pos+=vecstep;
+		  }
+		}
+    
+    // write output color:
+    d_output[y*imageW + x] = rgbaFloatToIntAndMax(clear*d_output[y*imageW + x],brightness*acc);
+}
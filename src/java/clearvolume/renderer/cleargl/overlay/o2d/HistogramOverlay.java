@@ -1,15 +1,17 @@
 package clearvolume.renderer.cleargl.overlay.o2d;
 
-import clearvolume.renderer.processors.impl.OpenCLHistogram;
+import java.nio.FloatBuffer;
+
+import clearvolume.renderer.processors.Processor;
 
 import com.jogamp.newt.event.KeyEvent;
 
 public class HistogramOverlay extends BarGraphOverlay
 {
 
-	private final OpenCLHistogram mHistoProcessor;
+	private final Processor<FloatBuffer> mHistoProcessor;
 
-	public HistogramOverlay(OpenCLHistogram pHistoProcessor)
+	public HistogramOverlay(Processor<FloatBuffer> pHistoProcessor)
 	{
 		mHistoProcessor = pHistoProcessor;
 		mHistoProcessor.addResultListener(this);
@@ -11,6 +11,7 @@ import clearvolume.renderer.SingleKeyToggable;
 import clearvolume.renderer.cleargl.overlay.OverlayForProcessors;
 import clearvolume.renderer.processors.Processor;
 import clearvolume.renderer.processors.ProcessorResultListener;
+import clearvolume.renderer.processors.impl.JavaTenengrad;
 import clearvolume.renderer.processors.impl.OpenCLTenengrad;
 
 import com.jogamp.newt.event.KeyEvent;
@@ -21,6 +22,7 @@ public class ImageQualityOverlay extends OverlayForProcessors	implements
 {
 
 	private final OpenCLTenengrad mOpenCLTenengrad;
+	private final JavaTenengrad mJavaTenengrad;
 
 	private Font mFont;
 	private ClearTextRenderer mClearTextRenderer;
@@ -36,11 +38,7 @@ public class ImageQualityOverlay extends OverlayForProcessors	implements
 	{
 		super(new GraphOverlay(pNumberOfPointsInGraph));
 
-		mOpenCLTenengrad = new OpenCLTenengrad();
-
-		mOpenCLTenengrad.addResultListener((ProcessorResultListener<Double>) getDelegatedOverlay());
-
-		mOpenCLTenengrad.addResultListener(new ProcessorResultListener<Double>()
+		final ProcessorResultListener<Double> lMeasureListener = new ProcessorResultListener<Double>()
 		{
 
 			@Override
@@ -49,9 +47,18 @@ public class ImageQualityOverlay extends OverlayForProcessors	implements
 			{
 				mMeasure = pResult;
 			}
-		});
+		};
 
+		mOpenCLTenengrad = new OpenCLTenengrad();
+		mOpenCLTenengrad.addResultListener((ProcessorResultListener<Double>) getDelegatedOverlay());
+		mOpenCLTenengrad.addResultListener(lMeasureListener);
 		addProcessor(mOpenCLTenengrad);
+
+		// renderers only run the processors compatible with them:
+		mJavaTenengrad = new JavaTenengrad();
+		mJavaTenengrad.addResultListener((ProcessorResultListener<Double>) getDelegatedOverlay());
+		mJavaTenengrad.addResultListener(lMeasureListener);
+		addProcessor(mJavaTenengrad);
 	}
 
 	@Override
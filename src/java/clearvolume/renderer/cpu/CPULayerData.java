@@ -0,0 +1,52 @@
+package clearvolume.renderer.cpu;
+
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.processors.ProcessingGraph;
+import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorScheduler;
+
+/**
+ * Class CPULayerData
+ *
+ * Host-side volume data of a layer for processors, snapshots are copies of the
+ * voxels.
+ *
+ */
+class CPULayerData implements ProcessorScheduler.LayerData
+{
+	private final CPUVolumeData mCPUVolumeData;
+
+	CPULayerData(final CPUVolumeData pCPUVolumeData)
+	{
+		mCPUVolumeData = pCPUVolumeData;
+	}
+
+	@Override
+	public void attach(final Processor<?> pProcessor)
+	{
+		if (pProcessor instanceof JavaProcessor)
+		{
+			final JavaProcessor<?> lJavaProcessor = (JavaProcessor<?>) pProcessor;
+			lJavaProcessor.setVolumeData(	mCPUVolumeData.getNativeType(),
+																		mCPUVolumeData);
+		}
+	}
+
+	@Override
+	public ProcessorScheduler.LayerData snapshot()
+	{
+		return new CPULayerData(mCPUVolumeData.copy());
+	}
+
+	@Override
+	public ProcessingGraph<?> createProcessingGraph()
+	{
+		// java processors compute their intermediates themselves:
+		return null;
+	}
+
+	@Override
+	public void release()
+	{
+	}
+}
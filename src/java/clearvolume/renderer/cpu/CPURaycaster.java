@@ -0,0 +1,1288 @@
+package clearvolume.renderer.cpu;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.pow;
+import static java.lang.Math.sqrt;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+
+/**
+ * Class CPURaycaster
+ *
+ * Pure-Java port of the ray casting kernels found in VolumeRender.cl. The image
+ * is split into tiles that are rendered in parallel on a fork/join pool. Output
+ * pixels are packed RGBA integers exactly as written by the OpenCL kernels so
+ * that the resulting buffers can be handed over to the same texture upload
+ * code.
+ *
+ * Rays skip bricks of the volume's min/max brick grid that cannot contribute
+ * to the pixel, unless empty space skipping is disabled.
+ *
+ */
+public class CPURaycaster implements ClearVolumeCloseable
+{
+	// Loop unrolling length used by the GPU kernels (LOOPUNROLL), rays are
+	// divided into a multiple of it and each unrolled block takes one sample
+	// less:
+	private static final int cLoopUnroll = 16;
+
+	// Tiles are split until they are at most that many pixels wide and high:
+	private static final int cTileSize = 32;
+
+	private static final float cDiffuse = 0.2f;
+	private static final float cSpecular = 0.6f;
+
+	private final ForkJoinPool mForkJoinPool;
+
+	private volatile boolean mEmptySpaceSkipping = true;
+
+	/**
+	 * Instantiates a ray caster that uses all available processors.
+	 */
+	public CPURaycaster()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a ray caster with a given level of parallelism.
+	 *
+	 * @param pParallelism
+	 *          number of worker threads
+	 */
+	public CPURaycaster(final int pParallelism)
+	{
+		super();
+		mForkJoinPool = new ForkJoinPool(max(1, pParallelism));
+	}
+
+	/**
+	 * Returns the level of parallelism of this ray caster.
+	 *
+	 * @return number of worker threads
+	 */
+	public int getParallelism()
+	{
+		return mForkJoinPool.getParallelism();
+	}
+
+	/**
+	 * Sets whether rays skip bricks that cannot contribute to the pixel.
+	 *
+	 * @param pEmptySpaceSkipping
+	 *          true to skip empty bricks
+	 */
+	public void setEmptySpaceSkipping(final boolean pEmptySpaceSkipping)
+	{
+		mEmptySpaceSkipping = pEmptySpaceSkipping;
+	}
+
+	public boolean isEmptySpaceSkipping()
+	{
+		return mEmptySpaceSkipping;
+	}
+
+	/**
+	 * Clears a render buffer.
+	 *
+	 * @param pOutput
+	 *          render buffer
+	 * @param pImageWidth
+	 *          image width
+	 * @param pImageHeight
+	 *          image height
+	 */
+	public void clear(final int[] pOutput,
+										final int pImageWidth,
+										final int pImageHeight)
+	{
+		java.util.Arrays.fill(pOutput, 0, pImageWidth * pImageHeight, 0);
+	}
+
+	/**
+	 * Renders a max projection, see maxproj_render in VolumeRender.cl.
+	 *
+	 * @param pOutput
+	 *          render buffer (packed RGBA)
+	 * @param pImageWidth
+	 *          image width
+	 * @param pImageHeight
+	 *          image height
+	 * @param pBrightness
+	 *          brightness
+	 * @param pTransferRangeMin
+	 *          transfer function range minimum
+	 * @param pTransferRangeMax
+	 *          transfer function range maximum
+	 * @param pGamma
+	 *          gamma
+	 * @param pMaxSteps
+	 *          maximal number of steps along each ray
+	 * @param pDithering
+	 *          dithering amount
+	 * @param pPhase
+	 *          phase used for multi-pass rendering
+	 * @param pClear
+	 *          0 to clear the buffer, 1 to max with existing values
+	 * @param pTransferFunction
+	 *          transfer function RGBA array
+	 * @param pInvProjection
+	 *          inverse projection matrix (row-major)
+	 * @param pInvModelView
+	 *          inverse model-view matrix (row-major)
+	 * @param pVolume
+	 *          volume data
+	 */
+	public void renderMaxProjection(final int[] pOutput,
+																	final int pImageWidth,
+																	final int pImageHeight,
+																	final float pBrightness,
+																	final float pTransferRangeMin,
+																	final float pTransferRangeMax,
+																	final float pGamma,
+																	final int pMaxSteps,
+																	final float pDithering,
+																	final float pPhase,
+																	final int pClear,
+																	final float[] pTransferFunction,
+																	final float[] pInvProjection,
+																	final float[] pInvModelView,
+																	final CPUVolumeData pVolume)
+	{
+		final RayRenderer lRayRenderer = new MaxProjectionRenderer(	pOutput,
+																																pImageWidth,
+																																pImageHeight,
+																																pBrightness,
+																																pTransferRangeMin,
+																																pTransferRangeMax,
+																																pGamma,
+																																pMaxSteps,
+																																pDithering,
+																																pPhase,
+																																pClear,
+																																pTransferFunction,
+																																pInvProjection,
+																																pInvModelView,
+																																pVolume);
+		render(lRayRenderer);
+	}
+
+	/**
+	 * Renders an iso-surface, see isosurface_render in VolumeRender.cl.
+	 *
+	 * @param pOutput
+	 *          render buffer (packed RGBA)
+	 * @param pImageWidth
+	 *          image width
+	 * @param pImageHeight
+	 *          image height
+	 * @param pBrightness
+	 *          brightness
+	 * @param pTransferRangeMin
+	 *          transfer function range minimum
+	 * @param pTransferRangeMax
+	 *          transfer function range maximum
+	 * @param pGamma
+	 *          gamma
+	 * @param pMaxSteps
+	 *          maximal number of steps along each ray
+	 * @param pDithering
+	 *          dithering amount
+	 * @param pPhase
+	 *          phase used for multi-pass rendering
+	 * @param pClear
+	 *          0 to clear the buffer, 1 to max with existing values
+	 * @param pLightX
+	 *          light vector x coordinate
+	 * @param pLightY
+	 *          light vector y coordinate
+	 * @param pLightZ
+	 *          light vector z coordinate
+	 * @param pTransferFunction
+	 *          transfer function RGBA array
+	 * @param pInvProjection
+	 *          inverse projection matrix (row-major)
+	 * @param pInvModelView
+	 *          inverse model-view matrix (row-major)
+	 * @param pVolume
+	 *          volume data
+	 */
+	public void renderIsoSurface(	final int[] pOutput,
+																final int pImageWidth,
+																final int pImageHeight,
+																final float pBrightness,
+																final float pTransferRangeMin,
+																final float pTransferRangeMax,
+																final float pGamma,
+																final int pMaxSteps,
+																final float pDithering,
+																final float pPhase,
+																final int pClear,
+																final float pLightX,
+																final float pLightY,
+																final float pLightZ,
+																final float[] pTransferFunction,
+																final float[] pInvProjection,
+																final float[] pInvModelView,
+																final CPUVolumeData pVolume)
+	{
+		final RayRenderer lRayRenderer = new IsoSurfaceRenderer(pOutput,
+																														pImageWidth,
+																														pImageHeight,
+																														pBrightness,
+																														pTransferRangeMin,
+																														pTransferRangeMax,
+																														pGamma,
+																														pMaxSteps,
+																														pDithering,
+																														pPhase,
+																														pClear,
+																														pLightX,
+																														pLightY,
+																														pLightZ,
+																														pTransferFunction,
+																														pInvProjection,
+																														pInvModelView,
+																														pVolume);
+		render(lRayRenderer);
+	}
+
+	/**
+	 * Renders by front-to-back alpha compositing, see composite_render in
+	 * VolumeRender.cl.
+	 *
+	 * @param pOutput
+	 *          render buffer (packed RGBA)
+	 * @param pImageWidth
+	 *          image width
+	 * @param pImageHeight
+	 *          image height
+	 * @param pBrightness
+	 *          brightness
+	 * @param pTransferRangeMin
+	 *          transfer function range minimum
+	 * @param pTransferRangeMax
+	 *          transfer function range maximum
+	 * @param pGamma
+	 *          gamma
+	 * @param pMaxSteps
+	 *          maximal number of steps along each ray
+	 * @param pDithering
+	 *          dithering amount
+	 * @param pPhase
+	 *          phase used for multi-pass rendering
+	 * @param pClear
+	 *          0 to clear the buffer, 1 to max with existing values
+	 * @param pOpacityThreshold
+	 *          accumulated opacity at which rays stop
+	 * @param pTransferFunction
+	 *          transfer function RGBA array
+	 * @param pInvProjection
+	 *          inverse projection matrix (row-major)
+	 * @param pInvModelView
+	 *          inverse model-view matrix (row-major)
+	 * @param pVolume
+	 *          volume data
+	 */
+	public void renderAlphaCompositing(	final int[] pOutput,
+																			final int pImageWidth,
+																			final int pImageHeight,
+																			final float pBrightness,
+																			final float pTransferRangeMin,
+																			final float pTransferRangeMax,
+																			final float pGamma,
+																			final int pMaxSteps,
+																			final float pDithering,
+																			final float pPhase,
+																			final int pClear,
+																			final float pOpacityThreshold,
+																			final float[] pTransferFunction,
+																			final float[] pInvProjection,
+																			final float[] pInvModelView,
+																			final CPUVolumeData pVolume)
+	{
+		final RayRenderer lRayRenderer = new AlphaCompositingRenderer(pOutput,
+																																	pImageWidth,
+																																	pImageHeight,
+																																	pBrightness,
+																																	pTransferRangeMin,
+																																	pTransferRangeMax,
+																																	pGamma,
+																																	pMaxSteps,
+																																	pDithering,
+																																	pPhase,
+																																	pClear,
+																																	pOpacityThreshold,
+																																	pTransferFunction,
+																																	pInvProjection,
+																																	pInvModelView,
+																																	pVolume);
+		render(lRayRenderer);
+	}
+
+	private void render(final RayRenderer pRayRenderer)
+	{
+		if (mEmptySpaceSkipping)
+			pRayRenderer.setMinMaxBrickGrid(pRayRenderer.mVolume.getMinMaxBrickGrid());
+
+		mForkJoinPool.invoke(new TileTask(pRayRenderer,
+																			0,
+																			0,
+																			pRayRenderer.mImageWidth,
+																			pRayRenderer.mImageHeight));
+	}
+
+	@Override
+	public void close()
+	{
+		mForkJoinPool.shutdown();
+	}
+
+	/**
+	 * Fork/join task that recursively splits the image into tiles.
+	 */
+	private static final class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RayRenderer mRayRenderer;
+		private final int mX0, mY0, mX1, mY1;
+
+		TileTask(	final RayRenderer pRayRenderer,
+							final int pX0,
+							final int pY0,
+							final int pX1,
+							final int pY1)
+		{
+			mRayRenderer = pRayRenderer;
+			mX0 = pX0;
+			mY0 = pY0;
+			mX1 = pX1;
+			mY1 = pY1;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final int lWidth = mX1 - mX0;
+			final int lHeight = mY1 - mY0;
+
+			if (lWidth <= cTileSize && lHeight <= cTileSize)
+			{
+				mRayRenderer.renderTile(mX0, mY0, mX1, mY1);
+			}
+			else if (lWidth >= lHeight)
+			{
+				final int lXm = mX0 + lWidth / 2;
+				invokeAll(new TileTask(mRayRenderer, mX0, mY0, lXm, mY1),
+									new TileTask(mRayRenderer, lXm, mY0, mX1, mY1));
+			}
+			else
+			{
+				final int lYm = mY0 + lHeight / 2;
+				invokeAll(new TileTask(mRayRenderer, mX0, mY0, mX1, lYm),
+									new TileTask(mRayRenderer, mX0, lYm, mX1, mY1));
+			}
+		}
+	}
+
+	/**
+	 * Eye ray for a given pixel, in the volume's normalized [-1,1]^3 box
+	 * coordinates.
+	 */
+	static final class Ray
+	{
+		float ox, oy, oz, ow;
+		float dx, dy, dz;
+		float tnear, tfar;
+
+		/**
+		 * Computes the eye ray for the given pixel and intersects it with the
+		 * volume bounding box.
+		 *
+		 * @return true if the ray hits the box in front of the eye.
+		 */
+		boolean setup(final int x,
+									final int y,
+									final int pImageWidth,
+									final int pImageHeight,
+									final float[] invP,
+									final float[] invM)
+		{
+			final float u = (x / (float) pImageWidth) * 2.0f - 1.0f;
+			final float v = (y / (float) pImageHeight) * 2.0f - 1.0f;
+
+			// front (u,v,-1,1) and back (u,v,1,1) points through inverse projection:
+			float fx = invP[0] * u + invP[1] * v - invP[2] + invP[3];
+			float fy = invP[4] * u + invP[5] * v - invP[6] + invP[7];
+			float fz = invP[8] * u + invP[9] * v - invP[10] + invP[11];
+			final float fw = invP[12] * u + invP[13] * v - invP[14] + invP[15];
+			fx /= fw;
+			fy /= fw;
+			fz /= fw;
+
+			float bx = invP[0] * u + invP[1] * v + invP[2] + invP[3];
+			float by = invP[4] * u + invP[5] * v + invP[6] + invP[7];
+			float bz = invP[8] * u + invP[9] * v + invP[10] + invP[11];
+			final float bw = invP[12] * u + invP[13] * v + invP[14] + invP[15];
+			bx /= bw;
+			by /= bw;
+			bz /= bw;
+
+			// origin in world space:
+			ow = invM[12] * fx + invM[13] * fy + invM[14] * fz + invM[15];
+			ox = (invM[0] * fx + invM[1] * fy + invM[2] * fz + invM[3]) / ow;
+			oy = (invM[4] * fx + invM[5] * fy + invM[6] * fz + invM[7]) / ow;
+			oz = (invM[8] * fx + invM[9] * fy + invM[10] * fz + invM[11]) / ow;
+			ow = 1.0f;
+
+			// direction in world space:
+			float ex = bx - fx;
+			float ey = by - fy;
+			float ez = bz - fz;
+			final float lInvLength = (float) (1.0 / sqrt(ex * ex + ey * ey + ez * ez));
+			ex *= lInvLength;
+			ey *= lInvLength;
+			ez *= lInvLength;
+
+			dx = invM[0] * ex + invM[1] * ey + invM[2] * ez;
+			dy = invM[4] * ex + invM[5] * ey + invM[6] * ez;
+			dz = invM[8] * ex + invM[9] * ey + invM[10] * ez;
+
+			// intersection with box [-1,1]^3:
+			final float lInvX = 1.0f / dx;
+			final float lInvY = 1.0f / dy;
+			final float lInvZ = 1.0f / dz;
+
+			final float tbx = lInvX * (-1.0f - ox), ttx = lInvX * (1.0f - ox);
+			final float tby = lInvY * (-1.0f - oy), tty = lInvY * (1.0f - oy);
+			final float tbz = lInvZ * (-1.0f - oz), ttz = lInvZ * (1.0f - oz);
+
+			final float lMinX = min(ttx, tbx), lMaxX = max(ttx, tbx);
+			final float lMinY = min(tty, tby), lMaxY = max(tty, tby);
+			final float lMinZ = min(ttz, tbz), lMaxZ = max(ttz, tbz);
+
+			tnear = max(max(lMinX, lMinY), max(lMinX, lMinZ));
+			tfar = min(min(lMaxX, lMaxY), min(lMaxX, lMaxZ));
+
+			final boolean lHit = tfar > tnear;
+			if (!lHit || tfar <= 0)
+				return false;
+
+			if (tnear < 0.0f)
+				tnear = 0.0f;
+
+			return true;
+		}
+
+		/**
+		 * Entropy value used to seed the dithering noise.
+		 *
+		 * @return entropy
+		 */
+		int entropy()
+		{
+			final double lOriginLength = sqrt(ox * ox + oy * oy + oz * oz + ow * ow);
+			final double lDirectionLength = sqrt(dx * dx + dy * dy + dz * dz);
+			return (int) (long) (6779514 * lOriginLength + 6257327 * lDirectionLength);
+		}
+
+		/**
+		 * Moves the origin along the ray direction.
+		 *
+		 * @param pDistance
+		 *          distance
+		 */
+		void advance(final float pDistance)
+		{
+			ox += pDistance * dx;
+			oy += pDistance * dy;
+			oz += pDistance * dz;
+		}
+	}
+
+	/**
+	 * Returns the number of steps rays are divided into for a given maximal
+	 * number of steps, as in VolumeRender.cl: the largest multiple of the loop
+	 * unrolling length, at least one unrolled block.
+	 *
+	 * @param pMaxSteps
+	 *          maximal number of steps
+	 * @return number of steps dividing rays
+	 */
+	public static int getNumberOfStepIntervals(final int pMaxSteps)
+	{
+		return max(1, pMaxSteps / cLoopUnroll) * cLoopUnroll;
+	}
+
+	/**
+	 * Returns the number of samples taken along rays for a given maximal number
+	 * of steps, as in VolumeRender.cl: each unrolled block takes one sample less
+	 * than the loop unrolling length, so that the last steps of rays are not
+	 * sampled.
+	 *
+	 * @param pMaxSteps
+	 *          maximal number of steps
+	 * @return number of samples
+	 */
+	public static int getNumberOfSamples(final int pMaxSteps)
+	{
+		return max(1, pMaxSteps / cLoopUnroll) * (cLoopUnroll - 1);
+	}
+
+	/**
+	 * Base class for per-algorithm ray renderers.
+	 */
+	abstract static class RayRenderer
+	{
+		final int[] mOutput;
+		final int mImageWidth, mImageHeight;
+		final float mBrightness;
+		final float mTransferRangeMin, mTransferRangeMax;
+		final float mGamma;
+		final int mMaxSteps;
+		final float mDithering;
+		final float mPhase;
+		final int mClear;
+		final float[] mTransferFunction;
+		final float[] mInvProjection, mInvModelView;
+		final CPUVolumeData mVolume;
+
+		// linear map of the transfer function range:
+		final float mTa, mTb;
+
+		// number of steps dividing the ray, and number of samples taken:
+		final int mStepIntervals;
+		final int mSteps;
+
+		// brick grid used to skip empty space, and brick extents in normalized
+		// coordinates:
+		MinMaxBrickGrid mMinMaxBrickGrid;
+		float mBrickSizeX, mBrickSizeY, mBrickSizeZ;
+
+		RayRenderer(final int[] pOutput,
+								final int pImageWidth,
+								final int pImageHeight,
+								final float pBrightness,
+								final float pTransferRangeMin,
+								final float pTransferRangeMax,
+								final float pGamma,
+								final int pMaxSteps,
+								final float pDithering,
+								final float pPhase,
+								final int pClear,
+								final float[] pTransferFunction,
+								final float[] pInvProjection,
+								final float[] pInvModelView,
+								final CPUVolumeData pVolume)
+		{
+			mOutput = pOutput;
+			mImageWidth = pImageWidth;
+			mImageHeight = pImageHeight;
+			mBrightness = pBrightness;
+			mTransferRangeMin = pTransferRangeMin;
+			mTransferRangeMax = pTransferRangeMax;
+			mGamma = pGamma;
+			mMaxSteps = pMaxSteps;
+			mDithering = pDithering;
+			mPhase = pPhase;
+			mClear = pClear;
+			mTransferFunction = pTransferFunction;
+			mInvProjection = pInvProjection;
+			mInvModelView = pInvModelView;
+			mVolume = pVolume;
+
+			mTa = 1.f / (pTransferRangeMax - pTransferRangeMin);
+			mTb = pTransferRangeMin / (pTransferRangeMin - pTransferRangeMax);
+
+			mStepIntervals = getNumberOfStepIntervals(pMaxSteps);
+			mSteps = getNumberOfSamples(pMaxSteps);
+		}
+
+		void setMinMaxBrickGrid(final MinMaxBrickGrid pMinMaxBrickGrid)
+		{
+			mMinMaxBrickGrid = pMinMaxBrickGrid;
+			mBrickSizeX = (float) pMinMaxBrickGrid.getBrickSize() / mVolume.getWidth();
+			mBrickSizeY = (float) pMinMaxBrickGrid.getBrickSize() / mVolume.getHeight();
+			mBrickSizeZ = (float) pMinMaxBrickGrid.getBrickSize() / mVolume.getDepth();
+		}
+
+		void renderTile(final int pX0,
+										final int pY0,
+										final int pX1,
+										final int pY1)
+		{
+			final Ray lRay = new Ray();
+			final float[] lColor = new float[4];
+			for (int y = pY0; y < pY1; y++)
+				for (int x = pX0; x < pX1; x++)
+				{
+					final int lIndex = x + mImageWidth * y;
+					if (!lRay.setup(x,
+													y,
+													mImageWidth,
+													mImageHeight,
+													mInvProjection,
+													mInvModelView))
+					{
+						mOutput[lIndex] = 0;
+						continue;
+					}
+
+					final float lStep = abs(lRay.tnear - lRay.tfar) / mStepIntervals;
+
+					if (renderRay(x, y, lRay, lStep, lColor))
+						mOutput[lIndex] = rgbaFloatToIntAndMax(	mClear * mOutput[lIndex],
+																										lColor);
+					else
+						mOutput[lIndex] = 0;
+				}
+		}
+
+		/**
+		 * Marches a single ray.
+		 *
+		 * @return true if a color was produced, false if the pixel is empty.
+		 */
+		abstract boolean renderRay(	int x,
+																int y,
+																Ray pRay,
+																float pStep,
+																float[] pColor);
+
+		/**
+		 * Returns the number of steps needed to leave the brick containing a
+		 * position if no value of that brick exceeds a threshold, the same brick
+		 * lookup as in VolumeRender.cl.
+		 *
+		 * @return number of steps to skip, 0 if the brick must be sampled.
+		 */
+		final int getEmptyBrickSteps(	final float pPosX,
+																	final float pPosY,
+																	final float pPosZ,
+																	final float pStepX,
+																	final float pStepY,
+																	final float pStepZ,
+																	final float pThreshold)
+		{
+			if (mMinMaxBrickGrid == null)
+				return 0;
+
+			final float lCellX = (float) Math.floor(pPosX / mBrickSizeX);
+			final float lCellY = (float) Math.floor(pPosY / mBrickSizeY);
+			final float lCellZ = (float) Math.floor(pPosZ / mBrickSizeZ);
+
+			final float lMaximum = mMinMaxBrickGrid.getMaximum(	clampIndex(	(int) lCellX,
+																																				mMinMaxBrickGrid.getGridWidth()),
+																													clampIndex(	(int) lCellY,
+																																				mMinMaxBrickGrid.getGridHeight()),
+																													clampIndex(	(int) lCellZ,
+																																				mMinMaxBrickGrid.getGridDepth()));
+			if (lMaximum > pThreshold)
+				return 0;
+
+			final float lExit = min(min(getExit(pPosX, pStepX, lCellX, mBrickSizeX),
+																	getExit(pPosY, pStepY, lCellY, mBrickSizeY)),
+															getExit(pPosZ, pStepZ, lCellZ, mBrickSizeZ));
+			return max(1, (int) Math.ceil(lExit));
+		}
+
+		/**
+		 * Applies the transfer function range and gamma to a normalized value.
+		 *
+		 * @param pValue
+		 *          value
+		 * @return mapped value in [0,1]
+		 */
+		final float mapValue(final float pValue)
+		{
+			final float lLinear = max(0.f, mTa * pValue + mTb);
+			return clamp((float) pow(lLinear, mGamma), 0.f, 1.f);
+		}
+
+		/**
+		 * Linear lookup in the transfer function with clamp-to-edge addressing.
+		 *
+		 * @param pValue
+		 *          normalized coordinate
+		 * @param pColor
+		 *          RGBA destination
+		 */
+		final void lookupTransferFunction(final float pValue,
+																			final float[] pColor)
+		{
+			final int lLength = mTransferFunction.length / 4;
+			final float lX = pValue * lLength - 0.5f;
+			final int lX0 = (int) Math.floor(lX);
+			final float lA = lX - lX0;
+			final int i0 = 4 * max(0, min(lLength - 1, lX0));
+			final int i1 = 4 * max(0, min(lLength - 1, lX0 + 1));
+			for (int c = 0; c < 4; c++)
+				pColor[c] = mTransferFunction[i0 + c] + lA
+										* (mTransferFunction[i1 + c] - mTransferFunction[i0 + c]);
+		}
+	}
+
+	/**
+	 * Max projection, see maxproj_render.
+	 */
+	static final class MaxProjectionRenderer extends RayRenderer
+	{
+		MaxProjectionRenderer(final int[] pOutput,
+													final int pImageWidth,
+													final int pImageHeight,
+													final float pBrightness,
+													final float pTransferRangeMin,
+													final float pTransferRangeMax,
+													final float pGamma,
+													final int pMaxSteps,
+													final float pDithering,
+													final float pPhase,
+													final int pClear,
+													final float[] pTransferFunction,
+													final float[] pInvProjection,
+													final float[] pInvModelView,
+													final CPUVolumeData pVolume)
+		{
+			super(pOutput,
+						pImageWidth,
+						pImageHeight,
+						pBrightness,
+						pTransferRangeMin,
+						pTransferRangeMax,
+						pGamma,
+						pMaxSteps,
+						pDithering,
+						pPhase,
+						pClear,
+						pTransferFunction,
+						pInvProjection,
+						pInvModelView,
+						pVolume);
+		}
+
+		@Override
+		boolean renderRay(final int x,
+											final int y,
+											final Ray pRay,
+											final float pStep,
+											final float[] pColor)
+		{
+			// apply phase:
+			pRay.advance(mPhase * pStep);
+
+			// randomize origin point a bit:
+			final int lEntropy = pRay.entropy();
+			pRay.advance(mDithering * pStep
+										* random(lEntropy + x, lEntropy + y));
+
+			final float lStepX = 0.5f * pStep * pRay.dx;
+			final float lStepY = 0.5f * pStep * pRay.dy;
+			final float lStepZ = 0.5f * pStep * pRay.dz;
+			float lPosX = pRay.ox * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dx;
+			float lPosY = pRay.oy * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dy;
+			float lPosZ = pRay.oz * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dz;
+
+			float lMax = 0.0f;
+			int i = 0;
+			while (i < mSteps)
+			{
+				// values of bricks below the range minimum all map to zero:
+				final int lEmptySteps = min(mSteps - i,
+																		getEmptyBrickSteps(	lPosX,
+																												lPosY,
+																												lPosZ,
+																												lStepX,
+																												lStepY,
+																												lStepZ,
+																												mTransferRangeMin));
+				if (lEmptySteps > 0)
+				{
+					lPosX += lEmptySteps * lStepX;
+					lPosY += lEmptySteps * lStepY;
+					lPosZ += lEmptySteps * lStepZ;
+					i += lEmptySteps;
+					continue;
+				}
+
+				final int lRunEnd = min(mSteps, i + cLoopUnroll - 1);
+				for (; i < lRunEnd; i++)
+				{
+					lMax = max(lMax, mVolume.sample(lPosX, lPosY, lPosZ));
+					lPosX += lStepX;
+					lPosY += lStepY;
+					lPosZ += lStepZ;
+				}
+			}
+
+			lookupTransferFunction(mapValue(lMax), pColor);
+
+			// brightness and alpha pre-multiply:
+			for (int c = 0; c < 4; c++)
+				pColor[c] *= mBrightness;
+			pColor[0] *= pColor[3];
+			pColor[1] *= pColor[3];
+			pColor[2] *= pColor[3];
+
+			return true;
+		}
+	}
+
+	/**
+	 * Iso-surface rendering with Phong shading, see isosurface_render.
+	 */
+	static final class IsoSurfaceRenderer extends RayRenderer
+	{
+		private final float mLightX, mLightY, mLightZ;
+
+		IsoSurfaceRenderer(	final int[] pOutput,
+												final int pImageWidth,
+												final int pImageHeight,
+												final float pBrightness,
+												final float pTransferRangeMin,
+												final float pTransferRangeMax,
+												final float pGamma,
+												final int pMaxSteps,
+												final float pDithering,
+												final float pPhase,
+												final int pClear,
+												final float pLightX,
+												final float pLightY,
+												final float pLightZ,
+												final float[] pTransferFunction,
+												final float[] pInvProjection,
+												final float[] pInvModelView,
+												final CPUVolumeData pVolume)
+		{
+			super(pOutput,
+						pImageWidth,
+						pImageHeight,
+						pBrightness,
+						pTransferRangeMin,
+						pTransferRangeMax,
+						pGamma,
+						pMaxSteps,
+						pDithering,
+						pPhase,
+						pClear,
+						pTransferFunction,
+						pInvProjection,
+						pInvModelView,
+						pVolume);
+
+			// light vector in volume coordinates:
+			final float[] invM = pInvModelView;
+			final float lX = invM[0] * -pLightX + invM[1]
+												* -pLightY
+												+ invM[2]
+												* -pLightZ;
+			final float lY = invM[4] * -pLightX + invM[5]
+												* -pLightY
+												+ invM[6]
+												* -pLightZ;
+			final float lZ = invM[8] * -pLightX + invM[9]
+												* -pLightY
+												+ invM[10]
+												* -pLightZ;
+			final float lInvLength = (float) (1.0 / sqrt(lX * lX + lY * lY + lZ * lZ));
+			mLightX = lX * lInvLength;
+			mLightY = lY * lInvLength;
+			mLightZ = lZ * lInvLength;
+		}
+
+		@Override
+		boolean renderRay(final int x,
+											final int y,
+											final Ray pRay,
+											final float pStep,
+											final float[] pColor)
+		{
+			final CPUVolumeData lVolume = mVolume;
+
+			// randomize origin point a bit:
+			final int lEntropy = pRay.entropy();
+			pRay.advance(mDithering * pStep
+										* random(lEntropy + x, lEntropy + y));
+
+			final float lStepX = 0.5f * pStep * pRay.dx;
+			final float lStepY = 0.5f * pStep * pRay.dy;
+			final float lStepZ = 0.5f * pStep * pRay.dz;
+			float lPosX = pRay.ox * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dx;
+			float lPosY = pRay.oy * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dy;
+			float lPosZ = pRay.oz * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dz;
+
+			// iso value:
+			final float lIsoValue = (float) ((1.0f / mTa) * pow(0.5f,
+																													1.0f / mGamma) - mTb);
+
+			float lNewValue = 0;
+			final boolean lIsGreater = lNewValue > lIsoValue;
+
+			// first pass:
+			boolean lHitIso = false;
+			int i = 0;
+			while (i < mSteps && !lHitIso)
+			{
+				// bricks below the iso value cannot be crossed from below:
+				final int lEmptySteps = lIsGreater ? 0
+																					: min(mSteps - i,
+																								getEmptyBrickSteps(	lPosX,
+																																		lPosY,
+																																		lPosZ,
+																																		lStepX,
+																																		lStepY,
+																																		lStepZ,
+																																		lIsoValue));
+				if (lEmptySteps > 0)
+				{
+					lPosX += lEmptySteps * lStepX;
+					lPosY += lEmptySteps * lStepY;
+					lPosZ += lEmptySteps * lStepZ;
+					i += lEmptySteps;
+					continue;
+				}
+
+				final int lRunEnd = min(mSteps, i + cLoopUnroll - 1);
+				for (; i < lRunEnd; i++)
+				{
+					lNewValue = lVolume.sample(lPosX, lPosY, lPosZ);
+					if ((lNewValue > lIsoValue) != lIsGreater)
+					{
+						lHitIso = true;
+						break;
+					}
+					lPosX += lStepX;
+					lPosY += lStepY;
+					lPosZ += lStepZ;
+				}
+			}
+
+			// early termination if iso surface not hit:
+			if (!lHitIso)
+				return false;
+
+			// second pass:
+			lPosX -= 2 * lStepX;
+			lPosY -= 2 * lStepY;
+			lPosZ -= 2 * lStepZ;
+			final float lFineStepX = 3 * lStepX / mMaxSteps;
+			final float lFineStepY = 3 * lStepY / mMaxSteps;
+			final float lFineStepZ = 3 * lStepZ / mMaxSteps;
+			for (i = 0; i < mSteps; i++)
+			{
+				lNewValue = lVolume.sample(lPosX, lPosY, lPosZ);
+				if ((lNewValue > lIsoValue) != lIsGreater)
+					break;
+				lPosX += lFineStepX;
+				lPosY += lFineStepY;
+				lPosZ += lFineStepZ;
+			}
+
+			// find the real intersection point:
+			final float lOldValue = lVolume.sample(	lPosX - lFineStepX,
+																							lPosY - lFineStepY,
+																							lPosZ - lFineStepZ);
+			final float lLambda = (lNewValue - lIsoValue) / (lNewValue - lOldValue);
+			if (!Float.isNaN(lLambda) && !Float.isInfinite(lLambda))
+			{
+				lPosX += lLambda * lStepX;
+				lPosY += lLambda * lStepY;
+				lPosZ += lLambda * lStepZ;
+			}
+
+			// robust 2nd order normal estimation:
+			final float lLatX = 1.0f / lVolume.getWidth();
+			final float lLatY = 1.0f / lVolume.getHeight();
+			final float lLatZ = 1.0f / lVolume.getDepth();
+
+			float lNormalX = 2.f * lVolume.sample(lPosX + lLatX, lPosY, lPosZ)
+												- 2.f
+												* lVolume.sample(lPosX - lLatX, lPosY, lPosZ)
+												+ lVolume.sample(lPosX + 2.f * lLatX, lPosY, lPosZ)
+												- lVolume.sample(lPosX - 2.f * lLatX, lPosY, lPosZ);
+
+			float lNormalY = 2.f * lVolume.sample(lPosX, lPosY + lLatY, lPosZ)
+												- 2.f
+												* lVolume.sample(lPosX, lPosY - lLatY, lPosZ)
+												+ lVolume.sample(lPosX, lPosY + 2.f * lLatY, lPosZ)
+												- lVolume.sample(lPosX, lPosY - 2.f * lLatY, lPosZ);
+
+			float lNormalZ = 2.f * lVolume.sample(lPosX, lPosY, lPosZ + lLatZ)
+												- 2.f
+												* lVolume.sample(lPosX, lPosY, lPosZ - lLatZ)
+												+ lVolume.sample(lPosX, lPosY, lPosZ + 2.f * lLatZ)
+												- lVolume.sample(lPosX, lPosY, lPosZ - 2.f * lLatZ);
+
+			// flip normal if we are coming from values greater than iso value:
+			final double lNormalLength = sqrt(lNormalX * lNormalX + lNormalY
+																				* lNormalY
+																				+ lNormalZ
+																				* lNormalZ);
+			final float lNormalFactor = lNormalLength == 0	? 0
+																											: (float) ((lIsGreater	? -1
+																																						: 1) / lNormalLength);
+			lNormalX *= lNormalFactor;
+			lNormalY *= lNormalFactor;
+			lNormalZ *= lNormalFactor;
+
+			// Phong specular reflection:
+			final float lLightDotNormal = mLightX * lNormalX + mLightY
+																		* lNormalY
+																		+ mLightZ
+																		* lNormalZ;
+			final float lDiffuse = max(0.f, lLightDotNormal);
+			final float lReflectX = 2 * lLightDotNormal * lNormalX - mLightX;
+			final float lReflectY = 2 * lLightDotNormal * lNormalY - mLightY;
+			final float lReflectZ = 2 * lLightDotNormal * lNormalZ - mLightZ;
+			final double lReflectLength = sqrt(lReflectX * lReflectX + lReflectY
+																					* lReflectY
+																					+ lReflectZ
+																					* lReflectZ);
+			final double lDirectionLength = sqrt(pRay.dx * pRay.dx + pRay.dy
+																						* pRay.dy
+																						+ pRay.dz
+																						* pRay.dz);
+			final double lCosine = lReflectLength == 0	? 0
+																									: (lReflectX * pRay.dx
+																											+ lReflectY
+																											* pRay.dy + lReflectZ
+																																		* pRay.dz)
+																										/ (lReflectLength * lDirectionLength);
+			final float lSpecular = (float) pow(max(0.0, lCosine), 10);
+
+			// lookup in transfer function texture:
+			lookupTransferFunction(mGamma, pColor);
+
+			// apply lighting:
+			final float lLighting = cDiffuse * lDiffuse
+															+ (lDiffuse > 0 ? cSpecular * lSpecular : 0);
+			pColor[0] += lLighting;
+			pColor[1] += lLighting;
+			pColor[2] += lLighting;
+
+			for (int c = 0; c < 4; c++)
+				pColor[c] *= mBrightness;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Front-to-back alpha compositing with early ray termination, see
+	 * composite_render.
+	 */
+	static final class AlphaCompositingRenderer extends RayRenderer
+	{
+		private final float mOpacityThreshold;
+
+		// transfer function opacities are per voxel:
+		private final float mVoxelsPerUnit;
+
+		// bricks below the range minimum can only be skipped if the bottom of the
+		// transfer function is transparent:
+		private final float mSkipThreshold;
+
+		AlphaCompositingRenderer(	final int[] pOutput,
+															final int pImageWidth,
+															final int pImageHeight,
+															final float pBrightness,
+															final float pTransferRangeMin,
+															final float pTransferRangeMax,
+															final float pGamma,
+															final int pMaxSteps,
+															final float pDithering,
+															final float pPhase,
+															final int pClear,
+															final float pOpacityThreshold,
+															final float[] pTransferFunction,
+															final float[] pInvProjection,
+															final float[] pInvModelView,
+															final CPUVolumeData pVolume)
+		{
+			super(pOutput,
+						pImageWidth,
+						pImageHeight,
+						pBrightness,
+						pTransferRangeMin,
+						pTransferRangeMax,
+						pGamma,
+						pMaxSteps,
+						pDithering,
+						pPhase,
+						pClear,
+						pTransferFunction,
+						pInvProjection,
+						pInvModelView,
+						pVolume);
+			mOpacityThreshold = pOpacityThreshold;
+			mVoxelsPerUnit = 0.5f * max(max(pVolume.getWidth(),
+																			pVolume.getHeight()),
+																	pVolume.getDepth());
+
+			final float[] lColor = new float[4];
+			lookupTransferFunction(0, lColor);
+			mSkipThreshold = lColor[3] > 0 ? -1.f : pTransferRangeMin;
+		}
+
+		@Override
+		boolean renderRay(final int x,
+											final int y,
+											final Ray pRay,
+											final float pStep,
+											final float[] pColor)
+		{
+			// apply phase:
+			pRay.advance(mPhase * pStep);
+
+			// randomize origin point a bit:
+			final int lEntropy = pRay.entropy();
+			pRay.advance(mDithering * pStep
+										* random(lEntropy + x, lEntropy + y));
+
+			final float lStepX = 0.5f * pStep * pRay.dx;
+			final float lStepY = 0.5f * pStep * pRay.dy;
+			final float lStepZ = 0.5f * pStep * pRay.dz;
+			float lPosX = pRay.ox * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dx;
+			float lPosY = pRay.oy * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dy;
+			float lPosZ = pRay.oz * 0.5f + 0.5f + pRay.tnear * 0.5f * pRay.dz;
+
+			final float lVoxelStep = pStep * mVoxelsPerUnit;
+
+			// premultiplied color accumulated front to back:
+			float lRed = 0, lGreen = 0, lBlue = 0, lAlpha = 0;
+			int i = 0;
+			while (i < mSteps && lAlpha < mOpacityThreshold)
+			{
+				final int lEmptySteps = min(mSteps - i,
+																		getEmptyBrickSteps(	lPosX,
+																												lPosY,
+																												lPosZ,
+																												lStepX,
+																												lStepY,
+																												lStepZ,
+																												mSkipThreshold));
+				if (lEmptySteps > 0)
+				{
+					lPosX += lEmptySteps * lStepX;
+					lPosY += lEmptySteps * lStepY;
+					lPosZ += lEmptySteps * lStepZ;
+					i += lEmptySteps;
+					continue;
+				}
+
+				final int lRunEnd = min(mSteps, i + cLoopUnroll - 1);
+				for (; i < lRunEnd; i++)
+				{
+					lookupTransferFunction(	mapValue(mVolume.sample(lPosX,
+																													lPosY,
+																													lPosZ)),
+																	pColor);
+					final float lSampleAlpha = (1 - lAlpha) * (1 - (float) pow(	1 - clamp(pColor[3],
+																																										0,
+																																										1),
+																																				lVoxelStep));
+					lRed += lSampleAlpha * pColor[0];
+					lGreen += lSampleAlpha * pColor[1];
+					lBlue += lSampleAlpha * pColor[2];
+					lAlpha += lSampleAlpha;
+					lPosX += lStepX;
+					lPosY += lStepY;
+					lPosZ += lStepZ;
+				}
+			}
+
+			pColor[0] = mBrightness * lRed;
+			pColor[1] = mBrightness * lGreen;
+			pColor[2] = mBrightness * lBlue;
+			pColor[3] = mBrightness * lAlpha;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Pseudo random number in [-0.5,0.5] used for dithering, identical to the
+	 * one in VolumeRender.cl (unsigned 32 bit arithmetic).
+	 *
+	 * @param x
+	 *          first seed
+	 * @param y
+	 *          second seed
+	 * @return random number
+	 */
+	static float random(final int x, final int y)
+	{
+		final long lX = x & 0xFFFFFFFFL;
+		final long lY = y & 0xFFFFFFFFL;
+		long a = (4421 + (1 + lX) * (1 + lY) + lX + lY) & 0xFFFFFFFFL;
+
+		for (int i = 0; i < 10; i++)
+			a = ((1664525L * a + 1013904223L) & 0xFFFFFFFFL) % 79197919L;
+
+		final float lRandom = (a * 1.0f) / (79197919.f);
+		return lRandom - 0.5f;
+	}
+
+	/**
+	 * Converts a RGBA float color into a packed integer and takes the max with
+	 * an existing packed value, see rgbaFloatToIntAndMax.
+	 *
+	 * @param pExisting
+	 *          existing packed RGBA value
+	 * @param pColor
+	 *          RGBA color
+	 * @return packed RGBA value
+	 */
+	static int rgbaFloatToIntAndMax(final int pExisting,
+																	final float[] pColor)
+	{
+		final int nr = (int) (clamp(pColor[0], 0, 1) * 255);
+		final int ng = (int) (clamp(pColor[1], 0, 1) * 255);
+		final int nb = (int) (clamp(pColor[2], 0, 1) * 255);
+		final int na = (int) (clamp(pColor[3], 0, 1) * 255);
+
+		final int er = pExisting & 0xFF;
+		final int eg = (pExisting >>> 8) & 0xFF;
+		final int eb = (pExisting >>> 16) & 0xFF;
+		final int ea = (pExisting >>> 24) & 0xFF;
+
+		return max(na, ea) << 24 | max(nb, eb) << 16
+						| max(ng, eg) << 8
+						| max(nr, er);
+	}
+
+	/**
+	 * Number of steps after which a ray leaves a brick along one axis.
+	 */
+	private static float getExit(	final float pPosition,
+																final float pStep,
+																final float pCell,
+																final float pBrickSize)
+	{
+		if (pStep > 0)
+			return ((pCell + 1) * pBrickSize - pPosition) / pStep;
+		else if (pStep < 0)
+			return (pCell * pBrickSize - pPosition) / pStep;
+		return Float.POSITIVE_INFINITY;
+	}
+
+	private static int clampIndex(final int pIndex, final int pLength)
+	{
+		return max(0, min(pLength - 1, pIndex));
+	}
+
+	private static float clamp(	final float pValue,
+															final float pMin,
+															final float pMax)
+	{
+		// NaN is mapped to pMin:
+		return pValue >= pMin ? min(pValue, pMax) : pMin;
+	}
+
+}
@@ -0,0 +1,533 @@
+package clearvolume.renderer.cpu;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import clearvolume.renderer.VolumeDataRegion;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class CPUVolumeData
+ *
+ * Host-side copy of the voxels of one render layer. Sampling follows the
+ * semantics of the OpenCL image sampler used by the GPU kernels: normalized
+ * coordinates, clamp-to-edge addressing and trilinear filtering. Values are
+ * returned normalized to [0,1] as for UNormInt8 and UNormInt16 images.
+ * Signed voxels span [0,1] over their signed range, from the most negative
+ * value to the most positive one: they are kept in offset binary, with their
+ * sign bit flipped, so that voxel order and min/max bricks hold as for unsigned
+ * voxels.
+ *
+ * A min/max brick grid used to skip empty space is kept along with the voxels,
+ * it is recomputed lazily for the bricks touched since it was last requested.
+ *
+ */
+public class CPUVolumeData implements MinMaxBrickGrid.VoxelSource
+{
+	private final NativeTypeEnum mNativeType;
+	private final int mWidth, mHeight, mDepth;
+	private final long mNumberOfVoxels;
+
+	private final byte[] mByteData;
+	private final char[] mCharData;
+	private final float mNormalization;
+	private final int mSignBit;
+
+	private MinMaxBrickGrid mMinMaxBrickGrid;
+	private long[] mChangedBox;
+
+	/**
+	 * Allocates host-side storage for a volume of given type and dimensions.
+	 *
+	 * @param pNativeType
+	 *          native type (8 or 16 bit integral types, signed or not)
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 */
+	public CPUVolumeData(	final NativeTypeEnum pNativeType,
+												final long pWidth,
+												final long pHeight,
+												final long pDepth)
+	{
+		mNativeType = pNativeType;
+		mWidth = (int) pWidth;
+		mHeight = (int) pHeight;
+		mDepth = (int) pDepth;
+		mNumberOfVoxels = pWidth * pHeight * pDepth;
+
+		if (mNumberOfVoxels > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Volume too large for host-side rendering: " + mNumberOfVoxels
+																					+ " voxels");
+
+		if (pNativeType == NativeTypeEnum.UnsignedByte || pNativeType == NativeTypeEnum.Byte)
+		{
+			mByteData = new byte[(int) mNumberOfVoxels];
+			mCharData = null;
+			mNormalization = 1.0f / 255;
+			mSignBit = pNativeType == NativeTypeEnum.Byte ? 0x80 : 0;
+		}
+		else if (pNativeType == NativeTypeEnum.UnsignedShort || pNativeType == NativeTypeEnum.Short)
+		{
+			mByteData = null;
+			mCharData = new char[(int) mNumberOfVoxels];
+			mNormalization = 1.0f / 65535;
+			mSignBit = pNativeType == NativeTypeEnum.Short ? 0x8000 : 0;
+		}
+		else
+			throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + pNativeType);
+	}
+
+	/**
+	 * Returns true if this volume data has the given type and dimensions and can
+	 * therefore be reused.
+	 *
+	 * @param pNativeType
+	 *          native type
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @return true if compatible
+	 */
+	public boolean isCompatibleWith(final NativeTypeEnum pNativeType,
+																	final long pWidth,
+																	final long pHeight,
+																	final long pDepth)
+	{
+		return mNativeType == pNativeType && mWidth == pWidth
+						&& mHeight == pHeight
+						&& mDepth == pDepth;
+	}
+
+	/**
+	 * Returns a copy of this volume data, later changes to either do not affect
+	 * the other.
+	 *
+	 * @return copy
+	 */
+	public CPUVolumeData copy()
+	{
+		final CPUVolumeData lCopy = new CPUVolumeData(mNativeType,
+																									mWidth,
+																									mHeight,
+																									mDepth);
+		if (mByteData != null)
+			System.arraycopy(mByteData, 0, lCopy.mByteData, 0, mByteData.length);
+		else
+			System.arraycopy(mCharData, 0, lCopy.mCharData, 0, mCharData.length);
+		return lCopy;
+	}
+
+	/**
+	 * Copies the voxels from the given (possibly fragmented) memory.
+	 *
+	 * @param pFragmentedMemoryInterface
+	 *          source memory
+	 */
+	public void copyFrom(final FragmentedMemoryInterface pFragmentedMemoryInterface)
+	{
+		int lVoxelOffset = 0;
+		for (final ContiguousMemoryInterface lFragment : pFragmentedMemoryInterface)
+		{
+			final ByteBuffer lByteBuffer = lFragment.getBridJPointer(Byte.class)
+																							.getByteBuffer()
+																							.order(ByteOrder.nativeOrder());
+			lVoxelOffset += copyFrom(lByteBuffer, lVoxelOffset);
+		}
+	}
+
+	/**
+	 * Copies voxels from a byte buffer starting at a given voxel offset.
+	 *
+	 * @param pByteBuffer
+	 *          source buffer, read from its current position to its limit.
+	 * @param pVoxelOffset
+	 *          voxel offset at which to write
+	 * @return number of voxels copied
+	 */
+	public int copyFrom(final ByteBuffer pByteBuffer, final int pVoxelOffset)
+	{
+		notifyChange(0, 0, 0, mWidth, mHeight, mDepth);
+		return copyRun(pByteBuffer, pVoxelOffset);
+	}
+
+	private int copyRun(final ByteBuffer pByteBuffer, final int pVoxelOffset)
+	{
+		final int lNumberOfVoxels;
+		if (mByteData != null)
+		{
+			lNumberOfVoxels = min(pByteBuffer.remaining(),
+														mByteData.length - pVoxelOffset);
+			pByteBuffer.duplicate().get(mByteData,
+																	pVoxelOffset,
+																	lNumberOfVoxels);
+		}
+		else
+		{
+			lNumberOfVoxels = min(pByteBuffer.remaining() / 2,
+														mCharData.length - pVoxelOffset);
+			pByteBuffer.duplicate()
+									.order(ByteOrder.nativeOrder())
+									.asCharBuffer()
+									.get(mCharData, pVoxelOffset, lNumberOfVoxels);
+		}
+		if (mSignBit != 0)
+			flipSignBits(pVoxelOffset, lNumberOfVoxels);
+		return lNumberOfVoxels;
+	}
+
+	private void flipSignBits(final int pVoxelOffset,
+														final int pNumberOfVoxels)
+	{
+		if (mByteData != null)
+			for (int i = pVoxelOffset; i < pVoxelOffset + pNumberOfVoxels; i++)
+				mByteData[i] ^= mSignBit;
+		else
+			for (int i = pVoxelOffset; i < pVoxelOffset + pNumberOfVoxels; i++)
+				mCharData[i] ^= mSignBit;
+	}
+
+	/**
+	 * Copies the voxels of a volume data region.
+	 *
+	 * @param pVolumeDataRegion
+	 *          region
+	 */
+	public void copyRegionFrom(final VolumeDataRegion pVolumeDataRegion)
+	{
+		copyRegionFrom(	pVolumeDataRegion.getDataBuffer(),
+										pVolumeDataRegion.getOffsetX(),
+										pVolumeDataRegion.getOffsetY(),
+										pVolumeDataRegion.getOffsetZ(),
+										pVolumeDataRegion.getSizeX(),
+										pVolumeDataRegion.getSizeY(),
+										pVolumeDataRegion.getSizeZ());
+	}
+
+	/**
+	 * Copies the voxels of a box from the given (possibly fragmented) memory,
+	 * the rest of the volume is left untouched. The box voxels are laid out X
+	 * fastest, then Y, then Z.
+	 *
+	 * @param pFragmentedMemoryInterface
+	 *          source memory
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 */
+	public void copyRegionFrom(	final FragmentedMemoryInterface pFragmentedMemoryInterface,
+															final long pOffsetX,
+															final long pOffsetY,
+															final long pOffsetZ,
+															final long pRegionSizeX,
+															final long pRegionSizeY,
+															final long pRegionSizeZ)
+	{
+		final int lRowLength = (int) pRegionSizeX;
+		final int lNumberOfRows = (int) (pRegionSizeY * pRegionSizeZ);
+		final int lBytesPerVoxel = mByteData != null ? 1 : 2;
+
+		// rows of the box may straddle fragments, we thus copy run by run:
+		int lRegionVoxelIndex = 0;
+		for (final ContiguousMemoryInterface lFragment : pFragmentedMemoryInterface)
+		{
+			final ByteBuffer lByteBuffer = lFragment.getBridJPointer(Byte.class)
+																							.getByteBuffer()
+																							.order(ByteOrder.nativeOrder());
+			while (lByteBuffer.remaining() >= lBytesPerVoxel && lRegionVoxelIndex < lRowLength * lNumberOfRows)
+			{
+				final int lRow = lRegionVoxelIndex / lRowLength;
+				final int lX = lRegionVoxelIndex % lRowLength;
+				final int lY = (int) (pOffsetY + lRow % pRegionSizeY);
+				final int lZ = (int) (pOffsetZ + lRow / pRegionSizeY);
+				final int lRunLength = min(	lRowLength - lX,
+																		lByteBuffer.remaining() / lBytesPerVoxel);
+
+				final ByteBuffer lRun = lByteBuffer.duplicate()
+																						.order(ByteOrder.nativeOrder());
+				lRun.limit(lRun.position() + lRunLength * lBytesPerVoxel);
+				copyRun(lRun, (int) (pOffsetX + lX) + mWidth
+											* (lY + mHeight * lZ));
+
+				lByteBuffer.position(lByteBuffer.position() + lRunLength
+															* lBytesPerVoxel);
+				lRegionVoxelIndex += lRunLength;
+			}
+		}
+
+		notifyChange(	pOffsetX,
+									pOffsetY,
+									pOffsetZ,
+									pRegionSizeX,
+									pRegionSizeY,
+									pRegionSizeZ);
+	}
+
+	private synchronized void notifyChange(	final long pOffsetX,
+																					final long pOffsetY,
+																					final long pOffsetZ,
+																					final long pSizeX,
+																					final long pSizeY,
+																					final long pSizeZ)
+	{
+		if (mChangedBox == null)
+		{
+			mChangedBox = new long[]
+			{ pOffsetX,
+				pOffsetY,
+				pOffsetZ,
+				pOffsetX + pSizeX,
+				pOffsetY + pSizeY,
+				pOffsetZ + pSizeZ };
+		}
+		else
+		{
+			mChangedBox[0] = min(mChangedBox[0], pOffsetX);
+			mChangedBox[1] = min(mChangedBox[1], pOffsetY);
+			mChangedBox[2] = min(mChangedBox[2], pOffsetZ);
+			mChangedBox[3] = max(mChangedBox[3], pOffsetX + pSizeX);
+			mChangedBox[4] = max(mChangedBox[4], pOffsetY + pSizeY);
+			mChangedBox[5] = max(mChangedBox[5], pOffsetZ + pSizeZ);
+		}
+	}
+
+	/**
+	 * Returns the min/max brick grid of this volume, bricks touched by copies
+	 * since the last call are recomputed first.
+	 *
+	 * @return min/max brick grid
+	 */
+	public synchronized MinMaxBrickGrid getMinMaxBrickGrid()
+	{
+		if (mMinMaxBrickGrid == null)
+		{
+			mMinMaxBrickGrid = new MinMaxBrickGrid(	mNativeType,
+																							mWidth,
+																							mHeight,
+																							mDepth);
+			mChangedBox = new long[]
+			{ 0, 0, 0, mWidth, mHeight, mDepth };
+		}
+
+		if (mChangedBox != null)
+		{
+			mMinMaxBrickGrid.compute(	this,
+																mChangedBox[0],
+																mChangedBox[1],
+																mChangedBox[2],
+																mChangedBox[3] - mChangedBox[0],
+																mChangedBox[4] - mChangedBox[1],
+																mChangedBox[5] - mChangedBox[2]);
+			mChangedBox = null;
+		}
+		return mMinMaxBrickGrid;
+	}
+
+	@Override
+	public void readRow(final int pY, final int pZ, final int[] pRow)
+	{
+		final int lOffset = mWidth * (pY + mHeight * pZ);
+		if (mCharData != null)
+			for (int x = 0; x < mWidth; x++)
+				pRow[x] = mCharData[lOffset + x];
+		else
+			for (int x = 0; x < mWidth; x++)
+				pRow[x] = mByteData[lOffset + x] & 0xFF;
+	}
+
+	/**
+	 * Copies the voxels of this volume into a direct byte buffer in native
+	 * order.
+	 *
+	 * @param pByteBuffer
+	 *          destination buffer
+	 */
+	public void copyTo(final ByteBuffer pByteBuffer)
+	{
+		pByteBuffer.clear();
+		if (mByteData != null)
+		{
+			pByteBuffer.put(mByteData);
+			if (mSignBit != 0)
+				for (int i = 0; i < mByteData.length; i++)
+					pByteBuffer.put(i, (byte) (mByteData[i] ^ mSignBit));
+		}
+		else
+		{
+			final CharBuffer lCharBuffer = pByteBuffer.order(ByteOrder.nativeOrder())
+																								.asCharBuffer();
+			lCharBuffer.put(mCharData);
+			if (mSignBit != 0)
+				for (int i = 0; i < mCharData.length; i++)
+					lCharBuffer.put(i, (char) (mCharData[i] ^ mSignBit));
+		}
+		pByteBuffer.rewind();
+	}
+
+	/**
+	 * Returns the normalized value of the voxel at the given integer
+	 * coordinates. Coordinates are clamped to the volume bounds.
+	 *
+	 * @param x
+	 *          x coordinate
+	 * @param y
+	 *          y coordinate
+	 * @param z
+	 *          z coordinate
+	 * @return normalized value in [0,1]
+	 */
+	public final float getVoxel(int x, int y, int z)
+	{
+		x = clampIndex(x, mWidth);
+		y = clampIndex(y, mHeight);
+		z = clampIndex(z, mDepth);
+		return read(x + mWidth * (y + mHeight * z));
+	}
+
+	/**
+	 * Samples the volume at the given normalized coordinates using trilinear
+	 * filtering and clamp-to-edge addressing.
+	 *
+	 * @param u
+	 *          normalized x coordinate
+	 * @param v
+	 *          normalized y coordinate
+	 * @param w
+	 *          normalized z coordinate
+	 * @return normalized interpolated value in [0,1]
+	 */
+	public final float sample(final float u, final float v, final float w)
+	{
+		final float lX = u * mWidth - 0.5f;
+		final float lY = v * mHeight - 0.5f;
+		final float lZ = w * mDepth - 0.5f;
+
+		final int lX0 = fastFloor(lX);
+		final int lY0 = fastFloor(lY);
+		final int lZ0 = fastFloor(lZ);
+
+		final float lA = lX - lX0;
+		final float lB = lY - lY0;
+		final float lC = lZ - lZ0;
+
+		// index offsets of the neighbouring voxels, clamped to the edges:
+		final int lPlane = mWidth * mHeight;
+		final int lBase = clampIndex(lX0, mWidth) + mWidth
+											* clampIndex(lY0, mHeight)
+											+ lPlane
+											* clampIndex(lZ0, mDepth);
+		final int lDx = (lX0 >= 0 && lX0 < mWidth - 1) ? 1 : 0;
+		final int lDy = (lY0 >= 0 && lY0 < mHeight - 1) ? mWidth : 0;
+		final int lDz = (lZ0 >= 0 && lZ0 < mDepth - 1) ? lPlane : 0;
+
+		final float v000, v100, v010, v110, v001, v101, v011, v111;
+		if (mCharData != null)
+		{
+			final char[] lData = mCharData;
+			v000 = lData[lBase];
+			v100 = lData[lBase + lDx];
+			v010 = lData[lBase + lDy];
+			v110 = lData[lBase + lDx + lDy];
+			v001 = lData[lBase + lDz];
+			v101 = lData[lBase + lDx + lDz];
+			v011 = lData[lBase + lDy + lDz];
+			v111 = lData[lBase + lDx + lDy + lDz];
+		}
+		else
+		{
+			final byte[] lData = mByteData;
+			v000 = lData[lBase] & 0xFF;
+			v100 = lData[lBase + lDx] & 0xFF;
+			v010 = lData[lBase + lDy] & 0xFF;
+			v110 = lData[lBase + lDx + lDy] & 0xFF;
+			v001 = lData[lBase + lDz] & 0xFF;
+			v101 = lData[lBase + lDx + lDz] & 0xFF;
+			v011 = lData[lBase + lDy + lDz] & 0xFF;
+			v111 = lData[lBase + lDx + lDy + lDz] & 0xFF;
+		}
+
+		final float v00 = v000 + lA * (v100 - v000);
+		final float v10 = v010 + lA * (v110 - v010);
+		final float v01 = v001 + lA * (v101 - v001);
+		final float v11 = v011 + lA * (v111 - v011);
+
+		final float v0 = v00 + lB * (v10 - v00);
+		final float v1 = v01 + lB * (v11 - v01);
+
+		return (v0 + lC * (v1 - v0)) * mNormalization;
+	}
+
+	private final float read(final int pIndex)
+	{
+		if (mCharData != null)
+			return mCharData[pIndex] * mNormalization;
+		else
+			return (mByteData[pIndex] & 0xFF) * mNormalization;
+	}
+
+	private static final int clampIndex(final int pIndex,
+																			final int pLength)
+	{
+		return max(0, min(pLength - 1, pIndex));
+	}
+
+	private static final int fastFloor(final float pValue)
+	{
+		final int lInt = (int) pValue;
+		return pValue < lInt ? lInt - 1 : lInt;
+	}
+
+	public NativeTypeEnum getNativeType()
+	{
+		return mNativeType;
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	public long getNumberOfVoxels()
+	{
+		return mNumberOfVoxels;
+	}
+
+	public long getSizeInBytes()
+	{
+		return mByteData != null ? mNumberOfVoxels : 2 * mNumberOfVoxels;
+	}
+
+}
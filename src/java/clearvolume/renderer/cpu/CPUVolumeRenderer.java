@@ -0,0 +1,441 @@
+package clearvolume.renderer.cpu;
+
+import static java.lang.Math.max;
+import static java.lang.Math.pow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+import clearvolume.renderer.VolumeDataRegion;
+import clearvolume.renderer.cleargl.ClearGLVolumeRenderer;
+import clearvolume.renderer.cleargl.overlay.o2d.BarGraphOverlay;
+import clearvolume.renderer.cleargl.overlay.o2d.HistogramOverlay;
+import clearvolume.renderer.metrics.MetricsRegistry;
+import clearvolume.renderer.processors.impl.JavaDeconvolutionLR;
+import clearvolume.renderer.processors.impl.JavaHistogram;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class CPUVolumeRenderer
+ *
+ * Software renderer that performs ray casting on the CPU using all available
+ * cores. The OpenGL window is only used to display the rendered textures, this
+ * renderer is thus usable on machines without OpenCL or CUDA capable devices.
+ *
+ */
+public class CPUVolumeRenderer extends ClearGLVolumeRenderer
+{
+	private CPURaycaster mCPURaycaster;
+
+	private final CPUVolumeData[] mCPUVolumeDatas;
+	private int[][] mRenderBuffers;
+	private ByteBuffer mTransferBuffer;
+
+	public CPUVolumeRenderer(	final String pWindowName,
+														final int pWindowWidth,
+														final int pWindowHeight)
+	{
+		this(	pWindowName,
+					pWindowWidth,
+					pWindowHeight,
+					NativeTypeEnum.UnsignedByte);
+	}
+
+	public CPUVolumeRenderer(	final String pWindowName,
+														final int pWindowWidth,
+														final int pWindowHeight,
+														final NativeTypeEnum pNativeTypeEnum)
+	{
+		this(	pWindowName,
+					pWindowWidth,
+					pWindowHeight,
+					pNativeTypeEnum,
+					768,
+					768);
+	}
+
+	public CPUVolumeRenderer(	final String pWindowName,
+														final int pWindowWidth,
+														final int pWindowHeight,
+														final NativeTypeEnum pNativeTypeEnum,
+														final int pMaxTextureWidth,
+														final int pMaxTextureHeight)
+	{
+		this(	pWindowName,
+					pWindowWidth,
+					pWindowHeight,
+					pNativeTypeEnum,
+					pMaxTextureWidth,
+					pMaxTextureHeight,
+					1,
+					false);
+	}
+
+	public CPUVolumeRenderer(	final String pWindowName,
+														final Integer pWindowWidth,
+														final Integer pWindowHeight,
+														final String pNativeTypeEnum,
+														final Integer pMaxTextureWidth,
+														final Integer pMaxTextureHeight,
+														final Integer pNumberOfRenderLayers,
+														final Boolean pUseInCanvas)
+	{
+		this(	pWindowName,
+					pWindowWidth,
+					pWindowHeight,
+					NativeTypeEnum.valueOf(pNativeTypeEnum),
+					pMaxTextureWidth,
+					pMaxTextureHeight,
+					pNumberOfRenderLayers,
+					pUseInCanvas);
+	}
+
+	public CPUVolumeRenderer(	final String pWindowName,
+														final Integer pWindowWidth,
+														final Integer pWindowHeight,
+														final NativeTypeEnum pNativeTypeEnum,
+														final Integer pMaxTextureWidth,
+														final Integer pMaxTextureHeight,
+														final Integer pNumberOfRenderLayers,
+														final Boolean pUseInCanvas)
+	{
+		super("[CPU] " + pWindowName,
+					pWindowWidth,
+					pWindowHeight,
+					pNativeTypeEnum,
+					pMaxTextureWidth,
+					pMaxTextureHeight,
+					pNumberOfRenderLayers,
+					pUseInCanvas);
+
+		mCPUVolumeDatas = new CPUVolumeData[pNumberOfRenderLayers];
+		mRenderBuffers = new int[pNumberOfRenderLayers][];
+
+		final JavaHistogram lHistoProcessor = new JavaHistogram();
+		addProcessor(lHistoProcessor);
+
+		final BarGraphOverlay lBarGraphOverlay = new HistogramOverlay(lHistoProcessor);
+		addOverlay(lBarGraphOverlay);
+
+		lBarGraphOverlay.setDisplayed(false);
+
+		addProcessor(new JavaDeconvolutionLR());
+	}
+
+	@Override
+	protected boolean initVolumeRenderer()
+	{
+		mCPURaycaster = new CPURaycaster();
+		return true;
+	}
+
+	@Override
+	protected void notifyChangeOfTextureDimensions()
+	{
+		final int lRenderBufferSize = getRenderHeight() * getRenderWidth();
+
+		for (int i = 0; i < getNumberOfRenderLayers(); i++)
+			mRenderBuffers[i] = new int[lRenderBufferSize];
+
+		mTransferBuffer = ByteBuffer.allocateDirect(4 * lRenderBufferSize)
+																.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Returns the host-side volume data for a given render layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @return volume data or null if none has been received yet.
+	 */
+	public CPUVolumeData getCPUVolumeData(final int pRenderLayerIndex)
+	{
+		return mCPUVolumeDatas[pRenderLayerIndex];
+	}
+
+	private void prepareVolumeData(	final int pRenderLayerIndex,
+																	final FragmentedMemoryInterface pVolumeDataBuffer)
+	{
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			final long lWidth = getVolumeSizeX();
+			final long lHeight = getVolumeSizeY();
+			final long lDepth = getVolumeSizeZ();
+
+			CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[pRenderLayerIndex];
+			if (lCPUVolumeData == null || !lCPUVolumeData.isCompatibleWith(	getNativeType(),
+																																			lWidth,
+																																			lHeight,
+																																			lDepth))
+			{
+				lCPUVolumeData = new CPUVolumeData(	getNativeType(),
+																						lWidth,
+																						lHeight,
+																						lDepth);
+				mCPUVolumeDatas[pRenderLayerIndex] = lCPUVolumeData;
+			}
+
+			final long lStartTime = System.nanoTime();
+			lCPUVolumeData.copyFrom(pVolumeDataBuffer);
+			mMetricsRegistry.recordUpload(	pRenderLayerIndex,
+																			pVolumeDataBuffer.getSizeInBytes(),
+																			System.nanoTime() - lStartTime);
+		}
+	}
+
+	@Override
+	public boolean isVolumeDataBufferRegionSupported()
+	{
+		return true;
+	}
+
+	@Override
+	protected boolean[] renderVolume(	final float[] pInvModelViewMatrix,
+																		final float[] pInvProjectionMatrix)
+	{
+		doCaptureBuffersIfNeeded();
+
+		final boolean[] lUpdated = new boolean[getNumberOfRenderLayers()];
+
+		lUpdated[0] = true;
+
+		boolean lAnyVolumeDataUpdated = false;
+
+		for (int lLayerIndex = 0; lLayerIndex < getNumberOfRenderLayers(); lLayerIndex++)
+		{
+			synchronized (getSetVolumeDataBufferLock(lLayerIndex))
+			{
+				final FragmentedMemoryInterface lVolumeDataBuffer = getVolumeDataBuffer(lLayerIndex);
+				final ArrayList<VolumeDataRegion> lVolumeDataRegions = pollVolumeDataRegions(lLayerIndex);
+
+				if (lVolumeDataBuffer != null)
+				{
+					clearVolumeDataBufferReference(lLayerIndex);
+
+					prepareVolumeData(lLayerIndex, lVolumeDataBuffer);
+					clearVolumeDimensionsChanged();
+				}
+
+				if (mCPUVolumeDatas[lLayerIndex] != null)
+					for (final VolumeDataRegion lVolumeDataRegion : lVolumeDataRegions)
+					{
+						final long lStartTime = System.nanoTime();
+						mCPUVolumeDatas[lLayerIndex].copyRegionFrom(lVolumeDataRegion);
+						mMetricsRegistry.recordUpload(lLayerIndex,
+																					lVolumeDataRegion.getDataBuffer()
+																														.getSizeInBytes(),
+																					System.nanoTime() - lStartTime);
+					}
+
+				if (lVolumeDataBuffer != null || !lVolumeDataRegions.isEmpty())
+				{
+					notifyCompletionOfDataBufferCopy(lLayerIndex);
+					lAnyVolumeDataUpdated |= true;
+					runProcessorHook(lLayerIndex);
+				}
+			}
+		}
+
+		if (lAnyVolumeDataUpdated || haveVolumeRenderingParametersChanged()
+				|| getAdaptiveLODController().isKernelRunNeeded())
+		{
+			for (int i = 0; i < getNumberOfRenderLayers(); i++)
+			{
+				if (mCPUVolumeDatas[i] != null)
+				{
+					final long lStartTime = System.nanoTime();
+					renderLayer(i, pInvModelViewMatrix, pInvProjectionMatrix);
+					mMetricsRegistry.recordLatency(	MetricsRegistry.layer(i, "render"),
+																					System.nanoTime() - lStartTime);
+					lUpdated[i] = true;
+				}
+			}
+		}
+
+		return lUpdated;
+	}
+
+	private void runProcessorHook(final int pRenderLayerIndex)
+	{
+		final CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[pRenderLayerIndex];
+		mProcessorScheduler.volumeArrived(mProcessorsMap.values(),
+																			getClass(),
+																			pRenderLayerIndex,
+																			lCPUVolumeData.getWidth(),
+																			lCPUVolumeData.getHeight(),
+																			lCPUVolumeData.getDepth(),
+																			new CPULayerData(lCPUVolumeData));
+	}
+
+	private void renderLayer(	final int pRenderLayerIndex,
+														final float[] pInvModelViewMatrix,
+														final float[] pInvProjectionMatrix)
+	{
+		final int[] lRenderBuffer = mRenderBuffers[pRenderLayerIndex];
+
+		if (isLayerVisible(pRenderLayerIndex))
+		{
+			final float[] lTransferFunctionArray = getTransferFunction(pRenderLayerIndex).getArray();
+
+			final int lMaxNumberSteps = getMaxSteps(pRenderLayerIndex);
+
+			final int lNumberOfPasses = getAdaptiveLODController().getNumberOfPasses();
+
+			final int lPassIndex = getAdaptiveLODController().getPassIndex();
+
+			int lMaxSteps = lMaxNumberSteps;
+			float lDithering = 0;
+			float lPhase = 0;
+			int lClear = 0;
+
+			mCPURaycaster.setEmptySpaceSkipping(isEmptySpaceSkipping());
+
+			switch (getRenderAlgorithm(pRenderLayerIndex))
+			{
+			case MaxProjection:
+				lMaxSteps = max(16, lMaxNumberSteps / lNumberOfPasses);
+				lDithering = getDithering(pRenderLayerIndex) * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses);
+				lPhase = getAdaptiveLODController().getPhase();
+				lClear = (lPassIndex == 0) ? 0 : 1;
+
+				mCPURaycaster.renderMaxProjection(lRenderBuffer,
+																					getRenderWidth(),
+																					getRenderHeight(),
+																					(float) getBrightness(pRenderLayerIndex),
+																					(float) getTransferRangeMin(pRenderLayerIndex),
+																					(float) getTransferRangeMax(pRenderLayerIndex),
+																					(float) getGamma(pRenderLayerIndex),
+																					lMaxSteps,
+																					lDithering,
+																					lPhase,
+																					lClear,
+																					lTransferFunctionArray,
+																					pInvProjectionMatrix,
+																					pInvModelViewMatrix,
+																					mCPUVolumeDatas[pRenderLayerIndex]);
+				break;
+			case IsoSurface:
+				lMaxSteps = max(16,
+												(lMaxNumberSteps * (1 + lPassIndex)) / (2 * lNumberOfPasses));
+				lDithering = (float) pow(	getDithering(pRenderLayerIndex) * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses),
+																	2);
+				lPhase = getAdaptiveLODController().getPhase();
+				lClear = (lPassIndex == lNumberOfPasses - 1) || (lPassIndex == 0)	? 0
+																																					: 1;
+
+				final float[] lLightVector = getLightVector();
+
+				mCPURaycaster.renderIsoSurface(	lRenderBuffer,
+																				getRenderWidth(),
+																				getRenderHeight(),
+																				(float) getBrightness(pRenderLayerIndex),
+																				(float) getTransferRangeMin(pRenderLayerIndex),
+																				(float) getTransferRangeMax(pRenderLayerIndex),
+																				(float) getGamma(pRenderLayerIndex),
+																				lMaxSteps,
+																				lDithering,
+																				lPhase,
+																				lClear,
+																				lLightVector[0],
+																				lLightVector[1],
+																				lLightVector[2],
+																				lTransferFunctionArray,
+																				pInvProjectionMatrix,
+																				pInvModelViewMatrix,
+																				mCPUVolumeDatas[pRenderLayerIndex]);
+				break;
+			case AlphaCompositing:
+				// compositing does not combine across passes, each pass refines the
+				// previous one with more steps:
+				lMaxSteps = max(16,
+												(lMaxNumberSteps * (1 + lPassIndex)) / lNumberOfPasses);
+				lDithering = getDithering(pRenderLayerIndex) * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses);
+				lPhase = 0;
+				lClear = 0;
+
+				mCPURaycaster.renderAlphaCompositing(	lRenderBuffer,
+																							getRenderWidth(),
+																							getRenderHeight(),
+																							(float) getBrightness(pRenderLayerIndex),
+																							(float) getTransferRangeMin(pRenderLayerIndex),
+																							(float) getTransferRangeMax(pRenderLayerIndex),
+																							(float) getGamma(pRenderLayerIndex),
+																							lMaxSteps,
+																							lDithering,
+																							lPhase,
+																							lClear,
+																							getEarlyRayTerminationOpacity(),
+																							lTransferFunctionArray,
+																							pInvProjectionMatrix,
+																							pInvModelViewMatrix,
+																							mCPUVolumeDatas[pRenderLayerIndex]);
+				break;
+			}
+		}
+		else
+		{
+			mCPURaycaster.clear(lRenderBuffer,
+													getRenderWidth(),
+													getRenderHeight());
+		}
+
+		mTransferBuffer.clear();
+		final IntBuffer lIntBuffer = mTransferBuffer.asIntBuffer();
+		lIntBuffer.put(lRenderBuffer);
+		copyBufferToTexture(pRenderLayerIndex, mTransferBuffer);
+	}
+
+	private void doCaptureBuffersIfNeeded()
+	{
+		if (mVolumeCaptureFlag)
+		{
+			final ByteBuffer[] lCaptureBuffers = new ByteBuffer[getNumberOfRenderLayers()];
+
+			for (int i = 0; i < getNumberOfRenderLayers(); i++)
+			{
+				synchronized (getSetVolumeDataBufferLock(i))
+				{
+					final CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[i];
+					if (lCPUVolumeData == null)
+						continue;
+
+					lCaptureBuffers[i] = ByteBuffer.allocateDirect((int) lCPUVolumeData.getSizeInBytes())
+																					.order(ByteOrder.nativeOrder());
+					lCPUVolumeData.copyTo(lCaptureBuffers[i]);
+				}
+			}
+
+			notifyVolumeCaptureListeners(	lCaptureBuffers,
+																		getNativeType(),
+																		getVolumeSizeX(),
+																		getVolumeSizeY(),
+																		getVolumeSizeZ(),
+																		getVoxelSizeX(),
+																		getVoxelSizeY(),
+																		getVoxelSizeZ());
+
+			mVolumeCaptureFlag = false;
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		mDisplayReentrantLock.lock();
+		try
+		{
+			super.close();
+			if (mCPURaycaster != null)
+				mCPURaycaster.close();
+		}
+		finally
+		{
+			if (mDisplayReentrantLock.isHeldByCurrentThread())
+				mDisplayReentrantLock.unlock();
+		}
+	}
+
+}
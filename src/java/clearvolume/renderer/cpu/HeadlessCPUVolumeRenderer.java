@@ -0,0 +1,584 @@
+package clearvolume.renderer.cpu;
+
+import static java.lang.Math.max;
+import static java.lang.Math.pow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.renderer.ClearVolumeRendererBase;
+import clearvolume.renderer.HeadlessVolumeRendererInterface;
+import clearvolume.renderer.VolumeDataRegion;
+import clearvolume.renderer.cleargl.overlay.Overlay;
+import clearvolume.renderer.metrics.MetricsRegistry;
+
+import com.jogamp.newt.awt.NewtCanvasAWT;
+import com.jogamp.opengl.math.FloatUtil;
+import com.jogamp.opengl.math.Quaternion;
+
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class HeadlessCPUVolumeRenderer
+ *
+ * Offscreen renderer that ray casts on the CPU and writes RGBA frames into
+ * caller-supplied byte buffers. No window, Swing component or OpenGL context
+ * is ever created, this renderer can thus be used on headless servers, for
+ * example to produce preview thumbnails and movies.
+ *
+ * Volume data is copied synchronously when set, so that a single upload can
+ * feed any number of frames. Layers are composited with a per-channel maximum,
+ * as done by the interactive renderers.
+ *
+ */
+public class HeadlessCPUVolumeRenderer extends ClearVolumeRendererBase	implements
+																																		HeadlessVolumeRendererInterface
+{
+	private final String mName;
+	private volatile int mRenderWidth, mRenderHeight;
+
+	private final CPURaycaster mCPURaycaster;
+	private final CPUVolumeData[] mCPUVolumeDatas;
+	private int[] mLayerBuffer;
+	private int[] mCompositeBuffer;
+
+	private final float mLightVector[] = new float[]
+	{ -1.f, 1.f, 1.f };
+
+	public HeadlessCPUVolumeRenderer(	final int pRenderWidth,
+																		final int pRenderHeight)
+	{
+		this(	"ClearVolume",
+					pRenderWidth,
+					pRenderHeight,
+					NativeTypeEnum.UnsignedByte,
+					1);
+	}
+
+	public HeadlessCPUVolumeRenderer(	final String pName,
+																		final int pRenderWidth,
+																		final int pRenderHeight,
+																		final NativeTypeEnum pNativeTypeEnum,
+																		final int pNumberOfRenderLayers)
+	{
+		super(pNumberOfRenderLayers);
+		mName = pName;
+		setNumberOfRenderLayers(pNumberOfRenderLayers);
+		resetBrightnessAndGammaAndTransferFunctionRanges();
+		resetRotationTranslation();
+		setNativeType(pNativeTypeEnum);
+
+		mCPURaycaster = new CPURaycaster();
+		mCPUVolumeDatas = new CPUVolumeData[pNumberOfRenderLayers];
+		setRenderSize(pRenderWidth, pRenderHeight);
+	}
+
+	@Override
+	public int getRenderWidth()
+	{
+		return mRenderWidth;
+	}
+
+	@Override
+	public int getRenderHeight()
+	{
+		return mRenderHeight;
+	}
+
+	@Override
+	public void setRenderSize(final int pRenderWidth,
+														final int pRenderHeight)
+	{
+		getDisplayLock().lock();
+		try
+		{
+			mRenderWidth = pRenderWidth;
+			mRenderHeight = pRenderHeight;
+			mLayerBuffer = new int[pRenderWidth * pRenderHeight];
+			mCompositeBuffer = new int[pRenderWidth * pRenderHeight];
+		}
+		finally
+		{
+			if (getDisplayLock().isHeldByCurrentThread())
+				getDisplayLock().unlock();
+		}
+	}
+
+	public float[] getLightVector()
+	{
+		return mLightVector;
+	}
+
+	public void setLightVector(final float[] pLight)
+	{
+		mLightVector[0] = pLight[0];
+		mLightVector[1] = pLight[1];
+		mLightVector[2] = pLight[2];
+		notifyChangeOfVolumeRenderingParameters();
+	}
+
+	/**
+	 * Returns the host-side volume data for a given render layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @return volume data or null if none has been received yet.
+	 */
+	public CPUVolumeData getCPUVolumeData(final int pRenderLayerIndex)
+	{
+		return mCPUVolumeDatas[pRenderLayerIndex];
+	}
+
+	/**
+	 * There is no render loop to pick up the volume data, so it is copied right
+	 * away and this method returns once the copy is done.
+	 */
+	@Override
+	public boolean setVolumeDataBuffer(	final long pTimeOut,
+																			final TimeUnit pTimeUnit,
+																			final int pRenderLayerIndex,
+																			final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																			final long pVolumeSizeX,
+																			final long pVolumeSizeY,
+																			final long pVolumeSizeZ,
+																			final double pVoxelSizeX,
+																			final double pVoxelSizeY,
+																			final double pVoxelSizeZ)
+	{
+		super.setVolumeDataBuffer(0,
+															pTimeUnit,
+															pRenderLayerIndex,
+															pFragmentedMemoryInterface,
+															pVolumeSizeX,
+															pVolumeSizeY,
+															pVolumeSizeZ,
+															pVoxelSizeX,
+															pVoxelSizeY,
+															pVoxelSizeZ);
+
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			final FragmentedMemoryInterface lVolumeDataBuffer = getVolumeDataBuffer(pRenderLayerIndex);
+			if (lVolumeDataBuffer != null)
+			{
+				clearVolumeDataBufferReference(pRenderLayerIndex);
+				prepareVolumeData(pRenderLayerIndex, lVolumeDataBuffer);
+				clearVolumeDimensionsChanged();
+				notifyCompletionOfDataBufferCopy(pRenderLayerIndex);
+				runProcessorHook(pRenderLayerIndex);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * As for whole volumes, regions are copied right away.
+	 */
+	@Override
+	public boolean setVolumeDataBufferRegion(	final long pTimeOut,
+																						final TimeUnit pTimeUnit,
+																						final int pRenderLayerIndex,
+																						final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																						final long pOffsetX,
+																						final long pOffsetY,
+																						final long pOffsetZ,
+																						final long pRegionSizeX,
+																						final long pRegionSizeY,
+																						final long pRegionSizeZ)
+	{
+		super.setVolumeDataBufferRegion(0,
+																		pTimeUnit,
+																		pRenderLayerIndex,
+																		pFragmentedMemoryInterface,
+																		pOffsetX,
+																		pOffsetY,
+																		pOffsetZ,
+																		pRegionSizeX,
+																		pRegionSizeY,
+																		pRegionSizeZ);
+
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			final CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[pRenderLayerIndex];
+			final ArrayList<VolumeDataRegion> lVolumeDataRegions = pollVolumeDataRegions(pRenderLayerIndex);
+			if (lCPUVolumeData != null && !lVolumeDataRegions.isEmpty())
+			{
+				for (final VolumeDataRegion lVolumeDataRegion : lVolumeDataRegions)
+				{
+					final long lStartTime = System.nanoTime();
+					lCPUVolumeData.copyRegionFrom(lVolumeDataRegion);
+					mMetricsRegistry.recordUpload(pRenderLayerIndex,
+																				lVolumeDataRegion.getDataBuffer()
+																													.getSizeInBytes(),
+																				System.nanoTime() - lStartTime);
+				}
+				notifyCompletionOfDataBufferCopy(pRenderLayerIndex);
+				runProcessorHook(pRenderLayerIndex);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isVolumeDataBufferRegionSupported()
+	{
+		return true;
+	}
+
+	private void runProcessorHook(final int pRenderLayerIndex)
+	{
+		final CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[pRenderLayerIndex];
+		mProcessorScheduler.volumeArrived(mProcessorsMap.values(),
+																			getClass(),
+																			pRenderLayerIndex,
+																			lCPUVolumeData.getWidth(),
+																			lCPUVolumeData.getHeight(),
+																			lCPUVolumeData.getDepth(),
+																			new CPULayerData(lCPUVolumeData));
+	}
+
+	private void prepareVolumeData(	final int pRenderLayerIndex,
+																	final FragmentedMemoryInterface pVolumeDataBuffer)
+	{
+		final long lWidth = getVolumeSizeX();
+		final long lHeight = getVolumeSizeY();
+		final long lDepth = getVolumeSizeZ();
+
+		CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[pRenderLayerIndex];
+		if (lCPUVolumeData == null || !lCPUVolumeData.isCompatibleWith(	getNativeType(),
+																																		lWidth,
+																																		lHeight,
+																																		lDepth))
+		{
+			lCPUVolumeData = new CPUVolumeData(	getNativeType(),
+																					lWidth,
+																					lHeight,
+																					lDepth);
+			mCPUVolumeDatas[pRenderLayerIndex] = lCPUVolumeData;
+		}
+
+		final long lStartTime = System.nanoTime();
+		lCPUVolumeData.copyFrom(pVolumeDataBuffer);
+		mMetricsRegistry.recordUpload(	pRenderLayerIndex,
+																		pVolumeDataBuffer.getSizeInBytes(),
+																		System.nanoTime() - lStartTime);
+	}
+
+	@Override
+	public float[] getModelViewMatrix(final Quaternion pRotation)
+	{
+		final double lScaleX = getVolumeSizeX() * getVoxelSizeX();
+		final double lScaleY = getVolumeSizeY() * getVoxelSizeY();
+		final double lScaleZ = getVolumeSizeZ() * getVoxelSizeZ();
+
+		final double lMaxScale = max(max(lScaleX, lScaleY), lScaleZ);
+
+		final float[] lModelViewMatrix = FloatUtil.makeTranslation(	new float[16],
+																																true,
+																																getTranslationX(),
+																																getTranslationY(),
+																																getTranslationZ());
+
+		FloatUtil.multMatrix(	lModelViewMatrix,
+													pRotation.toMatrix(new float[16], 0));
+
+		if (lMaxScale > 0)
+			FloatUtil.multMatrix(	lModelViewMatrix,
+														FloatUtil.makeScale(new float[16],
+																								true,
+																								(float) (lScaleX / lMaxScale),
+																								(float) (lScaleY / lMaxScale),
+																								(float) (lScaleZ / lMaxScale)));
+
+		return lModelViewMatrix;
+	}
+
+	@Override
+	public void render(final ByteBuffer pRGBAByteBuffer)
+	{
+		render(getModelViewMatrix(getQuaternion()), pRGBAByteBuffer);
+	}
+
+	@Override
+	public void render(	final float[] pModelViewMatrix,
+											final ByteBuffer pRGBAByteBuffer)
+	{
+		render(new float[][]
+		{ pModelViewMatrix }, new ByteBuffer[]
+		{ pRGBAByteBuffer });
+	}
+
+	@Override
+	public void render(	final float[][] pModelViewMatrices,
+											final ByteBuffer[] pRGBAByteBuffers)
+	{
+		if (pModelViewMatrices.length != pRGBAByteBuffers.length)
+			throw new IllegalArgumentException("Number of model-view matrices and of frame buffers differ");
+
+		getDisplayLock().lock();
+		try
+		{
+			final float[] lInvProjectionMatrix = getInverseTransposed(FloatUtil.makePerspective(new float[16],
+																																													0,
+																																													true,
+																																													getFOV(),
+																																													1,
+																																													.1f,
+																																													1000));
+
+			for (int i = 0; i < pModelViewMatrices.length; i++)
+			{
+				final ByteBuffer lRGBAByteBuffer = pRGBAByteBuffers[i];
+				if (lRGBAByteBuffer.capacity() < 4L * mRenderWidth
+																					* mRenderHeight)
+					throw new IllegalArgumentException("Frame buffer too small, needs " + 4L
+																									* mRenderWidth
+																									* mRenderHeight
+																									+ " bytes");
+
+				final float[] lInvModelViewMatrix = getInverseTransposed(pModelViewMatrices[i]);
+
+				renderFrame(lInvModelViewMatrix, lInvProjectionMatrix);
+
+				// pixels are packed as ABGR integers, little endian order gives RGBA:
+				final ByteBuffer lDuplicate = lRGBAByteBuffer.duplicate();
+				lDuplicate.clear();
+				lDuplicate.order(ByteOrder.LITTLE_ENDIAN)
+									.asIntBuffer()
+									.put(	mCompositeBuffer,
+												0,
+												mRenderWidth * mRenderHeight);
+			}
+
+			clearChangeOfVolumeParametersFlag();
+		}
+		finally
+		{
+			if (getDisplayLock().isHeldByCurrentThread())
+				getDisplayLock().unlock();
+		}
+	}
+
+	private static float[] getInverseTransposed(final float[] pMatrix)
+	{
+		final float[] lInverse = FloatUtil.invertMatrix(pMatrix,
+																										new float[16]);
+		if (lInverse == null)
+			throw new IllegalArgumentException("Matrix is not invertible");
+		return FloatUtil.transposeMatrix(lInverse, new float[16]);
+	}
+
+	private void renderFrame(	final float[] pInvModelViewMatrix,
+														final float[] pInvProjectionMatrix)
+	{
+		final int lLength = mRenderWidth * mRenderHeight;
+		mCPURaycaster.clear(mCompositeBuffer, mRenderWidth, mRenderHeight);
+
+		for (int lLayerIndex = 0; lLayerIndex < getNumberOfRenderLayers(); lLayerIndex++)
+		{
+			synchronized (getSetVolumeDataBufferLock(lLayerIndex))
+			{
+				final CPUVolumeData lCPUVolumeData = mCPUVolumeDatas[lLayerIndex];
+				if (lCPUVolumeData == null || !isLayerVisible(lLayerIndex))
+					continue;
+
+				final long lStartTime = System.nanoTime();
+				renderLayer(lLayerIndex,
+										lCPUVolumeData,
+										pInvModelViewMatrix,
+										pInvProjectionMatrix);
+				mMetricsRegistry.recordLatency(	MetricsRegistry.layer(lLayerIndex,
+																															"render"),
+																				System.nanoTime() - lStartTime);
+
+				for (int i = 0; i < lLength; i++)
+					mCompositeBuffer[i] = maxPerChannel(mCompositeBuffer[i],
+																							mLayerBuffer[i]);
+			}
+		}
+	}
+
+	private void renderLayer(	final int pRenderLayerIndex,
+														final CPUVolumeData pCPUVolumeData,
+														final float[] pInvModelViewMatrix,
+														final float[] pInvProjectionMatrix)
+	{
+		// Single full quality pass, equivalent to the first pass of the adaptive
+		// LOD scheme with the full number of steps:
+		final float[] lTransferFunctionArray = getTransferFunction(pRenderLayerIndex).getArray();
+		final int lMaxSteps = max(16, getMaxSteps(pRenderLayerIndex));
+
+		mCPURaycaster.setEmptySpaceSkipping(isEmptySpaceSkipping());
+
+		switch (getRenderAlgorithm(pRenderLayerIndex))
+		{
+		case MaxProjection:
+			mCPURaycaster.renderMaxProjection(mLayerBuffer,
+																				mRenderWidth,
+																				mRenderHeight,
+																				(float) getBrightness(pRenderLayerIndex),
+																				(float) getTransferRangeMin(pRenderLayerIndex),
+																				(float) getTransferRangeMax(pRenderLayerIndex),
+																				(float) getGamma(pRenderLayerIndex),
+																				lMaxSteps,
+																				getDithering(pRenderLayerIndex),
+																				0,
+																				0,
+																				lTransferFunctionArray,
+																				pInvProjectionMatrix,
+																				pInvModelViewMatrix,
+																				pCPUVolumeData);
+			break;
+		case IsoSurface:
+			mCPURaycaster.renderIsoSurface(	mLayerBuffer,
+																			mRenderWidth,
+																			mRenderHeight,
+																			(float) getBrightness(pRenderLayerIndex),
+																			(float) getTransferRangeMin(pRenderLayerIndex),
+																			(float) getTransferRangeMax(pRenderLayerIndex),
+																			(float) getGamma(pRenderLayerIndex),
+																			lMaxSteps,
+																			(float) pow(getDithering(pRenderLayerIndex),
+																									2),
+																			0,
+																			0,
+																			mLightVector[0],
+																			mLightVector[1],
+																			mLightVector[2],
+																			lTransferFunctionArray,
+																			pInvProjectionMatrix,
+																			pInvModelViewMatrix,
+																			pCPUVolumeData);
+			break;
+		case AlphaCompositing:
+			mCPURaycaster.renderAlphaCompositing(	mLayerBuffer,
+																						mRenderWidth,
+																						mRenderHeight,
+																						(float) getBrightness(pRenderLayerIndex),
+																						(float) getTransferRangeMin(pRenderLayerIndex),
+																						(float) getTransferRangeMax(pRenderLayerIndex),
+																						(float) getGamma(pRenderLayerIndex),
+																						lMaxSteps,
+																						getDithering(pRenderLayerIndex),
+																						0,
+																						0,
+																						getEarlyRayTerminationOpacity(),
+																						lTransferFunctionArray,
+																						pInvProjectionMatrix,
+																						pInvModelViewMatrix,
+																						pCPUVolumeData);
+			break;
+		}
+	}
+
+	private static int maxPerChannel(final int pA, final int pB)
+	{
+		int lResult = 0;
+		for (int lShift = 0; lShift < 32; lShift += 8)
+			lResult |= max((pA >>> lShift) & 0xFF, (pB >>> lShift) & 0xFF) << lShift;
+		return lResult;
+	}
+
+	@Override
+	public void requestDisplay()
+	{
+	}
+
+	@Override
+	public void setVisible(final boolean pVisible)
+	{
+	}
+
+	@Override
+	public boolean isShowing()
+	{
+		return false;
+	}
+
+	@Override
+	public String getWindowName()
+	{
+		return mName;
+	}
+
+	@Override
+	public int getWindowWidth()
+	{
+		return mRenderWidth;
+	}
+
+	@Override
+	public int getWindowHeight()
+	{
+		return mRenderHeight;
+	}
+
+	@Override
+	public boolean isFullScreen()
+	{
+		return false;
+	}
+
+	@Override
+	public void toggleFullScreen()
+	{
+	}
+
+	@Override
+	public void toggleBoxDisplay()
+	{
+	}
+
+	@Override
+	public void toggleRecording()
+	{
+	}
+
+	@Override
+	public void toggleControlPanelDisplay()
+	{
+	}
+
+	@Override
+	public void disableClose()
+	{
+	}
+
+	@Override
+	public void addOverlay(final Overlay pOverlay)
+	{
+	}
+
+	@Override
+	public Collection<Overlay> getOverlays()
+	{
+		return new ArrayList<Overlay>();
+	}
+
+	@Override
+	public NewtCanvasAWT getNewtCanvasAWT()
+	{
+		return null;
+	}
+
+	@Override
+	public void close()
+	{
+		mDisplayReentrantLock.lock();
+		try
+		{
+			super.close();
+			mCPURaycaster.close();
+		}
+		finally
+		{
+			if (mDisplayReentrantLock.isHeldByCurrentThread())
+				mDisplayReentrantLock.unlock();
+		}
+	}
+
+}
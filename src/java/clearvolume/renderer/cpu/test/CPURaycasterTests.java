@@ -0,0 +1,433 @@
+package clearvolume.renderer.cpu.test;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import clearvolume.renderer.cpu.CPURaycaster;
+import clearvolume.renderer.cpu.CPUVolumeData;
+import coremem.types.NativeTypeEnum;
+
+public class CPURaycasterTests
+{
+	private static final float[] cIdentity = new float[]
+	{ 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+
+	private static final float[] cGrayRamp = new float[]
+	{ 0, 0, 0, 0, 1, 1, 1, 1 };
+
+	@Test
+	public void testSampling()
+	{
+		final CPUVolumeData lVolumeData = new CPUVolumeData(NativeTypeEnum.UnsignedShort,
+																												4,
+																												4,
+																												4);
+
+		final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(2 * 64)
+																							.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < 64; i++)
+			lByteBuffer.putShort((short) (i % 4 == 0 ? 65535 : 0));
+		lByteBuffer.rewind();
+		lVolumeData.copyFrom(lByteBuffer, 0);
+
+		assertEquals(1.0f, lVolumeData.getVoxel(0, 1, 2), 1e-6f);
+		assertEquals(0.0f, lVolumeData.getVoxel(1, 1, 2), 1e-6f);
+
+		// center of first voxel and half way between first and second voxel:
+		assertEquals(1.0f, lVolumeData.sample(0.125f, 0.5f, 0.5f), 1e-6f);
+		assertEquals(0.5f, lVolumeData.sample(0.25f, 0.5f, 0.5f), 1e-6f);
+
+		// clamp to edge:
+		assertEquals(1.0f, lVolumeData.sample(-1.0f, 0.5f, 0.5f), 1e-6f);
+	}
+
+	@Test
+	public void testSignedSampling()
+	{
+		final CPUVolumeData lByteVolumeData = new CPUVolumeData(NativeTypeEnum.Byte,
+																														2,
+																														1,
+																														1);
+		final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(2)
+																							.order(ByteOrder.nativeOrder());
+		lByteBuffer.put((byte) -128).put((byte) 127);
+		lByteBuffer.rewind();
+		lByteVolumeData.copyFrom(lByteBuffer, 0);
+
+		// negative voxels are darker than positive ones, not brighter:
+		assertEquals(0.0f, lByteVolumeData.getVoxel(0, 0, 0), 1e-6f);
+		assertEquals(1.0f, lByteVolumeData.getVoxel(1, 0, 0), 1e-6f);
+		assertEquals(0.5f, lByteVolumeData.sample(0.5f, 0.5f, 0.5f), 1e-6f);
+
+		final CPUVolumeData lShortVolumeData = new CPUVolumeData(	NativeTypeEnum.Short,
+																															4,
+																															1,
+																															1);
+		final ByteBuffer lShortBuffer = ByteBuffer.allocateDirect(2 * 4)
+																							.order(ByteOrder.nativeOrder());
+		lShortBuffer.putShort((short) -32768)
+								.putShort((short) -1)
+								.putShort((short) 0)
+								.putShort((short) 32767);
+		lShortBuffer.rewind();
+		lShortVolumeData.copyFrom(lShortBuffer, 0);
+
+		assertEquals(0.0f, lShortVolumeData.getVoxel(0, 0, 0), 1e-6f);
+		assertEquals(32767.0f / 65535, lShortVolumeData.getVoxel(1, 0, 0), 1e-6f);
+		assertEquals(32768.0f / 65535, lShortVolumeData.getVoxel(2, 0, 0), 1e-6f);
+		assertEquals(1.0f, lShortVolumeData.getVoxel(3, 0, 0), 1e-6f);
+
+		// the brick grid sees the darkest and brightest voxels:
+		assertEquals(	0.0f,
+									lShortVolumeData.getMinMaxBrickGrid().getMinimum(0, 0, 0),
+									1e-6f);
+		assertEquals(	1.0f,
+									lShortVolumeData.getMinMaxBrickGrid().getMaximum(0, 0, 0),
+									1e-6f);
+
+		// voxels are handed back with their sign:
+		final ByteBuffer lCopy = ByteBuffer.allocateDirect(2 * 4)
+																				.order(ByteOrder.nativeOrder());
+		lShortVolumeData.copyTo(lCopy);
+		assertEquals(-32768, lCopy.getShort(0));
+		assertEquals(-1, lCopy.getShort(2));
+		assertEquals(0, lCopy.getShort(4));
+		assertEquals(32767, lCopy.getShort(6));
+	}
+
+	@Test
+	public void testMaxProjection()
+	{
+		final int lSize = 32;
+		final CPUVolumeData lVolumeData = new CPUVolumeData(NativeTypeEnum.UnsignedByte,
+																												lSize,
+																												lSize,
+																												lSize);
+
+		final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(lSize * lSize
+																															* lSize);
+		// single bright voxel plane in the middle of the volume:
+		for (int z = 0; z < lSize; z++)
+			for (int y = 0; y < lSize; y++)
+				for (int x = 0; x < lSize; x++)
+					lByteBuffer.put((byte) (z == lSize / 2 ? 255 : 0));
+		lByteBuffer.rewind();
+		lVolumeData.copyFrom(lByteBuffer, 0);
+
+		final int lImageSize = 64;
+		final int[] lOutput = new int[lImageSize * lImageSize];
+
+		final CPURaycaster lCPURaycaster = new CPURaycaster(2);
+		try
+		{
+			lCPURaycaster.renderMaxProjection(lOutput,
+																				lImageSize,
+																				lImageSize,
+																				1,
+																				0,
+																				1,
+																				1,
+																				4 * lSize,
+																				0,
+																				0,
+																				0,
+																				cGrayRamp,
+																				cIdentity,
+																				cIdentity,
+																				lVolumeData);
+		}
+		finally
+		{
+			lCPURaycaster.close();
+		}
+
+		// orthographic rays along z go through the bright plane:
+		final int lCenter = lOutput[lImageSize / 2 + lImageSize * lImageSize
+																/ 2];
+		assertTrue((lCenter & 0xFF) > 200);
+		assertTrue(((lCenter >>> 24) & 0xFF) > 200);
+
+		// rays along the image border graze the box and miss it:
+		assertEquals(0, lOutput[0]);
+	}
+
+	@Test
+	public void testEmptySpaceSkipping()
+	{
+		final int lSize = 48;
+		final CPUVolumeData lVolumeData = new CPUVolumeData(NativeTypeEnum.UnsignedByte,
+																												lSize,
+																												lSize,
+																												lSize);
+
+		// two bright blobs and a dim background:
+		final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(lSize * lSize
+																															* lSize);
+		for (int z = 0; z < lSize; z++)
+			for (int y = 0; y < lSize; y++)
+				for (int x = 0; x < lSize; x++)
+				{
+					final boolean lBlob1 = abs(x - 10) < 4 && abs(y - 30) < 5
+																	&& abs(z - 20) < 3;
+					final boolean lBlob2 = abs(x - 33) < 6 && abs(y - 12) < 3
+																	&& abs(z - 37) < 5;
+					lByteBuffer.put((byte) (lBlob1 || lBlob2	? 200 + x
+																										: (x + y + z) % 8));
+				}
+		lByteBuffer.rewind();
+		lVolumeData.copyFrom(lByteBuffer, 0);
+
+		// oblique rays:
+		final double lA = 0.4, lB = 0.7;
+		final float[] lRotation = new float[]
+		{ (float) cos(lA),
+			0,
+			(float) sin(lA),
+			0,
+			(float) (sin(lB) * sin(lA)),
+			(float) cos(lB),
+			(float) (-sin(lB) * cos(lA)),
+			0,
+			(float) (-cos(lB) * sin(lA)),
+			(float) sin(lB),
+			(float) (cos(lB) * cos(lA)),
+			0,
+			0,
+			0,
+			0,
+			1 };
+
+		final int lImageSize = 48;
+		final CPURaycaster lCPURaycaster = new CPURaycaster(2);
+		try
+		{
+			for (int lIsoSurface = 0; lIsoSurface < 2; lIsoSurface++)
+			{
+				final int[][] lOutputs = new int[2][lImageSize * lImageSize];
+				for (int lSkipping = 0; lSkipping < 2; lSkipping++)
+				{
+					lCPURaycaster.setEmptySpaceSkipping(lSkipping == 1);
+					if (lIsoSurface == 1)
+						lCPURaycaster.renderIsoSurface(	lOutputs[lSkipping],
+																						lImageSize,
+																						lImageSize,
+																						1,
+																						0.1f,
+																						1,
+																						1,
+																						4 * lSize,
+																						0,
+																						0,
+																						0,
+																						-1,
+																						1,
+																						1,
+																						cGrayRamp,
+																						cIdentity,
+																						lRotation,
+																						lVolumeData);
+					else
+						lCPURaycaster.renderMaxProjection(lOutputs[lSkipping],
+																							lImageSize,
+																							lImageSize,
+																							1,
+																							0.1f,
+																							1,
+																							1,
+																							4 * lSize,
+																							0,
+																							0,
+																							0,
+																							cGrayRamp,
+																							cIdentity,
+																							lRotation,
+																							lVolumeData);
+				}
+
+				// skipping moves along rays by multiples of the step instead of
+				// accumulating steps, rounding may change channels by one:
+				int lNumberOfBrightPixels = 0;
+				for (int i = 0; i < lOutputs[0].length; i++)
+				{
+					for (int lShift = 0; lShift < 32; lShift += 8)
+					{
+						final int lWithout = (lOutputs[0][i] >>> lShift) & 0xFF;
+						final int lWith = (lOutputs[1][i] >>> lShift) & 0xFF;
+						assertTrue(abs(lWithout - lWith) <= 1);
+					}
+					if ((lOutputs[1][i] >>> 24) > 0)
+						lNumberOfBrightPixels++;
+				}
+				assertTrue(lNumberOfBrightPixels > 0);
+			}
+		}
+		finally
+		{
+			lCPURaycaster.close();
+		}
+
+		// the dim background fills all bricks away from the blobs, which are
+		// thus empty for the range above:
+		assertTrue(lVolumeData.getMinMaxBrickGrid()
+													.getNumberOfEmptyBricks(0.1f) > 0);
+	}
+
+	@Test
+	public void testAlphaCompositing()
+	{
+		final int lSize = 32;
+		final CPUVolumeData lVolumeData = new CPUVolumeData(NativeTypeEnum.UnsignedByte,
+																												lSize,
+																												lSize,
+																												lSize);
+
+		// a mid gray plane in front of a bright plane:
+		final ByteBuffer lByteBuffer = ByteBuffer.allocateDirect(lSize * lSize
+																															* lSize);
+		for (int z = 0; z < lSize; z++)
+			for (int y = 0; y < lSize; y++)
+				for (int x = 0; x < lSize; x++)
+					lByteBuffer.put((byte) (z == 8 ? 128 : z == 24 ? 255 : 0));
+		lByteBuffer.rewind();
+		lVolumeData.copyFrom(lByteBuffer, 0);
+
+		// transparent to opaque red at mid range, to opaque green at the top:
+		final float[] lTransferFunction = new float[]
+		{ 0, 0, 0, 0, 1, 0, 0, 1, 0, 1, 0, 1 };
+
+		final int lImageSize = 32;
+		final int[][] lOutputs = new int[3][lImageSize * lImageSize];
+		final CPURaycaster lCPURaycaster = new CPURaycaster(2);
+		try
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				// early ray termination and empty space skipping, termination only,
+				// and neither:
+				lCPURaycaster.setEmptySpaceSkipping(i == 0);
+				lCPURaycaster.renderAlphaCompositing(	lOutputs[i],
+																							lImageSize,
+																							lImageSize,
+																							1,
+																							0,
+																							1,
+																							1,
+																							4 * lSize,
+																							0,
+																							0,
+																							0,
+																							i < 2 ? 0.99f : 1.0f,
+																							lTransferFunction,
+																							cIdentity,
+																							cIdentity,
+																							lVolumeData);
+			}
+		}
+		finally
+		{
+			lCPURaycaster.close();
+		}
+
+		// the front plane is opaque and hides the back plane:
+		final int lCenter = lOutputs[0][lImageSize / 2 + lImageSize
+																		* lImageSize
+																		/ 2];
+		assertTrue((lCenter & 0xFF) > 200);
+		assertTrue(((lCenter >>> 8) & 0xFF) < 10);
+		assertTrue(((lCenter >>> 24) & 0xFF) > 200);
+
+		// stopping rays at 99% opacity changes channels by at most 1% of their
+		// range, skipping does not change them:
+		for (int i = 0; i < lOutputs[0].length; i++)
+			for (int lShift = 0; lShift < 32; lShift += 8)
+			{
+				final int lSkipping = (lOutputs[0][i] >>> lShift) & 0xFF;
+				final int lTerminating = (lOutputs[1][i] >>> lShift) & 0xFF;
+				final int lFull = (lOutputs[2][i] >>> lShift) & 0xFF;
+				assertTrue(abs(lSkipping - lTerminating) <= 1);
+				assertTrue(abs(lTerminating - lFull) <= 3);
+			}
+	}
+
+	@Test
+	public void testEmptyVolume()
+	{
+		final int lSize = 16;
+		final CPUVolumeData lVolumeData = new CPUVolumeData(NativeTypeEnum.UnsignedShort,
+																												lSize,
+																												lSize,
+																												lSize);
+
+		final int lImageSize = 32;
+		final int[] lOutput = new int[lImageSize * lImageSize];
+		final CPURaycaster lCPURaycaster = new CPURaycaster(2);
+		try
+		{
+			lCPURaycaster.renderIsoSurface(	lOutput,
+																			lImageSize,
+																			lImageSize,
+																			1,
+																			0,
+																			1,
+																			1,
+																			4 * lSize,
+																			0,
+																			0,
+																			0,
+																			-1,
+																			1,
+																			1,
+																			cGrayRamp,
+																			cIdentity,
+																			cIdentity,
+																			lVolumeData);
+		}
+		finally
+		{
+			lCPURaycaster.close();
+		}
+
+		for (final int lPixel : lOutput)
+			assertEquals(0, lPixel);
+	}
+
+	@Test
+	public void testSamplingScheduleMatchesKernel() throws IOException
+	{
+		// loop unrolling length of the OpenCL kernels:
+		int lLoopUnroll = 0;
+		try (final BufferedReader lReader = new BufferedReader(new InputStreamReader(CPURaycasterTests.class.getResourceAsStream("/clearvolume/renderer/opencl/kernels/VolumeRender.cl"))))
+		{
+			String lLine;
+			while ((lLine = lReader.readLine()) != null)
+				if (lLine.startsWith("#define LOOPUNROLL"))
+					lLoopUnroll = Integer.parseInt(lLine.substring("#define LOOPUNROLL".length())
+																							.trim());
+		}
+		assertTrue(lLoopUnroll > 1);
+
+		// tstep = (tfar-tnear)/((maxsteps/LOOPUNROLL)*LOOPUNROLL) and
+		// nsteps = (maxsteps/LOOPUNROLL)*(LOOPUNROLL-1):
+		for (final int lMaxSteps : new int[]
+		{ lLoopUnroll, lLoopUnroll + 1, 100, 128, 1000, 1024 })
+		{
+			final int lUnrolledMaxSteps = lMaxSteps / lLoopUnroll;
+			assertEquals(	lUnrolledMaxSteps * lLoopUnroll,
+										CPURaycaster.getNumberOfStepIntervals(lMaxSteps));
+			assertEquals(	lUnrolledMaxSteps * (lLoopUnroll - 1),
+										CPURaycaster.getNumberOfSamples(lMaxSteps));
+		}
+	}
+
+}
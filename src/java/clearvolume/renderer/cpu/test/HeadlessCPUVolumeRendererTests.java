@@ -0,0 +1,279 @@
+package clearvolume.renderer.cpu.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.renderer.HeadlessVolumeRendererInterface;
+import clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer;
+import clearvolume.transferf.TransferFunctions;
+
+import com.jogamp.opengl.math.Quaternion;
+
+import coremem.fragmented.FragmentedMemory;
+import coremem.offheap.OffHeapMemory;
+import coremem.types.NativeTypeEnum;
+
+public class HeadlessCPUVolumeRendererTests
+{
+
+	@Test
+	public void testBatchRendering()
+	{
+		final int lSize = 32;
+		final int lImageSize = 64;
+
+		final HeadlessVolumeRendererInterface lRenderer = new HeadlessCPUVolumeRenderer(lImageSize,
+																																										lImageSize);
+		try
+		{
+			lRenderer.setTransferFunction(TransferFunctions.getGrayLevel());
+
+			// bright cube in the middle of the volume:
+			final ByteBuffer lVolume = ByteBuffer.allocateDirect(lSize * lSize
+																														* lSize);
+			for (int z = 0; z < lSize; z++)
+				for (int y = 0; y < lSize; y++)
+					for (int x = 0; x < lSize; x++)
+					{
+						final boolean lInside = x >= lSize / 4 && x < 3 * lSize / 4
+																		&& y >= lSize / 4
+																		&& y < 3 * lSize / 4
+																		&& z >= lSize / 4
+																		&& z < 3 * lSize / 4;
+						lVolume.put((byte) (lInside ? 255 : 0));
+					}
+			lVolume.rewind();
+
+			assertTrue(lRenderer.setVolumeDataBuffer(	0,
+																								lVolume,
+																								lSize,
+																								lSize,
+																								lSize));
+
+			final int lNumberOfFrames = 8;
+			final float[][] lModelViewMatrices = new float[lNumberOfFrames][];
+			final ByteBuffer[] lFrames = new ByteBuffer[lNumberOfFrames];
+			for (int i = 0; i < lNumberOfFrames; i++)
+			{
+				final Quaternion lRotation = new Quaternion().rotateByAngleY((float) (2 * Math.PI
+																																							* i / lNumberOfFrames));
+				lModelViewMatrices[i] = lRenderer.getModelViewMatrix(lRotation);
+				lFrames[i] = ByteBuffer.allocateDirect(4 * lImageSize
+																								* lImageSize);
+			}
+
+			lRenderer.render(lModelViewMatrices, lFrames);
+
+			for (final ByteBuffer lFrame : lFrames)
+			{
+				final int lCenter = 4 * (lImageSize / 2 + lImageSize
+																									* (lImageSize / 2));
+				// RGBA: red and alpha of the center pixel are bright,
+				assertTrue((lFrame.get(lCenter) & 0xFF) > 200);
+				assertTrue((lFrame.get(lCenter + 3) & 0xFF) > 200);
+				// corners are outside of the volume:
+				assertEquals(0, lFrame.getInt(0));
+			}
+		}
+		finally
+		{
+			lRenderer.close();
+		}
+	}
+
+	@Test
+	public void testVolumeDataBufferRegion()
+	{
+		volumeDataBufferRegion(new HeadlessCPUVolumeRenderer(16, 16));
+	}
+
+	@Test
+	public void testVolumeDataBufferRegionOnHostCopy()
+	{
+		// renderers that cannot update boxes of voxels patch a host copy:
+		volumeDataBufferRegion(new HeadlessCPUVolumeRenderer(16, 16)
+		{
+			@Override
+			public boolean isVolumeDataBufferRegionSupported()
+			{
+				return false;
+			}
+		});
+	}
+
+	private void volumeDataBufferRegion(final HeadlessCPUVolumeRenderer pRenderer)
+	{
+		final int lWidth = 8, lHeight = 6, lDepth = 5;
+
+		try
+		{
+			assertTrue(pRenderer.setVolumeDataBuffer(	0,
+																								ByteBuffer.allocateDirect(lWidth * lHeight
+																																					* lDepth),
+																								lWidth,
+																								lHeight,
+																								lDepth));
+
+			// a single plane:
+			final ByteBuffer lPlane = ByteBuffer.allocateDirect(lWidth * lHeight);
+			for (int i = 0; i < lWidth * lHeight; i++)
+				lPlane.put((byte) 100);
+			lPlane.rewind();
+			assertTrue(pRenderer.setVolumeDataBufferRegion(	0,
+																											lPlane,
+																											0,
+																											0,
+																											4,
+																											lWidth,
+																											lHeight,
+																											1));
+
+			// a box of 3x4x2 voxels in two fragments that split a row:
+			final FragmentedMemory lBox = new FragmentedMemory();
+			final OffHeapMemory lFirstFragment = OffHeapMemory.allocateBytes(5);
+			final OffHeapMemory lSecondFragment = OffHeapMemory.allocateBytes(19);
+			for (int i = 0; i < 24; i++)
+				if (i < 5)
+					lFirstFragment.setByte(i, (byte) (1 + i));
+				else
+					lSecondFragment.setByte(i - 5, (byte) (1 + i));
+			lBox.add(lFirstFragment);
+			lBox.add(lSecondFragment);
+			assertTrue(pRenderer.setVolumeDataBufferRegion(	1,
+																											TimeUnit.SECONDS,
+																											0,
+																											lBox,
+																											2,
+																											1,
+																											3,
+																											3,
+																											4,
+																											2));
+
+			final ByteBuffer lVoxels = ByteBuffer.allocateDirect(lWidth * lHeight
+																														* lDepth);
+			pRenderer.getCPUVolumeData(0).copyTo(lVoxels);
+
+			int lNumberOfNonZeroVoxels = 0;
+			for (int z = 0; z < lDepth; z++)
+				for (int y = 0; y < lHeight; y++)
+					for (int x = 0; x < lWidth; x++)
+					{
+						final int lValue = lVoxels.get(x + lWidth * (y + lHeight * z)) & 0xFF;
+						final boolean lInBox = x >= 2 && x < 5
+																		&& y >= 1
+																		&& y < 5
+																		&& z >= 3
+																		&& z < 5;
+						if (lInBox)
+							assertEquals(	1 + (x - 2) + 3 * ((y - 1) + 4 * (z - 3)),
+														lValue);
+						else if (z == 4)
+							assertEquals(100, lValue);
+						else
+							assertEquals(0, lValue);
+						if (lValue != 0)
+							lNumberOfNonZeroVoxels++;
+					}
+			assertEquals(lWidth * lHeight + 12, lNumberOfNonZeroVoxels);
+		}
+		finally
+		{
+			pRenderer.close();
+		}
+	}
+
+	@Test
+	public void testVolumeDataBufferRegionOutOfBounds()
+	{
+		final HeadlessCPUVolumeRenderer lRenderer = new HeadlessCPUVolumeRenderer(16,
+																																							16);
+		try
+		{
+			lRenderer.setVolumeDataBuffer(0, ByteBuffer.allocateDirect(64), 4, 4, 4);
+			lRenderer.setVolumeDataBufferRegion(0,
+																					ByteBuffer.allocateDirect(16),
+																					0,
+																					0,
+																					4,
+																					4,
+																					4,
+																					1);
+			fail();
+		}
+		catch (final IllegalArgumentException e)
+		{
+		}
+		finally
+		{
+			lRenderer.close();
+		}
+	}
+
+	@Test
+	public void testDownsampledVolume()
+	{
+		final int lSize = 32;
+
+		final HeadlessCPUVolumeRenderer lRenderer = new HeadlessCPUVolumeRenderer(16,
+																																							16);
+		try
+		{
+			// the volume takes 32KB, twice the limit:
+			lRenderer.setMaximalVolumeSizeInBytes(lSize * lSize * lSize / 2);
+
+			final ByteBuffer lVolume = ByteBuffer.allocateDirect(lSize * lSize
+																														* lSize);
+			lVolume.put(lSize * lSize * lSize - 1, (byte) 200);
+			assertTrue(lRenderer.setVolumeDataBuffer(	0,
+																								lVolume,
+																								lSize,
+																								lSize,
+																								lSize));
+
+			assertEquals(1, lRenderer.getVolumeDataLevel(0));
+			assertEquals(lSize / 2, lRenderer.getVolumeSizeX());
+			assertEquals(lSize / 2, lRenderer.getVolumeSizeZ());
+			assertEquals(2, lRenderer.getVoxelSizeX(), 0);
+
+			final ByteBuffer lVoxels = ByteBuffer.allocateDirect(lSize * lSize
+																														* lSize / 8);
+			lRenderer.getCPUVolumeData(0).copyTo(lVoxels);
+			assertEquals(200, lVoxels.get(lVoxels.capacity() - 1) & 0xFF);
+			assertEquals(0, lVoxels.get(0));
+		}
+		finally
+		{
+			lRenderer.close();
+		}
+	}
+
+	@Test
+	public void testFrameBufferTooSmall()
+	{
+		final HeadlessVolumeRendererInterface lRenderer = new HeadlessCPUVolumeRenderer("test",
+																																										16,
+																																										16,
+																																										NativeTypeEnum.UnsignedByte,
+																																										1);
+		try
+		{
+			lRenderer.render(ByteBuffer.allocateDirect(16));
+			fail();
+		}
+		catch (final IllegalArgumentException e)
+		{
+		}
+		finally
+		{
+			lRenderer.close();
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.Properties;
 
 import clearcuda.CudaAvailability;
 import clearvolume.renderer.ClearVolumeRendererInterface;
+import clearvolume.renderer.HeadlessVolumeRendererInterface;
 import clearvolume.renderer.opencl.OpenCLAvailability;
 import coremem.types.NativeTypeEnum;
 
@@ -213,15 +214,16 @@ public class ClearVolumeRendererFactory
 
 			if (lProperties.getProperty("ClearVolume.disableOpenCL") == null)
 			{
-				final ClearVolumeRendererInterface lNewOpenCLRenderer = internalCreateOpenCLRenderer(	pWindowName,
-																																														pWindowWidth,
-																																														pWindowHeight,
-																																														pNativeTypeEnum,
-																																														pMaxTextureWidth,
-																																														pMaxTextureHeight,
-																																														pNumberOfRenderLayers,
-																																														pUseInCanvas);
-				return lNewOpenCLRenderer;
+				final ClearVolumeRendererInterface lNewOpenCLRenderer = newOpenCLRenderer(pWindowName,
+																																									pWindowWidth,
+																																									pWindowHeight,
+																																									pNativeTypeEnum,
+																																									pMaxTextureWidth,
+																																									pMaxTextureHeight,
+																																									pNumberOfRenderLayers,
+																																									pUseInCanvas);
+				if (lNewOpenCLRenderer != null)
+					return lNewOpenCLRenderer;
 			}
 			else
 			{
@@ -230,14 +232,14 @@ public class ClearVolumeRendererFactory
 
 			if (lProperties.getProperty("ClearVolume.disableCUDA") == null)
 			{
-				final ClearVolumeRendererInterface lNewCudaRenderer = internalCreateCudaRenderer(	pWindowName,
-																																													pWindowWidth,
-																																													pWindowHeight,
-																																													pNativeTypeEnum,
-																																													pMaxTextureWidth,
-																																													pMaxTextureHeight,
-																																													pNumberOfRenderLayers,
-																																													pUseInCanvas);
+				final ClearVolumeRendererInterface lNewCudaRenderer = newCudaRenderer(pWindowName,
+																																							pWindowWidth,
+																																							pWindowHeight,
+																																							pNativeTypeEnum,
+																																							pMaxTextureWidth,
+																																							pMaxTextureHeight,
+																																							pNumberOfRenderLayers,
+																																							pUseInCanvas);
 
 				if (lNewCudaRenderer != null)
 					return lNewCudaRenderer;
@@ -247,6 +249,23 @@ public class ClearVolumeRendererFactory
 				System.err.println("Caution: Use of CUDA has been explicitly disabled!");
 			}
 
+			if (lProperties.getProperty("ClearVolume.disableCPU") == null)
+			{
+				System.err.println("Falling back to the CPU renderer since neither OpenCL nor CUDA are usable.");
+				return internalCreateCPURenderer(	pWindowName,
+																					pWindowWidth,
+																					pWindowHeight,
+																					pNativeTypeEnum,
+																					pMaxTextureWidth,
+																					pMaxTextureHeight,
+																					pNumberOfRenderLayers,
+																					pUseInCanvas);
+			}
+			else
+			{
+				System.err.println("Caution: Use of the CPU renderer has been explicitly disabled!");
+			}
+
 			System.err.println("Your system cannot run ClearVolume because it does not support CUDA or OpenCL.");
 			return null;
 		}
@@ -338,6 +357,82 @@ public class ClearVolumeRendererFactory
 		}
 	}
 
+	public static final ClearVolumeRendererInterface newCPURenderer(final String pWindowName,
+																																	final int pWindowWidth,
+																																	final int pWindowHeight,
+																																	final NativeTypeEnum pNativeTypeEnum,
+																																	final int pMaxTextureWidth,
+																																	final int pMaxTextureHeight,
+																																	final int pNumberOfRenderLayers,
+																																	final boolean pUseInCanvas)
+	{
+		try
+		{
+			return internalCreateCPURenderer(	pWindowName,
+																				pWindowWidth,
+																				pWindowHeight,
+																				pNativeTypeEnum,
+																				pMaxTextureWidth,
+																				pMaxTextureHeight,
+																				pNumberOfRenderLayers,
+																				pUseInCanvas);
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Constructs a headless renderer that renders into byte buffers without any
+	 * window or OpenGL context.
+	 *
+	 * @param pName
+	 *          renderer name
+	 * @param pRenderWidth
+	 *          width of the rendered frames
+	 * @param pRenderHeight
+	 *          height of the rendered frames
+	 * @param pNativeTypeEnum
+	 *          native type
+	 * @param pNumberOfRenderLayers
+	 *          number of render layers
+	 * @return headless renderer
+	 */
+	public static final HeadlessVolumeRendererInterface newHeadlessRenderer(final String pName,
+																																					final int pRenderWidth,
+																																					final int pRenderHeight,
+																																					final NativeTypeEnum pNativeTypeEnum,
+																																					final int pNumberOfRenderLayers)
+	{
+		return new clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer(pName,
+																																	pRenderWidth,
+																																	pRenderHeight,
+																																	pNativeTypeEnum,
+																																	pNumberOfRenderLayers);
+	}
+
+	private static ClearVolumeRendererInterface internalCreateCPURenderer(final String pWindowName,
+																																				final int pWindowWidth,
+																																				final int pWindowHeight,
+																																				final NativeTypeEnum pNativeTypeEnum,
+																																				final int pMaxTextureWidth,
+																																				final int pMaxTextureHeight,
+																																				final int pNumberOfRenderLayers,
+																																				final boolean pUseInCanvas)
+	{
+
+			return new clearvolume.renderer.cpu.CPUVolumeRenderer(pWindowName,
+																														pWindowWidth,
+																														pWindowHeight,
+																														pNativeTypeEnum,
+																														pMaxTextureWidth,
+																														pMaxTextureHeight,
+																														pNumberOfRenderLayers,
+																														pUseInCanvas);
+	}
+
 	private static ClearVolumeRendererInterface internalCreateCudaRenderer(	final String pWindowName,
 																																					final int pWindowWidth,
 																																					final int pWindowHeight,
@@ -0,0 +1,219 @@
+package clearvolume.renderer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class LatencyHistogram
+ *
+ * Lock-free histogram of latencies with buckets of exponentially growing width:
+ * bucket 0 holds latencies below one microsecond, bucket b latencies between
+ * 2^(b-1) and 2^b microseconds. Percentiles are interpolated within buckets, so
+ * they are accurate to within a factor of two at worst, which is enough to see
+ * where time goes.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class LatencyHistogram
+{
+	private static final int cNumberOfBuckets = 40;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(cNumberOfBuckets);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSumInNanoseconds = new AtomicLong();
+	private final AtomicLong mMinInNanoseconds = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong mMaxInNanoseconds = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param pNanoseconds
+	 *          latency in nanoseconds
+	 */
+	public void record(final long pNanoseconds)
+	{
+		final long lNanoseconds = Math.max(0, pNanoseconds);
+		mBuckets.incrementAndGet(getBucketIndex(lNanoseconds));
+		mCount.incrementAndGet();
+		mSumInNanoseconds.addAndGet(lNanoseconds);
+
+		long lMin;
+		while (lNanoseconds < (lMin = mMinInNanoseconds.get()))
+			if (mMinInNanoseconds.compareAndSet(lMin, lNanoseconds))
+				break;
+
+		long lMax;
+		while (lNanoseconds > (lMax = mMaxInNanoseconds.get()))
+			if (mMaxInNanoseconds.compareAndSet(lMax, lNanoseconds))
+				break;
+	}
+
+	private static int getBucketIndex(final long pNanoseconds)
+	{
+		final long lMicroseconds = pNanoseconds / 1000;
+		final int lIndex = 64 - Long.numberOfLeadingZeros(lMicroseconds);
+		return Math.min(lIndex, cNumberOfBuckets - 1);
+	}
+
+	// bucket bounds in milliseconds:
+	private static double getBucketLowerBound(final int pIndex)
+	{
+		return pIndex == 0 ? 0 : 0.001 * (1L << (pIndex - 1));
+	}
+
+	private static double getBucketUpperBound(final int pIndex)
+	{
+		return 0.001 * (1L << pIndex);
+	}
+
+	public long getCount()
+	{
+		return mCount.get();
+	}
+
+	/**
+	 * Clears all recorded latencies.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < cNumberOfBuckets; i++)
+			mBuckets.set(i, 0);
+		mCount.set(0);
+		mSumInNanoseconds.set(0);
+		mMinInNanoseconds.set(Long.MAX_VALUE);
+		mMaxInNanoseconds.set(Long.MIN_VALUE);
+	}
+
+	/**
+	 * Returns the current statistics, latencies recorded concurrently may or may
+	 * not be included.
+	 *
+	 * @return snapshot
+	 */
+	public Snapshot snapshot()
+	{
+		final long[] lBuckets = new long[cNumberOfBuckets];
+		long lCount = 0;
+		for (int i = 0; i < cNumberOfBuckets; i++)
+		{
+			lBuckets[i] = mBuckets.get(i);
+			lCount += lBuckets[i];
+		}
+
+		if (lCount == 0)
+			return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+
+		final double lMean = 1e-6 * mSumInNanoseconds.get()
+													/ Math.max(1, mCount.get());
+		final double lMin = 1e-6 * mMinInNanoseconds.get();
+		final double lMax = 1e-6 * mMaxInNanoseconds.get();
+
+		return new Snapshot(lCount,
+												lMean,
+												lMin,
+												lMax,
+												getPercentile(lBuckets, lCount, 0.5, lMin, lMax),
+												getPercentile(lBuckets, lCount, 0.9, lMin, lMax),
+												getPercentile(lBuckets, lCount, 0.99, lMin, lMax));
+	}
+
+	private static double getPercentile(final long[] pBuckets,
+																			final long pCount,
+																			final double pFraction,
+																			final double pMin,
+																			final double pMax)
+	{
+		final double lRank = pFraction * pCount;
+		long lCumulated = 0;
+		for (int i = 0; i < pBuckets.length; i++)
+		{
+			if (pBuckets[i] == 0)
+				continue;
+			if (lCumulated + pBuckets[i] >= lRank)
+			{
+				final double lLower = Math.max(pMin, getBucketLowerBound(i));
+				final double lUpper = Math.min(pMax, getBucketUpperBound(i));
+				final double lAlpha = (lRank - lCumulated) / pBuckets[i];
+				return lLower + lAlpha * Math.max(0, lUpper - lLower);
+			}
+			lCumulated += pBuckets[i];
+		}
+		return pMax;
+	}
+
+	/**
+	 * Statistics of a latency histogram, in milliseconds.
+	 */
+	public static class Snapshot
+	{
+		private final long mCount;
+		private final double mMean, mMin, mMax, mP50, mP90, mP99;
+
+		Snapshot(	long pCount,
+							double pMean,
+							double pMin,
+							double pMax,
+							double pP50,
+							double pP90,
+							double pP99)
+		{
+			mCount = pCount;
+			mMean = pMean;
+			mMin = pMin;
+			mMax = pMax;
+			mP50 = pP50;
+			mP90 = pP90;
+			mP99 = pP99;
+		}
+
+		public long getCount()
+		{
+			return mCount;
+		}
+
+		public double getMeanInMilliseconds()
+		{
+			return mMean;
+		}
+
+		public double getMinInMilliseconds()
+		{
+			return mMin;
+		}
+
+		public double getMaxInMilliseconds()
+		{
+			return mMax;
+		}
+
+		public double getMedianInMilliseconds()
+		{
+			return mP50;
+		}
+
+		public double get90thPercentileInMilliseconds()
+		{
+			return mP90;
+		}
+
+		public double get99thPercentileInMilliseconds()
+		{
+			return mP99;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(	"count=%d mean=%.3fms min=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+														mCount,
+														mMean,
+														mMin,
+														mP50,
+														mP90,
+														mP99,
+														mMax);
+		}
+	}
+
+}
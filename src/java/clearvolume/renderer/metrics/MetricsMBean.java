@@ -0,0 +1,146 @@
+package clearvolume.renderer.metrics;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Class MetricsMBean
+ *
+ * Dynamic MBean exposing a metrics registry: each statistic of each metric, for
+ * example "layer0.render.p99Ms" or "layer0.volumes.ratePerSecond", is a
+ * read-only attribute, and the operation "reset" clears all metrics. Metrics
+ * created after registration appear the next time the MBean info is read.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+class MetricsMBean implements DynamicMBean
+{
+	private final MetricsRegistry mMetricsRegistry;
+
+	MetricsMBean(final MetricsRegistry pMetricsRegistry)
+	{
+		mMetricsRegistry = pMetricsRegistry;
+	}
+
+	private TreeMap<String, Object> getAttributeValues()
+	{
+		final MetricsSnapshot lSnapshot = mMetricsRegistry.snapshot();
+		final TreeMap<String, Object> lValues = new TreeMap<>();
+
+		for (final Map.Entry<String, LatencyHistogram.Snapshot> lEntry : lSnapshot.getLatencies()
+																																								.entrySet())
+		{
+			final String lName = lEntry.getKey();
+			final LatencyHistogram.Snapshot lLatency = lEntry.getValue();
+			lValues.put(lName + ".count", lLatency.getCount());
+			lValues.put(lName + ".meanMs", lLatency.getMeanInMilliseconds());
+			lValues.put(lName + ".p50Ms", lLatency.getMedianInMilliseconds());
+			lValues.put(lName + ".p90Ms",
+									lLatency.get90thPercentileInMilliseconds());
+			lValues.put(lName + ".p99Ms",
+									lLatency.get99thPercentileInMilliseconds());
+			lValues.put(lName + ".maxMs", lLatency.getMaxInMilliseconds());
+		}
+
+		for (final Map.Entry<String, ThroughputMeter.Snapshot> lEntry : lSnapshot.getThroughputs()
+																																							.entrySet())
+		{
+			final String lName = lEntry.getKey();
+			final ThroughputMeter.Snapshot lThroughput = lEntry.getValue();
+			lValues.put(lName + ".count", lThroughput.getCount());
+			lValues.put(lName + ".ratePerSecond",
+									lThroughput.getRatePerSecond());
+			lValues.put(lName + ".total", lThroughput.getTotalAmount());
+			lValues.put(lName + ".totalPerSecond",
+									lThroughput.getAmountPerSecond());
+		}
+
+		return lValues;
+	}
+
+	@Override
+	public Object getAttribute(final String pAttribute) throws AttributeNotFoundException
+	{
+		final Object lValue = getAttributeValues().get(pAttribute);
+		if (lValue == null)
+			throw new AttributeNotFoundException(pAttribute);
+		return lValue;
+	}
+
+	@Override
+	public void setAttribute(final Attribute pAttribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metrics are read-only: " + pAttribute.getName());
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] pAttributes)
+	{
+		final TreeMap<String, Object> lValues = getAttributeValues();
+		final AttributeList lAttributeList = new AttributeList();
+		for (final String lAttribute : pAttributes)
+			if (lValues.containsKey(lAttribute))
+				lAttributeList.add(new Attribute(lAttribute, lValues.get(lAttribute)));
+		return lAttributeList;
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList pAttributes)
+	{
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(	final String pActionName,
+												final Object[] pParameters,
+												final String[] pSignature) throws ReflectionException
+	{
+		if ("reset".equals(pActionName))
+		{
+			mMetricsRegistry.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(pActionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		final ArrayList<MBeanAttributeInfo> lAttributeInfos = new ArrayList<>();
+		for (final Map.Entry<String, Object> lEntry : getAttributeValues().entrySet())
+			lAttributeInfos.add(new MBeanAttributeInfo(	lEntry.getKey(),
+																									lEntry.getValue()
+																												.getClass()
+																												.getName(),
+																									lEntry.getKey(),
+																									true,
+																									false,
+																									false));
+
+		final MBeanOperationInfo lResetInfo = new MBeanOperationInfo(	"reset",
+																																	"Clears all metrics",
+																																	new MBeanParameterInfo[0],
+																																	"void",
+																																	MBeanOperationInfo.ACTION);
+
+		return new MBeanInfo(	MetricsRegistry.class.getName(),
+													"ClearVolume renderer metrics",
+													lAttributeInfos.toArray(new MBeanAttributeInfo[lAttributeInfos.size()]),
+													null,
+													new MBeanOperationInfo[]
+													{ lResetInfo },
+													null);
+	}
+}
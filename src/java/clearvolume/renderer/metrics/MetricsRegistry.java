@@ -0,0 +1,255 @@
+package clearvolume.renderer.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeException;
+
+/**
+ * Class MetricsRegistry
+ *
+ * Registry of the latency histograms and throughput meters of a renderer:
+ * processor and intermediate latencies, per render layer volume rates, upload
+ * latencies and bytes, render and kernel latencies, and render passes of the
+ * adaptive level of detail controller. Metrics are created when first
+ * recorded, a consistent copy of all of them is obtained with
+ * {@link #snapshot()}, and the registry can also be exposed as an MBean.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class MetricsRegistry implements ClearVolumeCloseable
+{
+	public static final String cLODRenderPasses = "lod.render_passes";
+	public static final String cLODCompletedRenders = "lod.completed_renders";
+	public static final String cLODFirstPass = "lod.first_pass";
+	public static final String cFusedLayersKernel = "fused_layers.kernel";
+
+	private final ConcurrentHashMap<String, LatencyHistogram> mLatencyHistograms = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ThroughputMeter> mThroughputMeters = new ConcurrentHashMap<>();
+
+	private ObjectName mObjectName;
+
+	/**
+	 * Returns the name of the latency of a processor.
+	 *
+	 * @param pProcessorName
+	 *          processor name
+	 * @return metric name
+	 */
+	public static String processor(final String pProcessorName)
+	{
+		return "processor." + pProcessorName;
+	}
+
+	/**
+	 * Returns the name of the volumes a processor skipped because it was still
+	 * busy.
+	 *
+	 * @param pProcessorName
+	 *          processor name
+	 * @return metric name
+	 */
+	public static String processorSkipped(final String pProcessorName)
+	{
+		return "processor." + pProcessorName + ".skipped";
+	}
+
+	/**
+	 * Returns the name of the latency of an intermediate shared by processors.
+	 *
+	 * @param pIntermediateName
+	 *          intermediate name
+	 * @return metric name
+	 */
+	public static String intermediate(final String pIntermediateName)
+	{
+		return "intermediate." + pIntermediateName;
+	}
+
+	/**
+	 * Returns the name of a metric of a render layer, for example "volumes",
+	 * "upload", "uploaded_bytes", "render" or "kernel".
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pMetric
+	 *          metric
+	 * @return metric name
+	 */
+	public static String layer(final int pRenderLayerIndex,
+														final String pMetric)
+	{
+		return "layer" + pRenderLayerIndex + "." + pMetric;
+	}
+
+	/**
+	 * Returns the latency histogram of a given name, creating it if needed.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @return latency histogram
+	 */
+	public LatencyHistogram getLatencyHistogram(final String pName)
+	{
+		final LatencyHistogram lLatencyHistogram = mLatencyHistograms.get(pName);
+		if (lLatencyHistogram != null)
+			return lLatencyHistogram;
+		mLatencyHistograms.putIfAbsent(pName, new LatencyHistogram());
+		return mLatencyHistograms.get(pName);
+	}
+
+	/**
+	 * Returns the throughput meter of a given name, creating it if needed.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @return throughput meter
+	 */
+	public ThroughputMeter getThroughputMeter(final String pName)
+	{
+		final ThroughputMeter lThroughputMeter = mThroughputMeters.get(pName);
+		if (lThroughputMeter != null)
+			return lThroughputMeter;
+		mThroughputMeters.putIfAbsent(pName, new ThroughputMeter());
+		return mThroughputMeters.get(pName);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @param pNanoseconds
+	 *          latency in nanoseconds
+	 */
+	public void recordLatency(final String pName, final long pNanoseconds)
+	{
+		getLatencyHistogram(pName).record(pNanoseconds);
+	}
+
+	/**
+	 * Marks an event.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @param pAmount
+	 *          amount, for example bytes
+	 */
+	public void mark(final String pName, final long pAmount)
+	{
+		getThroughputMeter(pName).mark(pAmount);
+	}
+
+	/**
+	 * Records the upload of volume data to a render layer.
+	 *
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pBytes
+	 *          uploaded bytes
+	 * @param pNanoseconds
+	 *          upload latency in nanoseconds
+	 */
+	public void recordUpload(	final int pRenderLayerIndex,
+														final long pBytes,
+														final long pNanoseconds)
+	{
+		recordLatency(layer(pRenderLayerIndex, "upload"), pNanoseconds);
+		mark(layer(pRenderLayerIndex, "uploaded_bytes"), pBytes);
+	}
+
+	/**
+	 * Returns a copy of all metrics.
+	 *
+	 * @return snapshot
+	 */
+	public MetricsSnapshot snapshot()
+	{
+		final TreeMap<String, LatencyHistogram.Snapshot> lLatencies = new TreeMap<>();
+		for (final Map.Entry<String, LatencyHistogram> lEntry : mLatencyHistograms.entrySet())
+			lLatencies.put(lEntry.getKey(), lEntry.getValue().snapshot());
+
+		final TreeMap<String, ThroughputMeter.Snapshot> lThroughputs = new TreeMap<>();
+		for (final Map.Entry<String, ThroughputMeter> lEntry : mThroughputMeters.entrySet())
+			lThroughputs.put(lEntry.getKey(), lEntry.getValue().snapshot());
+
+		return new MetricsSnapshot(	System.currentTimeMillis(),
+																lLatencies,
+																lThroughputs);
+	}
+
+	/**
+	 * Clears all metrics.
+	 */
+	public void reset()
+	{
+		for (final LatencyHistogram lLatencyHistogram : mLatencyHistograms.values())
+			lLatencyHistogram.reset();
+		for (final ThroughputMeter lThroughputMeter : mThroughputMeters.values())
+			lThroughputMeter.reset();
+	}
+
+	/**
+	 * Exposes this registry through the platform MBean server, for example to
+	 * JConsole or VisualVM. Each statistic of each metric is a read-only
+	 * attribute.
+	 *
+	 * @param pObjectName
+	 *          object name, for example
+	 *          "clearvolume:type=RendererMetrics,name=myrenderer"
+	 */
+	public synchronized void registerMBean(final String pObjectName)
+	{
+		unregisterMBean();
+		try
+		{
+			final ObjectName lObjectName = new ObjectName(pObjectName);
+			ManagementFactory.getPlatformMBeanServer()
+												.registerMBean(new MetricsMBean(this), lObjectName);
+			mObjectName = lObjectName;
+		}
+		catch (final Exception e)
+		{
+			throw new ClearVolumeException("Could not register metrics MBean " + pObjectName,
+																			e);
+		}
+	}
+
+	/**
+	 * Removes this registry from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean()
+	{
+		if (mObjectName == null)
+			return;
+		try
+		{
+			final MBeanServer lMBeanServer = ManagementFactory.getPlatformMBeanServer();
+			if (lMBeanServer.isRegistered(mObjectName))
+				lMBeanServer.unregisterMBean(mObjectName);
+		}
+		catch (final Exception e)
+		{
+			e.printStackTrace();
+		}
+		mObjectName = null;
+	}
+
+	public synchronized boolean isMBeanRegistered()
+	{
+		return mObjectName != null;
+	}
+
+	@Override
+	public void close()
+	{
+		unregisterMBean();
+	}
+}
@@ -0,0 +1,91 @@
+package clearvolume.renderer.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class MetricsSnapshot
+ *
+ * Immutable copy of all metrics of a registry at one point in time, latency
+ * statistics and throughput counts sorted by metric name.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class MetricsSnapshot
+{
+	private final long mTimeInMilliseconds;
+	private final Map<String, LatencyHistogram.Snapshot> mLatencies;
+	private final Map<String, ThroughputMeter.Snapshot> mThroughputs;
+
+	MetricsSnapshot(final long pTimeInMilliseconds,
+									final TreeMap<String, LatencyHistogram.Snapshot> pLatencies,
+									final TreeMap<String, ThroughputMeter.Snapshot> pThroughputs)
+	{
+		mTimeInMilliseconds = pTimeInMilliseconds;
+		mLatencies = Collections.unmodifiableMap(pLatencies);
+		mThroughputs = Collections.unmodifiableMap(pThroughputs);
+	}
+
+	/**
+	 * Returns the wall clock time at which the snapshot was taken.
+	 *
+	 * @return time in milliseconds since the epoch
+	 */
+	public long getTimeInMilliseconds()
+	{
+		return mTimeInMilliseconds;
+	}
+
+	public Map<String, LatencyHistogram.Snapshot> getLatencies()
+	{
+		return mLatencies;
+	}
+
+	public Map<String, ThroughputMeter.Snapshot> getThroughputs()
+	{
+		return mThroughputs;
+	}
+
+	/**
+	 * Returns the latency statistics of a metric.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @return statistics, or null if nothing was recorded under this name
+	 */
+	public LatencyHistogram.Snapshot getLatency(final String pName)
+	{
+		return mLatencies.get(pName);
+	}
+
+	/**
+	 * Returns the throughput counts of a metric.
+	 *
+	 * @param pName
+	 *          metric name
+	 * @return counts, or null if nothing was recorded under this name
+	 */
+	public ThroughputMeter.Snapshot getThroughput(final String pName)
+	{
+		return mThroughputs.get(pName);
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder lStringBuilder = new StringBuilder();
+		for (final Map.Entry<String, LatencyHistogram.Snapshot> lEntry : mLatencies.entrySet())
+			lStringBuilder.append(lEntry.getKey())
+										.append(": ")
+										.append(lEntry.getValue())
+										.append('\n');
+		for (final Map.Entry<String, ThroughputMeter.Snapshot> lEntry : mThroughputs.entrySet())
+			lStringBuilder.append(lEntry.getKey())
+										.append(": ")
+										.append(lEntry.getValue())
+										.append('\n');
+		return lStringBuilder.toString();
+	}
+}
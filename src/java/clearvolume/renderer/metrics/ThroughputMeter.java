@@ -0,0 +1,180 @@
+package clearvolume.renderer.metrics;
+
+/**
+ * Class ThroughputMeter
+ *
+ * Counts events, each with an amount (for example a number of bytes), and
+ * measures their rate over a sliding window of a few seconds.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ThroughputMeter
+{
+	private static final int cWindowInSeconds = 5;
+	private static final long cNanosecondsPerSecond = 1000L * 1000 * 1000;
+
+	// per second slots of the sliding window, indexed by second modulo the
+	// window length:
+	private final long[] mSlotSeconds = new long[cWindowInSeconds];
+	private final long[] mSlotCounts = new long[cWindowInSeconds];
+	private final long[] mSlotAmounts = new long[cWindowInSeconds];
+
+	private long mCount, mTotalAmount;
+	private long mFirstMarkTime = Long.MIN_VALUE;
+
+	/**
+	 * Marks one event with an amount of zero.
+	 */
+	public void mark()
+	{
+		mark(0);
+	}
+
+	/**
+	 * Marks one event.
+	 *
+	 * @param pAmount
+	 *          amount, for example bytes
+	 */
+	public void mark(final long pAmount)
+	{
+		mark(System.nanoTime(), pAmount);
+	}
+
+	synchronized void mark(final long pTimeInNanoseconds, final long pAmount)
+	{
+		if (mFirstMarkTime == Long.MIN_VALUE)
+			mFirstMarkTime = pTimeInNanoseconds;
+
+		final long lSecond = pTimeInNanoseconds / cNanosecondsPerSecond;
+		final int lSlot = (int) (((lSecond % cWindowInSeconds) + cWindowInSeconds) % cWindowInSeconds);
+		if (mSlotSeconds[lSlot] != lSecond || mSlotCounts[lSlot] == 0)
+		{
+			mSlotSeconds[lSlot] = lSecond;
+			mSlotCounts[lSlot] = 0;
+			mSlotAmounts[lSlot] = 0;
+		}
+		mSlotCounts[lSlot]++;
+		mSlotAmounts[lSlot] += pAmount;
+
+		mCount++;
+		mTotalAmount += pAmount;
+	}
+
+	public synchronized long getCount()
+	{
+		return mCount;
+	}
+
+	public synchronized long getTotalAmount()
+	{
+		return mTotalAmount;
+	}
+
+	/**
+	 * Clears counts and rates.
+	 */
+	public synchronized void reset()
+	{
+		for (int i = 0; i < cWindowInSeconds; i++)
+		{
+			mSlotSeconds[i] = 0;
+			mSlotCounts[i] = 0;
+			mSlotAmounts[i] = 0;
+		}
+		mCount = 0;
+		mTotalAmount = 0;
+		mFirstMarkTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the current counts and rates.
+	 *
+	 * @return snapshot
+	 */
+	public Snapshot snapshot()
+	{
+		return snapshot(System.nanoTime());
+	}
+
+	synchronized Snapshot snapshot(final long pTimeInNanoseconds)
+	{
+		if (mFirstMarkTime == Long.MIN_VALUE)
+			return new Snapshot(0, 0, 0, 0);
+
+		final long lSecond = pTimeInNanoseconds / cNanosecondsPerSecond;
+		long lWindowCount = 0, lWindowAmount = 0;
+		for (int i = 0; i < cWindowInSeconds; i++)
+			if (mSlotCounts[i] > 0 && lSecond - mSlotSeconds[i] < cWindowInSeconds)
+			{
+				lWindowCount += mSlotCounts[i];
+				lWindowAmount += mSlotAmounts[i];
+			}
+
+		// the window starts at the first mark until it is full, and includes the
+		// current second:
+		final double lWindowStart = Math.max(	1.0 * mFirstMarkTime
+																						/ cNanosecondsPerSecond,
+																					lSecond - cWindowInSeconds + 1);
+		final double lWindowLength = Math.max(1e-3, 1.0 * pTimeInNanoseconds
+																								/ cNanosecondsPerSecond
+																								- lWindowStart);
+
+		return new Snapshot(mCount,
+												mTotalAmount,
+												lWindowCount / lWindowLength,
+												lWindowAmount / lWindowLength);
+	}
+
+	/**
+	 * Counts and rates of a throughput meter.
+	 */
+	public static class Snapshot
+	{
+		private final long mCount, mTotalAmount;
+		private final double mRate, mAmountRate;
+
+		Snapshot(	long pCount,
+							long pTotalAmount,
+							double pRate,
+							double pAmountRate)
+		{
+			mCount = pCount;
+			mTotalAmount = pTotalAmount;
+			mRate = pRate;
+			mAmountRate = pAmountRate;
+		}
+
+		public long getCount()
+		{
+			return mCount;
+		}
+
+		public long getTotalAmount()
+		{
+			return mTotalAmount;
+		}
+
+		public double getRatePerSecond()
+		{
+			return mRate;
+		}
+
+		public double getAmountPerSecond()
+		{
+			return mAmountRate;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(	"count=%d rate=%.2f/s total=%d (%.1f/s)",
+														mCount,
+														mRate,
+														mTotalAmount,
+														mAmountRate);
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package clearvolume.renderer.metrics.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import clearvolume.renderer.metrics.LatencyHistogram;
+import clearvolume.renderer.metrics.MetricsRegistry;
+import clearvolume.renderer.metrics.MetricsSnapshot;
+import clearvolume.renderer.metrics.ThroughputMeter;
+
+public class MetricsRegistryTests
+{
+
+	@Test
+	public void testLatencyHistogram()
+	{
+		final LatencyHistogram lLatencyHistogram = new LatencyHistogram();
+		assertEquals(0, lLatencyHistogram.snapshot().getCount());
+
+		// 90 latencies of 1 ms and 10 of 100 ms:
+		for (int i = 0; i < 90; i++)
+			lLatencyHistogram.record(1000 * 1000);
+		for (int i = 0; i < 10; i++)
+			lLatencyHistogram.record(100 * 1000 * 1000);
+
+		final LatencyHistogram.Snapshot lSnapshot = lLatencyHistogram.snapshot();
+		assertEquals(100, lSnapshot.getCount());
+		assertEquals(10.9, lSnapshot.getMeanInMilliseconds(), 1e-9);
+		assertEquals(1, lSnapshot.getMinInMilliseconds(), 1e-9);
+		assertEquals(100, lSnapshot.getMaxInMilliseconds(), 1e-9);
+
+		// percentiles are within a factor of two:
+		assertEquals(1, lSnapshot.getMedianInMilliseconds(), 1);
+		assertEquals(1, lSnapshot.get90thPercentileInMilliseconds(), 1);
+		assertTrue(lSnapshot.get99thPercentileInMilliseconds() > 50);
+		assertTrue(lSnapshot.get99thPercentileInMilliseconds() <= 100);
+
+		lLatencyHistogram.reset();
+		assertEquals(0, lLatencyHistogram.snapshot().getCount());
+	}
+
+	@Test
+	public void testThroughputMeter()
+	{
+		final ThroughputMeter lThroughputMeter = new ThroughputMeter();
+		for (int i = 0; i < 10; i++)
+			lThroughputMeter.mark(1000);
+
+		final ThroughputMeter.Snapshot lSnapshot = lThroughputMeter.snapshot();
+		assertEquals(10, lSnapshot.getCount());
+		assertEquals(10000, lSnapshot.getTotalAmount());
+		assertTrue(lSnapshot.getRatePerSecond() > 0);
+		assertEquals(	1000 * lSnapshot.getRatePerSecond(),
+									lSnapshot.getAmountPerSecond(),
+									1e-6 * lSnapshot.getAmountPerSecond());
+	}
+
+	@Test
+	public void testSnapshot()
+	{
+		final MetricsRegistry lMetricsRegistry = new MetricsRegistry();
+		lMetricsRegistry.recordLatency(	MetricsRegistry.processor("test"),
+																		TimeUnit.MILLISECONDS.toNanos(3));
+		lMetricsRegistry.recordUpload(1, 4096, TimeUnit.MILLISECONDS.toNanos(2));
+		lMetricsRegistry.mark(MetricsRegistry.layer(1, "volumes"), 4096);
+
+		final MetricsSnapshot lSnapshot = lMetricsRegistry.snapshot();
+		assertEquals(	3,
+									lSnapshot.getLatency("processor.test")
+														.getMeanInMilliseconds(),
+									1e-9);
+		assertEquals(	2,
+									lSnapshot.getLatency("layer1.upload")
+														.getMeanInMilliseconds(),
+									1e-9);
+		assertEquals(4096, lSnapshot.getThroughput("layer1.uploaded_bytes")
+																.getTotalAmount());
+		assertEquals(1, lSnapshot.getThroughput("layer1.volumes").getCount());
+		assertNull(lSnapshot.getLatency("layer0.upload"));
+		assertTrue(lSnapshot.toString().contains("processor.test"));
+
+		// snapshots are not affected by later records:
+		lMetricsRegistry.recordLatency(	MetricsRegistry.processor("test"),
+																		TimeUnit.MILLISECONDS.toNanos(5));
+		assertEquals(1, lSnapshot.getLatency("processor.test").getCount());
+	}
+
+	@Test
+	public void testMBean() throws Exception
+	{
+		final String lObjectName = "clearvolume:type=RendererMetrics,name=MetricsRegistryTests";
+		final MBeanServer lMBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+		try (final MetricsRegistry lMetricsRegistry = new MetricsRegistry())
+		{
+			lMetricsRegistry.registerMBean(lObjectName);
+			assertTrue(lMetricsRegistry.isMBeanRegistered());
+
+			lMetricsRegistry.recordLatency(	MetricsRegistry.layer(0, "render"),
+																			TimeUnit.MILLISECONDS.toNanos(4));
+
+			final ObjectName lName = new ObjectName(lObjectName);
+			assertEquals(	1L,
+										lMBeanServer.getAttribute(lName, "layer0.render.count"));
+			assertEquals(	4.0,
+										(Double) lMBeanServer.getAttribute(lName,
+																											"layer0.render.meanMs"),
+										1e-9);
+			assertNotNull(lMBeanServer.getMBeanInfo(lName).getAttributes());
+
+			lMBeanServer.invoke(lName, "reset", null, null);
+			assertEquals(	0L,
+										lMBeanServer.getAttribute(lName, "layer0.render.count"));
+		}
+
+		assertFalse(lMBeanServer.isRegistered(new ObjectName(lObjectName)));
+	}
+
+}
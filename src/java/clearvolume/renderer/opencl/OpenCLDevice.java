@@ -44,6 +44,8 @@ public class OpenCLDevice implements ClearVolumeCloseable
 
 	public ArrayList<CLKernel> mCLKernelList = new ArrayList<CLKernel>();
 
+	private OpenCLStagingBufferPool mStagingBufferPool;
+
 	public boolean initCL()
 	{
 		return initCL(false);
@@ -768,6 +770,95 @@ public class OpenCLDevice implements ClearVolumeCloseable
 		return lEventList;
 	}
 
+	/**
+	 * Enqueues a non-blocking write of a whole 3D image. The data is first copied
+	 * into a pinned staging buffer, so the source memory can be reused as soon as
+	 * this method returns, and the transfer itself overlaps with whatever the
+	 * host does next. Commands enqueued afterwards on the same queue see the
+	 * written image.
+	 *
+	 * @param img
+	 *          image to write to
+	 * @param pFragmentedMemoryInterface
+	 *          source memory, fragments are taken in order
+	 * @return event of the transfer
+	 */
+	public CLEvent writeImageAsync(	final CLImage3D img,
+																	final FragmentedMemoryInterface pFragmentedMemoryInterface)
+	{
+		return writeImageRegionAsync(	img,
+																	pFragmentedMemoryInterface,
+																	0,
+																	0,
+																	0,
+																	img.getWidth(),
+																	img.getHeight(),
+																	img.getDepth());
+	}
+
+	/**
+	 * Enqueues a non-blocking write of a box of a 3D image, through a pinned
+	 * staging buffer as for writeImageAsync.
+	 *
+	 * @param img
+	 *          image to write to
+	 * @param pFragmentedMemoryInterface
+	 *          voxels of the box, X fastest, then Y, then Z
+	 * @param pOffsetX
+	 *          offset of the box along X
+	 * @param pOffsetY
+	 *          offset of the box along Y
+	 * @param pOffsetZ
+	 *          offset of the box along Z
+	 * @param pRegionSizeX
+	 *          size of the box along X
+	 * @param pRegionSizeY
+	 *          size of the box along Y
+	 * @param pRegionSizeZ
+	 *          size of the box along Z
+	 * @return event of the transfer
+	 */
+	public CLEvent writeImageRegionAsync(	final CLImage3D img,
+																				final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																				final long pOffsetX,
+																				final long pOffsetY,
+																				final long pOffsetZ,
+																				final long pRegionSizeX,
+																				final long pRegionSizeY,
+																				final long pRegionSizeZ)
+	{
+		if (mCLDevice == null || mCLContext == null || mCLQueue == null)
+			return null;
+
+		if (mStagingBufferPool == null)
+			mStagingBufferPool = new OpenCLStagingBufferPool(	mCLContext,
+																												mCLQueue,
+																												OpenCLStagingBufferPool.cDefaultMaxNumberOfBuffers);
+
+		final OpenCLStagingBufferPool.StagingBuffer lStagingBuffer = mStagingBufferPool.acquire(pFragmentedMemoryInterface.getSizeInBytes());
+		CLEvent lEvent = null;
+		try
+		{
+			lStagingBuffer.copyFrom(pFragmentedMemoryInterface);
+			lEvent = JavaCLUtils.writeImage3D(img,
+																				mCLQueue,
+																				lStagingBuffer.getPointer(),
+																				pOffsetX,
+																				pOffsetY,
+																				pOffsetZ,
+																				pRegionSizeX,
+																				pRegionSizeY,
+																				pRegionSizeZ,
+																				false);
+			mCLQueue.flush();
+		}
+		finally
+		{
+			mStagingBufferPool.release(lStagingBuffer, lEvent);
+		}
+		return lEvent;
+	}
+
 	public CLEvent writeImage(final CLImage3D img,
 														final ContiguousMemoryInterface pContiguousMemoryInterface)
 	{
@@ -827,6 +918,12 @@ public class OpenCLDevice implements ClearVolumeCloseable
 		try
 		{
 
+			if (mStagingBufferPool != null)
+			{
+				mStagingBufferPool.close();
+				mStagingBufferPool = null;
+			}
+
 			if (mCLKernelList != null)
 				for (CLKernel lCLKernel : mCLKernelList)
 				{
@@ -0,0 +1,265 @@
+package clearvolume.renderer.opencl;
+
+import java.util.ArrayList;
+
+import org.bridj.Pointer;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeException;
+import clearvolume.renderer.opencl.utils.JavaCLUtils;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLEvent;
+import com.nativelibs4java.opencl.CLEvent.CommandExecutionStatus;
+import com.nativelibs4java.opencl.CLMem.MapFlags;
+import com.nativelibs4java.opencl.CLQueue;
+
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+
+/**
+ * Pool of page-locked host staging buffers for asynchronous image uploads.
+ * Each staging buffer is an OpenCL buffer allocated by the driver in host
+ * memory (CL_MEM_ALLOC_HOST_PTR) that stays mapped for its whole life, drivers
+ * back such mappings with pinned memory, so a non-blocking image write from it
+ * is a plain DMA transfer that does not involve the host thread. A staging
+ * buffer is reused once the transfer reading from it has completed, and at
+ * most a given number of buffers exist at any time.
+ *
+ * Filling a staging buffer is a host memory copy that runs on the thread that
+ * acquired it, for the renderers this is the render thread: only the transfer
+ * to the device is taken off that thread. The copy replaces the one drivers
+ * make internally for blocking writes from pageable memory.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class OpenCLStagingBufferPool implements ClearVolumeCloseable
+{
+	public static final int cDefaultMaxNumberOfBuffers = 4;
+
+	private final CLContext mCLContext;
+	private final CLQueue mCLQueue;
+	private final int mMaxNumberOfBuffers;
+
+	private final ArrayList<StagingBuffer> mStagingBuffers = new ArrayList<StagingBuffer>();
+
+	/**
+	 * Staging buffer: mapped OpenCL buffer and the event of the last transfer
+	 * that reads from it.
+	 */
+	public static class StagingBuffer
+	{
+		private final CLBuffer<Byte> mCLBuffer;
+		private final Pointer<Byte> mMappedPointer;
+		private final long mCapacityInBytes;
+		private CLEvent mPendingEvent;
+		private boolean mAcquired;
+
+		private StagingBuffer(CLBuffer<Byte> pCLBuffer,
+													Pointer<Byte> pMappedPointer,
+													long pCapacityInBytes)
+		{
+			mCLBuffer = pCLBuffer;
+			mMappedPointer = pMappedPointer;
+			mCapacityInBytes = pCapacityInBytes;
+		}
+
+		public Pointer<Byte> getPointer()
+		{
+			return mMappedPointer;
+		}
+
+		public long getCapacityInBytes()
+		{
+			return mCapacityInBytes;
+		}
+
+		/**
+		 * Copies fragmented memory into this staging buffer, fragments are laid
+		 * out contiguously.
+		 *
+		 * @param pFragmentedMemoryInterface
+		 *          source memory
+		 */
+		public void copyFrom(final FragmentedMemoryInterface pFragmentedMemoryInterface)
+		{
+			long lOffset = 0;
+			for (final ContiguousMemoryInterface lMemory : pFragmentedMemoryInterface)
+			{
+				final long lSizeInBytes = lMemory.getSizeInBytes();
+				lMemory.getBridJPointer(Byte.class)
+								.copyTo(mMappedPointer.offset(lOffset), lSizeInBytes);
+				lOffset += lSizeInBytes;
+			}
+		}
+
+		private boolean isIdle()
+		{
+			if (mAcquired)
+				return false;
+			if (mPendingEvent == null)
+				return true;
+			if (mPendingEvent.getCommandExecutionStatus() == CommandExecutionStatus.Complete)
+			{
+				mPendingEvent.release();
+				mPendingEvent = null;
+				return true;
+			}
+			return false;
+		}
+
+		private void waitForPendingEvent()
+		{
+			if (mPendingEvent != null)
+			{
+				mPendingEvent.waitFor();
+				mPendingEvent.release();
+				mPendingEvent = null;
+			}
+		}
+	}
+
+	/**
+	 * Constructs a staging buffer pool for a given context and queue.
+	 *
+	 * @param pCLContext
+	 *          OpenCL context
+	 * @param pCLQueue
+	 *          queue used to map and unmap staging buffers
+	 * @param pMaxNumberOfBuffers
+	 *          maximal number of staging buffers held, once reached callers wait
+	 *          for pending transfers
+	 */
+	public OpenCLStagingBufferPool(	CLContext pCLContext,
+																	CLQueue pCLQueue,
+																	int pMaxNumberOfBuffers)
+	{
+		super();
+		mCLContext = pCLContext;
+		mCLQueue = pCLQueue;
+		mMaxNumberOfBuffers = pMaxNumberOfBuffers;
+	}
+
+	/**
+	 * Returns a staging buffer of at least a given capacity that is not read by
+	 * any pending transfer. Idle buffers that are too small are reallocated. If
+	 * the pool is full and all buffers are busy, waits for the oldest transfer,
+	 * or if all buffers are acquired, for one of them to be released.
+	 *
+	 * @param pCapacityInBytes
+	 *          minimal capacity in bytes
+	 * @return staging buffer, to be handed back with release
+	 * @throws ClearVolumeException
+	 *           if interrupted while waiting for a buffer to be released
+	 */
+	public synchronized StagingBuffer acquire(long pCapacityInBytes)
+	{
+		while (true)
+		{
+			StagingBuffer lSmallIdleBuffer = null;
+			for (final StagingBuffer lStagingBuffer : mStagingBuffers)
+				if (lStagingBuffer.isIdle())
+				{
+					if (lStagingBuffer.mCapacityInBytes >= pCapacityInBytes)
+					{
+						lStagingBuffer.mAcquired = true;
+						return lStagingBuffer;
+					}
+					lSmallIdleBuffer = lStagingBuffer;
+				}
+
+			if (lSmallIdleBuffer != null)
+			{
+				free(lSmallIdleBuffer);
+				break;
+			}
+
+			if (mStagingBuffers.size() < mMaxNumberOfBuffers)
+				break;
+
+			StagingBuffer lReleasedBuffer = null;
+			for (final StagingBuffer lStagingBuffer : mStagingBuffers)
+				if (!lStagingBuffer.mAcquired)
+				{
+					lReleasedBuffer = lStagingBuffer;
+					break;
+				}
+
+			if (lReleasedBuffer != null)
+			{
+				lReleasedBuffer.waitForPendingEvent();
+				if (lReleasedBuffer.mCapacityInBytes >= pCapacityInBytes)
+				{
+					lReleasedBuffer.mAcquired = true;
+					return lReleasedBuffer;
+				}
+				free(lReleasedBuffer);
+				break;
+			}
+
+			try
+			{
+				wait();
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ClearVolumeException("Interrupted while waiting for a staging buffer",
+																				e);
+			}
+		}
+
+		final CLBuffer<Byte> lCLBuffer = JavaCLUtils.createHostAllocatedByteBuffer(mCLContext,
+																																								pCapacityInBytes);
+		final Pointer<Byte> lMappedPointer = lCLBuffer.map(	mCLQueue,
+																												MapFlags.Write);
+		final StagingBuffer lStagingBuffer = new StagingBuffer(	lCLBuffer,
+																														lMappedPointer,
+																														pCapacityInBytes);
+		lStagingBuffer.mAcquired = true;
+		mStagingBuffers.add(lStagingBuffer);
+		return lStagingBuffer;
+	}
+
+	/**
+	 * Hands back a staging buffer, it becomes available again once the given
+	 * transfer event has completed.
+	 *
+	 * @param pStagingBuffer
+	 *          staging buffer
+	 * @param pPendingEvent
+	 *          event of the transfer reading from the staging buffer, or null
+	 */
+	public synchronized void release(	StagingBuffer pStagingBuffer,
+																		CLEvent pPendingEvent)
+	{
+		pStagingBuffer.mPendingEvent = pPendingEvent;
+		pStagingBuffer.mAcquired = false;
+		notifyAll();
+	}
+
+	public synchronized int getNumberOfBuffers()
+	{
+		return mStagingBuffers.size();
+	}
+
+	private void free(StagingBuffer pStagingBuffer)
+	{
+		pStagingBuffer.waitForPendingEvent();
+		pStagingBuffer.mCLBuffer.unmap(	mCLQueue,
+																		pStagingBuffer.mMappedPointer)
+														.waitFor();
+		pStagingBuffer.mCLBuffer.release();
+		mStagingBuffers.remove(pStagingBuffer);
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		for (final StagingBuffer lStagingBuffer : new ArrayList<StagingBuffer>(mStagingBuffers))
+			free(lStagingBuffer);
+	}
+
+}
@@ -6,20 +6,28 @@ import static java.lang.Math.pow;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 
 import jcuda.CudaException;
 
 import org.bridj.Pointer;
 
 import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import clearvolume.renderer.RenderAlgorithm;
+import clearvolume.renderer.VolumeDataRegion;
 import clearvolume.renderer.cleargl.ClearGLVolumeRenderer;
 import clearvolume.renderer.cleargl.overlay.o2d.BarGraphOverlay;
 import clearvolume.renderer.cleargl.overlay.o2d.HistogramOverlay;
+import clearvolume.renderer.metrics.MetricsRegistry;
 import clearvolume.renderer.processors.OpenCLProcessor;
+import clearvolume.renderer.processors.ProcessingGraph;
 import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorScheduler;
 import clearvolume.renderer.processors.impl.OpenCLDeconvolutionLR;
 import clearvolume.renderer.processors.impl.OpenCLDenoise;
 import clearvolume.renderer.processors.impl.OpenCLHistogram;
+import clearvolume.renderer.processors.impl.OpenCLProcessingBackend;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
 
 import com.jogamp.opengl.GLEventListener;
 import com.nativelibs4java.opencl.CLBuffer;
@@ -36,19 +44,43 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 																																GLEventListener
 {
 	private OpenCLDevice mCLDevice;
+	private OpenCLProcessingBackend mProcessingBackend;
 
 	private CLBuffer<Integer>[] mCLRenderBuffers;
 	private CLImage3D[] mCLVolumeImages;
 	private CLImage2D[] mCLTransferFunctionImages;
 
+	private MinMaxBrickGrid[] mMinMaxBrickGrids;
+	private CLImage3D[] mCLBrickMaxImages;
+	private CLImage3D mCLNoSkippingBrickMaxImage;
+	private FloatBuffer mBrickMaxBuffer;
+
+	// grids computed on the threads setting volumes, waiting for their volume
+	// to be uploaded, and grids free for reuse, guarded by the pending array:
+	private MinMaxBrickGrid[] mPendingMinMaxBrickGrids;
+	private FragmentedMemoryInterface[] mPendingMinMaxBrickGridVolumes;
+	private MinMaxBrickGrid[] mSpareMinMaxBrickGrids;
+
 	private CLBuffer<Float> mCLInvModelViewBuffer,
-			mCLInvProjectionBuffer;
+			mCLInvProjectionBuffer, mCLFusedLayerParametersBuffer;
 
 	private CLKernel mCurrentRenderKernel, mMaxProjectionRenderKernel,
-			mIsoSurfaceRenderKernel, mClearKernel;
+			mFusedMaxProjectionRenderKernel, mIsoSurfaceRenderKernel,
+			mAlphaCompositingRenderKernel, mClearKernel;
+
+	// number of layers a fused kernel samples, and parameters per layer:
+	private static final int cMaxFusedLayers = 4;
+	private static final int cFusedLayerParameters = 4;
+
+	// layers rendered by the fused kernel into another layer's buffer, their
+	// textures are cleared once:
+	private boolean[] mFusedAwayLayers;
 
 	private Pointer<Integer> mTransferBuffer;
 
+	private volatile boolean mAsynchronousUpload = true;
+	private volatile boolean mFusedLayerRendering = true;
+
 	public OpenCLVolumeRenderer(final String pWindowName,
 															final int pWindowWidth,
 															final int pWindowHeight)
@@ -128,6 +160,12 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 		mCLRenderBuffers = new CLBuffer[pNumberOfRenderLayers];
 		mCLVolumeImages = new CLImage3D[pNumberOfRenderLayers];
 		mCLTransferFunctionImages = new CLImage2D[pNumberOfRenderLayers];
+		mMinMaxBrickGrids = new MinMaxBrickGrid[pNumberOfRenderLayers];
+		mCLBrickMaxImages = new CLImage3D[pNumberOfRenderLayers];
+		mPendingMinMaxBrickGrids = new MinMaxBrickGrid[pNumberOfRenderLayers];
+		mPendingMinMaxBrickGridVolumes = new FragmentedMemoryInterface[pNumberOfRenderLayers];
+		mSpareMinMaxBrickGrids = new MinMaxBrickGrid[pNumberOfRenderLayers];
+		mFusedAwayLayers = new boolean[pNumberOfRenderLayers];
 
 		final OpenCLHistogram lHistoProcessor = new OpenCLHistogram();
 		addProcessor(lHistoProcessor);
@@ -137,11 +175,14 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 		lBarGraphOverlay.setDisplayed(false);
 
+		// these processors write back into the rendered volume images:
 		final OpenCLDenoise lOpenCLDenoise = new OpenCLDenoise();
 		addProcessor(lOpenCLDenoise);
+		mProcessorScheduler.setAsynchronous(lOpenCLDenoise, false);
 
 		final OpenCLDeconvolutionLR lOpenCLDeconvolutionLR = new OpenCLDeconvolutionLR();
 		addProcessor(lOpenCLDeconvolutionLR);
+		mProcessorScheduler.setAsynchronous(lOpenCLDeconvolutionLR, false);
 	}
 
 	@Override
@@ -151,14 +192,20 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 		mCLDevice.initCL();
 		mCLDevice.printInfo();
+		mProcessingBackend = new OpenCLProcessingBackend(mCLDevice);
 		mMaxProjectionRenderKernel = mCLDevice.compileKernel(	OpenCLVolumeRenderer.class.getResource("kernels/VolumeRender.cl"),
 																													"maxproj_render");
+		mFusedMaxProjectionRenderKernel = mCLDevice.compileKernel(OpenCLVolumeRenderer.class.getResource("kernels/VolumeRender.cl"),
+																															"maxproj_fused_render");
 		mClearKernel = mCLDevice.compileKernel(	OpenCLVolumeRenderer.class.getResource("kernels/VolumeRender.cl"),
 																						"clearbuffer");
 
 		mIsoSurfaceRenderKernel = mCLDevice.compileKernel(OpenCLVolumeRenderer.class.getResource("kernels/VolumeRender.cl"),
 																											"isosurface_render");
 
+		mAlphaCompositingRenderKernel = mCLDevice.compileKernel(OpenCLVolumeRenderer.class.getResource("kernels/VolumeRender.cl"),
+																														"composite_render");
+
 		for (final Processor<?> lProcessor : mProcessorsMap.values())
 			if (lProcessor.isCompatibleProcessor(getClass()))
 				if (lProcessor instanceof OpenCLProcessor)
@@ -169,6 +216,11 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 		mCLInvModelViewBuffer = mCLDevice.createInputFloatBuffer(16);
 		mCLInvProjectionBuffer = mCLDevice.createInputFloatBuffer(16);
+		mCLFusedLayerParametersBuffer = mCLDevice.createInputFloatBuffer(cMaxFusedLayers * cFusedLayerParameters);
+
+		// brick max grid of layers without a grid, no brick is ever skipped:
+		mCLNoSkippingBrickMaxImage = createBrickMaxImage(1, 1, 1);
+		writeBrickMaxImage(mCLNoSkippingBrickMaxImage, new float[0], 0, 0, 0);
 
 		for (int i = 0; i < getNumberOfRenderLayers(); i++)
 			prepareVolumeDataArray(i, null);
@@ -236,10 +288,212 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 			else
 				throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + getNativeType());
 
-			fillWithByteBuffer(	mCLVolumeImages[pRenderLayerIndex],
+			fillWithByteBuffer(	pRenderLayerIndex,
+													mCLVolumeImages[pRenderLayerIndex],
 													lVolumeDataBuffer);
+			updateMinMaxBrickGrid(pRenderLayerIndex, lVolumeDataBuffer);
+
+		}
+	}
+
+	/**
+	 * Computes the brick grid of a volume on the thread setting it, the render
+	 * thread only uploads it.
+	 */
+	@Override
+	protected void preprocessVolumeDataBuffer(final int pRenderLayerIndex,
+																						final FragmentedMemoryInterface pFragmentedMemoryInterface,
+																						final long pVolumeSizeX,
+																						final long pVolumeSizeY,
+																						final long pVolumeSizeZ)
+	{
+		if (!isEmptySpaceSkipping())
+			return;
+
+		MinMaxBrickGrid lMinMaxBrickGrid;
+		synchronized (mPendingMinMaxBrickGrids)
+		{
+			lMinMaxBrickGrid = mSpareMinMaxBrickGrids[pRenderLayerIndex];
+			mSpareMinMaxBrickGrids[pRenderLayerIndex] = null;
+		}
+		if (lMinMaxBrickGrid == null || !lMinMaxBrickGrid.isCompatibleWith(	getNativeType(),
+																																			pVolumeSizeX,
+																																			pVolumeSizeY,
+																																			pVolumeSizeZ))
+			lMinMaxBrickGrid = new MinMaxBrickGrid(	getNativeType(),
+																							pVolumeSizeX,
+																							pVolumeSizeY,
+																							pVolumeSizeZ);
+
+		lMinMaxBrickGrid.compute(MinMaxBrickGrid.wrap(getNativeType(),
+																									pFragmentedMemoryInterface,
+																									pVolumeSizeX,
+																									pVolumeSizeY));
+
+		synchronized (mPendingMinMaxBrickGrids)
+		{
+			// a grid whose volume was superseded before upload is reused:
+			if (mPendingMinMaxBrickGrids[pRenderLayerIndex] != null)
+				mSpareMinMaxBrickGrids[pRenderLayerIndex] = mPendingMinMaxBrickGrids[pRenderLayerIndex];
+			mPendingMinMaxBrickGrids[pRenderLayerIndex] = lMinMaxBrickGrid;
+			mPendingMinMaxBrickGridVolumes[pRenderLayerIndex] = pFragmentedMemoryInterface;
+		}
+	}
+
+	private void updateMinMaxBrickGrid(	final int pRenderLayerIndex,
+																			final FragmentedMemoryInterface pVolumeDataBuffer)
+	{
+		if (!isEmptySpaceSkipping())
+		{
+			mMinMaxBrickGrids[pRenderLayerIndex] = null;
+			return;
+		}
 
+		MinMaxBrickGrid lMinMaxBrickGrid = null;
+		synchronized (mPendingMinMaxBrickGrids)
+		{
+			if (mPendingMinMaxBrickGridVolumes[pRenderLayerIndex] == pVolumeDataBuffer)
+			{
+				lMinMaxBrickGrid = mPendingMinMaxBrickGrids[pRenderLayerIndex];
+				mPendingMinMaxBrickGrids[pRenderLayerIndex] = null;
+				mPendingMinMaxBrickGridVolumes[pRenderLayerIndex] = null;
+				if (mMinMaxBrickGrids[pRenderLayerIndex] != null)
+					mSpareMinMaxBrickGrids[pRenderLayerIndex] = mMinMaxBrickGrids[pRenderLayerIndex];
+			}
 		}
+
+		if (lMinMaxBrickGrid == null)
+		{
+			// the grid was not computed beforehand, for example because skipping
+			// was just enabled:
+			lMinMaxBrickGrid = mMinMaxBrickGrids[pRenderLayerIndex];
+			if (lMinMaxBrickGrid == null || !lMinMaxBrickGrid.isCompatibleWith(	getNativeType(),
+																																				getVolumeSizeX(),
+																																				getVolumeSizeY(),
+																																				getVolumeSizeZ()))
+				lMinMaxBrickGrid = new MinMaxBrickGrid(	getNativeType(),
+																								getVolumeSizeX(),
+																								getVolumeSizeY(),
+																								getVolumeSizeZ());
+			lMinMaxBrickGrid.compute(MinMaxBrickGrid.wrap(getNativeType(),
+																										pVolumeDataBuffer,
+																										getVolumeSizeX(),
+																										getVolumeSizeY()));
+		}
+
+		mMinMaxBrickGrids[pRenderLayerIndex] = lMinMaxBrickGrid;
+		uploadMinMaxBrickGrid(pRenderLayerIndex);
+	}
+
+	private void includeInMinMaxBrickGrid(final int pRenderLayerIndex,
+																				final VolumeDataRegion pVolumeDataRegion)
+	{
+		// the device holds the rest of the volume, the grid is thus widened
+		// with the region until the next whole volume arrives:
+		final MinMaxBrickGrid lMinMaxBrickGrid = mMinMaxBrickGrids[pRenderLayerIndex];
+		if (lMinMaxBrickGrid == null)
+			return;
+
+		lMinMaxBrickGrid.include(	MinMaxBrickGrid.wrap(	getNativeType(),
+																										pVolumeDataRegion.getDataBuffer(),
+																										pVolumeDataRegion.getSizeX(),
+																										pVolumeDataRegion.getSizeY()),
+															pVolumeDataRegion.getOffsetX(),
+															pVolumeDataRegion.getOffsetY(),
+															pVolumeDataRegion.getOffsetZ(),
+															pVolumeDataRegion.getSizeX(),
+															pVolumeDataRegion.getSizeY(),
+															pVolumeDataRegion.getSizeZ());
+	}
+
+	private void uploadMinMaxBrickGrid(final int pRenderLayerIndex)
+	{
+		final MinMaxBrickGrid lMinMaxBrickGrid = mMinMaxBrickGrids[pRenderLayerIndex];
+		final int lGridWidth = lMinMaxBrickGrid.getGridWidth();
+		final int lGridHeight = lMinMaxBrickGrid.getGridHeight();
+		final int lGridDepth = lMinMaxBrickGrid.getGridDepth();
+
+		CLImage3D lCLBrickMaxImage = mCLBrickMaxImages[pRenderLayerIndex];
+		if (lCLBrickMaxImage == null || lCLBrickMaxImage.getWidth() != max(2, lGridWidth)
+				|| lCLBrickMaxImage.getHeight() != max(2, lGridHeight)
+				|| lCLBrickMaxImage.getDepth() != max(2, lGridDepth))
+		{
+			if (lCLBrickMaxImage != null)
+				lCLBrickMaxImage.release();
+			lCLBrickMaxImage = createBrickMaxImage(	lGridWidth,
+																							lGridHeight,
+																							lGridDepth);
+			mCLBrickMaxImages[pRenderLayerIndex] = lCLBrickMaxImage;
+		}
+
+		writeBrickMaxImage(	lCLBrickMaxImage,
+												lMinMaxBrickGrid.getMaxima(),
+												lGridWidth,
+												lGridHeight,
+												lGridDepth);
+	}
+
+	private CLImage3D createBrickMaxImage(final int pGridWidth,
+																				final int pGridHeight,
+																				final int pGridDepth)
+	{
+		// 3D images need at least two voxels along each axis:
+		return mCLDevice.createGenericImage3D(max(2, pGridWidth),
+																					max(2, pGridHeight),
+																					max(2, pGridDepth),
+																					CLImageFormat.ChannelOrder.R,
+																					CLImageFormat.ChannelDataType.Float);
+	}
+
+	private void writeBrickMaxImage(final CLImage3D pCLBrickMaxImage,
+																	final float[] pMaxima,
+																	final int pGridWidth,
+																	final int pGridHeight,
+																	final int pGridDepth)
+	{
+		final int lWidth = (int) pCLBrickMaxImage.getWidth();
+		final int lHeight = (int) pCLBrickMaxImage.getHeight();
+		final int lDepth = (int) pCLBrickMaxImage.getDepth();
+
+		// the buffer is kept for the next grids:
+		final int lLength = lWidth * lHeight * lDepth;
+		if (mBrickMaxBuffer == null || mBrickMaxBuffer.capacity() < lLength)
+			mBrickMaxBuffer = ByteBuffer.allocateDirect(4 * lLength)
+																	.order(ByteOrder.nativeOrder())
+																	.asFloatBuffer();
+		final FloatBuffer lFloatBuffer = mBrickMaxBuffer;
+		lFloatBuffer.clear();
+		lFloatBuffer.limit(lLength);
+
+		// padding bricks are never skipped:
+		for (int z = 0; z < lDepth; z++)
+			for (int y = 0; y < lHeight; y++)
+				for (int x = 0; x < lWidth; x++)
+					if (x < pGridWidth && y < pGridHeight && z < pGridDepth)
+						lFloatBuffer.put(pMaxima[x + pGridWidth
+																			* (y + pGridHeight * z)]);
+					else
+						lFloatBuffer.put(1);
+		lFloatBuffer.rewind();
+
+		pCLBrickMaxImage.write(	mCLDevice.getQueue(),
+														0,
+														0,
+														0,
+														lWidth,
+														lHeight,
+														lDepth,
+														0,
+														0,
+														lFloatBuffer,
+														true);
+	}
+
+	private CLImage3D getBrickMaxImage(final int pRenderLayerIndex)
+	{
+		if (!isEmptySpaceSkipping() || mMinMaxBrickGrids[pRenderLayerIndex] == null)
+			return mCLNoSkippingBrickMaxImage;
+		return mCLBrickMaxImages[pRenderLayerIndex];
 	}
 
 	private void prepareTransferFunctionArray(final int pRenderLayerIndex)
@@ -365,17 +619,48 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 							mCLVolumeImages[lLayerIndex].release();
 						}
+						// pooled processor buffers of the previous dimensions:
+						mProcessingBackend.getBufferPool().clear();
 
 						prepareVolumeDataArray(lLayerIndex, lVolumeDataBuffer);
 						clearVolumeDimensionsChanged();
 					}
 					else
 					{
-						fillWithByteBuffer(	mCLVolumeImages[lLayerIndex],
+						fillWithByteBuffer(	lLayerIndex,
+																mCLVolumeImages[lLayerIndex],
 																lVolumeDataBuffer);
+						updateMinMaxBrickGrid(lLayerIndex, lVolumeDataBuffer);
 
 					}
+				}
 
+				final ArrayList<VolumeDataRegion> lVolumeDataRegions = pollVolumeDataRegions(lLayerIndex);
+				if (mCLVolumeImages[lLayerIndex] != null)
+				{
+					for (final VolumeDataRegion lVolumeDataRegion : lVolumeDataRegions)
+					{
+						final long lStartTime = System.nanoTime();
+						mCLDevice.writeImageRegionAsync(mCLVolumeImages[lLayerIndex],
+																						lVolumeDataRegion.getDataBuffer(),
+																						lVolumeDataRegion.getOffsetX(),
+																						lVolumeDataRegion.getOffsetY(),
+																						lVolumeDataRegion.getOffsetZ(),
+																						lVolumeDataRegion.getSizeX(),
+																						lVolumeDataRegion.getSizeY(),
+																						lVolumeDataRegion.getSizeZ());
+						mMetricsRegistry.recordUpload(lLayerIndex,
+																					lVolumeDataRegion.getDataBuffer()
+																														.getSizeInBytes(),
+																					System.nanoTime() - lStartTime);
+						includeInMinMaxBrickGrid(lLayerIndex, lVolumeDataRegion);
+					}
+					if (!lVolumeDataRegions.isEmpty() && mMinMaxBrickGrids[lLayerIndex] != null)
+						uploadMinMaxBrickGrid(lLayerIndex);
+				}
+
+				if (lVolumeDataBuffer != null || !lVolumeDataRegions.isEmpty())
+				{
 					notifyCompletionOfDataBufferCopy(lLayerIndex);
 					lAnyVolumeDataUpdated |= true;
 
@@ -388,9 +673,27 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 		if (lAnyVolumeDataUpdated || haveVolumeRenderingParametersChanged()
 				|| getAdaptiveLODController().isKernelRunNeeded())
 		{
+			// layers that can share rays are rendered in groups by the fused kernel,
+			// a single remaining layer is rendered on its own:
+			final ArrayList<Integer> lFusableLayers = getFusableLayers();
+			final boolean[] lFused = new boolean[getNumberOfRenderLayers()];
+			for (int lStart = 0; lStart + 1 < lFusableLayers.size(); lStart += cMaxFusedLayers)
+			{
+				final int lEnd = Math.min(lFusableLayers.size(), lStart
+																													+ cMaxFusedLayers);
+				final int[] lGroup = new int[lEnd - lStart];
+				for (int i = 0; i < lGroup.length; i++)
+				{
+					lGroup[i] = lFusableLayers.get(lStart + i);
+					lFused[lGroup[i]] = true;
+					lUpdated[lGroup[i]] = true;
+				}
+				runFusedKernel(lGroup);
+			}
+
 			for (int i = 0; i < getNumberOfRenderLayers(); i++)
 			{
-				if (mCLVolumeImages[i] != null)
+				if (mCLVolumeImages[i] != null && !lFused[i])
 				{
 					runKernel(i);
 					lUpdated[i] = true;
@@ -401,10 +704,52 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 		return lUpdated;
 	}
 
-	private void fillWithByteBuffer(final CLImage3D clImage3D,
+	/**
+	 * Returns the layers that can be rendered together by the fused kernel:
+	 * visible max projection layers with volumes of the same dimensions, if
+	 * there are at least two of them and fused rendering is enabled.
+	 *
+	 * @return indices of fusable layers
+	 */
+	private ArrayList<Integer> getFusableLayers()
+	{
+		final ArrayList<Integer> lFusableLayers = new ArrayList<>();
+		if (!mFusedLayerRendering)
+			return lFusableLayers;
+
+		for (int i = 0; i < getNumberOfRenderLayers(); i++)
+		{
+			final CLImage3D lVolumeImage = mCLVolumeImages[i];
+			if (lVolumeImage == null || !isLayerVisible(i)
+					|| getRenderAlgorithm(i) != RenderAlgorithm.MaxProjection)
+				continue;
+
+			if (!lFusableLayers.isEmpty())
+			{
+				final CLImage3D lFirstVolumeImage = mCLVolumeImages[lFusableLayers.get(0)];
+				if (lVolumeImage.getWidth() != lFirstVolumeImage.getWidth() || lVolumeImage.getHeight() != lFirstVolumeImage.getHeight()
+						|| lVolumeImage.getDepth() != lFirstVolumeImage.getDepth())
+					continue;
+			}
+			lFusableLayers.add(i);
+		}
+
+		if (lFusableLayers.size() < 2)
+			lFusableLayers.clear();
+		return lFusableLayers;
+	}
+
+	private void fillWithByteBuffer(final int pRenderLayerIndex,
+																	final CLImage3D clImage3D,
 																	final FragmentedMemoryInterface pVolumeDataBuffer)
 	{
-		if (pVolumeDataBuffer.getNumberOfFragments() == 1)
+		final long lStartTime = System.nanoTime();
+
+		// staged uploads return as soon as the data is in pinned memory, the
+		// in-order queue guarantees that kernels enqueued later see the image:
+		if (mAsynchronousUpload)
+			mCLDevice.writeImageAsync(clImage3D, pVolumeDataBuffer);
+		else if (pVolumeDataBuffer.getNumberOfFragments() == 1)
 		{
 			final ContiguousMemoryInterface lContiguousBuffer = pVolumeDataBuffer.get(0);
 			mCLDevice.writeImage(clImage3D, lContiguousBuffer);
@@ -413,10 +758,16 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 		{
 			mCLDevice.writeImagePerPlane(clImage3D, pVolumeDataBuffer);
 		}
+
+		// staged uploads are timed until the data is in pinned memory:
+		mMetricsRegistry.recordUpload(pRenderLayerIndex,
+																	pVolumeDataBuffer.getSizeInBytes(),
+																	System.nanoTime() - lStartTime);
 	}
 
 	private void runKernel(final int pRenderLayerIndex)
 	{
+		final long lStartTime = System.nanoTime();
 		// System.out.println("kernel");
 		// System.out.println(mCLVolumeImages[i].getHeight());
 		if (isLayerVisible(pRenderLayerIndex))
@@ -459,7 +810,9 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 													mCLTransferFunctionImages[pRenderLayerIndex],
 													mCLInvProjectionBuffer,
 													mCLInvModelViewBuffer,
-													mCLVolumeImages[pRenderLayerIndex]);
+													mCLVolumeImages[pRenderLayerIndex],
+													MinMaxBrickGrid.cDefaultBrickSize,
+													getBrickMaxImage(pRenderLayerIndex));
 				break;
 			case IsoSurface:
 				mCurrentRenderKernel = mIsoSurfaceRenderKernel;
@@ -492,13 +845,51 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 													mCLTransferFunctionImages[pRenderLayerIndex],
 													mCLInvProjectionBuffer,
 													mCLInvModelViewBuffer,
-													mCLVolumeImages[pRenderLayerIndex]);
+													mCLVolumeImages[pRenderLayerIndex],
+													MinMaxBrickGrid.cDefaultBrickSize,
+													getBrickMaxImage(pRenderLayerIndex));
+				break;
+			case AlphaCompositing:
+				mCurrentRenderKernel = mAlphaCompositingRenderKernel;
+
+				// compositing does not combine across passes, each pass refines the
+				// previous one with more steps:
+				lMaxSteps = max(16,
+												(lMaxNumberSteps * (1 + lPassIndex)) / lNumberOfPasses);
+				lDithering = getDithering(pRenderLayerIndex) * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses);
+				lPhase = 0;
+				lClear = 0;
+
+				mCLDevice.setArgs(mCurrentRenderKernel,
+													mCLRenderBuffers[pRenderLayerIndex],
+													getRenderWidth(),
+													getRenderHeight(),
+													(float) getBrightness(pRenderLayerIndex),
+													(float) getTransferRangeMin(pRenderLayerIndex),
+													(float) getTransferRangeMax(pRenderLayerIndex),
+													(float) getGamma(pRenderLayerIndex),
+													lMaxSteps,
+													lDithering,
+													lPhase,
+													lClear,
+													getEarlyRayTerminationOpacity(),
+													mCLTransferFunctionImages[pRenderLayerIndex],
+													mCLInvProjectionBuffer,
+													mCLInvModelViewBuffer,
+													mCLVolumeImages[pRenderLayerIndex],
+													MinMaxBrickGrid.cDefaultBrickSize,
+													getBrickMaxImage(pRenderLayerIndex));
 				break;
 			}
 
+			// runs wait for the kernel to complete:
+			final long lKernelStartTime = System.nanoTime();
 			mCLDevice.run(mCurrentRenderKernel,
 										getRenderWidth(),
 										getRenderHeight());
+			mMetricsRegistry.recordLatency(	MetricsRegistry.layer(pRenderLayerIndex,
+																														"kernel"),
+																			System.nanoTime() - lKernelStartTime);
 
 		}
 		else
@@ -512,6 +903,100 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 
 		}
 
+		mFusedAwayLayers[pRenderLayerIndex] = false;
+		copyRenderBufferToTexture(pRenderLayerIndex);
+
+		mMetricsRegistry.recordLatency(	MetricsRegistry.layer(pRenderLayerIndex,
+																													"render"),
+																		System.nanoTime() - lStartTime);
+	}
+
+	/**
+	 * Renders a group of max projection layers with a single kernel launch. The
+	 * combined colors go to the buffer of the first layer of the group, the
+	 * textures of the other layers are cleared since the display takes the
+	 * maximum over all layer textures anyway.
+	 *
+	 * @param pRenderLayerIndices
+	 *          indices of the layers, at most cMaxFusedLayers
+	 */
+	private void runFusedKernel(final int[] pRenderLayerIndices)
+	{
+		final int lNumberOfPasses = getAdaptiveLODController().getNumberOfPasses();
+		final int lPassIndex = getAdaptiveLODController().getPassIndex();
+
+		// rays are shared, layers get the largest number of steps and dithering
+		// among them:
+		int lMaxNumberSteps = 0;
+		float lLayerDithering = 0;
+		final float[] lLayerParameters = new float[cMaxFusedLayers * cFusedLayerParameters];
+		for (int i = 0; i < pRenderLayerIndices.length; i++)
+		{
+			final int lLayerIndex = pRenderLayerIndices[i];
+			prepareTransferFunctionArray(lLayerIndex);
+
+			lMaxNumberSteps = max(lMaxNumberSteps, getMaxSteps(lLayerIndex));
+			lLayerDithering = max(lLayerDithering, getDithering(lLayerIndex));
+
+			lLayerParameters[cFusedLayerParameters * i] = (float) getBrightness(lLayerIndex);
+			lLayerParameters[cFusedLayerParameters * i + 1] = (float) getTransferRangeMin(lLayerIndex);
+			lLayerParameters[cFusedLayerParameters * i + 2] = (float) getTransferRangeMax(lLayerIndex);
+			lLayerParameters[cFusedLayerParameters * i + 3] = (float) getGamma(lLayerIndex);
+		}
+		mCLDevice.writeFloatBuffer(	mCLFusedLayerParametersBuffer,
+																FloatBuffer.wrap(lLayerParameters));
+
+		final int lMaxSteps = max(16, lMaxNumberSteps / lNumberOfPasses);
+		final float lDithering = lLayerDithering * (1.0f * (lNumberOfPasses - lPassIndex) / lNumberOfPasses);
+		final float lPhase = getAdaptiveLODController().getPhase();
+		final int lClear = (lPassIndex == 0) ? 0 : 1;
+
+		// unused layer slots point to the first layer, the kernel does not
+		// read them:
+		final Object[] lArgs = new Object[12 + 3 * cMaxFusedLayers];
+		int a = 0;
+		lArgs[a++] = mCLRenderBuffers[pRenderLayerIndices[0]];
+		lArgs[a++] = getRenderWidth();
+		lArgs[a++] = getRenderHeight();
+		lArgs[a++] = pRenderLayerIndices.length;
+		lArgs[a++] = mCLFusedLayerParametersBuffer;
+		lArgs[a++] = lMaxSteps;
+		lArgs[a++] = lDithering;
+		lArgs[a++] = lPhase;
+		lArgs[a++] = lClear;
+		lArgs[a++] = mCLInvProjectionBuffer;
+		lArgs[a++] = mCLInvModelViewBuffer;
+		lArgs[a++] = MinMaxBrickGrid.cDefaultBrickSize;
+		for (int i = 0; i < cMaxFusedLayers; i++)
+		{
+			final int lLayerIndex = pRenderLayerIndices[i < pRenderLayerIndices.length	? i
+																																									: 0];
+			lArgs[a++] = mCLVolumeImages[lLayerIndex];
+			lArgs[a++] = mCLTransferFunctionImages[lLayerIndex];
+			lArgs[a++] = getBrickMaxImage(lLayerIndex);
+		}
+
+		mCLDevice.setArgs(mFusedMaxProjectionRenderKernel, lArgs);
+		final long lKernelStartTime = System.nanoTime();
+		mCLDevice.run(mFusedMaxProjectionRenderKernel,
+									getRenderWidth(),
+									getRenderHeight());
+		mMetricsRegistry.recordLatency(	MetricsRegistry.cFusedLayersKernel,
+																		System.nanoTime() - lKernelStartTime);
+
+		mFusedAwayLayers[pRenderLayerIndices[0]] = false;
+		copyRenderBufferToTexture(pRenderLayerIndices[0]);
+
+		for (int i = 1; i < pRenderLayerIndices.length; i++)
+			if (!mFusedAwayLayers[pRenderLayerIndices[i]])
+			{
+				clearTexture(pRenderLayerIndices[i]);
+				mFusedAwayLayers[pRenderLayerIndices[i]] = true;
+			}
+	}
+
+	private void copyRenderBufferToTexture(final int pRenderLayerIndex)
+	{
 		if (mTransferBuffer == null || mTransferBuffer.getValidBytes() != mCLRenderBuffers[pRenderLayerIndex].getByteCount())
 		{
 			if (mTransferBuffer != null)
@@ -524,37 +1009,140 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 																		mTransferBuffer);
 		copyBufferToTexture(pRenderLayerIndex,
 												mTransferBuffer.getByteBuffer());
-
 	}
 
 	private void runProcessorHook(final int pRenderLayerIndex)
 	{
+		synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
+		{
+			mProcessorScheduler.volumeArrived(mProcessorsMap.values(),
+																				getClass(),
+																				pRenderLayerIndex,
+																				getVolumeSizeX(),
+																				getVolumeSizeY(),
+																				getVolumeSizeZ(),
+																				new VolumeImageLayerData(mCLVolumeImages[pRenderLayerIndex],
+																																	false));
+		}
+	}
 
-		for (final Processor<?> lProcessor : mProcessorsMap.values())
-			if (lProcessor.isCompatibleProcessor(getClass()))
-			{
-				synchronized (getSetVolumeDataBufferLock(pRenderLayerIndex))
-				{
-					if (lProcessor instanceof OpenCLProcessor)
-					{
-						final OpenCLProcessor<?> lOpenCLProcessor = (OpenCLProcessor<?>) lProcessor;
-						lOpenCLProcessor.setVolumeBuffers(mCLVolumeImages[pRenderLayerIndex]);
-					}
+	/**
+	 * Volume image of a layer for processors, snapshots are device-side copies
+	 * released once the processors using them are done.
+	 */
+	private class VolumeImageLayerData implements
+																		ProcessorScheduler.LayerData
+	{
+		private final CLImage3D mVolumeImage;
+		private final boolean mIsSnapshot;
 
-					final long lStartTimeNs = System.nanoTime();
-					lProcessor.process(	pRenderLayerIndex,
-															getVolumeSizeX(),
-															getVolumeSizeY(),
-															getVolumeSizeZ());
-					final long lStopTimeNs = System.nanoTime();
-					final double lElapsedTimeInMilliseconds = 0.001 * 0.001 * (lStopTimeNs - lStartTimeNs);
-					/*
-					 * System.out.format("Elapsedtime in '%s' is %g ms \n",
-					 * lOpenCLProcessor.getClass().getSimpleName(),
-					 * lElapsedTimeInMilliseconds);/*
-					 */
-				}
+		VolumeImageLayerData(	final CLImage3D pVolumeImage,
+													final boolean pIsSnapshot)
+		{
+			mVolumeImage = pVolumeImage;
+			mIsSnapshot = pIsSnapshot;
+		}
+
+		@Override
+		public void attach(final Processor<?> pProcessor)
+		{
+			if (pProcessor instanceof OpenCLProcessor)
+			{
+				final OpenCLProcessor<?> lOpenCLProcessor = (OpenCLProcessor<?>) pProcessor;
+				lOpenCLProcessor.setVolumeBuffers(mVolumeImage);
 			}
+		}
+
+		@Override
+		public ProcessorScheduler.LayerData snapshot()
+		{
+			final CLImageFormat lFormat = mVolumeImage.getFormat();
+			final CLImage3D lSnapshotImage = mCLDevice.createGenericImage3D(mVolumeImage.getWidth(),
+																																			mVolumeImage.getHeight(),
+																																			mVolumeImage.getDepth(),
+																																			lFormat.getChannelOrder(),
+																																			lFormat.getChannelDataType());
+			mVolumeImage.copyTo(mCLDevice.getQueue(), lSnapshotImage)
+									.waitFor();
+			return new VolumeImageLayerData(lSnapshotImage, true);
+		}
+
+		@Override
+		public ProcessingGraph<?> createProcessingGraph()
+		{
+			return mProcessingBackend.createProcessingGraph(mVolumeImage);
+		}
+
+		@Override
+		public void release()
+		{
+			if (mIsSnapshot)
+				mVolumeImage.release();
+		}
+	}
+
+	@Override
+	protected long[] getMaximalVolumeDimensions()
+	{
+		if (mCLDevice == null || mCLDevice.mCLDevice == null)
+			return super.getMaximalVolumeDimensions();
+
+		return new long[]
+		{ mCLDevice.mCLDevice.getImage3DMaxWidth(),
+			mCLDevice.mCLDevice.getImage3DMaxHeight(),
+			mCLDevice.mCLDevice.getImage3DMaxDepth() };
+	}
+
+	@Override
+	protected long getMaximalDeviceVolumeSizeInBytes()
+	{
+		if (mCLDevice == null || mCLDevice.mCLDevice == null)
+			return super.getMaximalDeviceVolumeSizeInBytes();
+
+		return mCLDevice.mCLDevice.getMaxMemAllocSize();
+	}
+
+	@Override
+	public boolean isVolumeDataBufferRegionSupported()
+	{
+		return true;
+	}
+
+	/**
+	 * Sets whether volume data is uploaded through pinned staging buffers with
+	 * non-blocking writes (default), or with blocking writes straight from the
+	 * volume data buffer.
+	 *
+	 * @param pAsynchronousUpload
+	 *          true for staged non-blocking uploads
+	 */
+	public void setAsynchronousUpload(boolean pAsynchronousUpload)
+	{
+		mAsynchronousUpload = pAsynchronousUpload;
+	}
+
+	public boolean isAsynchronousUpload()
+	{
+		return mAsynchronousUpload;
+	}
+
+	/**
+	 * Sets whether visible max projection layers are rendered together by a
+	 * single kernel that traces each ray once for up to four layers (default).
+	 * Fused rendering is only used when at least two layers qualify.
+	 *
+	 * @param pFusedLayerRendering
+	 *          true to fuse layers
+	 */
+	public void setFusedLayerRendering(boolean pFusedLayerRendering)
+	{
+		mFusedLayerRendering = pFusedLayerRendering;
+		notifyChangeOfVolumeRenderingParameters();
+	}
+
+	public boolean isFusedLayerRendering()
+	{
+		return mFusedLayerRendering;
 	}
 
 	@Override
@@ -564,6 +1152,8 @@ public class OpenCLVolumeRenderer extends ClearGLVolumeRenderer	implements
 		try
 		{
 			super.close();
+			if (mProcessingBackend != null)
+				mProcessingBackend.getBufferPool().close();
 			mCLDevice.close();
 		}
 		finally
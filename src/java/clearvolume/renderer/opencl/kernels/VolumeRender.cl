@@ -17,6 +17,12 @@ volume and iso surface rendering
 typedef unsigned int  uint;
 typedef unsigned char uchar;
 
+// sampler for the brick max grid, indexed by brick:
+__constant sampler_t brickSampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST ;
+
+// sampler for transfer functions looked up outside of kernels:
+__constant sampler_t layerTransferSampler = CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR ;
+
 // random number generator for dithering
 inline
 float random(uint x, uint y)
@@ -59,6 +65,24 @@ int intersectBox(float4 r_o, float4 r_d, float4 boxmin, float4 boxmax, float *tn
 }
 
 
+// number of steps needed to leave the brick containing pos if no value of that
+// brick exceeds the threshold, 0 if the brick must be sampled. bricksize is the
+// extent of a brick in normalized coordinates:
+inline
+int emptyBrickSteps(__read_only image3d_t brickmax, const float4 bricksize, const float4 pos, const float4 vecstep, const float threshold)
+{
+  const float4 cell = floor(pos/bricksize);
+  if (read_imagef(brickmax, brickSampler, cell+0.5f).x > threshold)
+    return 0;
+
+  // exit distance along each axis, in steps (infinite along axes the ray is parallel to):
+  const float4 lo = cell*bricksize;
+  const float4 hi = lo+bricksize;
+  const float4 texit = fmax((lo-pos)/vecstep,(hi-pos)/vecstep);
+  return max(1,(int)ceil(fmin(fmin(fmin(texit.x,texit.y),texit.z),65536.f)));
+}
+
+
 // convert float4 into uint:
 inline
 uint rgbaFloatToInt(float4 rgba)
@@ -122,7 +146,9 @@ maxproj_render(								__global uint	*d_output,
 									__read_only image2d_t 	transferColor4,
 									__constant float* 		invP,
 									__constant float* 		invM,
-									__read_only image3d_t 	volume)
+									__read_only image3d_t 	volume,
+													const	int   bricklength,
+									__read_only image3d_t 	brickmax)
 {
 	// samplers:
   const sampler_t volumeSampler   =   CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR ;
@@ -211,12 +237,25 @@ maxproj_render(								__global uint	*d_output,
 
   // Loop unrolling setup: 
   const int unrolledmaxsteps = (maxsteps/LOOPUNROLL);
+  const int nsteps = unrolledmaxsteps*(LOOPUNROLL-1);
+
+  // brick extent in normalized coordinates:
+  const float4 bricksize = (float4)(bricklength/(float)get_image_width(volume), bricklength/(float)get_image_height(volume), bricklength/(float)get_image_depth(volume), 1.f);
   
-  // raycasting loop:
+  // raycasting loop, bricks below the range minimum are skipped since all their values map to zero:
   float maxp = 0.0f;
-	for(int i=0; i<unrolledmaxsteps; i++) 
+	int i = 0;
+	while (i<nsteps)
 	{
-		for(int j=1; j<LOOPUNROLL; j++)
+		const int skip = min(nsteps-i, emptyBrickSteps(brickmax, bricksize, pos, vecstep, trangemin));
+		if (skip>0)
+		{
+			pos+=skip*vecstep;
+			i+=skip;
+			continue;
+		}
+		
+		for(int j=1; j<LOOPUNROLL && i<nsteps; j++, i++)
 		{
 	  	maxp = fmax(maxp,read_imagef(volume, volumeSampler, pos).x);
 	  	pos+=vecstep;
@@ -240,6 +279,185 @@ maxproj_render(								__global uint	*d_output,
 }
 
 
+// maps a layer's max projection through its transfer function, params holds the layer's
+// brightness, range minimum, range maximum and gamma:
+inline
+float4 maxprojColor(__read_only image2d_t transferColor4, __constant float* params, const float maxp)
+{
+	// convert range bounds to linear map:
+  const float ta = 1.f/(params[2]-params[1]);
+  const float tb = params[1]/(params[1]-params[2]); 
+
+  // Mapping to transfert function range and gamma correction: 
+  const float mappedVal = clamp(pow(mad(ta,maxp,tb),params[3]),0.f,1.f);
+
+	// lookup in transfer function texture:
+  float4 color = params[0]*read_imagef(transferColor4,layerTransferSampler, (float2)(mappedVal,0.0f));
+  
+  // Alpha pre-multiply:
+  color.x = color.x*color.w;
+  color.y = color.y*color.w;
+  color.z = color.z*color.w;
+  
+  return color;
+}
+
+
+// Render function,
+// max projection of up to four layers sharing the same rays, each layer goes through its own
+// transfer function and the layer colors are combined by their maximum, as the layer textures are:
+__kernel void
+maxproj_fused_render(					__global uint	*d_output, 
+													const	uint  imageW, 
+													const	uint  imageH,
+													const	int   nlayers,
+									__constant float* 		layerparams,
+													const	int   maxsteps,
+													const	float dithering,
+													const	float phase,
+													const	int   clear,
+									__constant float* 		invP,
+									__constant float* 		invM,
+													const	int   bricklength,
+									__read_only image3d_t 	volume0,
+									__read_only image2d_t 	transferColor0,
+									__read_only image3d_t 	brickmax0,
+									__read_only image3d_t 	volume1,
+									__read_only image2d_t 	transferColor1,
+									__read_only image3d_t 	brickmax1,
+									__read_only image3d_t 	volume2,
+									__read_only image2d_t 	transferColor2,
+									__read_only image3d_t 	brickmax2,
+									__read_only image3d_t 	volume3,
+									__read_only image2d_t 	transferColor3,
+									__read_only image3d_t 	brickmax3)
+{
+	// samplers:
+  const sampler_t volumeSampler   =   CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR ;
+
+  // box bounds:
+  const float4 boxMin = (float4)(-1.0f, -1.0f, -1.0f,-1.0f);
+  const float4 boxMax = (float4)(1.0f, 1.0f, 1.0f,1.0f);
+
+	// thread int coordinates:
+  const uint x = get_global_id(0);
+  const uint y = get_global_id(1);
+  
+  if ((x >= imageW) || (y >= imageH)) return;
+  
+  // thread float coordinates:
+  const float u = (x / (float) imageW)*2.0f-1.0f;
+  const float v = (y / (float) imageH)*2.0f-1.0f;
+
+  // front and back:
+  const float4 front = (float4)(u,v,-1.f,1.f);
+  const float4 back = (float4)(u,v,1.f,1.f);
+  
+  // calculate eye ray in world space
+  float4 orig0, orig;
+  float4 direc0, direc;
+  
+  orig0.x = dot(front, ((float4)(invP[0],invP[1],invP[2],invP[3])));
+  orig0.y = dot(front, ((float4)(invP[4],invP[5],invP[6],invP[7])));
+  orig0.z = dot(front, ((float4)(invP[8],invP[9],invP[10],invP[11])));
+  orig0.w = dot(front, ((float4)(invP[12],invP[13],invP[14],invP[15])));
+
+  orig0 *= 1.f/orig0.w;
+
+  orig.x = dot(orig0, ((float4)(invM[0],invM[1],invM[2],invM[3])));
+  orig.y = dot(orig0, ((float4)(invM[4],invM[5],invM[6],invM[7])));
+  orig.z = dot(orig0, ((float4)(invM[8],invM[9],invM[10],invM[11])));
+  orig.w = dot(orig0, ((float4)(invM[12],invM[13],invM[14],invM[15])));
+
+  orig *= 1.f/orig.w;
+  
+  direc0.x = dot(back, ((float4)(invP[0],invP[1],invP[2],invP[3])));
+  direc0.y = dot(back, ((float4)(invP[4],invP[5],invP[6],invP[7])));
+  direc0.z = dot(back, ((float4)(invP[8],invP[9],invP[10],invP[11])));
+  direc0.w = dot(back, ((float4)(invP[12],invP[13],invP[14],invP[15])));
+
+  direc0 *= 1.f/direc0.w;
+
+  direc0 = normalize(direc0-orig0);
+
+  direc.x = dot(direc0, ((float4)(invM[0],invM[1],invM[2],invM[3])));
+  direc.y = dot(direc0, ((float4)(invM[4],invM[5],invM[6],invM[7])));
+  direc.z = dot(direc0, ((float4)(invM[8],invM[9],invM[10],invM[11])));
+  direc.w = 0.0f;
+
+ 
+  // find intersection with box
+  float tnear, tfar;
+  const int hit = intersectBox(orig,direc, boxMin, boxMax, &tnear, &tfar);
+  if (!hit || tfar<=0) 
+  {
+  	d_output[x+imageW*y] = 0.f;
+  	return;
+  }
+  
+  // clamp to near plane:
+  if (tnear < 0.0f) tnear = 0.0f;     
+
+  // compute step size:
+  const float tstep = fabs(tnear-tfar)/((maxsteps/LOOPUNROLL)*LOOPUNROLL);
+  
+  // apply phase:
+  orig += phase*tstep*direc;
+  
+  // randomize origin point a bit:
+  const uint entropy = (uint)( 6779514*fast_length(orig) + 6257327*fast_length(direc) );
+  orig += dithering*tstep*random(entropy+x,entropy+y)*direc;
+	
+  // precompute vectors: 
+  const float4 vecstep = 0.5f*tstep*direc;
+  float4 pos = orig*0.5f+0.5f + tnear*0.5f*direc;
+
+  // Loop unrolling setup: 
+  const int unrolledmaxsteps = (maxsteps/LOOPUNROLL);
+  const int nsteps = unrolledmaxsteps*(LOOPUNROLL-1);
+
+  // brick extent in normalized coordinates, all layers have the same dimensions:
+  const float4 bricksize = (float4)(bricklength/(float)get_image_width(volume0), bricklength/(float)get_image_height(volume0), bricklength/(float)get_image_depth(volume0), 1.f);
+  
+  // raycasting loop, a brick is skipped only if it is below the range minimum in all layers:
+  float maxp0 = 0.0f, maxp1 = 0.0f, maxp2 = 0.0f, maxp3 = 0.0f;
+	int i = 0;
+	while (i<nsteps)
+	{
+		int skip = emptyBrickSteps(brickmax0, bricksize, pos, vecstep, layerparams[1]);
+		if (nlayers>1 && skip>0) skip = min(skip, emptyBrickSteps(brickmax1, bricksize, pos, vecstep, layerparams[5]));
+		if (nlayers>2 && skip>0) skip = min(skip, emptyBrickSteps(brickmax2, bricksize, pos, vecstep, layerparams[9]));
+		if (nlayers>3 && skip>0) skip = min(skip, emptyBrickSteps(brickmax3, bricksize, pos, vecstep, layerparams[13]));
+		skip = min(nsteps-i, skip);
+		if (skip>0)
+		{
+			pos+=skip*vecstep;
+			i+=skip;
+			continue;
+		}
+		
+		for(int j=1; j<LOOPUNROLL && i<nsteps; j++, i++)
+		{
+	  	maxp0 = fmax(maxp0,read_imagef(volume0, volumeSampler, pos).x);
+	  	if (nlayers>1) maxp1 = fmax(maxp1,read_imagef(volume1, volumeSampler, pos).x);
+	  	if (nlayers>2) maxp2 = fmax(maxp2,read_imagef(volume2, volumeSampler, pos).x);
+	  	if (nlayers>3) maxp3 = fmax(maxp3,read_imagef(volume3, volumeSampler, pos).x);
+	  	pos+=vecstep;
+		}
+	}
+	
+	// per layer colors:
+  float4 color = maxprojColor(transferColor0, layerparams, maxp0);
+  if (nlayers>1) color = fmax(color, maxprojColor(transferColor1, layerparams+4, maxp1));
+  if (nlayers>2) color = fmax(color, maxprojColor(transferColor2, layerparams+8, maxp2));
+  if (nlayers>3) color = fmax(color, maxprojColor(transferColor3, layerparams+12, maxp3));
+  
+  // write output color:
+  d_output[x + y*imageW] = rgbaFloatToIntAndMax(clear*d_output[x + y*imageW],color);
+
+}
+
+
 /****************************************************************************************************************/
 __kernel void isosurface_render(
 								__global uint	*d_output, 
@@ -259,7 +477,9 @@ __kernel void isosurface_render(
 								__read_only image2d_t 	transferColor4,
 								__constant float* 		invP,
 								__constant float* 		invM,
-								__read_only image3d_t 	volume
+								__read_only image3d_t 	volume,
+												const	int   bricklength,
+								__read_only image3d_t 	brickmax
 								)
 {
 
@@ -360,10 +580,26 @@ __kernel void isosurface_render(
   
   bool hitIso = false;
 
+  // brick extent in normalized coordinates:
+  const float4 bricksize = (float4)(bricklength/(float)get_image_width(volume), bricklength/(float)get_image_height(volume), bricklength/(float)get_image_depth(volume), 1.f);
+
+  // bricks below the iso value cannot be crossed from below:
+  const float skipthreshold = isGreater ? -1.f : isoVal;
+  const int nsteps = unrolledmaxsteps*(LOOPUNROLL-1);
+
   // first pass:
-  for(int i=0; i<unrolledmaxsteps; i++) 
+  int i = 0;
+  while (i<nsteps && !hitIso)
   	{
-  	  for(int j=1; j<LOOPUNROLL; j++)
+  	  const int skip = min(nsteps-i, emptyBrickSteps(brickmax, bricksize, pos, vecstep, skipthreshold));
+  	  if (skip>0)
+  	  {
+  	    pos+=skip*vecstep;
+  	    i+=skip;
+  	    continue;
+  	  }
+
+  	  for(int j=1; j<LOOPUNROLL && i<nsteps; j++, i++)
   		{
   		  newVal = read_imagef(volume, volumeSampler, pos).x;
   		  if ((newVal>isoVal) != isGreater)
@@ -374,7 +610,6 @@ __kernel void isosurface_render(
   		  
   		  pos+=vecstep;
   		}
-  	  if (hitIso) break;
   	}
  
   
@@ -483,6 +718,158 @@ __kernel void isosurface_render(
 
 
 
+/****************************************************************************************************************/
+// Render function,
+// front-to-back alpha compositing of the transfer function colors along each ray, rays stop as soon as
+// the accumulated opacity reaches opacitythreshold since nothing behind can still be seen:
+__kernel void
+composite_render(							__global uint	*d_output, 
+													const	uint  imageW, 
+													const	uint  imageH,
+													const	float brightness,
+													const	float trangemin, 
+													const	float trangemax, 
+													const	float gamma,
+													const	int   maxsteps,
+													const	float dithering,
+													const	float phase,
+													const	int   clear,
+													const	float opacitythreshold,
+									__read_only image2d_t 	transferColor4,
+									__constant float* 		invP,
+									__constant float* 		invM,
+									__read_only image3d_t 	volume,
+													const	int   bricklength,
+									__read_only image3d_t 	brickmax)
+{
+	// samplers:
+  const sampler_t volumeSampler   =   CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR ;
+	const sampler_t transferSampler =   CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR ;
+
+	// convert range bounds to linear map:
+  const float ta = 1.f/(trangemax-trangemin);
+  const float tb = trangemin/(trangemin-trangemax); 
+
+  // box bounds:
+  const float4 boxMin = (float4)(-1.0f, -1.0f, -1.0f,-1.0f);
+  const float4 boxMax = (float4)(1.0f, 1.0f, 1.0f,1.0f);
+
+	// thread int coordinates:
+  const uint x = get_global_id(0);
+  const uint y = get_global_id(1);
+  
+  if ((x >= imageW) || (y >= imageH)) return;
+  
+  // thread float coordinates:
+  const float u = (x / (float) imageW)*2.0f-1.0f;
+  const float v = (y / (float) imageH)*2.0f-1.0f;
+
+  // front and back:
+  const float4 front = (float4)(u,v,-1.f,1.f);
+  const float4 back = (float4)(u,v,1.f,1.f);
+  
+  // calculate eye ray in world space
+  float4 orig0, orig;
+  float4 direc0, direc;
+  
+  orig0.x = dot(front, ((float4)(invP[0],invP[1],invP[2],invP[3])));
+  orig0.y = dot(front, ((float4)(invP[4],invP[5],invP[6],invP[7])));
+  orig0.z = dot(front, ((float4)(invP[8],invP[9],invP[10],invP[11])));
+  orig0.w = dot(front, ((float4)(invP[12],invP[13],invP[14],invP[15])));
+
+  orig0 *= 1.f/orig0.w;
+
+  orig.x = dot(orig0, ((float4)(invM[0],invM[1],invM[2],invM[3])));
+  orig.y = dot(orig0, ((float4)(invM[4],invM[5],invM[6],invM[7])));
+  orig.z = dot(orig0, ((float4)(invM[8],invM[9],invM[10],invM[11])));
+  orig.w = dot(orig0, ((float4)(invM[12],invM[13],invM[14],invM[15])));
+
+  orig *= 1.f/orig.w;
+  
+  direc0.x = dot(back, ((float4)(invP[0],invP[1],invP[2],invP[3])));
+  direc0.y = dot(back, ((float4)(invP[4],invP[5],invP[6],invP[7])));
+  direc0.z = dot(back, ((float4)(invP[8],invP[9],invP[10],invP[11])));
+  direc0.w = dot(back, ((float4)(invP[12],invP[13],invP[14],invP[15])));
+
+  direc0 *= 1.f/direc0.w;
+
+  direc0 = normalize(direc0-orig0);
+
+  direc.x = dot(direc0, ((float4)(invM[0],invM[1],invM[2],invM[3])));
+  direc.y = dot(direc0, ((float4)(invM[4],invM[5],invM[6],invM[7])));
+  direc.z = dot(direc0, ((float4)(invM[8],invM[9],invM[10],invM[11])));
+  direc.w = 0.0f;
+
+ 
+  // find intersection with box
+  float tnear, tfar;
+  const int hit = intersectBox(orig,direc, boxMin, boxMax, &tnear, &tfar);
+  if (!hit || tfar<=0) 
+  {
+  	d_output[x+imageW*y] = 0.f;
+  	return;
+  }
+  
+  // clamp to near plane:
+  if (tnear < 0.0f) tnear = 0.0f;     
+
+  // compute step size:
+  const float tstep = fabs(tnear-tfar)/((maxsteps/LOOPUNROLL)*LOOPUNROLL);
+  
+  // apply phase:
+  orig += phase*tstep*direc;
+  
+  // randomize origin point a bit:
+  const uint entropy = (uint)( 6779514*fast_length(orig) + 6257327*fast_length(direc) );
+  orig += dithering*tstep*random(entropy+x,entropy+y)*direc;
+	
+  // precompute vectors: 
+  const float4 vecstep = 0.5f*tstep*direc;
+  float4 pos = orig*0.5f+0.5f + tnear*0.5f*direc;
+
+  // Loop unrolling setup: 
+  const int unrolledmaxsteps = (maxsteps/LOOPUNROLL);
+  const int nsteps = unrolledmaxsteps*(LOOPUNROLL-1);
+
+  // brick extent in normalized coordinates:
+  const float4 bricksize = (float4)(bricklength/(float)get_image_width(volume), bricklength/(float)get_image_height(volume), bricklength/(float)get_image_depth(volume), 1.f);
+
+  // transfer function opacities are per voxel, the step length in voxels corrects them:
+  const float voxelstep = 0.5f*tstep*max(max(get_image_width(volume),get_image_height(volume)),get_image_depth(volume));
+
+  // bricks below the range minimum can only be skipped if the bottom of the transfer function is transparent:
+  const float skipthreshold = read_imagef(transferColor4,transferSampler, (float2)(0.0f,0.0f)).w>0 ? -1.f : trangemin;
+  
+  // raycasting loop, accumulates premultiplied colors front to back:
+  float4 acc = (float4)(0.f,0.f,0.f,0.f);
+	int i = 0;
+	while (i<nsteps && acc.w<opacitythreshold)
+	{
+		const int skip = min(nsteps-i, emptyBrickSteps(brickmax, bricksize, pos, vecstep, skipthreshold));
+		if (skip>0)
+		{
+			pos+=skip*vecstep;
+			i+=skip;
+			continue;
+		}
+		
+		for(int j=1; j<LOOPUNROLL && i<nsteps; j++, i++)
+		{
+			const float mappedVal = clamp(pow(fmax(0.f,mad(ta,read_imagef(volume, volumeSampler, pos).x,tb)),gamma),0.f,1.f);
+			const float4 color = read_imagef(transferColor4,transferSampler, (float2)(mappedVal,0.0f));
+			const float alpha = (1.f-acc.w)*(1.f-pow(1.f-clamp(color.w,0.f,1.f),voxelstep));
+			acc.xyz += alpha*color.xyz;
+			acc.w += alpha;
+	  	pos+=vecstep;
+		}
+	}
+	
+  // write output color:
+  d_output[x + y*imageW] = rgbaFloatToIntAndMax(clear*d_output[x + y*imageW],brightness*acc);
+
+}
+
+
 
 // clears a buffer
 __kernel void
@@ -5,9 +5,14 @@ import static org.bridj.Pointer.pointerToSizeTs;
 import java.lang.reflect.Method;
 
 import org.bridj.Pointer;
+import org.bridj.PointerIO;
 
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
 import com.nativelibs4java.opencl.CLEvent;
 import com.nativelibs4java.opencl.CLImage;
+import com.nativelibs4java.opencl.CLMem.Flags;
+import com.nativelibs4java.opencl.CLMem.Usage;
 import com.nativelibs4java.opencl.CLQueue;
 
 public class JavaCLUtils
@@ -56,6 +61,59 @@ public class JavaCLUtils
 		}
 	}
 
+	public static Method sCreateBufferMethod;
+	static
+	{
+		try
+		{
+			sCreateBufferMethod = CLContext.class.getDeclaredMethod("createBuffer",
+																															PointerIO.class,
+																															Pointer.class,
+																															long.class,
+																															int.class,
+																															boolean.class);
+			sCreateBufferMethod.setAccessible(true);
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a read-write buffer allocated by the driver in host accessible
+	 * memory (CL_MEM_ALLOC_HOST_PTR), which drivers pin so that mapping it gives
+	 * page-locked memory. Falls back to a plain buffer if the flags cannot be
+	 * passed.
+	 *
+	 * @param pCLContext
+	 *          OpenCL context
+	 * @param pSizeInBytes
+	 *          size in bytes
+	 * @return buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public static CLBuffer<Byte> createHostAllocatedByteBuffer(	CLContext pCLContext,
+																															long pSizeInBytes)
+	{
+		if (sCreateBufferMethod != null)
+			try
+			{
+				final int lFlags = (int) (Usage.InputOutput.getIntFlags() | Flags.AllocHostPtr.value());
+				return (CLBuffer<Byte>) sCreateBufferMethod.invoke(	pCLContext,
+																														PointerIO.getByteInstance(),
+																														null,
+																														pSizeInBytes,
+																														lFlags,
+																														false);
+			}
+			catch (final Throwable e)
+			{
+				e.printStackTrace();
+			}
+		return pCLContext.createByteBuffer(Usage.InputOutput, pSizeInBytes);
+	}
+
 	public static CLEvent readImage3D(CLImage pCLImage,
 																		CLQueue pCLQueue,
 																		Pointer<?> pPointer,
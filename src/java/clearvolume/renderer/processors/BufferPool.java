@@ -0,0 +1,146 @@
+package clearvolume.renderer.processors;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import clearvolume.ClearVolumeCloseable;
+
+/**
+ * Class BufferPool
+ *
+ * Pool of buffers (device or host) reused by processors and the intermediates
+ * of processing graphs from one volume to the next, instead of each processor
+ * allocating its own. Buffers are pooled by length, a given number of free
+ * buffers is kept per length.
+ *
+ * @param <B>
+ *          buffer type
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public abstract class BufferPool<B> implements ClearVolumeCloseable
+{
+	private static final int cDefaultMaxFreeBuffersPerLength = 8;
+
+	private final HashMap<Long, ArrayDeque<B>> mFreeBuffers = new HashMap<>();
+	private final int mMaxFreeBuffersPerLength;
+	private volatile long mNumberOfAllocations;
+
+	public BufferPool()
+	{
+		this(cDefaultMaxFreeBuffersPerLength);
+	}
+
+	public BufferPool(final int pMaxFreeBuffersPerLength)
+	{
+		mMaxFreeBuffersPerLength = pMaxFreeBuffersPerLength;
+	}
+
+	/**
+	 * Allocates a new buffer.
+	 *
+	 * @param pLength
+	 *          length in elements
+	 * @return buffer
+	 */
+	protected abstract B allocate(long pLength);
+
+	/**
+	 * Returns the length of a buffer in elements.
+	 *
+	 * @param pBuffer
+	 *          buffer
+	 * @return length
+	 */
+	protected abstract long getLength(B pBuffer);
+
+	/**
+	 * Frees a buffer that leaves the pool.
+	 *
+	 * @param pBuffer
+	 *          buffer
+	 */
+	protected abstract void free(B pBuffer);
+
+	/**
+	 * Returns a free buffer of the given length, allocating one if there is none.
+	 *
+	 * @param pLength
+	 *          length in elements
+	 * @return buffer
+	 */
+	public B acquire(final long pLength)
+	{
+		synchronized (this)
+		{
+			final ArrayDeque<B> lFreeBuffers = mFreeBuffers.get(pLength);
+			if (lFreeBuffers != null && !lFreeBuffers.isEmpty())
+				return lFreeBuffers.pop();
+			mNumberOfAllocations++;
+		}
+		return allocate(pLength);
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 *
+	 * @param pBuffer
+	 *          buffer obtained from {@link #acquire(long)}
+	 */
+	public void release(final B pBuffer)
+	{
+		if (pBuffer == null)
+			return;
+
+		final long lLength = getLength(pBuffer);
+		synchronized (this)
+		{
+			ArrayDeque<B> lFreeBuffers = mFreeBuffers.get(lLength);
+			if (lFreeBuffers == null)
+			{
+				lFreeBuffers = new ArrayDeque<>();
+				mFreeBuffers.put(lLength, lFreeBuffers);
+			}
+			if (lFreeBuffers.size() < mMaxFreeBuffersPerLength)
+			{
+				lFreeBuffers.push(pBuffer);
+				return;
+			}
+		}
+		free(pBuffer);
+	}
+
+	/**
+	 * Returns the number of buffers allocated so far.
+	 *
+	 * @return number of allocations
+	 */
+	public long getNumberOfAllocations()
+	{
+		return mNumberOfAllocations;
+	}
+
+	/**
+	 * Frees all free buffers, for example when the volume dimensions change.
+	 * Buffers currently acquired are not affected.
+	 */
+	public void clear()
+	{
+		final ArrayDeque<B> lBuffersToFree = new ArrayDeque<>();
+		synchronized (this)
+		{
+			for (final ArrayDeque<B> lFreeBuffers : mFreeBuffers.values())
+				lBuffersToFree.addAll(lFreeBuffers);
+			mFreeBuffers.clear();
+		}
+		for (final B lBuffer : lBuffersToFree)
+			free(lBuffer);
+	}
+
+	@Override
+	public void close()
+	{
+		clear();
+	}
+}
@@ -0,0 +1,373 @@
+package clearvolume.renderer.processors;
+
+import java.util.Arrays;
+
+import clearvolume.renderer.processors.JavaProcessor.PlaneReduction;
+
+/**
+ * Class FFTPlan3D
+ *
+ * Precomputed plan for in place 3D fast Fourier transforms of complex volumes
+ * whose dimensions are products of powers of 2, 3 and 5. Factorizations and
+ * twiddle factors are computed once per plan so that a plan can be reused for
+ * all volumes of the same shape. Complex values are interleaved (real, imaginary), X fastest,
+ * then Y, then Z. Transforms along X and Y run plane by plane, and transforms
+ * along Z row by row, in parallel on the pool of the Java processors.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class FFTPlan3D
+{
+	private final int mWidth, mHeight, mDepth;
+	private final LinePlan mLinePlanX, mLinePlanY, mLinePlanZ;
+
+	// largest array length that virtual machines reliably allocate:
+	private static final long cMaxArrayLength = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Creates a plan for complex volumes of given dimensions.
+	 *
+	 * @param pWidth
+	 *          width, a product of powers of 2, 3 and 5
+	 * @param pHeight
+	 *          height, a product of powers of 2, 3 and 5
+	 * @param pDepth
+	 *          depth, a product of powers of 2, 3 and 5
+	 * @throws IllegalArgumentException
+	 *           if a dimension has another prime factor, or if the volume does
+	 *           not fit in a float array
+	 */
+	public FFTPlan3D(final int pWidth, final int pHeight, final int pDepth)
+	{
+		if (!fitsInArray(pWidth, pHeight, pDepth))
+			throw new IllegalArgumentException(String.format("Complex volume of %dx%dx%d does not fit in a float array",
+																												pWidth,
+																												pHeight,
+																												pDepth));
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = pDepth;
+		mLinePlanX = new LinePlan(pWidth);
+		mLinePlanY = pHeight == pWidth ? mLinePlanX
+																	: new LinePlan(pHeight);
+		mLinePlanZ = pDepth == pWidth ? mLinePlanX
+																: pDepth == pHeight	? mLinePlanY
+																										: new LinePlan(pDepth);
+	}
+
+	/**
+	 * Returns the smallest power of two larger or equal to a given length.
+	 *
+	 * @param pLength
+	 *          length, at least 1
+	 * @return power of two
+	 */
+	public static int nextPowerOfTwo(final int pLength)
+	{
+		return pLength <= 1 ? 1 : Integer.highestOneBit(pLength - 1) << 1;
+	}
+
+	/**
+	 * Returns the smallest product of powers of 2, 3 and 5 larger or equal to a
+	 * given length. Padding to such lengths wastes much less than padding to
+	 * powers of two, at most about a quarter instead of up to a half along each
+	 * axis.
+	 *
+	 * @param pLength
+	 *          length, at least 1
+	 * @return smallest length supported by plans
+	 */
+	public static int nextFastLength(final int pLength)
+	{
+		int lLength = Math.max(1, pLength);
+		while (!isFastLength(lLength))
+			lLength++;
+		return lLength;
+	}
+
+	/**
+	 * Returns whether a complex volume of given dimensions fits in a float array,
+	 * computed without overflow.
+	 *
+	 * @param pWidth
+	 *          width
+	 * @param pHeight
+	 *          height
+	 * @param pDepth
+	 *          depth
+	 * @return true if 2*width*height*depth floats can be allocated
+	 */
+	public static boolean fitsInArray(final long pWidth,
+																		final long pHeight,
+																		final long pDepth)
+	{
+		return pWidth > 0 && pHeight > 0
+						&& pDepth > 0
+						&& pWidth <= cMaxArrayLength / 2 / pHeight / pDepth;
+	}
+
+	private static boolean isFastLength(int pLength)
+	{
+		for (final int lFactor : new int[]
+		{ 2, 3, 5 })
+			while (pLength % lFactor == 0)
+				pLength /= lFactor;
+		return pLength == 1;
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	/**
+	 * Returns the number of complex values of the volumes of this plan, arrays
+	 * passed to the transforms have twice this length. Plans are only created
+	 * for volumes whose arrays can be allocated, so this does not overflow.
+	 *
+	 * @return number of complex values
+	 */
+	public int getVolume()
+	{
+		return mWidth * mHeight * mDepth;
+	}
+
+	/**
+	 * Computes the forward transform in place.
+	 *
+	 * @param pData
+	 *          interleaved complex volume
+	 */
+	public void forward(final float[] pData)
+	{
+		transform(pData, false);
+	}
+
+	/**
+	 * Computes the inverse transform in place, normalized so that it undoes
+	 * {@link #forward(float[])}.
+	 *
+	 * @param pData
+	 *          interleaved complex volume
+	 */
+	public void inverse(final float[] pData)
+	{
+		transform(pData, true);
+	}
+
+	private void transform(final float[] pData, final boolean pInverse)
+	{
+		if (pData.length != 2 * getVolume())
+			throw new IllegalArgumentException("Expected " + 2
+																					* getVolume()
+																					+ " floats but got "
+																					+ pData.length);
+
+		final int Nx = mWidth, Ny = mHeight, Nz = mDepth;
+
+		// along X and Y, plane by plane:
+		JavaProcessor.reducePlanes(Nz, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				final float[] lLine = new float[2 * Ny];
+				final float[] lScratch = new float[2 * Math.max(Nx, Ny)];
+				for (int k = pBeginPlane; k < pEndPlane; k++)
+				{
+					final int lPlaneOffset = 2 * Nx * Ny * k;
+
+					for (int j = 0; j < Ny; j++)
+						mLinePlanX.transform(	pData,
+																	lPlaneOffset + 2 * Nx * j,
+																	pInverse,
+																	lScratch);
+
+					if (Ny > 1)
+						for (int i = 0; i < Nx; i++)
+						{
+							for (int j = 0; j < Ny; j++)
+							{
+								final int lIndex = lPlaneOffset + 2 * (i + Nx * j);
+								lLine[2 * j] = pData[lIndex];
+								lLine[2 * j + 1] = pData[lIndex + 1];
+							}
+							mLinePlanY.transform(lLine, 0, pInverse, lScratch);
+							for (int j = 0; j < Ny; j++)
+							{
+								final int lIndex = lPlaneOffset + 2 * (i + Nx * j);
+								pData[lIndex] = lLine[2 * j];
+								pData[lIndex + 1] = lLine[2 * j + 1];
+							}
+						}
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+
+		// along Z, row by row, normalizing inverse transforms on the way:
+		final float lScale = pInverse ? 1.f / getVolume() : 1.f;
+		JavaProcessor.reducePlanes(Ny, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginRow, int pEndRow)
+			{
+				final float[] lLine = new float[2 * Nz];
+				final float[] lScratch = new float[2 * Nz];
+				for (int j = pBeginRow; j < pEndRow; j++)
+					for (int i = 0; i < Nx; i++)
+					{
+						for (int k = 0; k < Nz; k++)
+						{
+							final int lIndex = 2 * (i + Nx * j + Nx * Ny * k);
+							lLine[2 * k] = pData[lIndex];
+							lLine[2 * k + 1] = pData[lIndex + 1];
+						}
+						if (Nz > 1)
+							mLinePlanZ.transform(lLine, 0, pInverse, lScratch);
+						for (int k = 0; k < Nz; k++)
+						{
+							final int lIndex = 2 * (i + Nx * j + Nx * Ny * k);
+							pData[lIndex] = lScale * lLine[2 * k];
+							pData[lIndex + 1] = lScale * lLine[2 * k + 1];
+						}
+					}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Mixed radix transform of contiguous interleaved complex lines of one
+	 * length, with the Stockham scheme: each pass reads from one buffer and
+	 * writes to the other in the order expected by the next pass, so that no
+	 * reordering is needed.
+	 */
+	private static final class LinePlan
+	{
+		private final int mLength;
+		private final int[] mFactors;
+		private final float[] mCos, mSin;
+
+		LinePlan(final int pLength)
+		{
+			if (pLength < 1 || !isFastLength(pLength))
+				throw new IllegalArgumentException("Length must be a product of powers of 2, 3 and 5: " + pLength);
+
+			mLength = pLength;
+
+			final int[] lFactors = new int[32];
+			int lNumberOfFactors = 0;
+			int lRemainder = pLength;
+			for (final int lFactor : new int[]
+			{ 2, 3, 5 })
+				while (lRemainder % lFactor == 0)
+				{
+					lFactors[lNumberOfFactors++] = lFactor;
+					lRemainder /= lFactor;
+				}
+			mFactors = Arrays.copyOf(lFactors, lNumberOfFactors);
+
+			mCos = new float[pLength];
+			mSin = new float[pLength];
+			for (int k = 0; k < pLength; k++)
+			{
+				final double lAngle = 2 * Math.PI * k / pLength;
+				mCos[k] = (float) Math.cos(lAngle);
+				mSin[k] = (float) Math.sin(lAngle);
+			}
+		}
+
+		void transform(	final float[] pData,
+										final int pOffset,
+										final boolean pInverse,
+										final float[] pScratch)
+		{
+			final int N = mLength;
+			final float lSign = pInverse ? 1.f : -1.f;
+
+			float[] lIn = pData, lOut = pScratch;
+			int lInOffset = pOffset, lOutOffset = 0;
+
+			// n is the length of the sub-transforms, s their number:
+			int n = N, s = 1;
+			for (final int r : mFactors)
+			{
+				final int m = n / r;
+				for (int p = 0; p < m; p++)
+					for (int q = 0; q < s; q++)
+					{
+						if (r == 2)
+						{
+							final int a = lInOffset + 2 * (q + s * p);
+							final int b = a + 2 * s * m;
+							final float wr = mCos[p * s];
+							final float wi = lSign * mSin[p * s];
+							final float dr = lIn[a] - lIn[b];
+							final float di = lIn[a + 1] - lIn[b + 1];
+							final int c = lOutOffset + 2 * (q + s * 2 * p);
+							lOut[c] = lIn[a] + lIn[b];
+							lOut[c + 1] = lIn[a + 1] + lIn[b + 1];
+							lOut[c + 2 * s] = dr * wr - di * wi;
+							lOut[c + 2 * s + 1] = dr * wi + di * wr;
+							continue;
+						}
+
+						for (int u = 0; u < r; u++)
+						{
+							float lRe = 0, lIm = 0;
+							for (int t = 0; t < r; t++)
+							{
+								final int a = lInOffset + 2 * (q + s * (p + t * m));
+								final int w = (t * u % r) * (N / r);
+								final float wr = mCos[w];
+								final float wi = lSign * mSin[w];
+								lRe += lIn[a] * wr - lIn[a + 1] * wi;
+								lIm += lIn[a] * wi + lIn[a + 1] * wr;
+							}
+							final float wr = mCos[p * u * s];
+							final float wi = lSign * mSin[p * u * s];
+							final int c = lOutOffset + 2 * (q + s * (r * p + u));
+							lOut[c] = lRe * wr - lIm * wi;
+							lOut[c + 1] = lRe * wi + lIm * wr;
+						}
+					}
+
+				final float[] lSwap = lIn;
+				lIn = lOut;
+				lOut = lSwap;
+				final int lSwapOffset = lInOffset;
+				lInOffset = lOutOffset;
+				lOutOffset = lSwapOffset;
+				n = m;
+				s *= r;
+			}
+
+			if (lIn != pData)
+				System.arraycopy(lIn, lInOffset, pData, pOffset, 2 * N);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package clearvolume.renderer.processors;
+
+import java.util.Collection;
+
+/**
+ * Interface IntermediateConsumer
+ *
+ * Processors that read shared intermediates, or take their temporaries from a
+ * buffer pool, declare their inputs so that the intermediates of all
+ * processors running over a volume can be planned together in one
+ * {@link ProcessingGraph}.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public interface IntermediateConsumer
+{
+	/**
+	 * Returns the keys of the intermediates this processor reads.
+	 *
+	 * @return keys, possibly empty
+	 */
+	Collection<IntermediateKey> getInputs();
+
+	/**
+	 * Sets the graph this processor takes its intermediates and temporaries from
+	 * during the next run, or null once the run is over.
+	 *
+	 * @param pProcessingGraph
+	 *          processing graph
+	 */
+	void setProcessingGraph(ProcessingGraph<?> pProcessingGraph);
+}
@@ -0,0 +1,173 @@
+package clearvolume.renderer.processors;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class IntermediateKey
+ *
+ * Identifies an intermediate result that processors can share when they run
+ * over the same volume: the name of the stage that computes it, its
+ * parameters and the keys of its inputs. Two keys are equal if they describe
+ * the same computation, so that a {@link ProcessingGraph} computes each
+ * intermediate only once.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public final class IntermediateKey
+{
+	public static final String cDownsampled = "downsampled";
+	public static final String cBlurred = "blurred";
+
+	private final String mName;
+	private final float[] mParameters;
+	private final IntermediateKey[] mInputs;
+
+	/**
+	 * Constructs a key for a stage with given parameters and inputs.
+	 *
+	 * @param pName
+	 *          stage name
+	 * @param pParameters
+	 *          stage parameters
+	 * @param pInputs
+	 *          keys of the inputs, a stage without inputs reads the volume
+	 */
+	public IntermediateKey(	final String pName,
+													final float[] pParameters,
+													final IntermediateKey... pInputs)
+	{
+		mName = pName;
+		mParameters = pParameters.clone();
+		mInputs = pInputs.clone();
+	}
+
+	/**
+	 * Returns the key of the float copy of the volume, downsampled by averaging
+	 * blocks of pFactor^3 voxels. A factor of 1 gives the plain float copy.
+	 *
+	 * @param pFactor
+	 *          downsampling factor
+	 * @return key
+	 */
+	public static IntermediateKey downsampled(final int pFactor)
+	{
+		return new IntermediateKey(cDownsampled, new float[]
+		{ pFactor });
+	}
+
+	/**
+	 * Returns the key of a separable gaussian blur of another intermediate, with
+	 * the same sigma and kernel size along each axis.
+	 *
+	 * @param pInput
+	 *          key of the blurred intermediate
+	 * @param pSigma
+	 *          sigma in voxels
+	 * @param pKernelSize
+	 *          kernel size in voxels
+	 * @return key
+	 */
+	public static IntermediateKey blurred(final IntermediateKey pInput,
+																				final float pSigma,
+																				final int pKernelSize)
+	{
+		return blurred(	pInput,
+										pSigma,
+										pSigma,
+										pSigma,
+										pKernelSize,
+										pKernelSize,
+										pKernelSize);
+	}
+
+	/**
+	 * Returns the key of a separable gaussian blur of another intermediate.
+	 *
+	 * @param pInput
+	 *          key of the blurred intermediate
+	 * @param pSigmaX
+	 *          sigma along x in voxels
+	 * @param pSigmaY
+	 *          sigma along y in voxels
+	 * @param pSigmaZ
+	 *          sigma along z in voxels
+	 * @param pKernelSizeX
+	 *          kernel size along x in voxels
+	 * @param pKernelSizeY
+	 *          kernel size along y in voxels
+	 * @param pKernelSizeZ
+	 *          kernel size along z in voxels
+	 * @return key
+	 */
+	public static IntermediateKey blurred(final IntermediateKey pInput,
+																				final float pSigmaX,
+																				final float pSigmaY,
+																				final float pSigmaZ,
+																				final int pKernelSizeX,
+																				final int pKernelSizeY,
+																				final int pKernelSizeZ)
+	{
+		return new IntermediateKey(cBlurred, new float[]
+		{ pSigmaX, pSigmaY, pSigmaZ, pKernelSizeX, pKernelSizeY, pKernelSizeZ },
+																pInput);
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	public int getNumberOfParameters()
+	{
+		return mParameters.length;
+	}
+
+	public float getParameter(final int pIndex)
+	{
+		return mParameters[pIndex];
+	}
+
+	public List<IntermediateKey> getInputs()
+	{
+		return Collections.unmodifiableList(Arrays.asList(mInputs));
+	}
+
+	@Override
+	public boolean equals(final Object pObject)
+	{
+		if (this == pObject)
+			return true;
+		if (!(pObject instanceof IntermediateKey))
+			return false;
+		final IntermediateKey lOther = (IntermediateKey) pObject;
+		return mName.equals(lOther.mName) && Arrays.equals(	mParameters,
+																												lOther.mParameters)
+						&& Arrays.equals(mInputs, lOther.mInputs);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * (31 * mName.hashCode() + Arrays.hashCode(mParameters))
+						+ Arrays.hashCode(mInputs);
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder lStringBuilder = new StringBuilder(mName);
+		lStringBuilder.append('(');
+		for (int i = 0; i < mInputs.length; i++)
+			lStringBuilder.append(mInputs[i]).append(", ");
+		for (int i = 0; i < mParameters.length; i++)
+		{
+			if (i > 0)
+				lStringBuilder.append(", ");
+			lStringBuilder.append(mParameters[i]);
+		}
+		return lStringBuilder.append(')').toString();
+	}
+}
@@ -0,0 +1,260 @@
+package clearvolume.renderer.processors;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import clearvolume.renderer.cpu.CPUVolumeRenderer;
+import clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class JavaProcessor
+ *
+ * Base class for processors running on the host, over the voxels of a render
+ * layer, for renderers that have no GPU device. Voxels are normalized the way
+ * the OpenCL image samplers normalize them, so that results match those of the
+ * OpenCL processors. Work is split into blocks of Z planes processed in
+ * parallel on a fork/join pool.
+ *
+ * @param <R>
+ *          result type
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public abstract class JavaProcessor<R> extends ProcessorBase<R>	implements
+																																Processor<R>
+{
+	private static final ForkJoinPool sForkJoinPool = new ForkJoinPool();
+
+	private volatile NativeTypeEnum mNativeType;
+	private volatile MinMaxBrickGrid.VoxelSource mVoxelSource;
+	private volatile FragmentedMemoryInterface mVolumeDataBuffer;
+
+	@Override
+	public boolean isCompatibleProcessor(Class<?> pRendererClass)
+	{
+		return pRendererClass == CPUVolumeRenderer.class || pRendererClass == HeadlessCPUVolumeRenderer.class;
+	}
+
+	/**
+	 * Sets the voxels to process as a voxel source, for example the host-side
+	 * copy of a layer kept by the CPU renderers.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types
+	 * @param pVoxelSource
+	 *          voxels
+	 */
+	public void setVolumeData(NativeTypeEnum pNativeType,
+														MinMaxBrickGrid.VoxelSource pVoxelSource)
+	{
+		mNativeType = pNativeType;
+		mVoxelSource = pVoxelSource;
+		mVolumeDataBuffer = null;
+	}
+
+	/**
+	 * Sets the voxels to process as (possibly fragmented) memory.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types
+	 * @param pVolumeDataBuffer
+	 *          voxels, X fastest, then Y, then Z
+	 */
+	public void setVolumeDataBuffer(NativeTypeEnum pNativeType,
+																	FragmentedMemoryInterface pVolumeDataBuffer)
+	{
+		mNativeType = pNativeType;
+		mVoxelSource = null;
+		mVolumeDataBuffer = pVolumeDataBuffer;
+	}
+
+	public NativeTypeEnum getNativeType()
+	{
+		return mNativeType;
+	}
+
+	/**
+	 * Returns the voxels to process.
+	 *
+	 * @param pWidthInVoxels
+	 *          width in voxels
+	 * @param pHeightInVoxels
+	 *          height in voxels
+	 * @return voxel source, or null if no voxels were set
+	 */
+	protected MinMaxBrickGrid.VoxelSource getVoxelSource(	long pWidthInVoxels,
+																												long pHeightInVoxels)
+	{
+		final FragmentedMemoryInterface lVolumeDataBuffer = mVolumeDataBuffer;
+		if (lVolumeDataBuffer != null)
+			return MinMaxBrickGrid.wrap(mNativeType,
+																	lVolumeDataBuffer,
+																	pWidthInVoxels,
+																	pHeightInVoxels);
+		return mVoxelSource;
+	}
+
+	/**
+	 * Returns the largest value of the voxel type, voxel values divided by it
+	 * are those read from UNormInt8 and UNormInt16 images.
+	 *
+	 * @return largest value as a float
+	 */
+	protected float getLargestValue()
+	{
+		final NativeTypeEnum lNativeType = mNativeType;
+		if (lNativeType == NativeTypeEnum.UnsignedByte || lNativeType == NativeTypeEnum.Byte)
+			return 255;
+		else if (lNativeType == NativeTypeEnum.UnsignedShort || lNativeType == NativeTypeEnum.Short)
+			return 65535;
+		throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + lNativeType);
+	}
+
+	/**
+	 * Reads a plane of voxels normalized to [0,1].
+	 *
+	 * @param pVoxelSource
+	 *          voxels
+	 * @param pZ
+	 *          plane index
+	 * @param pRow
+	 *          row buffer, as long as the width
+	 * @param pPlane
+	 *          destination, X fastest then Y
+	 */
+	protected void readPlane(	MinMaxBrickGrid.VoxelSource pVoxelSource,
+														int pZ,
+														int[] pRow,
+														float[] pPlane)
+	{
+		final float lLargestValue = getLargestValue();
+		final int lWidth = pRow.length;
+		final int lHeight = pPlane.length / lWidth;
+		for (int y = 0; y < lHeight; y++)
+		{
+			pVoxelSource.readRow(y, pZ, pRow);
+			final int lOffset = y * lWidth;
+			for (int x = 0; x < lWidth; x++)
+				pPlane[lOffset + x] = pRow[x] / lLargestValue;
+		}
+	}
+
+	/**
+	 * Computation over blocks of planes whose results are combined pairwise.
+	 *
+	 * @param <T>
+	 *          result type
+	 */
+	protected abstract static class PlaneReduction<T>
+	{
+		/**
+		 * Computes the result for a block of planes.
+		 *
+		 * @param pBeginPlane
+		 *          first plane (inclusive)
+		 * @param pEndPlane
+		 *          last plane (exclusive)
+		 * @return result of the block
+		 */
+		protected abstract T compute(int pBeginPlane, int pEndPlane);
+
+		/**
+		 * Combines the results of two consecutive blocks.
+		 *
+		 * @param pFirst
+		 *          result of the first block
+		 * @param pSecond
+		 *          result of the second block
+		 * @return combined result
+		 */
+		protected abstract T combine(T pFirst, T pSecond);
+	}
+
+	/**
+	 * Runs a reduction over planes, blocks of planes are computed in parallel.
+	 *
+	 * @param pNumberOfPlanes
+	 *          number of planes
+	 * @param pPlaneReduction
+	 *          reduction
+	 * @return combined result
+	 */
+	protected static <T> T reducePlanes(int pNumberOfPlanes,
+																			PlaneReduction<T> pPlaneReduction)
+	{
+		final int lPlanesPerBlock = max(1,
+																		pNumberOfPlanes / (4 * sForkJoinPool.getParallelism()));
+		return sForkJoinPool.invoke(new PlaneBlockTask<T>(pPlaneReduction,
+																											0,
+																											pNumberOfPlanes,
+																											lPlanesPerBlock));
+	}
+
+	private static final class PlaneBlockTask<T> extends RecursiveTask<T>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final PlaneReduction<T> mPlaneReduction;
+		private final int mBeginPlane, mEndPlane, mPlanesPerBlock;
+
+		PlaneBlockTask(	PlaneReduction<T> pPlaneReduction,
+										int pBeginPlane,
+										int pEndPlane,
+										int pPlanesPerBlock)
+		{
+			mPlaneReduction = pPlaneReduction;
+			mBeginPlane = pBeginPlane;
+			mEndPlane = pEndPlane;
+			mPlanesPerBlock = pPlanesPerBlock;
+		}
+
+		@Override
+		protected T compute()
+		{
+			if (mEndPlane - mBeginPlane <= mPlanesPerBlock)
+				return mPlaneReduction.compute(mBeginPlane, mEndPlane);
+
+			final int lMiddle = mBeginPlane + (mEndPlane - mBeginPlane) / 2;
+			final PlaneBlockTask<T> lFirst = new PlaneBlockTask<T>(	mPlaneReduction,
+																															mBeginPlane,
+																															lMiddle,
+																															mPlanesPerBlock);
+			final PlaneBlockTask<T> lSecond = new PlaneBlockTask<T>(mPlaneReduction,
+																															lMiddle,
+																															mEndPlane,
+																															mPlanesPerBlock);
+			lSecond.fork();
+			final T lFirstResult = lFirst.compute();
+			return mPlaneReduction.combine(lFirstResult, lSecond.join());
+		}
+	}
+
+	/**
+	 * Clamps an index to [0,pLength-1], as clamp-to-edge addressing does.
+	 *
+	 * @param pIndex
+	 *          index
+	 * @param pLength
+	 *          length
+	 * @return clamped index
+	 */
+	protected static int clampToEdge(int pIndex, int pLength)
+	{
+		return max(0, min(pLength - 1, pIndex));
+	}
+
+	@Override
+	public abstract void process(	int pRenderLayerIndex,
+																long pWidthInVoxels,
+																long pHeightInVoxels,
+																long pDepthInVoxels);
+
+}
@@ -1,14 +1,21 @@
 package clearvolume.renderer.processors;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import clearvolume.renderer.opencl.OpenCLDevice;
 import clearvolume.renderer.opencl.OpenCLVolumeRenderer;
 
+import com.nativelibs4java.opencl.CLBuffer;
+
 public abstract class OpenCLProcessor<R> extends ProcessorBase<R>	implements
-																																	Processor<R>
+																																	Processor<R>,
+																																	IntermediateConsumer
 {
 
 	private OpenCLDevice mOpenCLDevice;
 	private Object[] mVolumeBuffers;
+	private volatile ProcessingGraph<CLBuffer<Float>> mProcessingGraph;
 
 	@Override
 	public boolean isCompatibleProcessor(Class<?> pRendererClass)
@@ -36,6 +43,30 @@ public abstract class OpenCLProcessor<R> extends ProcessorBase<R>	implements
 		return mVolumeBuffers;
 	}
 
+	@Override
+	public Collection<IntermediateKey> getInputs()
+	{
+		return Collections.emptyList();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void setProcessingGraph(ProcessingGraph<?> pProcessingGraph)
+	{
+		mProcessingGraph = (ProcessingGraph<CLBuffer<Float>>) pProcessingGraph;
+	}
+
+	/**
+	 * Returns the graph of device buffers set by the renderer for the current
+	 * run, null outside of runs scheduled by a renderer.
+	 *
+	 * @return processing graph
+	 */
+	public ProcessingGraph<CLBuffer<Float>> getProcessingGraph()
+	{
+		return mProcessingGraph;
+	}
+
 	@Override
 	public abstract void process(	int pRenderLayerIndex,
 																long pWidthInVoxels,
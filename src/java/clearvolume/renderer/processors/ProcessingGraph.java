@@ -0,0 +1,275 @@
+package clearvolume.renderer.processors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import clearvolume.ClearVolumeCloseable;
+
+/**
+ * Class ProcessingGraph
+ *
+ * Graph of the intermediates that processors running over one volume ask for.
+ * Processors declare the intermediates they read (see
+ * {@link IntermediateConsumer}), the graph is planned with the union of these
+ * inputs and their own inputs, and each intermediate is computed once by a
+ * backend, when first asked for, and then shared. Intermediates and processor
+ * temporaries are taken from a buffer pool that outlives the graph, closing
+ * the graph returns its intermediates to the pool. The time spent computing
+ * each node is recorded.
+ *
+ * @param <B>
+ *          buffer type
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ProcessingGraph<B> implements ClearVolumeCloseable
+{
+	/**
+	 * Computes intermediates, for example by running kernels on a device.
+	 *
+	 * @param <B>
+	 *          buffer type
+	 */
+	public interface Backend<B>
+	{
+		/**
+		 * Computes an intermediate from its inputs, stages without inputs read the
+		 * volume the backend was created for.
+		 *
+		 * @param pKey
+		 *          key of the intermediate
+		 * @param pInputs
+		 *          inputs, in the order of the key's inputs
+		 * @param pBufferPool
+		 *          pool to take the buffer of the intermediate from
+		 * @return intermediate
+		 */
+		Intermediate<B> compute(IntermediateKey pKey,
+														List<Intermediate<B>> pInputs,
+														BufferPool<B> pBufferPool);
+	}
+
+	/**
+	 * Buffer holding an intermediate, with the dimensions of the volume it
+	 * represents.
+	 *
+	 * @param <B>
+	 *          buffer type
+	 */
+	public static class Intermediate<B>
+	{
+		private final B mBuffer;
+		private final long mWidth, mHeight, mDepth;
+
+		public Intermediate(final B pBuffer,
+												final long pWidth,
+												final long pHeight,
+												final long pDepth)
+		{
+			mBuffer = pBuffer;
+			mWidth = pWidth;
+			mHeight = pHeight;
+			mDepth = pDepth;
+		}
+
+		public B getBuffer()
+		{
+			return mBuffer;
+		}
+
+		public long getWidth()
+		{
+			return mWidth;
+		}
+
+		public long getHeight()
+		{
+			return mHeight;
+		}
+
+		public long getDepth()
+		{
+			return mDepth;
+		}
+
+		public long getLength()
+		{
+			return mWidth * mHeight * mDepth;
+		}
+	}
+
+	private final Backend<B> mBackend;
+	private final BufferPool<B> mBufferPool;
+
+	private final LinkedHashSet<IntermediateKey> mNodes = new LinkedHashSet<>();
+	private final HashMap<IntermediateKey, Intermediate<B>> mIntermediates = new HashMap<>();
+	private final LinkedHashMap<String, Long> mTimings = new LinkedHashMap<>();
+	private boolean mClosed;
+
+	/**
+	 * Constructs a graph for one volume.
+	 *
+	 * @param pBackend
+	 *          backend computing the intermediates
+	 * @param pBufferPool
+	 *          pool shared with other graphs
+	 */
+	public ProcessingGraph(	final Backend<B> pBackend,
+													final BufferPool<B> pBufferPool)
+	{
+		mBackend = pBackend;
+		mBufferPool = pBufferPool;
+	}
+
+	/**
+	 * Adds intermediates and, before them, their inputs to the graph.
+	 *
+	 * @param pKeys
+	 *          keys of the intermediates processors will ask for
+	 */
+	public synchronized void plan(final Collection<IntermediateKey> pKeys)
+	{
+		for (final IntermediateKey lKey : pKeys)
+			plan(lKey, new HashSet<IntermediateKey>());
+	}
+
+	private void plan(final IntermediateKey pKey,
+										final HashSet<IntermediateKey> pPath)
+	{
+		if (mNodes.contains(pKey))
+			return;
+		if (!pPath.add(pKey))
+			throw new IllegalArgumentException("Cycle in processing graph at " + pKey);
+		for (final IntermediateKey lInput : pKey.getInputs())
+			plan(lInput, pPath);
+		pPath.remove(pKey);
+		mNodes.add(pKey);
+	}
+
+	/**
+	 * Returns the planned intermediates, each after its inputs.
+	 *
+	 * @return keys in topological order
+	 */
+	public synchronized List<IntermediateKey> getNodes()
+	{
+		return new ArrayList<>(mNodes);
+	}
+
+	/**
+	 * Returns an intermediate, computing it and the inputs it needs if not done
+	 * yet. Intermediates that were not planned are added to the graph. The
+	 * returned buffer belongs to the graph and must not be modified.
+	 *
+	 * @param pKey
+	 *          key of the intermediate
+	 * @return intermediate
+	 */
+	public synchronized Intermediate<B> get(final IntermediateKey pKey)
+	{
+		if (mClosed)
+			throw new IllegalStateException("Processing graph is closed");
+
+		Intermediate<B> lIntermediate = mIntermediates.get(pKey);
+		if (lIntermediate != null)
+			return lIntermediate;
+
+		plan(pKey, new HashSet<IntermediateKey>());
+
+		final ArrayList<Intermediate<B>> lInputs = new ArrayList<>();
+		for (final IntermediateKey lInput : pKey.getInputs())
+			lInputs.add(get(lInput));
+
+		final long lStart = System.nanoTime();
+		lIntermediate = mBackend.compute(pKey, lInputs, mBufferPool);
+		recordTiming(pKey.toString(), System.nanoTime() - lStart);
+
+		mIntermediates.put(pKey, lIntermediate);
+		return lIntermediate;
+	}
+
+	/**
+	 * Returns true if an intermediate has been computed.
+	 *
+	 * @param pKey
+	 *          key of the intermediate
+	 * @return true if computed
+	 */
+	public synchronized boolean isComputed(final IntermediateKey pKey)
+	{
+		return mIntermediates.containsKey(pKey);
+	}
+
+	/**
+	 * Takes a temporary buffer from the pool.
+	 *
+	 * @param pLength
+	 *          length in elements
+	 * @return buffer
+	 */
+	public B acquireBuffer(final long pLength)
+	{
+		return mBufferPool.acquire(pLength);
+	}
+
+	/**
+	 * Returns a temporary buffer to the pool.
+	 *
+	 * @param pBuffer
+	 *          buffer obtained from {@link #acquireBuffer(long)}
+	 */
+	public void releaseBuffer(final B pBuffer)
+	{
+		mBufferPool.release(pBuffer);
+	}
+
+	/**
+	 * Records the time spent in a node, processors running over the graph are
+	 * recorded under their name.
+	 *
+	 * @param pNodeName
+	 *          node name
+	 * @param pNanoseconds
+	 *          elapsed time in nanoseconds
+	 */
+	public synchronized void recordTiming(final String pNodeName,
+																				final long pNanoseconds)
+	{
+		final Long lPrevious = mTimings.get(pNodeName);
+		mTimings.put(pNodeName, lPrevious == null	? pNanoseconds
+																							: lPrevious + pNanoseconds);
+	}
+
+	/**
+	 * Returns the time spent in each node so far, in the order nodes were
+	 * computed.
+	 *
+	 * @return node names and times in nanoseconds
+	 */
+	public synchronized Map<String, Long> getTimingsInNanoseconds()
+	{
+		return Collections.unmodifiableMap(new LinkedHashMap<>(mTimings));
+	}
+
+	/**
+	 * Returns the buffers of all intermediates to the pool.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (mClosed)
+			return;
+		mClosed = true;
+		for (final Intermediate<B> lIntermediate : mIntermediates.values())
+			mBufferPool.release(lIntermediate.getBuffer());
+		mIntermediates.clear();
+	}
+}
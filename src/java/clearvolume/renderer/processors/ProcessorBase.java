@@ -1,6 +1,6 @@
 package clearvolume.renderer.processors;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import clearvolume.renderer.SingleKeyToggable;
 
@@ -10,7 +10,7 @@ public abstract class ProcessorBase<R>	implements
 																				Processor<R>,
 																				SingleKeyToggable
 {
-	private final ArrayList<ProcessorResultListener<R>> mListenerList = new ArrayList<>();
+	private final CopyOnWriteArrayList<ProcessorResultListener<R>> mListenerList = new CopyOnWriteArrayList<>();
 
 	private volatile boolean mActive = true;
 
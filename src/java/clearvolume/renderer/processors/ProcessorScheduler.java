@@ -0,0 +1,503 @@
+package clearvolume.renderer.processors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.renderer.metrics.MetricsRegistry;
+
+/**
+ * Class ProcessorScheduler
+ *
+ * Decides which processors run when a volume arrives in a render layer, and
+ * where. Synchronous processors run right away on the calling thread over the
+ * live layer data, this is needed for processors that modify the data that is
+ * rendered. Asynchronous processors (the default) run on the scheduler's own
+ * threads over a snapshot of the layer taken when the volume arrives, so that
+ * neither rendering nor the next volume wait for them; their results are
+ * delivered to result listeners on these threads.
+ *
+ * Each processor can be given a priority, queued runs of higher priority start
+ * first, and a volume interval: a processor with an interval of N runs at most
+ * for every N-th volume. An asynchronous processor that is still queued or
+ * running when a volume arrives skips that volume.
+ *
+ * Processors that are {@link IntermediateConsumer}s get a
+ * {@link ProcessingGraph} planned with their inputs if the layer data provides
+ * one: asynchronous processors running over the same snapshot share one graph,
+ * and thus its intermediates, synchronous processors each get their own graph
+ * since earlier ones may have modified the live data. The time spent in each
+ * node, intermediates and processors, is kept for the last volume.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ProcessorScheduler implements ClearVolumeCloseable
+{
+	/**
+	 * Layer data that processors can be attached to, either the live data of a
+	 * renderer or a snapshot of it.
+	 */
+	public interface LayerData
+	{
+		/**
+		 * Points a processor to this data, for example by setting the volume
+		 * buffers of an OpenCL processor.
+		 *
+		 * @param pProcessor
+		 *          processor about to run
+		 */
+		void attach(Processor<?> pProcessor);
+
+		/**
+		 * Returns a copy of this data that is not affected by later volumes.
+		 *
+		 * @return snapshot
+		 */
+		LayerData snapshot();
+
+		/**
+		 * Creates a graph for the intermediates of processors running over this
+		 * data.
+		 *
+		 * @return processing graph, or null if not supported for this data
+		 */
+		ProcessingGraph<?> createProcessingGraph();
+
+		/**
+		 * Releases the resources held by a snapshot, called once all processors
+		 * that use it are done.
+		 */
+		void release();
+	}
+
+	private static class Schedule
+	{
+		volatile int mPriority = 0;
+		volatile int mVolumeInterval = 1;
+		volatile boolean mAsynchronous = true;
+		final AtomicLong mVolumeCounter = new AtomicLong();
+		final AtomicBoolean mBusy = new AtomicBoolean();
+	}
+
+	private final ConcurrentHashMap<Processor<?>, Schedule> mSchedules = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor mExecutor;
+	private final AtomicLong mSubmissionCounter = new AtomicLong();
+	private final AtomicInteger mPendingRuns = new AtomicInteger();
+	private final ConcurrentHashMap<String, Long> mNodeTimings = new ConcurrentHashMap<>();
+	private volatile MetricsRegistry mMetricsRegistry;
+
+	/**
+	 * Constructs a scheduler running asynchronous processors on a single thread.
+	 */
+	public ProcessorScheduler()
+	{
+		this(1);
+	}
+
+	/**
+	 * Constructs a scheduler running asynchronous processors on a given number
+	 * of threads.
+	 *
+	 * @param pNumberOfThreads
+	 *          number of threads
+	 */
+	public ProcessorScheduler(final int pNumberOfThreads)
+	{
+		final ThreadFactory lDaemonThreadFactory = new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable pRunnable)
+			{
+				final Thread lThread = new Thread(pRunnable,
+																					ProcessorScheduler.class.getSimpleName() + "Thread");
+				lThread.setDaemon(true);
+				return lThread;
+			}
+		};
+
+		mExecutor = new ThreadPoolExecutor(	pNumberOfThreads,
+																				pNumberOfThreads,
+																				0L,
+																				TimeUnit.MILLISECONDS,
+																				new PriorityBlockingQueue<Runnable>(),
+																				lDaemonThreadFactory);
+	}
+
+	/**
+	 * Sets the registry in which processor and intermediate latencies, and
+	 * volumes skipped by busy processors, are recorded.
+	 *
+	 * @param pMetricsRegistry
+	 *          metrics registry, or null
+	 */
+	public void setMetricsRegistry(final MetricsRegistry pMetricsRegistry)
+	{
+		mMetricsRegistry = pMetricsRegistry;
+	}
+
+	public MetricsRegistry getMetricsRegistry()
+	{
+		return mMetricsRegistry;
+	}
+
+	private Schedule getSchedule(final Processor<?> pProcessor)
+	{
+		final Schedule lSchedule = mSchedules.get(pProcessor);
+		if (lSchedule != null)
+			return lSchedule;
+		mSchedules.putIfAbsent(pProcessor, new Schedule());
+		return mSchedules.get(pProcessor);
+	}
+
+	/**
+	 * Sets the priority of a processor, queued runs of higher priority start
+	 * first. Default is 0.
+	 *
+	 * @param pProcessor
+	 *          processor
+	 * @param pPriority
+	 *          priority
+	 */
+	public void setPriority(final Processor<?> pProcessor,
+													final int pPriority)
+	{
+		getSchedule(pProcessor).mPriority = pPriority;
+	}
+
+	public int getPriority(final Processor<?> pProcessor)
+	{
+		return getSchedule(pProcessor).mPriority;
+	}
+
+	/**
+	 * Sets the volume interval of a processor, a processor with an interval of N
+	 * runs at most for every N-th volume. Default is 1.
+	 *
+	 * @param pProcessor
+	 *          processor
+	 * @param pVolumeInterval
+	 *          volume interval, at least 1
+	 */
+	public void setVolumeInterval(final Processor<?> pProcessor,
+																final int pVolumeInterval)
+	{
+		getSchedule(pProcessor).mVolumeInterval = Math.max(	1,
+																												pVolumeInterval);
+	}
+
+	public int getVolumeInterval(final Processor<?> pProcessor)
+	{
+		return getSchedule(pProcessor).mVolumeInterval;
+	}
+
+	/**
+	 * Sets whether a processor runs asynchronously over snapshots (default), or
+	 * synchronously over the live layer data. Processors that modify the
+	 * rendered data must be synchronous.
+	 *
+	 * @param pProcessor
+	 *          processor
+	 * @param pAsynchronous
+	 *          true for asynchronous
+	 */
+	public void setAsynchronous(final Processor<?> pProcessor,
+															final boolean pAsynchronous)
+	{
+		getSchedule(pProcessor).mAsynchronous = pAsynchronous;
+	}
+
+	public boolean isAsynchronous(final Processor<?> pProcessor)
+	{
+		return getSchedule(pProcessor).mAsynchronous;
+	}
+
+	/**
+	 * Returns true if a run of an asynchronous processor is queued or running.
+	 *
+	 * @param pProcessor
+	 *          processor
+	 * @return true if busy
+	 */
+	public boolean isBusy(final Processor<?> pProcessor)
+	{
+		return getSchedule(pProcessor).mBusy.get();
+	}
+
+	/**
+	 * Runs the processors due for a volume that just arrived in a render layer.
+	 * Synchronous processors have run when this method returns, a snapshot of
+	 * the layer data is taken for asynchronous processors if any is due.
+	 *
+	 * @param pProcessors
+	 *          registered processors
+	 * @param pRendererClass
+	 *          class of the calling renderer
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 * @param pWidthInVoxels
+	 *          width in voxels
+	 * @param pHeightInVoxels
+	 *          height in voxels
+	 * @param pDepthInVoxels
+	 *          depth in voxels
+	 * @param pLayerData
+	 *          live layer data
+	 */
+	public void volumeArrived(final Collection<Processor<?>> pProcessors,
+														final Class<?> pRendererClass,
+														final int pRenderLayerIndex,
+														final long pWidthInVoxels,
+														final long pHeightInVoxels,
+														final long pDepthInVoxels,
+														final LayerData pLayerData)
+	{
+		final ArrayList<Processor<?>> lAsynchronousProcessors = new ArrayList<>();
+
+		for (final Processor<?> lProcessor : pProcessors)
+		{
+			if (!lProcessor.isCompatibleProcessor(pRendererClass) || !lProcessor.isActive())
+				continue;
+
+			final Schedule lSchedule = getSchedule(lProcessor);
+			if (lSchedule.mVolumeCounter.getAndIncrement()
+					% lSchedule.mVolumeInterval != 0)
+				continue;
+
+			if (!lSchedule.mAsynchronous)
+			{
+				final ProcessingGraph<?> lProcessingGraph = createProcessingGraph(pLayerData,
+																																					Collections.<Processor<?>> singletonList(lProcessor));
+				try
+				{
+					pLayerData.attach(lProcessor);
+					runProcessor(	lProcessor,
+												lProcessingGraph,
+												pRenderLayerIndex,
+												pWidthInVoxels,
+												pHeightInVoxels,
+												pDepthInVoxels);
+				}
+				finally
+				{
+					closeProcessingGraph(lProcessingGraph);
+				}
+			}
+			else if (lSchedule.mBusy.compareAndSet(false, true))
+				lAsynchronousProcessors.add(lProcessor);
+			else if (mMetricsRegistry != null)
+				mMetricsRegistry.mark(MetricsRegistry.processorSkipped(lProcessor.getName()),
+															0);
+		}
+
+		if (lAsynchronousProcessors.isEmpty())
+			return;
+
+		LayerData lSnapshot = null;
+		final ProcessingGraph<?> lProcessingGraph;
+		try
+		{
+			lSnapshot = pLayerData.snapshot();
+			lProcessingGraph = createProcessingGraph(	lSnapshot,
+																								lAsynchronousProcessors);
+		}
+		catch (final Throwable e)
+		{
+			if (lSnapshot != null)
+				lSnapshot.release();
+			for (final Processor<?> lProcessor : lAsynchronousProcessors)
+				getSchedule(lProcessor).mBusy.set(false);
+			throw e;
+		}
+
+		final LayerData lSharedSnapshot = lSnapshot;
+		final AtomicInteger lRemainingRuns = new AtomicInteger(lAsynchronousProcessors.size());
+		for (final Processor<?> lProcessor : lAsynchronousProcessors)
+		{
+			final Schedule lSchedule = getSchedule(lProcessor);
+			mPendingRuns.incrementAndGet();
+			mExecutor.execute(new ProcessorRun(	lSchedule.mPriority,
+																					mSubmissionCounter.getAndIncrement())
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						lSharedSnapshot.attach(lProcessor);
+						runProcessor(	lProcessor,
+													lProcessingGraph,
+													pRenderLayerIndex,
+													pWidthInVoxels,
+													pHeightInVoxels,
+													pDepthInVoxels);
+					}
+					catch (final Throwable e)
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						lSchedule.mBusy.set(false);
+						if (lRemainingRuns.decrementAndGet() == 0)
+						{
+							closeProcessingGraph(lProcessingGraph);
+							lSharedSnapshot.release();
+						}
+						mPendingRuns.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	private ProcessingGraph<?> createProcessingGraph(	final LayerData pLayerData,
+																										final Collection<Processor<?>> pProcessors)
+	{
+		final ArrayList<IntermediateKey> lInputs = new ArrayList<>();
+		boolean lHasConsumers = false;
+		for (final Processor<?> lProcessor : pProcessors)
+			if (lProcessor instanceof IntermediateConsumer)
+			{
+				lHasConsumers = true;
+				lInputs.addAll(((IntermediateConsumer) lProcessor).getInputs());
+			}
+		if (!lHasConsumers)
+			return null;
+
+		final ProcessingGraph<?> lProcessingGraph = pLayerData.createProcessingGraph();
+		if (lProcessingGraph != null)
+			lProcessingGraph.plan(lInputs);
+		return lProcessingGraph;
+	}
+
+	private void runProcessor(final Processor<?> pProcessor,
+														final ProcessingGraph<?> pProcessingGraph,
+														final int pRenderLayerIndex,
+														final long pWidthInVoxels,
+														final long pHeightInVoxels,
+														final long pDepthInVoxels)
+	{
+		final IntermediateConsumer lConsumer = pProcessor instanceof IntermediateConsumer	? (IntermediateConsumer) pProcessor
+																																										: null;
+		if (lConsumer != null)
+			lConsumer.setProcessingGraph(pProcessingGraph);
+		try
+		{
+			final long lStart = System.nanoTime();
+			pProcessor.process(	pRenderLayerIndex,
+													pWidthInVoxels,
+													pHeightInVoxels,
+													pDepthInVoxels);
+			final long lElapsedTime = System.nanoTime() - lStart;
+			mNodeTimings.put(pProcessor.getName(), lElapsedTime);
+			final MetricsRegistry lMetricsRegistry = mMetricsRegistry;
+			if (lMetricsRegistry != null)
+				lMetricsRegistry.recordLatency(	MetricsRegistry.processor(pProcessor.getName()),
+																				lElapsedTime);
+		}
+		finally
+		{
+			if (lConsumer != null)
+				lConsumer.setProcessingGraph(null);
+		}
+	}
+
+	private void closeProcessingGraph(final ProcessingGraph<?> pProcessingGraph)
+	{
+		if (pProcessingGraph == null)
+			return;
+		final Map<String, Long> lTimings = pProcessingGraph.getTimingsInNanoseconds();
+		mNodeTimings.putAll(lTimings);
+		final MetricsRegistry lMetricsRegistry = mMetricsRegistry;
+		if (lMetricsRegistry != null)
+			for (final Map.Entry<String, Long> lEntry : lTimings.entrySet())
+				lMetricsRegistry.recordLatency(	MetricsRegistry.intermediate(lEntry.getKey()),
+																				lEntry.getValue());
+		pProcessingGraph.close();
+	}
+
+	/**
+	 * Returns the time spent in each node, intermediates under the string of
+	 * their key and processors under their name, the last time it was
+	 * computed. Processor times include the intermediates they asked for first.
+	 *
+	 * @return node names and times in milliseconds
+	 */
+	public Map<String, Double> getNodeTimingsInMilliseconds()
+	{
+		final ConcurrentHashMap<String, Double> lNodeTimings = new ConcurrentHashMap<>();
+		for (final Map.Entry<String, Long> lEntry : mNodeTimings.entrySet())
+			lNodeTimings.put(lEntry.getKey(), 1e-6 * lEntry.getValue());
+		return Collections.unmodifiableMap(lNodeTimings);
+	}
+
+	/**
+	 * Waits until all queued and running asynchronous processors are done.
+	 *
+	 * @param pTimeOut
+	 *          time out
+	 * @param pTimeUnit
+	 *          time unit
+	 * @return true if all processors are done, false if timed out
+	 */
+	public boolean waitForProcessors(	final long pTimeOut,
+																		final TimeUnit pTimeUnit)
+	{
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+		while (mPendingRuns.get() > 0)
+		{
+			if (System.nanoTime() > lDeadline)
+				return false;
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (final InterruptedException e)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+		mExecutor.shutdownNow();
+	}
+
+	private static abstract class ProcessorRun implements
+																						Runnable,
+																						Comparable<ProcessorRun>
+	{
+		private final int mPriority;
+		private final long mSubmissionIndex;
+
+		ProcessorRun(final int pPriority, final long pSubmissionIndex)
+		{
+			mPriority = pPriority;
+			mSubmissionIndex = pSubmissionIndex;
+		}
+
+		@Override
+		public int compareTo(final ProcessorRun pOther)
+		{
+			// higher priorities first, then in order of submission:
+			if (mPriority != pOther.mPriority)
+				return mPriority > pOther.mPriority ? -1 : 1;
+			return Long.compare(mSubmissionIndex, pOther.mSubmissionIndex);
+		}
+	}
+
+}
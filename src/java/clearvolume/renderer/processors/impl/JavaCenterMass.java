@@ -0,0 +1,129 @@
+package clearvolume.renderer.processors.impl;
+
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+
+/**
+ * Class JavaCenterMass
+ *
+ * Center of mass of the normalized voxel values, sampled as the kernel
+ * center_of_mass_img in centermass.cl samples them, see
+ * {@link OpenCLCenterMass}. Sums are accumulated in double precision.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class JavaCenterMass extends JavaProcessor<float[]>
+{
+
+	private final int mLocalSize = 8;
+	private final int mDownSample = 2;
+
+	@Override
+	public String getName()
+	{
+		return "java_center_of_mass";
+	}
+
+	@Override
+	public void process(int pRenderLayerIndex,
+											long pWidthInVoxels,
+											long pHeightInVoxels,
+											long pDepthInVoxels)
+	{
+		if (!isActive())
+			return;
+
+		final MinMaxBrickGrid.VoxelSource lVoxelSource = getVoxelSource(pWidthInVoxels,
+																																		pHeightInVoxels);
+		if (lVoxelSource == null)
+			return;
+
+		// the kernel runs over a grid padded to whole work groups and samples
+		// beyond the edges with clamp-to-edge addressing:
+		final int cutSize = mDownSample * mLocalSize;
+		final int lPaddedShapeX = (int) (Math.ceil(1. * pWidthInVoxels
+																								/ cutSize) * mLocalSize);
+		final int lPaddedShapeY = (int) (Math.ceil(1. * pHeightInVoxels
+																								/ cutSize) * mLocalSize);
+		final int lPaddedShapeZ = (int) (Math.ceil(1. * pDepthInVoxels
+																								/ cutSize) * mLocalSize);
+
+		final int lWidth = (int) pWidthInVoxels;
+		final int lHeight = (int) pHeightInVoxels;
+		final int lDepth = (int) pDepthInVoxels;
+
+		final double[] lSums = reducePlanes(lPaddedShapeZ,
+																				new PlaneReduction<double[]>()
+																				{
+																					@Override
+																					protected double[] compute(	int pBeginPlane,
+																																			int pEndPlane)
+																					{
+																						final double[] lBlockSums = new double[4];
+																						final int[] lRow = new int[lWidth];
+																						final float[] lPlane = new float[lWidth * lHeight];
+																						for (int k = pBeginPlane; k < pEndPlane; k++)
+																						{
+																							final int kSpace = k * mDownSample;
+																							readPlane(lVoxelSource,
+																												clampToEdge(kSpace,
+																																		lDepth),
+																												lRow,
+																												lPlane);
+																							for (int j = 0; j < lPaddedShapeY; j++)
+																							{
+																								final int jSpace = j * mDownSample;
+																								final int lOffset = clampToEdge(jSpace,
+																																								lHeight) * lWidth;
+																								for (int i = 0; i < lPaddedShapeX; i++)
+																								{
+																									final int iSpace = i * mDownSample;
+																									final float val = lPlane[lOffset + clampToEdge(	iSpace,
+																																																	lWidth)];
+																									lBlockSums[0] += val * iSpace;
+																									lBlockSums[1] += val * jSpace;
+																									lBlockSums[2] += val * kSpace;
+																									lBlockSums[3] += val;
+																								}
+																							}
+																						}
+																						return lBlockSums;
+																					}
+
+																					@Override
+																					protected double[] combine(	double[] pFirst,
+																																			double[] pSecond)
+																					{
+																						for (int i = 0; i < pFirst.length; i++)
+																							pFirst[i] += pSecond[i];
+																						return pFirst;
+																					}
+																				});
+
+		final float resSum = (float) lSums[3];
+		final float[] result = rescaleToLocalVoxelInterval(	(float) lSums[0] / resSum,
+																												(float) lSums[1] / resSum,
+																												(float) lSums[2] / resSum,
+																												pWidthInVoxels,
+																												pHeightInVoxels,
+																												pDepthInVoxels);
+
+		notifyListenersOfResult(result);
+	}
+
+	private float[] rescaleToLocalVoxelInterval(float x,
+																							float y,
+																							float z,
+																							long pWidthInVoxels,
+																							long pHeightInVoxels,
+																							long pDepthInVoxels)
+	{
+		final float new_x = ((1.0f - (-1.0f)) * (x - 0) / (pWidthInVoxels - 0)) + -1.0f;
+		final float new_y = ((1.0f - (-1.0f)) * (y - 0) / (pHeightInVoxels - 0)) + -1.0f;
+		final float new_z = ((1.0f - (-1.0f)) * (z - 0) / (pDepthInVoxels - 0)) + -1.0f;
+
+		return new float[]
+		{ new_x, new_y, new_z };
+	}
+}
@@ -0,0 +1,621 @@
+package clearvolume.renderer.processors.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
+import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import clearvolume.renderer.ClearVolumeRendererInterface;
+import clearvolume.renderer.processors.FFTPlan3D;
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+import coremem.types.NativeTypeEnum;
+
+import com.jogamp.newt.event.InputEvent;
+import com.jogamp.newt.event.KeyEvent;
+
+/**
+ * Class JavaDeconvolutionLR
+ *
+ * Richardson-Lucy deconvolution on the host, the counterpart of
+ * {@link OpenCLDeconvolutionLR} for renderers without GPU. Any point spread
+ * function can be used, for example a measured one, since convolutions are
+ * computed as products in Fourier space. Each axis is padded by the half width
+ * of the point spread function on both sides, so that it does not wrap
+ * around, rounded up to the next product of powers of 2, 3 and 5. Padding
+ * replicates the edges. Volumes whose padded buffers would not fit in arrays or
+ * in the Java heap are refused. The FFT plan, the transfer function of the point
+ * spread function and all buffers are kept between volumes of the same shape.
+ *
+ * The result, normalized as the voxels read by the Java processors, is passed
+ * to listeners as a float buffer that is only valid until the next volume. It
+ * can also be written to another render layer of a renderer.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class JavaDeconvolutionLR extends JavaProcessor<FloatBuffer>
+{
+	private static final float cEpsilon = 1e-6f;
+
+	private volatile int mNumberOfIterations = 5;
+
+	private float[] mPSF = new float[]
+	{ 1 };
+	private final int[] mPSFShape = new int[]
+	{ 1, 1, 1 };
+	private boolean mPSFChanged = true;
+
+	private volatile ClearVolumeRendererInterface mOutputRenderer;
+	private volatile int mOutputRenderLayerIndex = -1;
+
+	private final int[] mShape = new int[3];
+	private FFTPlan3D mFFTPlan;
+	private float[] mOTF, mWork, mObserved, mEstimate, mResult;
+	private FloatBuffer mResultBuffer;
+	private ByteBuffer mOutputBuffer;
+
+	public JavaDeconvolutionLR()
+	{
+		super();
+		setActive(false);
+		setSigmas(1.f, 1.f, 1.f);
+	}
+
+	@Override
+	public String getName()
+	{
+		return "java_deconv_rl";
+	}
+
+	@Override
+	public short toggleKeyCode()
+	{
+		return KeyEvent.VK_D;
+	}
+
+	@Override
+	public int toggleKeyModifierMask()
+	{
+		return InputEvent.SHIFT_MASK;
+	}
+
+	public void setNumberOfIterations(final int pNumberOfIterations)
+	{
+		mNumberOfIterations = pNumberOfIterations;
+	}
+
+	public int getNumberOfIterations()
+	{
+		return mNumberOfIterations;
+	}
+
+	/**
+	 * Sets a Gaussian point spread function with the same sigmas and support as
+	 * the blur of {@link OpenCLDeconvolutionLR}.
+	 *
+	 * @param pSigmaX
+	 *          sigma along X in voxels
+	 * @param pSigmaY
+	 *          sigma along Y in voxels
+	 * @param pSigmaZ
+	 *          sigma along Z in voxels
+	 */
+	public void setSigmas(final float pSigmaX,
+												final float pSigmaY,
+												final float pSigmaZ)
+	{
+		final float[] lSigmas = new float[]
+		{ pSigmaX, pSigmaY, pSigmaZ };
+		final float[][] lProfiles = new float[3][];
+		for (int d = 0; d < 3; d++)
+		{
+			// odd support of about 4 sigmas, as in deconv.cl:
+			final int lSize = 2 * ((int) (4 * lSigmas[d] + 1) / 2) + 1;
+			final int lDelta = (lSize - 1) / 2;
+			lProfiles[d] = new float[lSize];
+			for (int p = 0; p < lSize; p++)
+				lProfiles[d][p] = (float) Math.exp(-1.f * (p - lDelta)
+																						* (p - lDelta)
+																						/ lSigmas[d]
+																						/ lSigmas[d]);
+		}
+
+		final int Nx = lProfiles[0].length;
+		final int Ny = lProfiles[1].length;
+		final int Nz = lProfiles[2].length;
+		final float[] lPSF = new float[Nx * Ny * Nz];
+		for (int k = 0; k < Nz; k++)
+			for (int j = 0; j < Ny; j++)
+				for (int i = 0; i < Nx; i++)
+					lPSF[i + Nx * j + Nx * Ny * k] = lProfiles[0][i] * lProfiles[1][j]
+																						* lProfiles[2][k];
+
+		setPSF(lPSF, Nx, Ny, Nz);
+	}
+
+	/**
+	 * Sets the point spread function, for example a measured one. It is
+	 * normalized to a sum of one, and its center is the voxel (Nx/2, Ny/2,
+	 * Nz/2).
+	 *
+	 * @param pPSF
+	 *          point spread function, X fastest, then Y, then Z
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 */
+	public void setPSF(	final float[] pPSF,
+											final int pWidth,
+											final int pHeight,
+											final int pDepth)
+	{
+		if (pWidth < 1 || pHeight < 1
+				|| pDepth < 1
+				|| pPSF.length != pWidth * pHeight * pDepth)
+			throw new IllegalArgumentException("Point spread function of length " + pPSF.length
+																					+ " does not have dimensions "
+																					+ pWidth
+																					+ "x"
+																					+ pHeight
+																					+ "x"
+																					+ pDepth);
+
+		double lSum = 0;
+		for (final float lValue : pPSF)
+			lSum += lValue;
+		if (lSum <= 0)
+			throw new IllegalArgumentException("Point spread function must have a positive sum");
+
+		final float[] lPSF = new float[pPSF.length];
+		for (int i = 0; i < pPSF.length; i++)
+			lPSF[i] = (float) (pPSF[i] / lSum);
+
+		synchronized (this)
+		{
+			mPSF = lPSF;
+			mPSFShape[0] = pWidth;
+			mPSFShape[1] = pHeight;
+			mPSFShape[2] = pDepth;
+			mPSFChanged = true;
+		}
+	}
+
+	/**
+	 * Writes results to a render layer of a renderer, as voxels of the type of
+	 * the renderer. The renderer waits for the copy, so processors writing to a
+	 * render layer should run asynchronously, which is the default. Volumes
+	 * arriving on the output layer itself are not deconvolved.
+	 *
+	 * @param pRenderer
+	 *          renderer, or null to stop writing results
+	 * @param pRenderLayerIndex
+	 *          render layer index
+	 */
+	public void setOutputRenderLayer(	final ClearVolumeRendererInterface pRenderer,
+																		final int pRenderLayerIndex)
+	{
+		mOutputRenderLayerIndex = pRenderLayerIndex;
+		mOutputRenderer = pRenderer;
+	}
+
+	public int getOutputRenderLayerIndex()
+	{
+		return mOutputRenderer == null ? -1 : mOutputRenderLayerIndex;
+	}
+
+	@Override
+	public void process(int pRenderLayerIndex,
+											long pWidthInVoxels,
+											long pHeightInVoxels,
+											long pDepthInVoxels)
+	{
+		if (!isActive())
+			return;
+
+		final ClearVolumeRendererInterface lOutputRenderer = mOutputRenderer;
+		if (lOutputRenderer != null && pRenderLayerIndex == mOutputRenderLayerIndex)
+			return;
+
+		final MinMaxBrickGrid.VoxelSource lVoxelSource = getVoxelSource(pWidthInVoxels,
+																																		pHeightInVoxels);
+		if (lVoxelSource == null)
+			return;
+
+		final int lWidth = (int) pWidthInVoxels;
+		final int lHeight = (int) pHeightInVoxels;
+		final int lDepth = (int) pDepthInVoxels;
+
+		initBuffers(lWidth, lHeight, lDepth);
+
+		readPadded(lVoxelSource, lWidth, lHeight, lDepth);
+		System.arraycopy(mObserved, 0, mEstimate, 0, mObserved.length);
+
+		for (int i = 0; i < mNumberOfIterations; i++)
+		{
+			// ratio of the observed volume to the blurred estimate:
+			toComplex(mEstimate);
+			mFFTPlan.forward(mWork);
+			multiplyByOTF(false);
+			mFFTPlan.inverse(mWork);
+			divideObservedByWork();
+
+			// correlated with the point spread function, corrects the estimate:
+			mFFTPlan.forward(mWork);
+			multiplyByOTF(true);
+			mFFTPlan.inverse(mWork);
+			multiplyEstimateByWork();
+		}
+
+		crop(lWidth, lHeight, lDepth);
+
+		if (lOutputRenderer != null)
+			writeToRenderLayer(	lOutputRenderer,
+													mOutputRenderLayerIndex,
+													lWidth,
+													lHeight,
+													lDepth);
+
+		mResultBuffer.rewind();
+		notifyListenersOfResult(mResultBuffer);
+	}
+
+	private void initBuffers(	final int pWidth,
+														final int pHeight,
+														final int pDepth)
+	{
+		final float[] lPSF;
+		final int[] lPSFShape;
+		boolean lPSFChanged;
+		synchronized (this)
+		{
+			lPSF = mPSF;
+			lPSFShape = mPSFShape.clone();
+			lPSFChanged = mPSFChanged;
+			mPSFChanged = false;
+		}
+
+		// large enough for the point spread function not to wrap around:
+		final int Nx = FFTPlan3D.nextFastLength(pWidth + lPSFShape[0] - 1);
+		final int Ny = FFTPlan3D.nextFastLength(pHeight + lPSFShape[1] - 1);
+		final int Nz = FFTPlan3D.nextFastLength(pDepth + lPSFShape[2] - 1);
+
+		if (mFFTPlan == null || mFFTPlan.getWidth() != Nx
+				|| mFFTPlan.getHeight() != Ny
+				|| mFFTPlan.getDepth() != Nz)
+		{
+			// the previous buffers can be collected before the new ones are
+			// allocated, and a refused volume leaves no stale plan behind:
+			mFFTPlan = null;
+			mOTF = mWork = mObserved = mEstimate = null;
+
+			// two complex and two real padded buffers, and the result:
+			final long lPaddedVoxels = (long) Nx * Ny * Nz;
+			final long lSizeInBytes = 4 * (6 * lPaddedVoxels + (long) pWidth
+																											* pHeight
+																											* pDepth);
+			final long lMaxSizeInBytes = Runtime.getRuntime().maxMemory();
+			if (!FFTPlan3D.fitsInArray(Nx, Ny, Nz) || lSizeInBytes > lMaxSizeInBytes)
+				throw new ClearVolumeMemoryBudgetException(String.format("Cannot deconvolve a %dx%dx%d volume: padded to %dx%dx%d it needs %d bytes, the Java heap has at most %d bytes",
+																																	pWidth,
+																																	pHeight,
+																																	pDepth,
+																																	Nx,
+																																	Ny,
+																																	Nz,
+																																	lSizeInBytes,
+																																	lMaxSizeInBytes));
+
+			mFFTPlan = new FFTPlan3D(Nx, Ny, Nz);
+			final int lVolume = mFFTPlan.getVolume();
+			mOTF = new float[2 * lVolume];
+			mWork = new float[2 * lVolume];
+			mObserved = new float[lVolume];
+			mEstimate = new float[lVolume];
+			lPSFChanged = true;
+		}
+
+		if (mResult == null || mShape[0] != pWidth
+				|| mShape[1] != pHeight
+				|| mShape[2] != pDepth)
+		{
+			mShape[0] = pWidth;
+			mShape[1] = pHeight;
+			mShape[2] = pDepth;
+			mResult = new float[pWidth * pHeight * pDepth];
+			mResultBuffer = FloatBuffer.wrap(mResult);
+		}
+
+		if (lPSFChanged)
+			computeOTF(lPSF, lPSFShape);
+	}
+
+	// transfer function: transform of the point spread function centered on
+	// the origin
+	private void computeOTF(final float[] pPSF, final int[] pPSFShape)
+	{
+		final int Nx = mFFTPlan.getWidth(), Ny = mFFTPlan.getHeight(), Nz = mFFTPlan.getDepth();
+		final int lPSFWidth = pPSFShape[0], lPSFHeight = pPSFShape[1], lPSFDepth = pPSFShape[2];
+
+		Arrays.fill(mOTF, 0);
+		for (int k = 0; k < lPSFDepth; k++)
+			for (int j = 0; j < lPSFHeight; j++)
+				for (int i = 0; i < lPSFWidth; i++)
+				{
+					final int i1 = wrap(i - lPSFWidth / 2, Nx);
+					final int j1 = wrap(j - lPSFHeight / 2, Ny);
+					final int k1 = wrap(k - lPSFDepth / 2, Nz);
+					mOTF[2 * (i1 + Nx * j1 + Nx * Ny * k1)] = pPSF[i + lPSFWidth
+																													* j
+																													+ lPSFWidth
+																													* lPSFHeight
+																													* k];
+				}
+		mFFTPlan.forward(mOTF);
+	}
+
+	private static int wrap(final int pIndex, final int pLength)
+	{
+		return ((pIndex % pLength) + pLength) % pLength;
+	}
+
+	// padded index to volume index: the first half of the padding replicates
+	// the last voxel, the second half, which wraps around to the first voxel,
+	// replicates the first voxel
+	private static int paddedToVolume(final int pIndex,
+																		final int pLength,
+																		final int pPaddedLength)
+	{
+		if (pIndex < pLength)
+			return pIndex;
+		return pIndex < pLength + (pPaddedLength - pLength) / 2	? pLength - 1
+																														: 0;
+	}
+
+	private void readPadded(final MinMaxBrickGrid.VoxelSource pVoxelSource,
+													final int pWidth,
+													final int pHeight,
+													final int pDepth)
+	{
+		final int Nx = mFFTPlan.getWidth(), Ny = mFFTPlan.getHeight(), Nz = mFFTPlan.getDepth();
+		final float[] lObserved = mObserved;
+
+		reducePlanes(Nz, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				final int[] lRow = new int[pWidth];
+				final float[] lPlane = new float[pWidth * pHeight];
+				for (int k = pBeginPlane; k < pEndPlane; k++)
+				{
+					readPlane(pVoxelSource,
+										paddedToVolume(k, pDepth, Nz),
+										lRow,
+										lPlane);
+					for (int j = 0; j < Ny; j++)
+					{
+						final int lRowOffset = pWidth * paddedToVolume(j, pHeight, Ny);
+						for (int i = 0; i < Nx; i++)
+							lObserved[i + Nx * j + Nx * Ny * k] = lPlane[lRowOffset + paddedToVolume(	i,
+																																												pWidth,
+																																												Nx)];
+					}
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	private void toComplex(final float[] pReal)
+	{
+		final float[] lWork = mWork;
+		final int lPlaneSize = mFFTPlan.getWidth() * mFFTPlan.getHeight();
+
+		reducePlanes(mFFTPlan.getDepth(), new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+				{
+					lWork[2 * i] = pReal[i];
+					lWork[2 * i + 1] = 0;
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	// multiplies the work buffer by the transfer function (convolution) or by
+	// its conjugate (correlation)
+	private void multiplyByOTF(final boolean pConjugate)
+	{
+		final float[] lWork = mWork, lOTF = mOTF;
+		final float lSign = pConjugate ? -1 : 1;
+		final int lPlaneSize = mFFTPlan.getWidth() * mFFTPlan.getHeight();
+
+		reducePlanes(mFFTPlan.getDepth(), new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+				{
+					final float ar = lWork[2 * i], ai = lWork[2 * i + 1];
+					final float br = lOTF[2 * i], bi = lSign * lOTF[2 * i + 1];
+					lWork[2 * i] = ar * br - ai * bi;
+					lWork[2 * i + 1] = ar * bi + ai * br;
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	private void divideObservedByWork()
+	{
+		final float[] lWork = mWork, lObserved = mObserved;
+		final int lPlaneSize = mFFTPlan.getWidth() * mFFTPlan.getHeight();
+
+		reducePlanes(mFFTPlan.getDepth(), new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+				{
+					lWork[2 * i] = lObserved[i] / Math.max(cEpsilon, lWork[2 * i]);
+					lWork[2 * i + 1] = 0;
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	private void multiplyEstimateByWork()
+	{
+		final float[] lWork = mWork, lEstimate = mEstimate;
+		final int lPlaneSize = mFFTPlan.getWidth() * mFFTPlan.getHeight();
+
+		reducePlanes(mFFTPlan.getDepth(), new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				// rounding errors of the transforms must not make it negative:
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+					lEstimate[i] *= Math.max(0, lWork[2 * i]);
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	private void crop(final int pWidth, final int pHeight, final int pDepth)
+	{
+		final int Nx = mFFTPlan.getWidth(), Ny = mFFTPlan.getHeight();
+		final float[] lEstimate = mEstimate, lResult = mResult;
+
+		reducePlanes(pDepth, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				for (int k = pBeginPlane; k < pEndPlane; k++)
+					for (int j = 0; j < pHeight; j++)
+						System.arraycopy(	lEstimate,
+															Nx * j + Nx * Ny * k,
+															lResult,
+															pWidth * j + pWidth * pHeight * k,
+															pWidth);
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	private void writeToRenderLayer(final ClearVolumeRendererInterface pRenderer,
+																	final int pRenderLayerIndex,
+																	final int pWidth,
+																	final int pHeight,
+																	final int pDepth)
+	{
+		final NativeTypeEnum lNativeType = pRenderer.getNativeType();
+		final boolean lShort;
+		final float lLargestValue;
+		if (lNativeType == NativeTypeEnum.UnsignedByte || lNativeType == NativeTypeEnum.Byte)
+		{
+			lShort = false;
+			lLargestValue = 255;
+		}
+		else if (lNativeType == NativeTypeEnum.UnsignedShort || lNativeType == NativeTypeEnum.Short)
+		{
+			lShort = true;
+			lLargestValue = 65535;
+		}
+		else
+			throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + lNativeType);
+
+		final int lSizeInBytes = (lShort ? 2 : 1) * mResult.length;
+		if (mOutputBuffer == null || mOutputBuffer.capacity() != lSizeInBytes)
+			mOutputBuffer = ByteBuffer.allocateDirect(lSizeInBytes)
+																.order(ByteOrder.nativeOrder());
+
+		final ByteBuffer lOutputBuffer = mOutputBuffer;
+		final float[] lResult = mResult;
+		final int lPlaneSize = pWidth * pHeight;
+		reducePlanes(pDepth, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+				{
+					final int lValue = Math.round(Math.max(0,
+																								Math.min(	lLargestValue,
+																													lLargestValue * lResult[i])));
+					if (lShort)
+						lOutputBuffer.putShort(2 * i, (short) lValue);
+					else
+						lOutputBuffer.put(i, (byte) lValue);
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+
+		lOutputBuffer.rewind();
+		// if the renderer timed out it may still read the buffer later:
+		if (!pRenderer.setVolumeDataBuffer(	pRenderLayerIndex,
+																				lOutputBuffer,
+																				pWidth,
+																				pHeight,
+																				pDepth))
+			mOutputBuffer = null;
+	}
+
+}
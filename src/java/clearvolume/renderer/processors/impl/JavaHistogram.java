@@ -0,0 +1,111 @@
+package clearvolume.renderer.processors.impl;
+
+import java.nio.FloatBuffer;
+
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+
+/**
+ * Class JavaHistogram
+ *
+ * Histogram of the normalized voxel values, binned as the kernel
+ * histogram_naive in histogram.cl bins them, see {@link OpenCLHistogram}.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class JavaHistogram extends JavaProcessor<FloatBuffer>
+{
+
+	private volatile float mMin = 0.f, mMax = 1.f;
+
+	private volatile int mNumberOfBins = 128;
+	private FloatBuffer mOutputBuffer;
+
+	@Override
+	public String getName()
+	{
+		return "java_histogram";
+	}
+
+	public void setRange(final float pMin, final float pMax)
+	{
+		mMax = pMax;
+		mMin = pMin;
+	}
+
+	@Override
+	public void process(int pRenderLayerIndex,
+											long pWidthInVoxels,
+											long pHeightInVoxels,
+											long pDepthInVoxels)
+	{
+		if (!isActive())
+			return;
+
+		final MinMaxBrickGrid.VoxelSource lVoxelSource = getVoxelSource(pWidthInVoxels,
+																																		pHeightInVoxels);
+		if (lVoxelSource == null)
+			return;
+
+		final int lWidth = (int) pWidthInVoxels;
+		final int lHeight = (int) pHeightInVoxels;
+		final float lMin = mMin;
+		final float lMax = mMax;
+		final int lNumberOfBins = mNumberOfBins;
+
+		final int[] lCounts = reducePlanes(	(int) pDepthInVoxels,
+																				new PlaneReduction<int[]>()
+																				{
+																					@Override
+																					protected int[] compute(int pBeginPlane,
+																																	int pEndPlane)
+																					{
+																						final int[] lBlockCounts = new int[lNumberOfBins];
+																						final int[] lRow = new int[lWidth];
+																						final float[] lPlane = new float[lWidth * lHeight];
+																						for (int z = pBeginPlane; z < pEndPlane; z++)
+																						{
+																							readPlane(lVoxelSource,
+																												z,
+																												lRow,
+																												lPlane);
+																							for (final float lValue : lPlane)
+																							{
+																								// float to uint conversions
+																								// saturate on devices:
+																								final float lPosition = (lValue - lMin) / (lMax - lMin)
+																																				* (lNumberOfBins - 1);
+																								if (lPosition < lNumberOfBins)
+																									lBlockCounts[lPosition > 0	? (int) lPosition
+																																							: 0]++;
+																							}
+																						}
+																						return lBlockCounts;
+																					}
+
+																					@Override
+																					protected int[] combine(int[] pFirst,
+																																	int[] pSecond)
+																					{
+																						for (int i = 0; i < pFirst.length; i++)
+																							pFirst[i] += pSecond[i];
+																						return pFirst;
+																					}
+																				});
+
+		if (mOutputBuffer == null || mOutputBuffer.capacity() != lNumberOfBins)
+			mOutputBuffer = FloatBuffer.allocate(lNumberOfBins);
+
+		final long lNumberOfPixels = pWidthInVoxels * pHeightInVoxels
+																	* pDepthInVoxels;
+
+		for (int i = 0; i < lNumberOfBins; i++)
+		{
+			mOutputBuffer.put(i, 1.f * lCounts[i] / lNumberOfPixels);
+		}
+
+		notifyListenersOfResult(mOutputBuffer);
+	}
+
+}
@@ -0,0 +1,277 @@
+package clearvolume.renderer.processors.impl;
+
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+
+/**
+ * Class JavaTenengrad
+ *
+ * Tenengrad focus score, the mean Sobel gradient magnitude of the downsampled
+ * (and optionally blurred) volume divided by its mean value. Each step follows
+ * the corresponding kernel in tenengrad.cl, see {@link OpenCLTenengrad}. Means
+ * are accumulated in double precision.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class JavaTenengrad extends JavaProcessor<Double>
+{
+
+	private static final float[] cDiff = new float[]
+	{ -.5f, 0.f, .5f };
+	private static final float[] cSmooth = new float[]
+	{ .25f, .5f, .25f };
+
+	private static final int X = 1, Y = 2, Z = 4;
+
+	private final int NDownSample = 3;
+	volatile private double mSigma = 0;
+
+	private final int[] mDownShape = new int[3];
+	private float[] mDownSampled, mGx, mGy, mGz, mScratch;
+
+	@Override
+	public String getName()
+	{
+		return "java_tenengrad";
+	}
+
+	public void setSigma(final double pSigma)
+	{
+		mSigma = pSigma;
+	}
+
+	private void initBuffers(	long pWidthInVoxels,
+														long pHeightInVoxels,
+														long pDepthInVoxels)
+	{
+		mDownShape[0] = (int) Math.ceil(1. * pWidthInVoxels / NDownSample);
+		mDownShape[1] = (int) Math.ceil(1. * pHeightInVoxels
+																		/ NDownSample);
+		mDownShape[2] = (int) Math.ceil(1. * pDepthInVoxels / NDownSample);
+
+		final int lDownSize = mDownShape[0] * mDownShape[1]
+													* mDownShape[2];
+		if (mDownSampled == null || mDownSampled.length != lDownSize)
+		{
+			mDownSampled = new float[lDownSize];
+			mGx = new float[lDownSize];
+			mGy = new float[lDownSize];
+			mGz = new float[lDownSize];
+			mScratch = new float[lDownSize];
+		}
+	}
+
+	@Override
+	public void process(int pRenderLayerIndex,
+											long pWidthInVoxels,
+											long pHeightInVoxels,
+											long pDepthInVoxels)
+	{
+		if (!isActive())
+			return;
+
+		final MinMaxBrickGrid.VoxelSource lVoxelSource = getVoxelSource(pWidthInVoxels,
+																																		pHeightInVoxels);
+		if (lVoxelSource == null)
+			return;
+
+		initBuffers(pWidthInVoxels, pHeightInVoxels, pDepthInVoxels);
+
+		downsample(	lVoxelSource,
+								(int) pWidthInVoxels,
+								(int) pHeightInVoxels,
+								(int) pDepthInVoxels);
+
+		final float lSigma = (float) mSigma;
+		if (lSigma > 0)
+		{
+			blur_step(mDownSampled, mScratch, lSigma, X);
+			blur_step(mScratch, mDownSampled, lSigma, Y);
+			blur_step(mDownSampled, mScratch, lSigma, Z);
+			System.arraycopy(mScratch, 0, mDownSampled, 0, mScratch.length);
+		}
+
+		// Gx
+		convolve_step(mDownSampled, mScratch, cDiff, X);
+		convolve_step(mScratch, mGx, cSmooth, Y);
+		convolve_step(mGx, mScratch, cSmooth, Z);
+		System.arraycopy(mScratch, 0, mGx, 0, mScratch.length);
+
+		// Gy
+		convolve_step(mDownSampled, mScratch, cDiff, Y);
+		convolve_step(mScratch, mGy, cSmooth, X);
+		convolve_step(mGy, mScratch, cSmooth, Z);
+		System.arraycopy(mScratch, 0, mGy, 0, mScratch.length);
+
+		// Gz
+		convolve_step(mDownSampled, mScratch, cDiff, Z);
+		convolve_step(mScratch, mGz, cSmooth, Y);
+		convolve_step(mGz, mScratch, cSmooth, X);
+		System.arraycopy(mScratch, 0, mGz, 0, mScratch.length);
+
+		final double[] lSums = sum();
+		final float meanValue = (float) (lSums[0] / mDownSampled.length);
+		final float meanGradient = (float) (lSums[1] / mDownSampled.length);
+
+		final float normalizedGradient = meanGradient / meanValue;
+
+		notifyListenersOfResult((double) normalizedGradient);
+	}
+
+	private void downsample(final MinMaxBrickGrid.VoxelSource pVoxelSource,
+													final int pWidth,
+													final int pHeight,
+													final int pDepth)
+	{
+		final int Nx = mDownShape[0], Ny = mDownShape[1];
+		final float[] lOutput = mDownSampled;
+
+		reducePlanes(mDownShape[2], new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				final int[] lRow = new int[pWidth];
+				final float[][] lPlanes = new float[NDownSample][pWidth * pHeight];
+				for (int k = pBeginPlane; k < pEndPlane; k++)
+				{
+					final int k0 = NDownSample * k;
+					for (int p = 0; p < NDownSample; p++)
+						readPlane(pVoxelSource,
+											clampToEdge(k0 + p, pDepth),
+											lRow,
+											lPlanes[p]);
+
+					for (int j = 0; j < Ny; j++)
+						for (int i = 0; i < Nx; i++)
+						{
+							final int i0 = NDownSample * i;
+							final int j0 = NDownSample * j;
+
+							float res = 0.f;
+							for (int n = 0; n < NDownSample; ++n)
+								for (int m = 0; m < NDownSample; ++m)
+									for (int p = 0; p < NDownSample; ++p)
+										res += lPlanes[p][clampToEdge(i0 + n, pWidth) + pWidth
+																			* clampToEdge(j0 + m, pHeight)];
+
+							lOutput[i + Nx * j + Nx * Ny * k] = res / NDownSample
+																									/ NDownSample
+																									/ NDownSample;
+						}
+				}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	// the convolution step with a three tap filter along one axis (out of
+	// place), flag is 1 (in x direction), 2 (y) or 4 (z)
+	private void convolve_step(	final float[] pInput,
+															final float[] pOutput,
+															final float[] h,
+															final int flag)
+	{
+		final int Nx = mDownShape[0], Ny = mDownShape[1], Nz = mDownShape[2];
+		final int dx = flag & 1;
+		final int dy = (flag & 2) / 2;
+		final int dz = (flag & 4) / 4;
+
+		reducePlanes(Nz, new PlaneReduction<Void>()
+		{
+			@Override
+			protected Void compute(int pBeginPlane, int pEndPlane)
+			{
+				final int delta = (h.length - 1) / 2;
+				for (int k = pBeginPlane; k < pEndPlane; k++)
+					for (int j = 0; j < Ny; j++)
+						for (int i = 0; i < Nx; i++)
+						{
+							float res = 0.f;
+							for (int p = 0; p < h.length; ++p)
+							{
+								final int i1 = clampToEdge(i + dx * (p - delta), Nx);
+								final int j1 = clampToEdge(j + dy * (p - delta), Ny);
+								final int k1 = clampToEdge(k + dz * (p - delta), Nz);
+								res += h[p] * pInput[i1 + Nx * j1 + Nx * Ny * k1];
+							}
+							pOutput[i + Nx * j + Nx * Ny * k] = res;
+						}
+				return null;
+			}
+
+			@Override
+			protected Void combine(Void pFirst, Void pSecond)
+			{
+				return null;
+			}
+		});
+	}
+
+	// the gaussian blurring step along one axis (out of place), flag is 1 (in
+	// x direction), 2 (y) or 4 (z)
+	private void blur_step(	final float[] pInput,
+													final float[] pOutput,
+													final float sigma,
+													final int flag)
+	{
+		final int Nh = 11;
+		final int delta = (Nh - 1) / 2;
+		final float[] h = new float[Nh];
+		float hSum = 0.f;
+		for (int p = 0; p < Nh; ++p)
+		{
+			h[p] = (float) Math.exp(-1.f * (p - delta)
+															* (p - delta)
+															/ sigma
+															/ sigma);
+			hSum += h[p];
+		}
+
+		convolve_step(pInput, pOutput, h, flag);
+
+		final double lNormalization = 1. / hSum;
+		for (int i = 0; i < pOutput.length; i++)
+			pOutput[i] *= lNormalization;
+	}
+
+	// sums of the downsampled values and of the gradient magnitudes
+	private double[] sum()
+	{
+		final int lPlaneSize = mDownShape[0] * mDownShape[1];
+
+		return reducePlanes(mDownShape[2], new PlaneReduction<double[]>()
+		{
+			@Override
+			protected double[] compute(int pBeginPlane, int pEndPlane)
+			{
+				final double[] lBlockSums = new double[2];
+				for (int i = pBeginPlane * lPlaneSize; i < pEndPlane * lPlaneSize; i++)
+				{
+					final float Gx = mGx[i];
+					final float Gy = mGy[i];
+					final float Gz = mGz[i];
+
+					lBlockSums[0] += mDownSampled[i];
+					lBlockSums[1] += (float) Math.sqrt(Gx * Gx + Gy * Gy + Gz * Gz);
+				}
+				return lBlockSums;
+			}
+
+			@Override
+			protected double[] combine(double[] pFirst, double[] pSecond)
+			{
+				pFirst[0] += pSecond[0];
+				pFirst[1] += pSecond[1];
+				return pFirst;
+			}
+		});
+	}
+}
@@ -1,7 +1,11 @@
 package clearvolume.renderer.processors.impl;
 
-import clearvolume.renderer.opencl.OpenCLDevice;
+import java.util.Collection;
+import java.util.Collections;
+
+import clearvolume.renderer.processors.IntermediateKey;
 import clearvolume.renderer.processors.OpenCLProcessor;
+import clearvolume.renderer.processors.ProcessingGraph;
 
 import com.jogamp.newt.event.InputEvent;
 import com.jogamp.newt.event.KeyEvent;
@@ -13,16 +17,9 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 
 	private CLKernel mKernelBlur;
 	private CLKernel mKernelMul;
-	private CLKernel mKernelCopyImgToBuf;
 	private CLKernel mKernelCopyBufToImg;
 	private CLKernel mKernelDiv;
 
-	CLBuffer<Float> mInput;
-	CLBuffer<Float> mTmp;
-	CLBuffer<Float> mTmp2;
-	CLBuffer<Float> mScratch;
-	CLBuffer<Float> mOut;
-
 	private float sigX, sigY, sigZ;
 	private int NhX, NhY, NhZ;
 
@@ -75,9 +72,6 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 			mKernelBlur = getDevice().compileKernel(OpenCLDeconvolutionLR.class.getResource("kernels/deconv.cl"),
 																							"blur_sep");
 
-			mKernelCopyImgToBuf = getDevice().compileKernel(OpenCLDeconvolutionLR.class.getResource("kernels/deconv.cl"),
-																											"copyImgToBuf");
-
 			mKernelCopyBufToImg = getDevice().compileKernel(OpenCLDeconvolutionLR.class.getResource("kernels/deconv.cl"),
 																											"copyBufToImg");
 
@@ -91,32 +85,14 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 
 	}
 
-	public void initBuffers(final long Nx, final long Ny, final long Nz)
-	{
-		final long lBufferSize = Nx * Ny * Nz;
-		final OpenCLDevice lDevice = getDevice();
+	// the float copy of the volume, shared with other processors through the
+	// processing graph
+	private static final IntermediateKey cInput = IntermediateKey.downsampled(1);
 
-		if (mInput == null || mInput.getElementCount() != lBufferSize)
-		{
-			if (mInput != null)
-				mInput.release();
-			if (mTmp != null)
-				mTmp.release();
-			if (mTmp2 != null)
-				mTmp2.release();
-			if (mTmp2 != null)
-				mTmp2.release();
-			if (mScratch != null)
-				mScratch.release();
-			if (mOut != null)
-				mOut.release();
-
-			mInput = lDevice.createInputFloatBuffer(lBufferSize);
-			mTmp = lDevice.createOutputFloatBuffer(lBufferSize);
-			mTmp2 = lDevice.createOutputFloatBuffer(lBufferSize);
-			mScratch = lDevice.createOutputFloatBuffer(lBufferSize);
-			mOut = lDevice.createOutputFloatBuffer(lBufferSize);
-		}
+	@Override
+	public Collection<IntermediateKey> getInputs()
+	{
+		return Collections.singletonList(cInput);
 	}
 
 	@Override
@@ -128,62 +104,59 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 		if (!isActive())
 			return;
 
+		final ProcessingGraph<CLBuffer<Float>> lProcessingGraph = getProcessingGraph();
+		if (lProcessingGraph == null)
+			return;
+
+		CLBuffer<Float> lTmp = null, lTmp2 = null, lScratch = null, lOut = null;
 		try
 		{
 			final long start = System.nanoTime();
 
 			ensureOpenCLInitialized();
 
-			if (mInput == null)
-			{
-				System.out.println("setting up buffers");
-				initBuffers(pWidthInVoxels, pHeightInVoxels, pDepthInVoxels);
-			}
+			final CLBuffer<Float> lInput = lProcessingGraph.get(cInput)
+																											.getBuffer();
+			final long lBufferSize = lInput.getElementCount();
 
-			copyImgToBuf(	pRenderLayerIndex,
-										mInput,
-										pWidthInVoxels,
-										pHeightInVoxels,
-										pDepthInVoxels);
+			lTmp = lProcessingGraph.acquireBuffer(lBufferSize);
+			lTmp2 = lProcessingGraph.acquireBuffer(lBufferSize);
+			lScratch = lProcessingGraph.acquireBuffer(lBufferSize);
+			lOut = lProcessingGraph.acquireBuffer(lBufferSize);
 
-			copyImgToBuf(	pRenderLayerIndex,
-										mOut,
-										pWidthInVoxels,
-										pHeightInVoxels,
-										pDepthInVoxels);
+			lInput.copyTo(getDevice().getQueue(), lOut);
 
 			for (int i = 0; i < Niter; i++)
 			{
 
-				blur(	mOut,
-							mTmp,
-							mScratch,
+				blur(	lOut,
+							lTmp,
+							lScratch,
 							pWidthInVoxels,
 							pHeightInVoxels,
 							pDepthInVoxels);
-				divide(	mInput,
-								mTmp,
-								mTmp2,
+				divide(	lInput,
+								lTmp,
+								lTmp2,
 								pWidthInVoxels,
 								pHeightInVoxels,
 								pDepthInVoxels);
 
-				blur(	mTmp2,
-							mTmp,
-							mScratch,
+				blur(	lTmp2,
+							lTmp,
+							lScratch,
 							pWidthInVoxels,
 							pHeightInVoxels,
 							pDepthInVoxels);
 
-				multiply(	mTmp,
-									mOut,
+				multiply(	lTmp,
+									lOut,
 									pWidthInVoxels,
 									pHeightInVoxels,
 									pDepthInVoxels);
 
 			}
-			copyBufToImg(	mOut,
-										pRenderLayerIndex,
+			copyBufToImg(	lOut,
 										pWidthInVoxels,
 										pHeightInVoxels,
 										pDepthInVoxels);
@@ -198,6 +171,13 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 			e.printStackTrace();
 			notifyListenersOfResult(new Boolean(false));
 		}
+		finally
+		{
+			lProcessingGraph.releaseBuffer(lTmp);
+			lProcessingGraph.releaseBuffer(lTmp2);
+			lProcessingGraph.releaseBuffer(lScratch);
+			lProcessingGraph.releaseBuffer(lOut);
+		}
 
 		notifyListenersOfResult(new Boolean(true));
 	}
@@ -223,25 +203,12 @@ public class OpenCLDeconvolutionLR extends OpenCLProcessor<Boolean>
 		getDevice().run(mKernelMul, (int) (Nx * Ny * Nz), 1, 1);
 	}
 
-	private void copyImgToBuf(int pRenderLayerIndex,
-														CLBuffer<Float> bufIn,
-														final long Nx,
-														final long Ny,
-														final long Nz)
-	{
-		mKernelCopyImgToBuf.setArgs(getVolumeBuffers()[pRenderLayerIndex],
-																bufIn);
-		getDevice().run(mKernelCopyImgToBuf, (int) Nx, (int) Ny, (int) Nz);
-	}
-
 	private void copyBufToImg(CLBuffer<Float> bufIn,
-														int pRenderLayerIndex,
 														final long Nx,
 														final long Ny,
 														final long Nz)
 	{
-		mKernelCopyBufToImg.setArgs(bufIn,
-																getVolumeBuffers()[pRenderLayerIndex]);
+		mKernelCopyBufToImg.setArgs(bufIn, getVolumeBuffers()[0]);
 		getDevice().run(mKernelCopyBufToImg, (int) Nx, (int) Ny, (int) Nz);
 	}
 
@@ -1,7 +1,7 @@
 package clearvolume.renderer.processors.impl;
 
-import clearvolume.renderer.opencl.OpenCLDevice;
 import clearvolume.renderer.processors.OpenCLProcessor;
+import clearvolume.renderer.processors.ProcessingGraph;
 
 import com.jogamp.newt.event.KeyEvent;
 import com.nativelibs4java.opencl.CLBuffer;
@@ -16,8 +16,6 @@ public class OpenCLDenoise extends OpenCLProcessor<Boolean>
 	private float mSigmaSpace, mSigmaValue;
 	private int mBlockSize;
 
-	private CLBuffer<Float> mBufScratch;
-
 	public OpenCLDenoise()
 	{
 		super();
@@ -65,17 +63,6 @@ public class OpenCLDenoise extends OpenCLProcessor<Boolean>
 
 	}
 
-	public void initBuffers(final long Nx, final long Ny, final long Nz)
-	{
-		final long lLength = Nx * Ny * Nz;
-
-		if (mBufScratch == null || mBufScratch.getElementCount() != lLength)
-		{
-			final OpenCLDevice mDev = getDevice();
-			mBufScratch = mDev.createOutputFloatBuffer(lLength);
-		}
-	}
-
 	@Override
 	public void process(int pRenderLayerIndex,
 											long pWidthInVoxels,
@@ -85,18 +72,23 @@ public class OpenCLDenoise extends OpenCLProcessor<Boolean>
 		if (!isActive())
 			return;
 
+		final ProcessingGraph<CLBuffer<Float>> lProcessingGraph = getProcessingGraph();
+		if (lProcessingGraph == null)
+			return;
+
+		CLBuffer<Float> lBufScratch = null;
 		try
 		{
 			// final long start = System.nanoTime();
 
 			ensureOpenCLInitialized();
 
-			// System.out.println("setting up buffers");
-			initBuffers(pWidthInVoxels, pHeightInVoxels, pDepthInVoxels);
+			lBufScratch = lProcessingGraph.acquireBuffer(pWidthInVoxels * pHeightInVoxels
+																										* pDepthInVoxels);
 
 			// bilateral filtering
-			mKernelBilateral.setArgs(	getVolumeBuffers()[pRenderLayerIndex],
-																mBufScratch,
+			mKernelBilateral.setArgs(	getVolumeBuffers()[0],
+																lBufScratch,
 																mBlockSize,
 																mSigmaSpace,
 																mSigmaValue);
@@ -106,8 +98,7 @@ public class OpenCLDenoise extends OpenCLProcessor<Boolean>
 											(int) pDepthInVoxels);
 
 			// copy back
-			mKernelCopyBufToImg.setArgs(mBufScratch,
-																	getVolumeBuffers()[pRenderLayerIndex]);
+			mKernelCopyBufToImg.setArgs(lBufScratch, getVolumeBuffers()[0]);
 			getDevice().run(mKernelCopyBufToImg,
 											(int) pWidthInVoxels,
 											(int) pHeightInVoxels,
@@ -123,6 +114,10 @@ public class OpenCLDenoise extends OpenCLProcessor<Boolean>
 			e.printStackTrace();
 			notifyListenersOfResult(new Boolean(false));
 		}
+		finally
+		{
+			lProcessingGraph.releaseBuffer(lBufScratch);
+		}
 
 		notifyListenersOfResult(new Boolean(true));
 
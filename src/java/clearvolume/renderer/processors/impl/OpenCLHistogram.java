@@ -68,8 +68,6 @@ public class OpenCLHistogram extends OpenCLProcessor<FloatBuffer>
 		if (!isActive())
 			return;
 
-		final long start = System.nanoTime();
-
 		ensureOpenCLInitialized();
 
 		if (mBufCounts == null)
@@ -100,11 +98,6 @@ public class OpenCLHistogram extends OpenCLProcessor<FloatBuffer>
 		final IntBuffer out = getDevice().readIntBufferAsByte(mBufCounts)
 																			.asIntBuffer();
 
-		final long stop = System.nanoTime();
-
-		if (false)
-			debugOutput(start, out, stop);
-
 		if (mOutputBuffer == null || mOutputBuffer.capacity() != mNumberOfBins)
 			mOutputBuffer = FloatBuffer.allocate(mNumberOfBins);
 
@@ -120,22 +113,4 @@ public class OpenCLHistogram extends OpenCLProcessor<FloatBuffer>
 
 	}
 
-	private void debugOutput(	final long start,
-														final IntBuffer out,
-														final long stop)
-	{
-		{
-			System.out.println(out.get(0));
-
-			for (int i = 0; i < mNumberOfBins; i++)
-			{
-				System.out.print(out.get(i) + " ");
-			}
-
-			System.out.printf("\n \n histogram: %.4f ms \n",
-												(stop - start) / 1.e6f);
-
-		}
-	}
-
 }
@@ -0,0 +1,182 @@
+package clearvolume.renderer.processors.impl;
+
+import java.util.List;
+
+import clearvolume.renderer.opencl.OpenCLDevice;
+import clearvolume.renderer.processors.BufferPool;
+import clearvolume.renderer.processors.IntermediateKey;
+import clearvolume.renderer.processors.ProcessingGraph;
+import clearvolume.renderer.processors.ProcessingGraph.Intermediate;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLImage3D;
+import com.nativelibs4java.opencl.CLKernel;
+
+/**
+ * Class OpenCLProcessingBackend
+ *
+ * Computes the shared intermediates of OpenCL processors on a device: the
+ * downsampled float copy of a volume image (kernel downsample in
+ * tenengrad.cl) and separable gaussian blurs (kernel blur_sep in deconv.cl).
+ * Device buffers come from a pool that lives as long as this backend, so that
+ * intermediates and processor temporaries are reused from one volume to the
+ * next.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class OpenCLProcessingBackend
+{
+	private final OpenCLDevice mDevice;
+	private final BufferPool<CLBuffer<Float>> mBufferPool;
+
+	private CLKernel mKernelDownsample;
+	private CLKernel mKernelBlur;
+
+	public OpenCLProcessingBackend(final OpenCLDevice pDevice)
+	{
+		mDevice = pDevice;
+		mBufferPool = new BufferPool<CLBuffer<Float>>()
+		{
+			@Override
+			protected CLBuffer<Float> allocate(long pLength)
+			{
+				return mDevice.createOutputFloatBuffer(pLength);
+			}
+
+			@Override
+			protected long getLength(CLBuffer<Float> pBuffer)
+			{
+				return pBuffer.getElementCount();
+			}
+
+			@Override
+			protected void free(CLBuffer<Float> pBuffer)
+			{
+				pBuffer.release();
+			}
+		};
+	}
+
+	public BufferPool<CLBuffer<Float>> getBufferPool()
+	{
+		return mBufferPool;
+	}
+
+	/**
+	 * Creates a graph for the processors running over a volume image.
+	 *
+	 * @param pVolumeImage
+	 *          volume image, must not change while the graph is in use
+	 * @return processing graph
+	 */
+	public ProcessingGraph<CLBuffer<Float>> createProcessingGraph(final CLImage3D pVolumeImage)
+	{
+		return new ProcessingGraph<>(	new ProcessingGraph.Backend<CLBuffer<Float>>()
+																	{
+																		@Override
+																		public Intermediate<CLBuffer<Float>> compute(	IntermediateKey pKey,
+																																									List<Intermediate<CLBuffer<Float>>> pInputs,
+																																									BufferPool<CLBuffer<Float>> pBufferPool)
+																		{
+																			return OpenCLProcessingBackend.this.compute(pVolumeImage,
+																																									pKey,
+																																									pInputs,
+																																									pBufferPool);
+																		}
+																	},
+																	mBufferPool);
+	}
+
+	private void ensureOpenCLInitialized()
+	{
+		if (mKernelDownsample == null)
+		{
+			mKernelDownsample = mDevice.compileKernel(OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
+																								"downsample");
+
+			mKernelBlur = mDevice.compileKernel(OpenCLDeconvolutionLR.class.getResource("kernels/deconv.cl"),
+																					"blur_sep");
+		}
+	}
+
+	// kernels are shared by the graphs of all threads, as are their arguments:
+	private synchronized Intermediate<CLBuffer<Float>> compute(	final CLImage3D pVolumeImage,
+																															final IntermediateKey pKey,
+																															final List<Intermediate<CLBuffer<Float>>> pInputs,
+																															final BufferPool<CLBuffer<Float>> pBufferPool)
+	{
+		ensureOpenCLInitialized();
+
+		if (IntermediateKey.cDownsampled.equals(pKey.getName()))
+			return downsample(pVolumeImage,
+												(int) pKey.getParameter(0),
+												pBufferPool);
+		else if (IntermediateKey.cBlurred.equals(pKey.getName()))
+			return blur(pInputs.get(0), pKey, pBufferPool);
+
+		throw new IllegalArgumentException("Unsupported intermediate: " + pKey);
+	}
+
+	private Intermediate<CLBuffer<Float>> downsample(	final CLImage3D pVolumeImage,
+																										final int pFactor,
+																										final BufferPool<CLBuffer<Float>> pBufferPool)
+	{
+		final int Nx = (int) Math.ceil(1. * pVolumeImage.getWidth()
+																		/ pFactor);
+		final int Ny = (int) Math.ceil(1. * pVolumeImage.getHeight()
+																		/ pFactor);
+		final int Nz = (int) Math.ceil(1. * pVolumeImage.getDepth()
+																		/ pFactor);
+
+		final CLBuffer<Float> lOutput = pBufferPool.acquire(1L * Nx
+																												* Ny
+																												* Nz);
+		mKernelDownsample.setArgs(pVolumeImage, lOutput, Nx, Ny, Nz, pFactor);
+		mDevice.run(mKernelDownsample, Nx, Ny, Nz);
+
+		return new Intermediate<>(lOutput, Nx, Ny, Nz);
+	}
+
+	private Intermediate<CLBuffer<Float>> blur(	final Intermediate<CLBuffer<Float>> pInput,
+																							final IntermediateKey pKey,
+																							final BufferPool<CLBuffer<Float>> pBufferPool)
+	{
+		final int Nx = (int) pInput.getWidth();
+		final int Ny = (int) pInput.getHeight();
+		final int Nz = (int) pInput.getDepth();
+
+		final CLBuffer<Float> lOutput = pBufferPool.acquire(pInput.getLength());
+		final CLBuffer<Float> lScratch = pBufferPool.acquire(pInput.getLength());
+		try
+		{
+			mKernelBlur.setArgs(pInput.getBuffer(),
+													lOutput,
+													pKey.getParameter(0),
+													(int) pKey.getParameter(3),
+													1);
+			mDevice.run(mKernelBlur, Nx, Ny, Nz);
+
+			mKernelBlur.setArgs(lOutput,
+													lScratch,
+													pKey.getParameter(1),
+													(int) pKey.getParameter(4),
+													2);
+			mDevice.run(mKernelBlur, Nx, Ny, Nz);
+
+			mKernelBlur.setArgs(lScratch,
+													lOutput,
+													pKey.getParameter(2),
+													(int) pKey.getParameter(5),
+													4);
+			mDevice.run(mKernelBlur, Nx, Ny, Nz);
+		}
+		finally
+		{
+			pBufferPool.release(lScratch);
+		}
+
+		return new Intermediate<>(lOutput, Nx, Ny, Nz);
+	}
+
+}
@@ -1,9 +1,13 @@
 package clearvolume.renderer.processors.impl;
 
 import java.nio.FloatBuffer;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 
+import clearvolume.renderer.processors.IntermediateKey;
 import clearvolume.renderer.processors.OpenCLProcessor;
+import clearvolume.renderer.processors.ProcessingGraph;
+import clearvolume.renderer.processors.ProcessingGraph.Intermediate;
 
 import com.nativelibs4java.opencl.CLBuffer;
 import com.nativelibs4java.opencl.CLKernel;
@@ -11,19 +15,9 @@ import com.nativelibs4java.opencl.CLKernel;
 public class OpenCLTenengrad extends OpenCLProcessor<Double>
 {
 
-	private CLKernel mKernelDownsample;
 	private CLKernel mKernelDiff;
 	private CLKernel mKernelSmooth;
 	private CLKernel mKernelSum;
-	private CLKernel mKernelBlur;
-	private CLKernel mKernelCopy;
-
-	private CLBuffer<Float> mBufDownSampled;
-	private CLBuffer<Float> mBufGx, mBufGy, mBufGz, mBufScratch,
-			mBufRes;
-
-	private long mCurrentWidthInVoxels, mCurrentHeightInVoxels,
-			mCurrentDepthInVoxels;
 
 	private final int[] mDownShape = new int[]
 	{ 64, 64, 64 };
@@ -47,12 +41,9 @@ public class OpenCLTenengrad extends OpenCLProcessor<Double>
 
 	public void ensureOpenCLInitialized()
 	{
-		if (mKernelDownsample == null)
+		if (mKernelDiff == null)
 		{
 
-			mKernelDownsample = getDevice().compileKernel(OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
-																										"downsample");
-
 			mKernelDiff = getDevice().compileKernel(OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
 																							"convolve_diff");
 
@@ -61,59 +52,11 @@ public class OpenCLTenengrad extends OpenCLProcessor<Double>
 			mKernelSum = getDevice().compileKernel(	OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
 																							"sum");
 
-			mKernelBlur = getDevice().compileKernel(OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
-																							"blur");
-
-			mKernelCopy = getDevice().compileKernel(OpenCLTenengrad.class.getResource("kernels/tenengrad.cl"),
-																							"copy");
-
 			setSigma(0.);
 		}
 
 	}
 
-	public void initBuffers(long pWidthInVoxels,
-													long pHeightInVoxels,
-													long pDepthInVoxels)
-	{
-		mCurrentWidthInVoxels = pWidthInVoxels;
-		mCurrentHeightInVoxels = pHeightInVoxels;
-		mCurrentDepthInVoxels = pDepthInVoxels;
-
-		// the downsampled volume shape
-
-		mDownShape[0] = (int) Math.ceil(1. * pWidthInVoxels / NDownSample);
-		mDownShape[1] = (int) Math.ceil(1. * pHeightInVoxels
-																		/ NDownSample);
-		mDownShape[2] = (int) Math.ceil(1. * pDepthInVoxels / NDownSample);
-
-		System.out.println("downsampled shape: " + Arrays.toString(mDownShape));
-
-		mDownSize = mDownShape[0] * mDownShape[1] * mDownShape[2];
-
-		// Release previosuly allocated buffer of wrong size...
-		if (mBufDownSampled != null)
-		{
-			mBufDownSampled.release();
-			mBufGx.release();
-			mBufGy.release();
-			mBufGz.release();
-			mBufRes.release();
-			mBufScratch.release();
-		}
-
-		// the buffer for the downsampled volume
-		mBufDownSampled = getDevice().createOutputFloatBuffer(mDownSize);
-
-		// the buffers for the sobel responses
-		mBufGx = getDevice().createOutputFloatBuffer(mDownSize);
-		mBufGy = getDevice().createOutputFloatBuffer(mDownSize);
-		mBufGz = getDevice().createOutputFloatBuffer(mDownSize);
-		mBufRes = getDevice().createOutputFloatBuffer(mDownSize);
-		mBufScratch = getDevice().createOutputFloatBuffer(mDownSize);
-
-	}
-
 	// the finite difference step (out of place)
 	private void diff_step(	CLBuffer<Float> pBufIn,
 													CLBuffer<Float> pBufOut,
@@ -156,53 +99,20 @@ public class OpenCLTenengrad extends OpenCLProcessor<Double>
 
 	}
 
-	// copy buffer
-	private void copy_step(	CLBuffer<Float> pBufIn,
-													CLBuffer<Float> pBufOut)
+	// the downsampled volume, blurred if sigma is set, shared with other
+	// processors through the processing graph
+	private IntermediateKey getInput(final double pSigma)
 	{
-
-		mKernelCopy.setArgs(pBufIn, pBufOut, mDownSize);
-
-		getDevice().run(mKernelCopy, mDownSize);
-
+		final IntermediateKey lDownsampled = IntermediateKey.downsampled(NDownSample);
+		if (pSigma > 0)
+			return IntermediateKey.blurred(lDownsampled, (float) pSigma, 11);
+		return lDownsampled;
 	}
 
-	// the blurring step (done in place)
-	private void blur_step(	CLBuffer<Float> pBufIn,
-													CLBuffer<Float> pBufOut,
-													int flag)
-	{
-		// flag is 1 (in x direction), 2 (y) or 4 (z)
-
-		mKernelBlur.setArgs(pBufIn,
-												pBufOut,
-												(float) mSigma,
-												mDownShape[0],
-												mDownShape[1],
-												mDownShape[2],
-												flag);
-
-		getDevice().run(mKernelBlur,
-										mDownShape[0],
-										mDownShape[1],
-										mDownShape[2]);
-
-	}
-
-	private void downsample()
+	@Override
+	public Collection<IntermediateKey> getInputs()
 	{
-		mKernelDownsample.setArgs(getVolumeBuffers()[0],
-															mBufDownSampled,
-															mDownShape[0],
-															mDownShape[1],
-															mDownShape[2],
-															NDownSample);
-
-		getDevice().run(mKernelDownsample,
-										mDownShape[0],
-										mDownShape[1],
-										mDownShape[2]);
-
+		return Collections.singletonList(getInput(mSigma));
 	}
 
 	@Override
@@ -214,84 +124,101 @@ public class OpenCLTenengrad extends OpenCLProcessor<Double>
 		if (!isActive())
 			return;
 
+		final ProcessingGraph<CLBuffer<Float>> lProcessingGraph = getProcessingGraph();
+		if (lProcessingGraph == null)
+			return;
+
 		ensureOpenCLInitialized();
 
-		if (mBufDownSampled == null || pWidthInVoxels != mCurrentWidthInVoxels
-				|| pHeightInVoxels != mCurrentHeightInVoxels
-				|| pDepthInVoxels != mCurrentDepthInVoxels)
-		{
-			// System.out.println("setting up buffers");
-			initBuffers(pWidthInVoxels, pHeightInVoxels, pDepthInVoxels);
-		}
+		// downsample (and blur)
+		final Intermediate<CLBuffer<Float>> lDownSampled = lProcessingGraph.get(getInput(mSigma));
+		final CLBuffer<Float> lBufDownSampled = lDownSampled.getBuffer();
+
+		mDownShape[0] = (int) lDownSampled.getWidth();
+		mDownShape[1] = (int) lDownSampled.getHeight();
+		mDownShape[2] = (int) lDownSampled.getDepth();
+		mDownSize = (int) lDownSampled.getLength();
 
-		// downsample
-		downsample();
+		// the buffers for the sobel responses
+		CLBuffer<Float> lBufGx = lProcessingGraph.acquireBuffer(mDownSize);
+		CLBuffer<Float> lBufGy = lProcessingGraph.acquireBuffer(mDownSize);
+		CLBuffer<Float> lBufGz = lProcessingGraph.acquireBuffer(mDownSize);
+		CLBuffer<Float> lBufScratch = lProcessingGraph.acquireBuffer(mDownSize);
+		CLBuffer<Float> lSwap;
 
-		if (mSigma > 0)
+		try
 		{
-			System.out.println("blurring with sigma = " + mSigma);
-			blur_step(mBufDownSampled, mBufScratch, 1);
-			blur_step(mBufScratch, mBufDownSampled, 2);
-			blur_step(mBufDownSampled, mBufScratch, 4);
-			copy_step(mBufScratch, mBufDownSampled);
+			final boolean isdebug = true;
+
+			final long start = System.nanoTime();
+
+			// convolve with the sobels, the last smoothing step of each goes
+			// to the scratch buffer which is then swapped in
+
+			// Gx
+			diff_step(lBufDownSampled, lBufScratch, 1);
+			smooth_step(lBufScratch, lBufGx, 2);
+			smooth_step(lBufGx, lBufScratch, 4);
+			lSwap = lBufGx;
+			lBufGx = lBufScratch;
+			lBufScratch = lSwap;
+
+			// Gy
+			diff_step(lBufDownSampled, lBufScratch, 2);
+			smooth_step(lBufScratch, lBufGy, 1);
+			smooth_step(lBufGy, lBufScratch, 4);
+			lSwap = lBufGy;
+			lBufGy = lBufScratch;
+			lBufScratch = lSwap;
+
+			// Gz
+			diff_step(lBufDownSampled, lBufScratch, 4);
+			smooth_step(lBufScratch, lBufGz, 2);
+			smooth_step(lBufGz, lBufScratch, 1);
+			lSwap = lBufGz;
+			lBufGz = lBufScratch;
+			lBufScratch = lSwap;
+
+			mKernelSum.setArgs(lBufGx, lBufGy, lBufGz, lBufScratch, mDownSize);
+			getDevice().run(mKernelSum, mDownSize);
+
+			final FloatBuffer allSumBuf = getDevice().readFloatBuffer(lBufDownSampled);
+			allSumBuf.rewind();
+			float meanValue = 0.f;
+			while (allSumBuf.hasRemaining())
+				meanValue += allSumBuf.get();
+
+			meanValue *= 1.f / allSumBuf.capacity();
+
+			final FloatBuffer out = getDevice().readFloatBuffer(lBufScratch);
+
+			// adding all up
+			if (isdebug)
+			{
+				getDevice().mCLQueue.finish();
+				final long end = System.nanoTime();
+				/*System.out.println("time to compute tenengrad: " + 1.e-6
+														* (end - start)
+														+ " ms");/**/
+			}
+
+			float meanGradient = 0;
+			for (int i = 0; i < out.capacity(); i++)
+				meanGradient += out.get(i);
+
+			meanGradient *= 1. / out.capacity();
+
+			final float normalizedGradient = meanGradient / meanValue;
+
+			notifyListenersOfResult((double) normalizedGradient);
 		}
-
-		final boolean isdebug = true;
-
-		final long start = System.nanoTime();
-
-		// convolve with the sobels
-
-		// Gx
-		diff_step(mBufDownSampled, mBufScratch, 1);
-		smooth_step(mBufScratch, mBufGx, 2);
-		smooth_step(mBufGx, mBufScratch, 4);
-		copy_step(mBufScratch, mBufGx);
-
-		// Gy
-		diff_step(mBufDownSampled, mBufScratch, 2);
-		smooth_step(mBufScratch, mBufGy, 1);
-		smooth_step(mBufGy, mBufScratch, 4);
-		copy_step(mBufScratch, mBufGy);
-
-		// Gz
-		diff_step(mBufDownSampled, mBufScratch, 4);
-		smooth_step(mBufScratch, mBufGz, 2);
-		smooth_step(mBufGz, mBufScratch, 1);
-		copy_step(mBufScratch, mBufGz);
-
-		mKernelSum.setArgs(mBufGx, mBufGy, mBufGz, mBufScratch, mDownSize);
-		getDevice().run(mKernelSum, mDownSize);
-
-		final FloatBuffer allSumBuf = getDevice().readFloatBuffer(mBufDownSampled);
-		allSumBuf.rewind();
-		float meanValue = 0.f;
-		while (allSumBuf.hasRemaining())
-			meanValue += allSumBuf.get();
-
-		meanValue *= 1.f / allSumBuf.capacity();
-
-		final FloatBuffer out = getDevice().readFloatBuffer(mBufScratch);
-
-		// adding all up
-		if (isdebug)
+		finally
 		{
-			getDevice().mCLQueue.finish();
-			final long end = System.nanoTime();
-			/*System.out.println("time to compute tenengrad: " + 1.e-6
-													* (end - start)
-													+ " ms");/**/
+			lProcessingGraph.releaseBuffer(lBufGx);
+			lProcessingGraph.releaseBuffer(lBufGy);
+			lProcessingGraph.releaseBuffer(lBufGz);
+			lProcessingGraph.releaseBuffer(lBufScratch);
 		}
 
-		float meanGradient = 0;
-		for (int i = 0; i < out.capacity(); i++)
-			meanGradient += out.get(i);
-
-		meanGradient *= 1. / out.capacity();
-
-		final float normalizedGradient = meanGradient / meanValue;
-
-		notifyListenersOfResult((double) normalizedGradient);
-
 	}
 }
@@ -0,0 +1,125 @@
+package clearvolume.renderer.processors.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import clearvolume.renderer.processors.FFTPlan3D;
+
+public class FFTPlan3DTests
+{
+
+	@Test
+	public void testNextPowerOfTwo()
+	{
+		assertEquals(1, FFTPlan3D.nextPowerOfTwo(1));
+		assertEquals(2, FFTPlan3D.nextPowerOfTwo(2));
+		assertEquals(4, FFTPlan3D.nextPowerOfTwo(3));
+		assertEquals(64, FFTPlan3D.nextPowerOfTwo(33));
+		assertEquals(64, FFTPlan3D.nextPowerOfTwo(64));
+	}
+
+	@Test
+	public void testNextFastLength()
+	{
+		assertEquals(1, FFTPlan3D.nextFastLength(1));
+		assertEquals(8, FFTPlan3D.nextFastLength(7));
+		assertEquals(12, FFTPlan3D.nextFastLength(11));
+		assertEquals(270, FFTPlan3D.nextFastLength(260));
+		assertEquals(540, FFTPlan3D.nextFastLength(516));
+	}
+
+	@Test
+	public void testFitsInArray()
+	{
+		assertTrue(FFTPlan3D.fitsInArray(512, 512, 128));
+		// 2*1024*1024*1024 overflows an int:
+		assertFalse(FFTPlan3D.fitsInArray(1024, 1024, 1024));
+		assertFalse(FFTPlan3D.fitsInArray(65536, 65536, 65536));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooLarge()
+	{
+		new FFTPlan3D(1024, 1024, 1024);
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		roundTrip(16, 8, 4);
+		roundTrip(12, 10, 9);
+		roundTrip(30, 1, 25);
+	}
+
+	private void roundTrip(final int Nx, final int Ny, final int Nz)
+	{
+		final FFTPlan3D lFFTPlan = new FFTPlan3D(Nx, Ny, Nz);
+		final float[] lData = new float[2 * lFFTPlan.getVolume()];
+		final Random lRandom = new Random(1);
+		for (int i = 0; i < lData.length; i++)
+			lData[i] = lRandom.nextFloat();
+		final float[] lOriginal = lData.clone();
+
+		lFFTPlan.forward(lData);
+		lFFTPlan.inverse(lData);
+
+		for (int i = 0; i < lData.length; i++)
+			assertEquals(lOriginal[i], lData[i], 1e-5f);
+	}
+
+	@Test
+	public void testAgainstDiscreteFourierTransform()
+	{
+		againstDiscreteFourierTransform(4, 2, 8);
+		againstDiscreteFourierTransform(6, 5, 3);
+		againstDiscreteFourierTransform(15, 1, 4);
+	}
+
+	private void againstDiscreteFourierTransform(	final int Nx,
+																								final int Ny,
+																								final int Nz)
+	{
+		final FFTPlan3D lFFTPlan = new FFTPlan3D(Nx, Ny, Nz);
+		final float[] lData = new float[2 * lFFTPlan.getVolume()];
+		final Random lRandom = new Random(2);
+		for (int i = 0; i < lData.length; i++)
+			lData[i] = lRandom.nextFloat() - 0.5f;
+		final float[] lOriginal = lData.clone();
+
+		lFFTPlan.forward(lData);
+
+		for (int w = 0; w < Nz; w++)
+			for (int v = 0; v < Ny; v++)
+				for (int u = 0; u < Nx; u++)
+				{
+					double lRe = 0, lIm = 0;
+					for (int k = 0; k < Nz; k++)
+						for (int j = 0; j < Ny; j++)
+							for (int i = 0; i < Nx; i++)
+							{
+								final double lAngle = -2 * Math.PI
+																			* (1. * u * i / Nx + 1. * v * j / Ny + 1. * w
+																																						* k
+																																						/ Nz);
+								final int lIndex = 2 * (i + Nx * j + Nx * Ny * k);
+								lRe += lOriginal[lIndex] * Math.cos(lAngle) - lOriginal[lIndex + 1] * Math.sin(lAngle);
+								lIm += lOriginal[lIndex] * Math.sin(lAngle) + lOriginal[lIndex + 1] * Math.cos(lAngle);
+							}
+					final int lIndex = 2 * (u + Nx * v + Nx * Ny * w);
+					assertEquals(lRe, lData[lIndex], 1e-4);
+					assertEquals(lIm, lData[lIndex + 1], 1e-4);
+				}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedLength()
+	{
+		new FFTPlan3D(16, 14, 4);
+	}
+
+}
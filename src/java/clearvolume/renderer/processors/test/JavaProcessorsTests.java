@@ -0,0 +1,316 @@
+package clearvolume.renderer.processors.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
+import clearvolume.renderer.cpu.CPUVolumeData;
+import clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer;
+import clearvolume.renderer.processors.JavaProcessor;
+import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorResultListener;
+import clearvolume.renderer.processors.impl.JavaCenterMass;
+import clearvolume.renderer.processors.impl.JavaDeconvolutionLR;
+import clearvolume.renderer.processors.impl.JavaHistogram;
+import clearvolume.renderer.processors.impl.JavaTenengrad;
+import coremem.fragmented.FragmentedMemory;
+import coremem.offheap.OffHeapMemory;
+import coremem.types.NativeTypeEnum;
+
+public class JavaProcessorsTests
+{
+
+	@Test
+	public void testHistogram()
+	{
+		final int lWidth = 10, lHeight = 9, lDepth = 7;
+		final short[] lVoxels = new short[lWidth * lHeight * lDepth];
+		for (int i = 0; i < lVoxels.length; i++)
+			lVoxels[i] = (short) (i * 97 % 65536);
+
+		final JavaHistogram lJavaHistogram = new JavaHistogram();
+		lJavaHistogram.setRange(0.25f, 0.75f);
+		final FloatBuffer lHistogram = processAndGet(lJavaHistogram,
+																								lVoxels,
+																								lWidth,
+																								lHeight,
+																								lDepth);
+
+		// values below the range fall in the first bin, values above are
+		// dropped, as on devices:
+		final int[] lCounts = new int[128];
+		for (final short lVoxel : lVoxels)
+		{
+			final float lValue = (lVoxel & 0xFFFF) / 65535f;
+			final float lPosition = (lValue - 0.25f) / (0.75f - 0.25f) * 127;
+			if (lPosition < 128)
+				lCounts[Math.max(0, (int) lPosition)]++;
+		}
+
+		for (int i = 0; i < 128; i++)
+			assertEquals(	1.f * lCounts[i] / lVoxels.length,
+										lHistogram.get(i),
+										0);
+	}
+
+	@Test
+	public void testCenterOfMass()
+	{
+		final int lWidth = 20, lHeight = 12, lDepth = 9;
+		final short[] lVoxels = new short[lWidth * lHeight * lDepth];
+		lVoxels[4 + lWidth * (6 + lHeight * 2)] = 1000;
+		lVoxels[8 + lWidth * (6 + lHeight * 6)] = 3000;
+
+		final float[] lCenter = processAndGet(new JavaCenterMass(),
+																					lVoxels,
+																					lWidth,
+																					lHeight,
+																					lDepth);
+
+		assertEquals(2 * 7f / lWidth - 1, lCenter[0], 1e-6f);
+		assertEquals(2 * 6f / lHeight - 1, lCenter[1], 1e-6f);
+		assertEquals(2 * 5f / lDepth - 1, lCenter[2], 1e-6f);
+	}
+
+	@Test
+	public void testTenengrad()
+	{
+		final int lWidth = 12, lHeight = 9, lDepth = 6;
+		final short[] lVoxels = new short[lWidth * lHeight * lDepth];
+
+		// a uniform volume has no gradient:
+		Arrays.fill(lVoxels, (short) 500);
+		assertEquals(0, processAndGet(new JavaTenengrad(),
+																	lVoxels,
+																	lWidth,
+																	lHeight,
+																	lDepth), 0);
+
+		// a ramp along x, downsampled to 4 values with clamped differences of
+		// 1/2, 1, 1 and 1/2 step:
+		for (int i = 0; i < lVoxels.length; i++)
+			lVoxels[i] = (short) (100 * (i % lWidth));
+		final double lScore = processAndGet(new JavaTenengrad(),
+																				lVoxels,
+																				lWidth,
+																				lHeight,
+																				lDepth);
+		assertEquals(0.75 * 300 / 550, lScore, 1e-5);
+
+		// blurring lowers the score of sharp edges:
+		for (int i = 0; i < lVoxels.length; i++)
+			lVoxels[i] = (short) ((i % lWidth) / 3 % 2 == 0 ? 0 : 1000);
+		final double lSharpScore = processAndGet(	new JavaTenengrad(),
+																							lVoxels,
+																							lWidth,
+																							lHeight,
+																							lDepth);
+		final JavaTenengrad lBlurredTenengrad = new JavaTenengrad();
+		lBlurredTenengrad.setSigma(2);
+		final double lBlurredScore = processAndGet(	lBlurredTenengrad,
+																								lVoxels,
+																								lWidth,
+																								lHeight,
+																								lDepth);
+		assertTrue(lBlurredScore < lSharpScore);
+	}
+
+	@Test
+	public void testDeconvolution()
+	{
+		final int lSize = 16;
+		final float[] lPoints = new float[lSize * lSize * lSize];
+		lPoints[5 + lSize * (6 + lSize * 7)] = 1;
+		lPoints[11 + lSize * (9 + lSize * 8)] = 1;
+
+		// blurred with the default point spread function, a Gaussian of sigma 1
+		// over 5 voxels:
+		final float[] lProfile = new float[5];
+		float lProfileSum = 0;
+		for (int p = 0; p < 5; p++)
+			lProfileSum += lProfile[p] = (float) Math.exp(-(p - 2) * (p - 2));
+		final short[] lVoxels = new short[lPoints.length];
+		final float[] lBlurred = new float[lPoints.length];
+		for (int z = 2; z < lSize - 2; z++)
+			for (int y = 2; y < lSize - 2; y++)
+				for (int x = 2; x < lSize - 2; x++)
+				{
+					float lValue = 0;
+					for (int k = 0; k < 5; k++)
+						for (int j = 0; j < 5; j++)
+							for (int i = 0; i < 5; i++)
+								lValue += lProfile[i] * lProfile[j]
+													* lProfile[k]
+													* lPoints[x + i - 2 + lSize
+																		* (y + j - 2 + lSize * (z + k - 2))];
+					lValue /= lProfileSum * lProfileSum * lProfileSum;
+					final int lIndex = x + lSize * (y + lSize * z);
+					lVoxels[lIndex] = (short) Math.round(60000 * lValue);
+					lBlurred[lIndex] = (lVoxels[lIndex] & 0xFFFF) / 65535f;
+				}
+
+		// with a point spread function of a single voxel, nothing changes:
+		final JavaDeconvolutionLR lIdentity = new JavaDeconvolutionLR();
+		lIdentity.setActive(true);
+		lIdentity.setPSF(new float[]
+		{ 3 }, 1, 1, 1);
+		final FloatBuffer lUnchanged = processAndGet(	lIdentity,
+																									lVoxels,
+																									lSize,
+																									lSize,
+																									lSize);
+		for (int i = 0; i < lBlurred.length; i++)
+			assertEquals(lBlurred[i], lUnchanged.get(i), 1e-5f);
+
+		// deconvolution concentrates the intensity back on the points:
+		final JavaDeconvolutionLR lJavaDeconvolutionLR = new JavaDeconvolutionLR();
+		lJavaDeconvolutionLR.setActive(true);
+		lJavaDeconvolutionLR.setNumberOfIterations(30);
+		final float[] lDeconvolved = new float[lPoints.length];
+		processAndGet(lJavaDeconvolutionLR, lVoxels, lSize, lSize, lSize).get(lDeconvolved);
+
+		double lBlurredSum = 0, lDeconvolvedSum = 0;
+		for (int i = 0; i < lPoints.length; i++)
+		{
+			lBlurredSum += lBlurred[i];
+			lDeconvolvedSum += lDeconvolved[i];
+			if (lPoints[i] > 0)
+				assertTrue(lDeconvolved[i] > 2 * lBlurred[i]);
+		}
+		assertEquals(lBlurredSum, lDeconvolvedSum, 0.01 * lBlurredSum);
+	}
+
+	@Test
+	public void testDeconvolutionAtPreviewSize()
+	{
+		// padded by the point spread function to 270x270x72 voxels, powers of two
+		// would have been 512x512x128:
+		final int lWidth = 256, lHeight = 256, lDepth = 64;
+		final short[] lVoxels = new short[lWidth * lHeight * lDepth];
+		Arrays.fill(lVoxels, (short) 30000);
+
+		final JavaDeconvolutionLR lJavaDeconvolutionLR = new JavaDeconvolutionLR();
+		lJavaDeconvolutionLR.setActive(true);
+		lJavaDeconvolutionLR.setNumberOfIterations(2);
+		final FloatBuffer lResult = processAndGet(lJavaDeconvolutionLR,
+																							lVoxels,
+																							lWidth,
+																							lHeight,
+																							lDepth);
+
+		// edges are replicated, so a uniform volume stays uniform:
+		assertEquals(lVoxels.length, lResult.remaining());
+		for (int i = 0; i < lVoxels.length; i++)
+			assertEquals(30000 / 65535f, lResult.get(i), 1e-3f);
+	}
+
+	@Test(expected = ClearVolumeMemoryBudgetException.class)
+	public void testDeconvolutionTooLarge()
+	{
+		// padded to 1080x1080x1080, twice as many floats do not fit in an array:
+		final JavaDeconvolutionLR lJavaDeconvolutionLR = new JavaDeconvolutionLR();
+		lJavaDeconvolutionLR.setActive(true);
+		processAndGet(lJavaDeconvolutionLR, new short[1], 1024, 1024, 1024);
+	}
+
+	@Test
+	public void testDeconvolutionToRenderLayer()
+	{
+		final int lWidth = 10, lHeight = 7, lDepth = 5;
+		final HeadlessCPUVolumeRenderer lRenderer = new HeadlessCPUVolumeRenderer("test",
+																																							16,
+																																							16,
+																																							NativeTypeEnum.UnsignedShort,
+																																							2);
+		try
+		{
+			final JavaDeconvolutionLR lJavaDeconvolutionLR = new JavaDeconvolutionLR();
+			lJavaDeconvolutionLR.setActive(true);
+			lJavaDeconvolutionLR.setPSF(new float[]
+			{ 1 }, 1, 1, 1);
+			lJavaDeconvolutionLR.setOutputRenderLayer(lRenderer, 1);
+			lRenderer.addProcessor(lJavaDeconvolutionLR);
+
+			final ByteBuffer lVolume = ByteBuffer.allocateDirect(2 * lWidth
+																														* lHeight
+																														* lDepth)
+																						.order(ByteOrder.nativeOrder());
+			for (int i = 0; i < lWidth * lHeight * lDepth; i++)
+				lVolume.putShort((short) (i * 389 % 65536));
+			lVolume.rewind();
+
+			assertTrue(lRenderer.setVolumeDataBuffer(	0,
+																								lVolume,
+																								lWidth,
+																								lHeight,
+																								lDepth));
+			assertTrue(lRenderer.getProcessorScheduler()
+													.waitForProcessors(10, TimeUnit.SECONDS));
+
+			// the identity deconvolution is a copy of the input layer:
+			final CPUVolumeData lInput = lRenderer.getCPUVolumeData(0);
+			final CPUVolumeData lOutput = lRenderer.getCPUVolumeData(1);
+			assertEquals(lWidth, lOutput.getWidth());
+			assertEquals(lHeight, lOutput.getHeight());
+			assertEquals(lDepth, lOutput.getDepth());
+			final int[] lInputRow = new int[lWidth];
+			final int[] lOutputRow = new int[lWidth];
+			for (int z = 0; z < lDepth; z++)
+				for (int y = 0; y < lHeight; y++)
+				{
+					lInput.readRow(y, z, lInputRow);
+					lOutput.readRow(y, z, lOutputRow);
+					for (int x = 0; x < lWidth; x++)
+						assertEquals(lInputRow[x], lOutputRow[x], 1);
+				}
+		}
+		finally
+		{
+			lRenderer.close();
+		}
+	}
+
+	private static <R> R processAndGet(	final JavaProcessor<R> pJavaProcessor,
+																			short[] pVoxels,
+																			int pWidth,
+																			int pHeight,
+																			int pDepth)
+	{
+		// fragments that do not align with rows or planes:
+		final FragmentedMemory lVolume = new FragmentedMemory();
+		for (int i = 0; i < pVoxels.length; i += 37)
+		{
+			final int lLength = Math.min(37, pVoxels.length - i);
+			final OffHeapMemory lFragment = OffHeapMemory.allocateShorts(lLength);
+			for (int j = 0; j < lLength; j++)
+				lFragment.setShort(j, pVoxels[i + j]);
+			lVolume.add(lFragment);
+		}
+		pJavaProcessor.setVolumeDataBuffer(	NativeTypeEnum.UnsignedShort,
+																				lVolume);
+
+		final Object[] lResult = new Object[1];
+		pJavaProcessor.addResultListener(new ProcessorResultListener<R>()
+		{
+			@Override
+			public void notifyResult(Processor<R> pSource, R pResult)
+			{
+				lResult[0] = pResult;
+			}
+		});
+		pJavaProcessor.process(0, pWidth, pHeight, pDepth);
+
+		@SuppressWarnings("unchecked")
+		final R lTypedResult = (R) lResult[0];
+		return lTypedResult;
+	}
+
+}
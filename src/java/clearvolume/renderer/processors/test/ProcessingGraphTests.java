@@ -0,0 +1,294 @@
+package clearvolume.renderer.processors.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import clearvolume.renderer.processors.BufferPool;
+import clearvolume.renderer.processors.IntermediateConsumer;
+import clearvolume.renderer.processors.IntermediateKey;
+import clearvolume.renderer.processors.ProcessingGraph;
+import clearvolume.renderer.processors.ProcessingGraph.Intermediate;
+import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorBase;
+import clearvolume.renderer.processors.ProcessorScheduler;
+
+public class ProcessingGraphTests
+{
+
+	private static final int cSize = 12;
+
+	@Test
+	public void testSharedIntermediates()
+	{
+		final HostBackend lBackend = new HostBackend();
+		final HostBufferPool lBufferPool = new HostBufferPool();
+		final IntermediateKey lDownsampled = IntermediateKey.downsampled(3);
+		final IntermediateKey lBlurred = IntermediateKey.blurred(	IntermediateKey.downsampled(3),
+																															2,
+																															11);
+
+		try (final ProcessingGraph<float[]> lProcessingGraph = new ProcessingGraph<>(	lBackend,
+																																								lBufferPool))
+		{
+			lProcessingGraph.plan(Arrays.asList(lBlurred, lDownsampled));
+			assertEquals(	Arrays.asList(lDownsampled, lBlurred),
+										lProcessingGraph.getNodes());
+
+			final Intermediate<float[]> lBlurredIntermediate = lProcessingGraph.get(lBlurred);
+			final Intermediate<float[]> lDownsampledIntermediate = lProcessingGraph.get(lDownsampled);
+			assertSame(lBlurredIntermediate, lProcessingGraph.get(lBlurred));
+			assertEquals(4, lDownsampledIntermediate.getWidth());
+			assertEquals(64, lBlurredIntermediate.getLength());
+
+			// each intermediate is computed once:
+			assertEquals(1, lBackend.getCount(lDownsampled));
+			assertEquals(1, lBackend.getCount(lBlurred));
+
+			final Map<String, Long> lTimings = lProcessingGraph.getTimingsInNanoseconds();
+			assertEquals(	Arrays.asList(lDownsampled.toString(),
+																lBlurred.toString()),
+										Arrays.asList(lTimings.keySet().toArray()));
+		}
+	}
+
+	@Test
+	public void testBufferReuse()
+	{
+		final HostBackend lBackend = new HostBackend();
+		final HostBufferPool lBufferPool = new HostBufferPool();
+		final IntermediateKey lBlurred = IntermediateKey.blurred(	IntermediateKey.downsampled(3),
+																															2,
+																															11);
+
+		for (int i = 0; i < 3; i++)
+			try (final ProcessingGraph<float[]> lProcessingGraph = new ProcessingGraph<>(	lBackend,
+																																									lBufferPool))
+			{
+				lProcessingGraph.get(lBlurred);
+				final float[] lTemporary = lProcessingGraph.acquireBuffer(64);
+				lProcessingGraph.releaseBuffer(lTemporary);
+			}
+
+		// downsampled, blurred and a temporary, allocated for the first volume
+		// only:
+		assertEquals(3, lBufferPool.getNumberOfAllocations());
+
+		lBufferPool.clear();
+		assertEquals(3, lBufferPool.mFreed.get());
+	}
+
+	@Test
+	public void testSchedulerSharesGraph()
+	{
+		final HostBackend lBackend = new HostBackend();
+		final HostBufferPool lBufferPool = new HostBufferPool();
+		final IntermediateKey lBlurred = IntermediateKey.blurred(	IntermediateKey.downsampled(3),
+																															2,
+																															11);
+		final ConsumerProcessor lFirst = new ConsumerProcessor(	"first",
+																														lBlurred);
+		final ConsumerProcessor lSecond = new ConsumerProcessor("second",
+																														lBlurred);
+		final GraphLayerData lLayerData = new GraphLayerData(	lBackend,
+																													lBufferPool);
+
+		try (final ProcessorScheduler lProcessorScheduler = new ProcessorScheduler())
+		{
+			lProcessorScheduler.volumeArrived(Arrays.<Processor<?>> asList(	lFirst,
+																																			lSecond),
+																				Object.class,
+																				0,
+																				cSize,
+																				cSize,
+																				cSize,
+																				lLayerData);
+			assertTrue(lProcessorScheduler.waitForProcessors(	10,
+																												TimeUnit.SECONDS));
+
+			// the two processors ran over the same graph, computing the shared
+			// intermediates once:
+			assertSame(lFirst.mLastGraph, lSecond.mLastGraph);
+			assertEquals(1, lBackend.getCount(lBlurred));
+			assertNull(lFirst.getProcessingGraph());
+
+			// the graph was closed, its buffers are back in the pool:
+			assertFalse(lFirst.mLastGraph.isComputed(lBlurred));
+			lBufferPool.clear();
+			assertEquals(2, lBufferPool.mFreed.get());
+
+			final Map<String, Double> lTimings = lProcessorScheduler.getNodeTimingsInMilliseconds();
+			assertTrue(lTimings.containsKey("first"));
+			assertTrue(lTimings.containsKey("second"));
+			assertTrue(lTimings.containsKey(lBlurred.toString()));
+		}
+	}
+
+	// computes downsampled volumes of constant value and blurs by copying:
+	private static class HostBackend implements
+																	ProcessingGraph.Backend<float[]>
+	{
+		private final ConcurrentHashMap<IntermediateKey, AtomicInteger> mCounts = new ConcurrentHashMap<>();
+
+		@Override
+		public Intermediate<float[]> compute(	IntermediateKey pKey,
+																					List<Intermediate<float[]>> pInputs,
+																					BufferPool<float[]> pBufferPool)
+		{
+			mCounts.putIfAbsent(pKey, new AtomicInteger());
+			mCounts.get(pKey).incrementAndGet();
+
+			if (IntermediateKey.cDownsampled.equals(pKey.getName()))
+			{
+				final int lSize = (int) Math.ceil(1. * cSize
+																					/ pKey.getParameter(0));
+				final float[] lBuffer = pBufferPool.acquire(lSize * lSize
+																										* lSize);
+				Arrays.fill(lBuffer, 1);
+				return new Intermediate<>(lBuffer, lSize, lSize, lSize);
+			}
+
+			final Intermediate<float[]> lInput = pInputs.get(0);
+			final float[] lBuffer = pBufferPool.acquire(lInput.getLength());
+			System.arraycopy(lInput.getBuffer(), 0, lBuffer, 0, lBuffer.length);
+			return new Intermediate<>(lBuffer,
+																lInput.getWidth(),
+																lInput.getHeight(),
+																lInput.getDepth());
+		}
+
+		int getCount(IntermediateKey pKey)
+		{
+			final AtomicInteger lCount = mCounts.get(pKey);
+			return lCount == null ? 0 : lCount.get();
+		}
+	}
+
+	private static class HostBufferPool extends BufferPool<float[]>
+	{
+		private final AtomicInteger mFreed = new AtomicInteger();
+
+		@Override
+		protected float[] allocate(long pLength)
+		{
+			return new float[(int) pLength];
+		}
+
+		@Override
+		protected long getLength(float[] pBuffer)
+		{
+			return pBuffer.length;
+		}
+
+		@Override
+		protected void free(float[] pBuffer)
+		{
+			mFreed.incrementAndGet();
+		}
+	}
+
+	private static class ConsumerProcessor extends ProcessorBase<Float>	implements
+																																			IntermediateConsumer
+	{
+		private final String mName;
+		private final IntermediateKey mInput;
+		private volatile ProcessingGraph<float[]> mProcessingGraph;
+		private volatile ProcessingGraph<float[]> mLastGraph;
+
+		ConsumerProcessor(String pName, IntermediateKey pInput)
+		{
+			mName = pName;
+			mInput = pInput;
+		}
+
+		@Override
+		public String getName()
+		{
+			return mName;
+		}
+
+		@Override
+		public boolean isCompatibleProcessor(Class<?> pRendererClass)
+		{
+			return true;
+		}
+
+		@Override
+		public Collection<IntermediateKey> getInputs()
+		{
+			return Collections.singletonList(mInput);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void setProcessingGraph(ProcessingGraph<?> pProcessingGraph)
+		{
+			mProcessingGraph = (ProcessingGraph<float[]>) pProcessingGraph;
+		}
+
+		ProcessingGraph<float[]> getProcessingGraph()
+		{
+			return mProcessingGraph;
+		}
+
+		@Override
+		public void process(int pRenderLayerIndex,
+												long pWidthInVoxels,
+												long pHeightInVoxels,
+												long pDepthInVoxels)
+		{
+			mLastGraph = mProcessingGraph;
+			final float[] lBuffer = mProcessingGraph.get(mInput).getBuffer();
+			notifyListenersOfResult(lBuffer[0]);
+		}
+	}
+
+	private static class GraphLayerData implements
+																			ProcessorScheduler.LayerData
+	{
+		private final HostBackend mBackend;
+		private final HostBufferPool mBufferPool;
+
+		GraphLayerData(HostBackend pBackend, HostBufferPool pBufferPool)
+		{
+			mBackend = pBackend;
+			mBufferPool = pBufferPool;
+		}
+
+		@Override
+		public void attach(Processor<?> pProcessor)
+		{
+		}
+
+		@Override
+		public ProcessorScheduler.LayerData snapshot()
+		{
+			return this;
+		}
+
+		@Override
+		public ProcessingGraph<?> createProcessingGraph()
+		{
+			return new ProcessingGraph<>(mBackend, mBufferPool);
+		}
+
+		@Override
+		public void release()
+		{
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+package clearvolume.renderer.processors.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.renderer.processors.ProcessingGraph;
+import clearvolume.renderer.processors.Processor;
+import clearvolume.renderer.processors.ProcessorBase;
+import clearvolume.renderer.processors.ProcessorResultListener;
+import clearvolume.renderer.processors.ProcessorScheduler;
+
+public class ProcessorSchedulerTests
+{
+
+	@Test
+	public void testVolumeInterval()
+	{
+		final TestProcessor lProcessor = new TestProcessor("interval");
+		final TestLayerData lLayerData = new TestLayerData();
+		try (final ProcessorScheduler lProcessorScheduler = new ProcessorScheduler())
+		{
+			lProcessorScheduler.setAsynchronous(lProcessor, false);
+			lProcessorScheduler.setVolumeInterval(lProcessor, 3);
+
+			for (int i = 0; i < 7; i++)
+				arrive(lProcessorScheduler, lProcessor, lLayerData);
+
+			// synchronous processors run over the live data on the calling thread:
+			assertEquals(3, lProcessor.mThreads.size());
+			assertEquals(Thread.currentThread(), lProcessor.mThreads.get(0));
+			assertEquals(0, lLayerData.mSnapshots.size());
+		}
+	}
+
+	@Test
+	public void testDropIfBusy() throws InterruptedException
+	{
+		final TestProcessor lProcessor = new TestProcessor("busy");
+		lProcessor.mLatch = new CountDownLatch(1);
+		final TestLayerData lLayerData = new TestLayerData();
+		try (final ProcessorScheduler lProcessorScheduler = new ProcessorScheduler())
+		{
+			for (int i = 0; i < 3; i++)
+				arrive(lProcessorScheduler, lProcessor, lLayerData);
+			assertTrue(lProcessorScheduler.isBusy(lProcessor));
+
+			lProcessor.mLatch.countDown();
+			assertTrue(lProcessorScheduler.waitForProcessors(	10,
+																												TimeUnit.SECONDS));
+
+			// one run over one snapshot, the other volumes were dropped:
+			assertEquals(1, lProcessor.mThreads.size());
+			assertNotSame(Thread.currentThread(), lProcessor.mThreads.get(0));
+			assertEquals(1, lLayerData.mSnapshots.size());
+			assertEquals(1, lLayerData.mSnapshots.get(0).mReleases);
+			assertEquals(1, lProcessor.mResults.size());
+		}
+	}
+
+	@Test
+	public void testPriorities() throws InterruptedException
+	{
+		final TestProcessor lBlocker = new TestProcessor("blocker");
+		lBlocker.mLatch = new CountDownLatch(1);
+		final List<String> lOrder = new CopyOnWriteArrayList<>();
+		final TestProcessor lLow = new TestProcessor("low", lOrder);
+		final TestProcessor lHigh = new TestProcessor("high", lOrder);
+		final TestLayerData lLayerData = new TestLayerData();
+
+		try (final ProcessorScheduler lProcessorScheduler = new ProcessorScheduler())
+		{
+			lProcessorScheduler.setPriority(lLow, 1);
+			lProcessorScheduler.setPriority(lHigh, 5);
+			final Collection<Processor<?>> lProcessors = Arrays.<Processor<?>> asList(lBlocker,
+																																								lLow,
+																																								lHigh);
+
+			// occupies the single thread:
+			lLow.setActive(false);
+			lHigh.setActive(false);
+			lProcessorScheduler.volumeArrived(lProcessors,
+																				Object.class,
+																				0,
+																				1,
+																				1,
+																				1,
+																				lLayerData);
+
+			// queued behind the blocker, the low priority run first:
+			lLow.setActive(true);
+			lHigh.setActive(true);
+			lProcessorScheduler.volumeArrived(lProcessors,
+																				Object.class,
+																				0,
+																				1,
+																				1,
+																				1,
+																				lLayerData);
+
+			lBlocker.mLatch.countDown();
+			assertTrue(lProcessorScheduler.waitForProcessors(	10,
+																												TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("high", "low"), lOrder);
+			assertEquals(2, lLayerData.mSnapshots.size());
+			assertEquals(1, lLayerData.mSnapshots.get(1).mReleases);
+		}
+	}
+
+	private static void arrive(	ProcessorScheduler pProcessorScheduler,
+															Processor<?> pProcessor,
+															TestLayerData pLayerData)
+	{
+		final ArrayList<Processor<?>> lProcessors = new ArrayList<>();
+		lProcessors.add(pProcessor);
+		pProcessorScheduler.volumeArrived(lProcessors,
+																			Object.class,
+																			0,
+																			1,
+																			1,
+																			1,
+																			pLayerData);
+	}
+
+	private static class TestProcessor extends ProcessorBase<Integer>
+	{
+		private final String mName;
+		private final List<String> mOrder;
+		private final List<Thread> mThreads = new CopyOnWriteArrayList<>();
+		private final List<Integer> mResults = new CopyOnWriteArrayList<>();
+		private volatile CountDownLatch mLatch;
+
+		TestProcessor(String pName)
+		{
+			this(pName, new CopyOnWriteArrayList<String>());
+		}
+
+		TestProcessor(String pName, List<String> pOrder)
+		{
+			mName = pName;
+			mOrder = pOrder;
+			addResultListener(new ProcessorResultListener<Integer>()
+			{
+				@Override
+				public void notifyResult(	Processor<Integer> pSource,
+																	Integer pResult)
+				{
+					mResults.add(pResult);
+				}
+			});
+		}
+
+		@Override
+		public String getName()
+		{
+			return mName;
+		}
+
+		@Override
+		public boolean isCompatibleProcessor(Class<?> pRendererClass)
+		{
+			return true;
+		}
+
+		@Override
+		public void process(int pRenderLayerIndex,
+												long pWidthInVoxels,
+												long pHeightInVoxels,
+												long pDepthInVoxels)
+		{
+			try
+			{
+				if (mLatch != null)
+					mLatch.await();
+			}
+			catch (final InterruptedException e)
+			{
+				return;
+			}
+			mThreads.add(Thread.currentThread());
+			mOrder.add(mName);
+			notifyListenersOfResult(pRenderLayerIndex);
+		}
+	}
+
+	private static class TestLayerData implements
+																		ProcessorScheduler.LayerData
+	{
+		private final List<TestLayerData> mSnapshots = new CopyOnWriteArrayList<>();
+		private volatile int mReleases;
+
+		@Override
+		public void attach(Processor<?> pProcessor)
+		{
+		}
+
+		@Override
+		public ProcessorScheduler.LayerData snapshot()
+		{
+			final TestLayerData lSnapshot = new TestLayerData();
+			mSnapshots.add(lSnapshot);
+			return lSnapshot;
+		}
+
+		@Override
+		public ProcessingGraph<?> createProcessingGraph()
+		{
+			return null;
+		}
+
+		@Override
+		public void release()
+		{
+			mReleases++;
+		}
+	}
+
+}
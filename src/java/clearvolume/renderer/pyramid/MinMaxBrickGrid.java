@@ -0,0 +1,621 @@
+package clearvolume.renderer.pyramid;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class MinMaxBrickGrid
+ *
+ * Coarse grid holding the minimum and maximum voxel value of each brick of a
+ * volume, a brick being a cube of voxels. Renderers use it to skip empty space:
+ * a ray does not need to sample a brick whose maximum is below the lowest value
+ * that the transfer function range makes visible. Since samples are
+ * interpolated trilinearly, the extrema of a brick also cover the one voxel
+ * thick shell around it. The grid does not depend on the transfer function
+ * range, changing the range only changes the threshold bricks are compared to.
+ *
+ * Values are normalized the way textures normalize them: raw bits are read as
+ * unsigned integers and divided by the largest value of the type. Brick slabs
+ * are computed in parallel on a fork/join pool.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class MinMaxBrickGrid
+{
+	public static final int cDefaultBrickSize = 16;
+
+	private static final ForkJoinPool sForkJoinPool = new ForkJoinPool();
+
+	private final NativeTypeEnum mNativeType;
+	private final float mNormalization;
+	private final long mWidth, mHeight, mDepth;
+	private final int mBrickSize;
+	private final int mGridWidth, mGridHeight, mGridDepth;
+
+	private final int[] mMinima, mMaxima;
+
+	/**
+	 * Source of voxels read row by row.
+	 */
+	public interface VoxelSource
+	{
+		/**
+		 * Reads a row of voxels as unsigned integers.
+		 *
+		 * @param pY
+		 *          row index
+		 * @param pZ
+		 *          plane index
+		 * @param pRow
+		 *          destination, as long as the row
+		 */
+		void readRow(int pY, int pZ, int[] pRow);
+	}
+
+	/**
+	 * Constructs a grid with the default brick size for a volume of given type
+	 * and dimensions. Until computed, no brick is considered empty.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types.
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 */
+	public MinMaxBrickGrid(	NativeTypeEnum pNativeType,
+													long pWidth,
+													long pHeight,
+													long pDepth)
+	{
+		this(pNativeType, pWidth, pHeight, pDepth, cDefaultBrickSize);
+	}
+
+	/**
+	 * Constructs a grid for a volume of given type and dimensions. Until
+	 * computed, no brick is considered empty.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types.
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @param pBrickSize
+	 *          brick edge length in voxels
+	 */
+	public MinMaxBrickGrid(	NativeTypeEnum pNativeType,
+													long pWidth,
+													long pHeight,
+													long pDepth,
+													int pBrickSize)
+	{
+		super();
+		mNativeType = pNativeType;
+		mNormalization = 1.0f / getLargestValue(pNativeType);
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = pDepth;
+		mBrickSize = pBrickSize;
+		mGridWidth = (int) ((pWidth + pBrickSize - 1) / pBrickSize);
+		mGridHeight = (int) ((pHeight + pBrickSize - 1) / pBrickSize);
+		mGridDepth = (int) ((pDepth + pBrickSize - 1) / pBrickSize);
+
+		final int lNumberOfBricks = mGridWidth * mGridHeight * mGridDepth;
+		mMinima = new int[lNumberOfBricks];
+		mMaxima = new int[lNumberOfBricks];
+		Arrays.fill(mMaxima, getLargestValue(pNativeType));
+	}
+
+	public boolean isCompatibleWith(final NativeTypeEnum pNativeType,
+																	final long pWidth,
+																	final long pHeight,
+																	final long pDepth)
+	{
+		return mNativeType == pNativeType && mWidth == pWidth
+						&& mHeight == pHeight
+						&& mDepth == pDepth;
+	}
+
+	/**
+	 * Wraps a volume held in fragmented memory as a voxel source. Fragments can
+	 * be of any size as long as they do not split voxels.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types.
+	 * @param pVolumeDataBuffer
+	 *          voxels, X fastest, then Y, then Z
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @return voxel source
+	 */
+	public static VoxelSource wrap(	NativeTypeEnum pNativeType,
+																	FragmentedMemoryInterface pVolumeDataBuffer,
+																	long pWidth,
+																	long pHeight)
+	{
+		return new FragmentedVoxelSource(	getBytesPerVoxel(pNativeType),
+																			pVolumeDataBuffer,
+																			pWidth,
+																			pHeight);
+	}
+
+	/**
+	 * Computes the extrema of all bricks from the whole volume.
+	 *
+	 * @param pVolume
+	 *          voxels of the volume
+	 */
+	public void compute(VoxelSource pVolume)
+	{
+		compute(pVolume, 0, 0, 0, mWidth, mHeight, mDepth);
+	}
+
+	/**
+	 * Recomputes the extrema of the bricks affected by a change of the voxels
+	 * within a box, other bricks are left untouched.
+	 *
+	 * @param pVolume
+	 *          voxels of the whole volume, already changed
+	 * @param pOffsetX
+	 *          box offset along X
+	 * @param pOffsetY
+	 *          box offset along Y
+	 * @param pOffsetZ
+	 *          box offset along Z
+	 * @param pSizeX
+	 *          box extent along X
+	 * @param pSizeY
+	 *          box extent along Y
+	 * @param pSizeZ
+	 *          box extent along Z
+	 */
+	public void compute(VoxelSource pVolume,
+											long pOffsetX,
+											long pOffsetY,
+											long pOffsetZ,
+											long pSizeX,
+											long pSizeY,
+											long pSizeZ)
+	{
+		final Parameters lParameters = new Parameters();
+		lParameters.mSource = pVolume;
+		lParameters.mSourceBox = new long[]
+		{ 0, 0, 0, mWidth, mHeight, mDepth };
+		lParameters.mReset = true;
+		run(lParameters,
+				pOffsetX,
+				pOffsetY,
+				pOffsetZ,
+				pSizeX,
+				pSizeY,
+				pSizeZ);
+	}
+
+	/**
+	 * Widens the extrema of the bricks overlapping a box with the new voxels of
+	 * that box. This does not require the rest of the volume but is
+	 * conservative: extrema of overwritten voxels are kept until the next full
+	 * computation.
+	 *
+	 * @param pRegion
+	 *          voxels of the box only
+	 * @param pOffsetX
+	 *          box offset along X
+	 * @param pOffsetY
+	 *          box offset along Y
+	 * @param pOffsetZ
+	 *          box offset along Z
+	 * @param pSizeX
+	 *          box extent along X
+	 * @param pSizeY
+	 *          box extent along Y
+	 * @param pSizeZ
+	 *          box extent along Z
+	 */
+	public void include(VoxelSource pRegion,
+											long pOffsetX,
+											long pOffsetY,
+											long pOffsetZ,
+											long pSizeX,
+											long pSizeY,
+											long pSizeZ)
+	{
+		final Parameters lParameters = new Parameters();
+		lParameters.mSource = pRegion;
+		lParameters.mSourceBox = new long[]
+		{ pOffsetX, pOffsetY, pOffsetZ, pSizeX, pSizeY, pSizeZ };
+		lParameters.mReset = false;
+		run(lParameters,
+				pOffsetX,
+				pOffsetY,
+				pOffsetZ,
+				pSizeX,
+				pSizeY,
+				pSizeZ);
+	}
+
+	private void run(	Parameters pParameters,
+										long pOffsetX,
+										long pOffsetY,
+										long pOffsetZ,
+										long pSizeX,
+										long pSizeY,
+										long pSizeZ)
+	{
+		if (pSizeX <= 0 || pSizeY <= 0 || pSizeZ <= 0)
+			return;
+
+		// bricks whose extended extent overlaps the box:
+		pParameters.mBricks = new int[]
+		{ getFirstBrick(pOffsetX, mGridWidth),
+			getFirstBrick(pOffsetY, mGridHeight),
+			getFirstBrick(pOffsetZ, mGridDepth),
+			getLastBrick(pOffsetX + pSizeX, mGridWidth),
+			getLastBrick(pOffsetY + pSizeY, mGridHeight),
+			getLastBrick(pOffsetZ + pSizeZ, mGridDepth) };
+
+		sForkJoinPool.invoke(new BrickSlabTask(	pParameters,
+																						pParameters.mBricks[2],
+																						pParameters.mBricks[5] + 1));
+	}
+
+	private int getFirstBrick(long pOffset, int pGridSize)
+	{
+		// brick b covers voxels b*B-1 to (b+1)*B included:
+		return (int) min(	pGridSize - 1,
+											max(0, (pOffset + mBrickSize - 1) / mBrickSize - 1));
+	}
+
+	private int getLastBrick(long pEnd, int pGridSize)
+	{
+		return (int) min(pGridSize - 1, pEnd / mBrickSize);
+	}
+
+	public NativeTypeEnum getNativeType()
+	{
+		return mNativeType;
+	}
+
+	public long getWidth()
+	{
+		return mWidth;
+	}
+
+	public long getHeight()
+	{
+		return mHeight;
+	}
+
+	public long getDepth()
+	{
+		return mDepth;
+	}
+
+	public int getBrickSize()
+	{
+		return mBrickSize;
+	}
+
+	public int getGridWidth()
+	{
+		return mGridWidth;
+	}
+
+	public int getGridHeight()
+	{
+		return mGridHeight;
+	}
+
+	public int getGridDepth()
+	{
+		return mGridDepth;
+	}
+
+	/**
+	 * Returns the normalized minimum of a brick.
+	 *
+	 * @param pBrickX
+	 *          brick X index
+	 * @param pBrickY
+	 *          brick Y index
+	 * @param pBrickZ
+	 *          brick Z index
+	 * @return minimum in [0,1]
+	 */
+	public float getMinimum(int pBrickX, int pBrickY, int pBrickZ)
+	{
+		return mMinima[getBrickIndex(pBrickX, pBrickY, pBrickZ)] * mNormalization;
+	}
+
+	/**
+	 * Returns the normalized maximum of a brick.
+	 *
+	 * @param pBrickX
+	 *          brick X index
+	 * @param pBrickY
+	 *          brick Y index
+	 * @param pBrickZ
+	 *          brick Z index
+	 * @return maximum in [0,1]
+	 */
+	public float getMaximum(int pBrickX, int pBrickY, int pBrickZ)
+	{
+		return mMaxima[getBrickIndex(pBrickX, pBrickY, pBrickZ)] * mNormalization;
+	}
+
+	/**
+	 * Returns the normalized maximum of the brick containing a point given in
+	 * normalized texture coordinates, points outside of the volume are clamped
+	 * to its edges.
+	 *
+	 * @param pU
+	 *          X coordinate in [0,1]
+	 * @param pV
+	 *          Y coordinate in [0,1]
+	 * @param pW
+	 *          Z coordinate in [0,1]
+	 * @return maximum in [0,1]
+	 */
+	public final float getMaximumAt(float pU, float pV, float pW)
+	{
+		final int lBrickX = clampIndex((int) Math.floor(pU * mWidth) / mBrickSize,
+																		mGridWidth);
+		final int lBrickY = clampIndex((int) Math.floor(pV * mHeight) / mBrickSize,
+																		mGridHeight);
+		final int lBrickZ = clampIndex((int) Math.floor(pW * mDepth) / mBrickSize,
+																		mGridDepth);
+		return mMaxima[getBrickIndex(lBrickX, lBrickY, lBrickZ)] * mNormalization;
+	}
+
+	/**
+	 * Returns the normalized maxima of all bricks, X fastest, then Y, then Z.
+	 *
+	 * @return array of maxima in [0,1]
+	 */
+	public float[] getMaxima()
+	{
+		final float[] lMaxima = new float[mMaxima.length];
+		for (int i = 0; i < lMaxima.length; i++)
+			lMaxima[i] = mMaxima[i] * mNormalization;
+		return lMaxima;
+	}
+
+	/**
+	 * Counts the bricks that rays can skip for a given threshold.
+	 *
+	 * @param pThreshold
+	 *          normalized threshold
+	 * @return number of bricks whose maximum is below or at the threshold
+	 */
+	public int getNumberOfEmptyBricks(float pThreshold)
+	{
+		int lCount = 0;
+		for (final int lMaximum : mMaxima)
+			if (lMaximum * mNormalization <= pThreshold)
+				lCount++;
+		return lCount;
+	}
+
+	private int getBrickIndex(int pBrickX, int pBrickY, int pBrickZ)
+	{
+		return pBrickX + mGridWidth * (pBrickY + mGridHeight * pBrickZ);
+	}
+
+	private static int clampIndex(int pIndex, int pLength)
+	{
+		return max(0, min(pLength - 1, pIndex));
+	}
+
+	private static int getBytesPerVoxel(NativeTypeEnum pNativeType)
+	{
+		if (pNativeType == NativeTypeEnum.UnsignedByte || pNativeType == NativeTypeEnum.Byte)
+			return 1;
+		else if (pNativeType == NativeTypeEnum.UnsignedShort || pNativeType == NativeTypeEnum.Short)
+			return 2;
+		throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + pNativeType);
+	}
+
+	private static int getLargestValue(NativeTypeEnum pNativeType)
+	{
+		return getBytesPerVoxel(pNativeType) == 1 ? 0xFF : 0xFFFF;
+	}
+
+	private static final class Parameters
+	{
+		VoxelSource mSource;
+		// offset and extent of the voxels readable from the source:
+		long[] mSourceBox;
+		// first and last bricks to update, along X, Y and Z:
+		int[] mBricks;
+		// whether extrema restart from scratch or widen the current ones:
+		boolean mReset;
+	}
+
+	/**
+	 * Fork/join task that recursively splits a range of brick slabs, a slab
+	 * being all bricks sharing the same Z index.
+	 */
+	private final class BrickSlabTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Parameters mParameters;
+		private final int mBrickZ0, mBrickZ1;
+
+		BrickSlabTask(Parameters pParameters, int pBrickZ0, int pBrickZ1)
+		{
+			mParameters = pParameters;
+			mBrickZ0 = pBrickZ0;
+			mBrickZ1 = pBrickZ1;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (mBrickZ1 - mBrickZ0 > 1)
+			{
+				final int lBrickZm = (mBrickZ0 + mBrickZ1) / 2;
+				invokeAll(new BrickSlabTask(mParameters, mBrickZ0, lBrickZm),
+									new BrickSlabTask(mParameters, lBrickZm, mBrickZ1));
+			}
+			else
+				computeSlab(mBrickZ0);
+		}
+
+		private void computeSlab(int pBrickZ)
+		{
+			final Parameters p = mParameters;
+			final long[] lBox = p.mSourceBox;
+			final int lBrickX0 = p.mBricks[0], lBrickX1 = p.mBricks[3];
+			final int lBrickY0 = p.mBricks[1], lBrickY1 = p.mBricks[4];
+
+			final int lSlabWidth = lBrickX1 - lBrickX0 + 1;
+			final int lSlabHeight = lBrickY1 - lBrickY0 + 1;
+			final int[] lMinima = new int[lSlabWidth * lSlabHeight];
+			final int[] lMaxima = new int[lSlabWidth * lSlabHeight];
+			for (int by = 0; by < lSlabHeight; by++)
+				for (int bx = 0; bx < lSlabWidth; bx++)
+				{
+					final int lIndex = getBrickIndex(	lBrickX0 + bx,
+																						lBrickY0 + by,
+																						pBrickZ);
+					lMinima[bx + lSlabWidth * by] = p.mReset	? Integer.MAX_VALUE
+																										: mMinima[lIndex];
+					lMaxima[bx + lSlabWidth * by] = p.mReset	? Integer.MIN_VALUE
+																										: mMaxima[lIndex];
+				}
+
+			final int[] lRow = new int[(int) lBox[3]];
+			final int lZ0 = (int) max(pBrickZ * mBrickSize - 1, lBox[2]);
+			final int lZ1 = (int) min((pBrickZ + 1) * mBrickSize + 1,
+																lBox[2] + lBox[5]);
+			final int lY0 = (int) max(lBrickY0 * mBrickSize - 1, lBox[1]);
+			final int lY1 = (int) min((lBrickY1 + 1) * mBrickSize + 1,
+																lBox[1] + lBox[4]);
+			for (int z = lZ0; z < lZ1; z++)
+				for (int y = lY0; y < lY1; y++)
+				{
+					p.mSource.readRow((int) (y - lBox[1]), (int) (z - lBox[2]), lRow);
+
+					// a row belongs to one brick, or two along the shell:
+					final int lFirstBrickY = max(	lBrickY0,
+																				(y + mBrickSize - 1) / mBrickSize - 1);
+					final int lLastBrickY = min(lBrickY1, (y + 1) / mBrickSize);
+					for (int bx = lBrickX0; bx <= lBrickX1; bx++)
+					{
+						final int lX0 = (int) max(bx * mBrickSize - 1, lBox[0]);
+						final int lX1 = (int) min((bx + 1) * mBrickSize + 1,
+																			lBox[0] + lBox[3]);
+						int lMinimum = Integer.MAX_VALUE;
+						int lMaximum = Integer.MIN_VALUE;
+						for (int x = lX0; x < lX1; x++)
+						{
+							final int lValue = lRow[(int) (x - lBox[0])];
+							lMinimum = min(lMinimum, lValue);
+							lMaximum = max(lMaximum, lValue);
+						}
+						for (int by = lFirstBrickY; by <= lLastBrickY; by++)
+						{
+							final int lIndex = (bx - lBrickX0) + lSlabWidth
+																	* (by - lBrickY0);
+							lMinima[lIndex] = min(lMinima[lIndex], lMinimum);
+							lMaxima[lIndex] = max(lMaxima[lIndex], lMaximum);
+						}
+					}
+				}
+
+			for (int by = 0; by < lSlabHeight; by++)
+				for (int bx = 0; bx < lSlabWidth; bx++)
+				{
+					final int lIndex = getBrickIndex(	lBrickX0 + bx,
+																						lBrickY0 + by,
+																						pBrickZ);
+					mMinima[lIndex] = lMinima[bx + lSlabWidth * by];
+					mMaxima[lIndex] = lMaxima[bx + lSlabWidth * by];
+				}
+		}
+	}
+
+	/**
+	 * Voxels held in fragmented memory.
+	 */
+	private static final class FragmentedVoxelSource implements
+																									VoxelSource
+	{
+		private final int mBytesPerVoxel;
+		private final long mRowLength;
+		private final long mPlaneLength;
+		private final ArrayList<ByteBuffer> mFragments = new ArrayList<>();
+		private final long[] mFragmentOffsets;
+
+		FragmentedVoxelSource(int pBytesPerVoxel,
+													FragmentedMemoryInterface pVolumeDataBuffer,
+													long pWidth,
+													long pHeight)
+		{
+			mBytesPerVoxel = pBytesPerVoxel;
+			mRowLength = pBytesPerVoxel * pWidth;
+			mPlaneLength = mRowLength * pHeight;
+			mFragmentOffsets = new long[pVolumeDataBuffer.getNumberOfFragments() + 1];
+			int i = 0;
+			for (final ContiguousMemoryInterface lFragment : pVolumeDataBuffer)
+			{
+				mFragments.add(lFragment.getBridJPointer(Byte.class)
+																.getByteBuffer()
+																.order(ByteOrder.nativeOrder()));
+				mFragmentOffsets[i + 1] = mFragmentOffsets[i] + lFragment.getSizeInBytes();
+				i++;
+			}
+		}
+
+		@Override
+		public void readRow(int pY, int pZ, int[] pRow)
+		{
+			long lOffset = pZ * mPlaneLength + pY * mRowLength;
+
+			int lFragmentIndex = Arrays.binarySearch(mFragmentOffsets, lOffset);
+			if (lFragmentIndex < 0)
+				lFragmentIndex = -lFragmentIndex - 2;
+
+			// rows can straddle fragments:
+			int i = 0;
+			while (i < pRow.length)
+			{
+				final ByteBuffer lFragment = mFragments.get(lFragmentIndex);
+				final int lPosition = (int) (lOffset - mFragmentOffsets[lFragmentIndex]);
+				final int lCount = min(	pRow.length - i,
+																(lFragment.capacity() - lPosition) / mBytesPerVoxel);
+				if (mBytesPerVoxel == 1)
+					for (int k = 0; k < lCount; k++)
+						pRow[i + k] = lFragment.get(lPosition + k) & 0xFF;
+				else
+					for (int k = 0; k < lCount; k++)
+						pRow[i + k] = lFragment.getShort(lPosition + 2 * k) & 0xFFFF;
+				i += lCount;
+				lOffset += lCount * mBytesPerVoxel;
+				lFragmentIndex++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,573 @@
+package clearvolume.renderer.pyramid;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import clearvolume.exceptions.ClearVolumeUnsupportdDataTypeException;
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemory;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+import coremem.types.NativeTypeEnum;
+
+/**
+ * Class VolumePyramid
+ *
+ * Multi-resolution pyramid of a volume: level 0 is the volume itself and each
+ * level halves the resolution of the previous one along all three axes. A
+ * voxel of a coarser level holds the maximum of the voxels it covers, so that
+ * sparse bright structures - typical of fluorescence microscopy - survive
+ * downsampling. Levels are computed on demand from the finest level already
+ * available, planes are computed in parallel on a fork/join pool, and levels
+ * are stored one direct buffer per plane so that no level is limited to 2GB.
+ *
+ * Levels are built brick by brick, a brick being a slab of consecutive planes,
+ * and a listener can receive bricks as soon as they are computed to stream
+ * them to a device.
+ *
+ * A pyramid can be reused for successive volumes of the same type and
+ * dimensions: after {@link #setSourceBuffer(FragmentedMemoryInterface)} levels
+ * are rebuilt in the buffers already allocated for the previous volume.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class VolumePyramid
+{
+	public static final int cDefaultBrickDepth = 16;
+
+	private static final ForkJoinPool sForkJoinPool = new ForkJoinPool();
+
+	private final NativeTypeEnum mNativeType;
+	private final int mBytesPerVoxel;
+	private FragmentedMemoryInterface mSourceBuffer;
+	private final long mWidth, mHeight, mDepth;
+	private final int mBrickDepth;
+
+	private final TreeMap<Integer, ByteBuffer[]> mLevels = new TreeMap<>();
+	private final TreeMap<Integer, ByteBuffer[]> mAllocatedLevels = new TreeMap<>();
+
+	/**
+	 * Listener receiving the bricks of a level as they are built.
+	 */
+	public interface BrickListener
+	{
+		/**
+		 * Called once the level is allocated, before any brick is computed. The
+		 * voxels of bricks not yet computed are zero, or those of the previous
+		 * volume if the level buffers are reused.
+		 *
+		 * @param pLevel
+		 *          level
+		 * @param pLevelBuffer
+		 *          voxels of the whole level
+		 */
+		void levelAllocated(int pLevel, FragmentedMemoryInterface pLevelBuffer);
+
+		/**
+		 * Called once a brick is computed.
+		 *
+		 * @param pLevel
+		 *          level
+		 * @param pPlaneIndex
+		 *          index of the first plane of the brick
+		 * @param pNumberOfPlanes
+		 *          number of planes of the brick
+		 * @param pBrickBuffer
+		 *          voxels of the brick
+		 */
+		void brick(	int pLevel,
+								long pPlaneIndex,
+								long pNumberOfPlanes,
+								FragmentedMemoryInterface pBrickBuffer);
+	}
+
+	/**
+	 * Constructs a pyramid for a given volume, nothing is computed until a level
+	 * is requested. The volume buffer must stay unchanged while levels are built.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types.
+	 * @param pSourceBuffer
+	 *          volume voxels, X fastest, then Y, then Z
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 */
+	public VolumePyramid(	NativeTypeEnum pNativeType,
+												FragmentedMemoryInterface pSourceBuffer,
+												long pWidth,
+												long pHeight,
+												long pDepth)
+	{
+		this(	pNativeType,
+					pSourceBuffer,
+					pWidth,
+					pHeight,
+					pDepth,
+					cDefaultBrickDepth);
+	}
+
+	/**
+	 * Constructs a pyramid for a given volume, nothing is computed until a level
+	 * is requested. The volume buffer must stay unchanged while levels are built.
+	 *
+	 * @param pNativeType
+	 *          voxel type, 8 or 16 bit integral types.
+	 * @param pSourceBuffer
+	 *          volume voxels, X fastest, then Y, then Z
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @param pBrickDepth
+	 *          number of planes per brick
+	 */
+	public VolumePyramid(	NativeTypeEnum pNativeType,
+												FragmentedMemoryInterface pSourceBuffer,
+												long pWidth,
+												long pHeight,
+												long pDepth,
+												int pBrickDepth)
+	{
+		super();
+		if (pNativeType == NativeTypeEnum.UnsignedByte || pNativeType == NativeTypeEnum.Byte)
+			mBytesPerVoxel = 1;
+		else if (pNativeType == NativeTypeEnum.UnsignedShort || pNativeType == NativeTypeEnum.Short)
+			mBytesPerVoxel = 2;
+		else
+			throw new ClearVolumeUnsupportdDataTypeException("Received an unsupported data type: " + pNativeType);
+		if (pWidth * pHeight > Integer.MAX_VALUE / mBytesPerVoxel)
+			throw new IllegalArgumentException("Volume planes too large: " + pWidth
+																					+ "x"
+																					+ pHeight);
+
+		mNativeType = pNativeType;
+		mSourceBuffer = pSourceBuffer;
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = pDepth;
+		mBrickDepth = max(1, pBrickDepth);
+	}
+
+	/**
+	 * Returns the size along one axis at a given level.
+	 *
+	 * @param pSize
+	 *          size at level 0
+	 * @param pLevel
+	 *          level
+	 * @return size at that level, at least one voxel
+	 */
+	public static long getSizeAtLevel(long pSize, int pLevel)
+	{
+		return max(1, (pSize + (1L << pLevel) - 1) >> pLevel);
+	}
+
+	/**
+	 * Returns the finest level of a volume that fits within given limits.
+	 *
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @param pBytesPerVoxel
+	 *          bytes per voxel
+	 * @param pMaxWidth
+	 *          maximal width
+	 * @param pMaxHeight
+	 *          maximal height
+	 * @param pMaxDepth
+	 *          maximal depth
+	 * @param pMaxSizeInBytes
+	 *          maximal size in bytes
+	 * @return level, 0 if the volume fits as is
+	 */
+	public static int selectLevel(long pWidth,
+																long pHeight,
+																long pDepth,
+																long pBytesPerVoxel,
+																long pMaxWidth,
+																long pMaxHeight,
+																long pMaxDepth,
+																long pMaxSizeInBytes)
+	{
+		int lLevel = 0;
+		while (lLevel < 62)
+		{
+			final long lWidth = getSizeAtLevel(pWidth, lLevel);
+			final long lHeight = getSizeAtLevel(pHeight, lLevel);
+			final long lDepth = getSizeAtLevel(pDepth, lLevel);
+			if (lWidth <= pMaxWidth && lHeight <= pMaxHeight
+					&& lDepth <= pMaxDepth
+					&& pBytesPerVoxel * lWidth * lHeight * lDepth <= pMaxSizeInBytes)
+				break;
+			if (lWidth == 1 && lHeight == 1 && lDepth == 1)
+				break;
+			lLevel++;
+		}
+		return lLevel;
+	}
+
+	public long getWidth(int pLevel)
+	{
+		return getSizeAtLevel(mWidth, pLevel);
+	}
+
+	public long getHeight(int pLevel)
+	{
+		return getSizeAtLevel(mHeight, pLevel);
+	}
+
+	public long getDepth(int pLevel)
+	{
+		return getSizeAtLevel(mDepth, pLevel);
+	}
+
+	public NativeTypeEnum getNativeType()
+	{
+		return mNativeType;
+	}
+
+	/**
+	 * Returns true if this pyramid can be reused for a volume of given type and
+	 * dimensions.
+	 *
+	 * @param pNativeType
+	 *          voxel type
+	 * @param pWidth
+	 *          width in voxels
+	 * @param pHeight
+	 *          height in voxels
+	 * @param pDepth
+	 *          depth in voxels
+	 * @return true if type and dimensions are those of this pyramid
+	 */
+	public boolean hasShape(NativeTypeEnum pNativeType,
+													long pWidth,
+													long pHeight,
+													long pDepth)
+	{
+		return mNativeType == pNativeType && mWidth == pWidth
+						&& mHeight == pHeight
+						&& mDepth == pDepth;
+	}
+
+	/**
+	 * Switches this pyramid to another volume of the same type and dimensions.
+	 * Levels built so far are forgotten but their buffers are kept, and reused
+	 * when levels are built again.
+	 *
+	 * @param pSourceBuffer
+	 *          volume voxels, X fastest, then Y, then Z
+	 */
+	public synchronized void setSourceBuffer(FragmentedMemoryInterface pSourceBuffer)
+	{
+		mSourceBuffer = pSourceBuffer;
+		mLevels.clear();
+	}
+
+	/**
+	 * Returns the voxels of a given level, building it if needed.
+	 *
+	 * @param pLevel
+	 *          level
+	 * @return level voxels, one fragment per plane except for level 0
+	 */
+	public FragmentedMemoryInterface getLevel(int pLevel)
+	{
+		return getLevel(pLevel, null);
+	}
+
+	/**
+	 * Returns the voxels of a given level, building it if needed. If the level is
+	 * built by this call, the listener receives its bricks in order as they are
+	 * computed.
+	 *
+	 * @param pLevel
+	 *          level
+	 * @param pBrickListener
+	 *          brick listener, can be null
+	 * @return level voxels, one fragment per plane except for level 0
+	 */
+	public synchronized FragmentedMemoryInterface getLevel(	int pLevel,
+																													BrickListener pBrickListener)
+	{
+		if (pLevel == 0)
+			return mSourceBuffer;
+
+		ByteBuffer[] lPlanes = mLevels.get(pLevel);
+		if (lPlanes == null)
+		{
+			lPlanes = allocateLevel(pLevel);
+			buildLevel(pLevel, lPlanes, pBrickListener);
+			mLevels.put(pLevel, lPlanes);
+		}
+		return wrap(lPlanes, 0, lPlanes.length);
+	}
+
+	/**
+	 * Forgets all levels built so far, and releases their buffers.
+	 */
+	public synchronized void clear()
+	{
+		mLevels.clear();
+		mAllocatedLevels.clear();
+	}
+
+	private ByteBuffer[] allocateLevel(int pLevel)
+	{
+		final ByteBuffer[] lAllocatedPlanes = mAllocatedLevels.get(pLevel);
+		if (lAllocatedPlanes != null)
+			return lAllocatedPlanes;
+
+		final int lPlaneLength = (int) (mBytesPerVoxel * getWidth(pLevel) * getHeight(pLevel));
+		final ByteBuffer[] lPlanes = new ByteBuffer[(int) getDepth(pLevel)];
+		for (int z = 0; z < lPlanes.length; z++)
+			lPlanes[z] = ByteBuffer.allocateDirect(lPlaneLength)
+															.order(ByteOrder.nativeOrder());
+		mAllocatedLevels.put(pLevel, lPlanes);
+		return lPlanes;
+	}
+
+	private void buildLevel(final int pLevel,
+													final ByteBuffer[] pPlanes,
+													final BrickListener pBrickListener)
+	{
+		// downsamples from the finest level available:
+		final Integer lFinerLevel = mLevels.lowerKey(pLevel);
+		final int lSourceLevel = lFinerLevel == null ? 0 : lFinerLevel;
+		final PlaneSource lPlaneSource = lSourceLevel == 0	? new SourceBufferPlanes()
+																												: new LevelPlanes(mLevels.get(lSourceLevel));
+
+		if (pBrickListener != null)
+			pBrickListener.levelAllocated(pLevel,
+																		wrap(pPlanes, 0, pPlanes.length));
+
+		final DownsampleTask.Parameters lParameters = new DownsampleTask.Parameters();
+		lParameters.mPlaneSource = lPlaneSource;
+		lParameters.mPlanes = pPlanes;
+		lParameters.mFactor = 1 << (pLevel - lSourceLevel);
+		lParameters.mSourceWidth = (int) getWidth(lSourceLevel);
+		lParameters.mSourceHeight = (int) getHeight(lSourceLevel);
+		lParameters.mSourceDepth = (int) getDepth(lSourceLevel);
+		lParameters.mWidth = (int) getWidth(pLevel);
+		lParameters.mHeight = (int) getHeight(pLevel);
+		lParameters.mBytesPerVoxel = mBytesPerVoxel;
+		lParameters.mUnsigned = mNativeType == NativeTypeEnum.UnsignedByte || mNativeType == NativeTypeEnum.UnsignedShort;
+
+		for (int z = 0; z < pPlanes.length; z += mBrickDepth)
+		{
+			final int lNumberOfPlanes = min(mBrickDepth, pPlanes.length - z);
+			sForkJoinPool.invoke(new DownsampleTask(lParameters,
+																							z,
+																							z + lNumberOfPlanes));
+			if (pBrickListener != null)
+				pBrickListener.brick(	pLevel,
+															z,
+															lNumberOfPlanes,
+															wrap(pPlanes, z, lNumberOfPlanes));
+		}
+	}
+
+	private static FragmentedMemoryInterface wrap(ByteBuffer[] pPlanes,
+																								int pFirstPlane,
+																								int pNumberOfPlanes)
+	{
+		final FragmentedMemory lFragmentedMemory = new FragmentedMemory();
+		for (int z = pFirstPlane; z < pFirstPlane + pNumberOfPlanes; z++)
+			lFragmentedMemory.add(OffHeapMemory.wrapBuffer(pPlanes[z]));
+		return lFragmentedMemory;
+	}
+
+	/**
+	 * Gives access to the planes of the level being downsampled.
+	 */
+	private interface PlaneSource
+	{
+		ByteBuffer getPlane(int pPlaneIndex);
+	}
+
+	private static final class LevelPlanes implements PlaneSource
+	{
+		private final ByteBuffer[] mPlanes;
+
+		LevelPlanes(ByteBuffer[] pPlanes)
+		{
+			mPlanes = pPlanes;
+		}
+
+		@Override
+		public ByteBuffer getPlane(int pPlaneIndex)
+		{
+			return mPlanes[pPlaneIndex].duplicate()
+																	.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Planes of the volume itself, fragments can be of any size: planes lying in
+	 * a single fragment are sliced out of it, others are assembled.
+	 */
+	private final class SourceBufferPlanes implements PlaneSource
+	{
+		private final ArrayList<ByteBuffer> mFragments = new ArrayList<>();
+		private final long[] mFragmentOffsets;
+		private final int mPlaneLength;
+
+		SourceBufferPlanes()
+		{
+			mFragmentOffsets = new long[mSourceBuffer.getNumberOfFragments() + 1];
+			int i = 0;
+			for (final ContiguousMemoryInterface lFragment : mSourceBuffer)
+			{
+				mFragments.add(lFragment.getBridJPointer(Byte.class)
+																.getByteBuffer());
+				mFragmentOffsets[i + 1] = mFragmentOffsets[i] + lFragment.getSizeInBytes();
+				i++;
+			}
+			mPlaneLength = (int) (mBytesPerVoxel * mWidth * mHeight);
+		}
+
+		@Override
+		public ByteBuffer getPlane(int pPlaneIndex)
+		{
+			final long lPlaneOffset = (long) pPlaneIndex * mPlaneLength;
+
+			int lFragmentIndex = 0;
+			while (mFragmentOffsets[lFragmentIndex + 1] <= lPlaneOffset)
+				lFragmentIndex++;
+
+			final long lOffsetInFragment = lPlaneOffset - mFragmentOffsets[lFragmentIndex];
+			if (lPlaneOffset + mPlaneLength <= mFragmentOffsets[lFragmentIndex + 1])
+			{
+				final ByteBuffer lPlane = mFragments.get(lFragmentIndex)
+																						.duplicate();
+				lPlane.limit((int) lOffsetInFragment + mPlaneLength);
+				lPlane.position((int) lOffsetInFragment);
+				return lPlane.slice().order(ByteOrder.nativeOrder());
+			}
+
+			final ByteBuffer lPlane = ByteBuffer.allocate(mPlaneLength)
+																					.order(ByteOrder.nativeOrder());
+			long lOffset = lOffsetInFragment;
+			while (lPlane.hasRemaining())
+			{
+				final ByteBuffer lFragment = mFragments.get(lFragmentIndex++)
+																								.duplicate();
+				lFragment.position((int) lOffset);
+				lFragment.limit((int) min(lFragment.capacity(),
+																	lOffset + lPlane.remaining()));
+				lPlane.put(lFragment);
+				lOffset = 0;
+			}
+			lPlane.rewind();
+			return lPlane;
+		}
+	}
+
+	/**
+	 * Fork/join task that recursively splits a range of planes to downsample.
+	 */
+	private static final class DownsampleTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		static final class Parameters
+		{
+			PlaneSource mPlaneSource;
+			ByteBuffer[] mPlanes;
+			int mFactor;
+			int mSourceWidth, mSourceHeight, mSourceDepth;
+			int mWidth, mHeight;
+			int mBytesPerVoxel;
+			boolean mUnsigned;
+		}
+
+		private final Parameters mParameters;
+		private final int mZ0, mZ1;
+
+		DownsampleTask(Parameters pParameters, int pZ0, int pZ1)
+		{
+			mParameters = pParameters;
+			mZ0 = pZ0;
+			mZ1 = pZ1;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (mZ1 - mZ0 > 1)
+			{
+				final int lZm = (mZ0 + mZ1) / 2;
+				invokeAll(new DownsampleTask(mParameters, mZ0, lZm),
+									new DownsampleTask(mParameters, lZm, mZ1));
+			}
+			else
+				downsamplePlane(mZ0);
+		}
+
+		private void downsamplePlane(int pZ)
+		{
+			final Parameters p = mParameters;
+			final int[] lMaxima = new int[p.mWidth * p.mHeight];
+			Arrays.fill(lMaxima, Integer.MIN_VALUE);
+
+			final int lSourceZ1 = min(p.mSourceDepth, (pZ + 1) * p.mFactor);
+			for (int lSourceZ = pZ * p.mFactor; lSourceZ < lSourceZ1; lSourceZ++)
+			{
+				final ByteBuffer lSourcePlane = p.mPlaneSource.getPlane(lSourceZ);
+				for (int y = 0; y < p.mSourceHeight; y++)
+				{
+					final int lRowIndex = (y / p.mFactor) * p.mWidth;
+					final int lSourceRowIndex = y * p.mSourceWidth;
+					for (int x = 0; x < p.mSourceWidth; x++)
+					{
+						final int lValue = read(lSourcePlane, lSourceRowIndex + x);
+						final int lIndex = lRowIndex + x / p.mFactor;
+						if (lValue > lMaxima[lIndex])
+							lMaxima[lIndex] = lValue;
+					}
+				}
+			}
+
+			final ByteBuffer lPlane = p.mPlanes[pZ];
+			if (p.mBytesPerVoxel == 1)
+				for (int i = 0; i < lMaxima.length; i++)
+					lPlane.put(i, (byte) lMaxima[i]);
+			else
+				for (int i = 0; i < lMaxima.length; i++)
+					lPlane.putShort(2 * i, (short) lMaxima[i]);
+		}
+
+		private int read(ByteBuffer pPlane, int pIndex)
+		{
+			if (mParameters.mBytesPerVoxel == 1)
+			{
+				final byte lValue = pPlane.get(pIndex);
+				return mParameters.mUnsigned ? lValue & 0xFF : lValue;
+			}
+			else
+			{
+				final short lValue = pPlane.getShort(2 * pIndex);
+				return mParameters.mUnsigned ? lValue & 0xFFFF : lValue;
+			}
+		}
+	}
+
+}
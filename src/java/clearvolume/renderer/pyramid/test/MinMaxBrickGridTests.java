@@ -0,0 +1,135 @@
+package clearvolume.renderer.pyramid.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import clearvolume.renderer.pyramid.MinMaxBrickGrid;
+import coremem.fragmented.FragmentedMemory;
+import coremem.offheap.OffHeapMemory;
+import coremem.types.NativeTypeEnum;
+
+public class MinMaxBrickGridTests
+{
+	private static final int cWidth = 40, cHeight = 20, cDepth = 18;
+
+	@Test
+	public void testCompute()
+	{
+		final short[] lVoxels = new short[cWidth * cHeight * cDepth];
+		lVoxels[index(0, 0, 0)] = 50;
+		// on the shell of four bricks:
+		lVoxels[index(16, 15, 9)] = 1000;
+
+		final MinMaxBrickGrid lMinMaxBrickGrid = new MinMaxBrickGrid(	NativeTypeEnum.UnsignedShort,
+																																	cWidth,
+																																	cHeight,
+																																	cDepth);
+		assertEquals(3, lMinMaxBrickGrid.getGridWidth());
+		assertEquals(2, lMinMaxBrickGrid.getGridHeight());
+		assertEquals(2, lMinMaxBrickGrid.getGridDepth());
+
+		// nothing can be skipped before the grid is computed:
+		assertEquals(0, lMinMaxBrickGrid.getNumberOfEmptyBricks(0.5f));
+
+		lMinMaxBrickGrid.compute(wrap(lVoxels, cWidth, cHeight));
+
+		final float lBright = 1000f / 65535;
+		assertEquals(lBright, lMinMaxBrickGrid.getMaximum(0, 0, 0), 1e-6f);
+		assertEquals(lBright, lMinMaxBrickGrid.getMaximum(1, 0, 0), 1e-6f);
+		assertEquals(lBright, lMinMaxBrickGrid.getMaximum(0, 1, 0), 1e-6f);
+		assertEquals(lBright, lMinMaxBrickGrid.getMaximum(1, 1, 0), 1e-6f);
+		assertEquals(0, lMinMaxBrickGrid.getMaximum(2, 0, 0), 0);
+		assertEquals(0, lMinMaxBrickGrid.getMaximum(1, 1, 1), 0);
+		assertEquals(0, lMinMaxBrickGrid.getMinimum(0, 0, 0), 0);
+		assertEquals(8, lMinMaxBrickGrid.getNumberOfEmptyBricks(0));
+		assertEquals(12, lMinMaxBrickGrid.getNumberOfEmptyBricks(lBright));
+
+		assertEquals(lBright,
+									lMinMaxBrickGrid.getMaximumAt(0.45f, 0.1f, 0.1f),
+									1e-6f);
+		assertEquals(0, lMinMaxBrickGrid.getMaximumAt(1.5f, 0.1f, 0.1f), 0);
+	}
+
+	@Test
+	public void testRegionUpdates()
+	{
+		final short[] lVoxels = new short[cWidth * cHeight * cDepth];
+		lVoxels[index(16, 15, 9)] = 1000;
+
+		final MinMaxBrickGrid lMinMaxBrickGrid = new MinMaxBrickGrid(	NativeTypeEnum.UnsignedShort,
+																																	cWidth,
+																																	cHeight,
+																																	cDepth);
+		lMinMaxBrickGrid.compute(wrap(lVoxels, cWidth, cHeight));
+
+		// a region brightens a brick:
+		lVoxels[index(35, 18, 17)] = 3000;
+		lMinMaxBrickGrid.include(	wrap(new short[]
+															{ 3000 }, 1, 1),
+															35,
+															18,
+															17,
+															1,
+															1,
+															1);
+		assertEquals(3000f / 65535,
+									lMinMaxBrickGrid.getMaximum(2, 1, 1),
+									1e-6f);
+
+		// a region darkens bricks, including keeps the previous maxima:
+		lVoxels[index(16, 15, 9)] = 0;
+		lMinMaxBrickGrid.include(	wrap(new short[]
+															{ 0 }, 1, 1),
+															16,
+															15,
+															9,
+															1,
+															1,
+															1);
+		assertEquals(1000f / 65535,
+									lMinMaxBrickGrid.getMaximum(0, 0, 0),
+									1e-6f);
+
+		// recomputing the box from the volume is exact:
+		lMinMaxBrickGrid.compute(	wrap(lVoxels, cWidth, cHeight),
+															16,
+															15,
+															9,
+															1,
+															1,
+															1);
+		assertEquals(0, lMinMaxBrickGrid.getMaximum(0, 0, 0), 0);
+		assertEquals(0, lMinMaxBrickGrid.getMaximum(1, 1, 0), 0);
+		assertEquals(3000f / 65535,
+									lMinMaxBrickGrid.getMaximum(2, 1, 1),
+									1e-6f);
+		assertEquals(11, lMinMaxBrickGrid.getNumberOfEmptyBricks(0));
+	}
+
+	private static int index(int x, int y, int z)
+	{
+		return x + cWidth * (y + cHeight * z);
+	}
+
+	private static MinMaxBrickGrid.VoxelSource wrap(short[] pVoxels,
+																									int pWidth,
+																									int pHeight)
+	{
+		// fragments that do not align with rows or planes:
+		final FragmentedMemory lVolume = new FragmentedMemory();
+		for (int i = 0; i < pVoxels.length; i += 37)
+		{
+			final int lLength = Math.min(37, pVoxels.length - i);
+			final OffHeapMemory lFragment = OffHeapMemory.allocateShorts(lLength);
+			for (int j = 0; j < lLength; j++)
+				lFragment.setShort(j, pVoxels[i + j]);
+			lVolume.add(lFragment);
+		}
+		return MinMaxBrickGrid.wrap(NativeTypeEnum.UnsignedShort,
+																lVolume,
+																pWidth,
+																pHeight);
+	}
+
+}
@@ -0,0 +1,181 @@
+package clearvolume.renderer.pyramid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import clearvolume.renderer.pyramid.VolumePyramid;
+import coremem.ContiguousMemoryInterface;
+import coremem.fragmented.FragmentedMemory;
+import coremem.fragmented.FragmentedMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+import coremem.types.NativeTypeEnum;
+
+public class VolumePyramidTests
+{
+
+	@Test
+	public void testSelectLevel()
+	{
+		assertEquals(0, VolumePyramid.selectLevel(	64,
+																								64,
+																								64,
+																								2,
+																								64,
+																								64,
+																								64,
+																								Long.MAX_VALUE));
+		assertEquals(1, VolumePyramid.selectLevel(	65,
+																								64,
+																								64,
+																								2,
+																								64,
+																								64,
+																								64,
+																								Long.MAX_VALUE));
+		// 4096x4096x2000 16 bit stack on a device with 2048^3 images and 512MB:
+		assertEquals(3, VolumePyramid.selectLevel(	4096,
+																								4096,
+																								2000,
+																								2,
+																								2048,
+																								2048,
+																								2048,
+																								1L << 29));
+		assertEquals(3, VolumePyramid.getSizeAtLevel(17, 3));
+	}
+
+	@Test
+	public void testDownsampling()
+	{
+		final int lWidth = 9, lHeight = 7, lDepth = 5;
+
+		// unsigned 16 bit ramp, in fragments that do not align with planes:
+		final short[] lVoxels = new short[lWidth * lHeight * lDepth];
+		for (int i = 0; i < lVoxels.length; i++)
+			lVoxels[i] = (short) (100 + 200 * i);
+		final FragmentedMemory lVolume = new FragmentedMemory();
+		for (int i = 0; i < lVoxels.length; i += 50)
+		{
+			final int lLength = Math.min(50, lVoxels.length - i);
+			final OffHeapMemory lFragment = OffHeapMemory.allocateShorts(lLength);
+			for (int j = 0; j < lLength; j++)
+				lFragment.setShort(j, lVoxels[i + j]);
+			lVolume.add(lFragment);
+		}
+
+		final ArrayList<Long> lBrickPlanes = new ArrayList<>();
+		final VolumePyramid lVolumePyramid = new VolumePyramid(	NativeTypeEnum.UnsignedShort,
+																														lVolume,
+																														lWidth,
+																														lHeight,
+																														lDepth,
+																														2);
+
+		final VolumePyramid.BrickListener lBrickListener = new VolumePyramid.BrickListener()
+		{
+			@Override
+			public void levelAllocated(	int pLevel,
+																	FragmentedMemoryInterface pLevelBuffer)
+			{
+				assertEquals(3, pLevelBuffer.getNumberOfFragments());
+			}
+
+			@Override
+			public void brick(int pLevel,
+												long pPlaneIndex,
+												long pNumberOfPlanes,
+												FragmentedMemoryInterface pBrickBuffer)
+			{
+				lBrickPlanes.add(pPlaneIndex);
+				assertEquals(pNumberOfPlanes, pBrickBuffer.getNumberOfFragments());
+			}
+		};
+
+		final FragmentedMemoryInterface lLevel1 = lVolumePyramid.getLevel(1,
+																																			lBrickListener);
+		assertEquals(5, lVolumePyramid.getWidth(1));
+		assertEquals(4, lVolumePyramid.getHeight(1));
+		assertEquals(3, lVolumePyramid.getDepth(1));
+		assertEquals(2, lBrickPlanes.size());
+		assertEquals(Long.valueOf(2), lBrickPlanes.get(1));
+
+		// level 2 is built from level 1, both must agree with the volume:
+		final FragmentedMemoryInterface lLevel2 = lVolumePyramid.getLevel(2);
+		for (int lLevel = 1; lLevel <= 2; lLevel++)
+		{
+			final FragmentedMemoryInterface lLevelBuffer = lLevel == 1	? lLevel1
+																																	: lLevel2;
+			final int lFactor = 1 << lLevel;
+			final int lLevelWidth = (int) lVolumePyramid.getWidth(lLevel);
+			final int lLevelHeight = (int) lVolumePyramid.getHeight(lLevel);
+			int z = 0;
+			for (final ContiguousMemoryInterface lPlane : lLevelBuffer)
+			{
+				final ByteBuffer lPlaneBuffer = lPlane.getBridJPointer(Byte.class)
+																							.getByteBuffer()
+																							.order(ByteOrder.nativeOrder());
+				for (int y = 0; y < lLevelHeight; y++)
+					for (int x = 0; x < lLevelWidth; x++)
+					{
+						// the ramp increases along all axes, the maximum is the last voxel:
+						final int lX = Math.min(lWidth - 1, x * lFactor + lFactor - 1);
+						final int lY = Math.min(lHeight - 1, y * lFactor + lFactor - 1);
+						final int lZ = Math.min(lDepth - 1, z * lFactor + lFactor - 1);
+						final int lExpected = lVoxels[lX + lWidth * (lY + lHeight * lZ)] & 0xFFFF;
+						assertEquals(	lExpected,
+													lPlaneBuffer.getShort(2 * (x + lLevelWidth * y)) & 0xFFFF);
+					}
+				z++;
+			}
+			assertEquals(lVolumePyramid.getDepth(lLevel), z);
+		}
+	}
+
+	@Test
+	public void testReuse()
+	{
+		final OffHeapMemory lFirstVolume = OffHeapMemory.allocateBytes(4 * 4 * 4);
+		final OffHeapMemory lSecondVolume = OffHeapMemory.allocateBytes(4 * 4 * 4);
+		for (int i = 0; i < 4 * 4 * 4; i++)
+		{
+			lFirstVolume.setByte(i, (byte) 10);
+			lSecondVolume.setByte(i, (byte) (i == 63 ? 200 : 20));
+		}
+
+		final VolumePyramid lVolumePyramid = new VolumePyramid(	NativeTypeEnum.UnsignedByte,
+																														FragmentedMemory.wrap(lFirstVolume),
+																														4,
+																														4,
+																														4);
+		assertTrue(lVolumePyramid.hasShape(NativeTypeEnum.UnsignedByte, 4, 4, 4));
+		assertFalse(lVolumePyramid.hasShape(NativeTypeEnum.UnsignedByte, 4, 4, 8));
+		assertFalse(lVolumePyramid.hasShape(NativeTypeEnum.UnsignedShort, 4, 4, 4));
+
+		final FragmentedMemoryInterface lFirstLevel1 = lVolumePyramid.getLevel(1);
+		assertEquals(10, getPlane(lFirstLevel1, 0).get(0));
+
+		// the second volume is downsampled in the buffers of the first:
+		lVolumePyramid.setSourceBuffer(FragmentedMemory.wrap(lSecondVolume));
+		final FragmentedMemoryInterface lLevel1 = lVolumePyramid.getLevel(1);
+		assertEquals(	lFirstLevel1.get(0).getAddress(),
+									lLevel1.get(0).getAddress());
+		assertEquals(20, getPlane(lLevel1, 0).get(0));
+		assertEquals(200, getPlane(lLevel1, 1).get(3) & 0xFF);
+	}
+
+	private static ByteBuffer getPlane(	FragmentedMemoryInterface pLevel,
+																			int pPlaneIndex)
+	{
+		return pLevel.get(pPlaneIndex)
+									.getBridJPointer(Byte.class)
+									.getByteBuffer();
+	}
+
+}
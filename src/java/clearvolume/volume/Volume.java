@@ -3,17 +3,21 @@ package clearvolume.volume;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearvolume.ClearVolumeCloseable;
 import clearvolume.utils.ToIntExact;
+import coremem.offheap.OffHeapMemory;
 import coremem.types.NativeTypeEnum;
 import coremem.util.Size;
 
 public class Volume implements ClearVolumeCloseable
 {
 	private volatile VolumeManager mVolumeManager;
+	private final AtomicInteger mNumberOfHolders = new AtomicInteger(1);
 
 	private ByteBuffer mDataBuffer;
+	private OffHeapMemory mOffHeapMemory;
 	private NativeTypeEnum mType;
 	private long[] mDimensionsInVoxels;
 	private double[] mVoxelSizeInRealUnits;
@@ -36,10 +40,26 @@ public class Volume implements ClearVolumeCloseable
 		super();
 		mType = pType;
 		mDimensionsInVoxels = pDimensions;
-		final long lBufferLength = getDataSizeInBytes();
-		final int lBufferLengthInt = ToIntExact.toIntExact(lBufferLength);
-		mDataBuffer = ByteBuffer.allocateDirect(lBufferLengthInt)
-														.order(ByteOrder.nativeOrder());
+		allocateDataBuffer(getDataSizeInBytes());
+	}
+
+	/**
+	 * Allocates an off-heap data buffer of a given length for this volume. The
+	 * memory is owned by this volume and freed with it. Volumes handed out by a
+	 * volume manager already have a data buffer of the right size.
+	 *
+	 * @param pLengthInBytes
+	 *          length in bytes
+	 */
+	public void allocateDataBuffer(long pLengthInBytes)
+	{
+		// byte buffers cannot be larger than 2GB:
+		ToIntExact.toIntExact(pLengthInBytes);
+		final OffHeapMemory lOffHeapMemory = OffHeapMemory.allocateBytes(pLengthInBytes);
+		setDataBuffer(lOffHeapMemory.getBridJPointer(Byte.class)
+																.getByteBuffer()
+																.order(ByteOrder.nativeOrder()));
+		mOffHeapMemory = lOffHeapMemory;
 	}
 
 	public void setManager(VolumeManager pVolumeManager)
@@ -47,9 +67,64 @@ public class Volume implements ClearVolumeCloseable
 		mVolumeManager = pVolumeManager;
 	}
 
+	/**
+	 * Adds a holder to this volume. A volume starts with one holder, the one that
+	 * requested or created it, and whoever keeps a volume beyond the call that
+	 * passed it along must retain it. Each holder releases the volume once with
+	 * {@link #makeAvailableToManager()} or {@link #close()}.
+	 *
+	 * @return this volume
+	 */
+	public Volume retain()
+	{
+		mNumberOfHolders.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Returns the number of holders of this volume.
+	 *
+	 * @return number of holders, 0 once released by all of them
+	 */
+	public int getNumberOfHolders()
+	{
+		return mNumberOfHolders.get();
+	}
+
+	/**
+	 * Releases this volume for one holder. When the last holder releases it, the
+	 * volume goes back to its manager, or is freed if it has none. Releasing a
+	 * volume that has no holder left does nothing.
+	 */
 	public void makeAvailableToManager()
 	{
-		mVolumeManager.makeAvailable(this);
+		while (true)
+		{
+			final int lNumberOfHolders = mNumberOfHolders.get();
+			if (lNumberOfHolders <= 0)
+				return;
+			if (mNumberOfHolders.compareAndSet(	lNumberOfHolders,
+																					lNumberOfHolders - 1))
+			{
+				if (lNumberOfHolders > 1)
+					return;
+				break;
+			}
+		}
+
+		final VolumeManager lVolumeManager = mVolumeManager;
+		if (lVolumeManager != null)
+			lVolumeManager.makeAvailable(this);
+		else
+			free();
+	}
+
+	/**
+	 * Called by the volume manager when it hands out this volume to a new holder.
+	 */
+	void resetNumberOfHolders()
+	{
+		mNumberOfHolders.set(1);
 	}
 
 	public <LT> boolean isCompatibleWith(	NativeTypeEnum pType,
@@ -98,6 +173,8 @@ public class Volume implements ClearVolumeCloseable
 
 	public void setDataBuffer(ByteBuffer pByteBuffer)
 	{
+		if (pByteBuffer != mDataBuffer)
+			freeOffHeapMemory();
 		mDataBuffer = pByteBuffer;
 	}
 
@@ -305,8 +382,8 @@ public class Volume implements ClearVolumeCloseable
 	public void copyDataFrom(Volume pVolume)
 	{
 		if (mDataBuffer.capacity() != pVolume.mDataBuffer.capacity())
-			mDataBuffer = ByteBuffer.allocateDirect(pVolume.mDataBuffer.capacity())
-															.order(ByteOrder.nativeOrder());
+			setDataBuffer(ByteBuffer.allocateDirect(pVolume.mDataBuffer.capacity())
+															.order(ByteOrder.nativeOrder()));
 
 		mDataBuffer.clear();
 		pVolume.mDataBuffer.rewind();
@@ -331,7 +408,7 @@ public class Volume implements ClearVolumeCloseable
 			mDimensionsInVoxels = Arrays.copyOf(pVolume.mDimensionsInVoxels,
 																					pVolume.mDimensionsInVoxels.length);
 
-		if (mRealUnitName != null)
+		if (pVolume.mRealUnitName != null)
 			mRealUnitName = new String(pVolume.mRealUnitName);
 		mTimeIndex = pVolume.mTimeIndex;
 		mTimeInSeconds = pVolume.mTimeInSeconds;
@@ -353,9 +430,46 @@ public class Volume implements ClearVolumeCloseable
 		mDataBuffer.put(pByteBuffer);
 	}
 
+	/**
+	 * Returns the size in bytes of the data buffer of this volume, this can be
+	 * larger than the size of the data itself.
+	 *
+	 * @return data buffer capacity in bytes, 0 if there is no data buffer.
+	 */
+	public long getDataBufferCapacity()
+	{
+		final ByteBuffer lDataBuffer = mDataBuffer;
+		return lDataBuffer == null ? 0 : lDataBuffer.capacity();
+	}
+
+	/**
+	 * Releases the data buffer of this volume. Off-heap memory allocated by this
+	 * volume is freed right away instead of waiting for the garbage collector.
+	 * Only called once no holder is left, by the volume manager when it evicts
+	 * the volume or by the last release of a volume without manager.
+	 */
+	void free()
+	{
+		mDataBuffer = null;
+		freeOffHeapMemory();
+	}
+
+	private void freeOffHeapMemory()
+	{
+		if (mOffHeapMemory != null)
+		{
+			mOffHeapMemory.free();
+			mOffHeapMemory = null;
+		}
+	}
+
+	/**
+	 * Releases this volume for one holder, see {@link #makeAvailableToManager()}.
+	 */
 	@Override
 	public void close()
 	{
+		makeAvailableToManager();
 	}
 
 	@Override
@@ -1,24 +1,88 @@
 package clearvolume.volume;
 
-import java.lang.ref.SoftReference;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
 import coremem.types.NativeTypeEnum;
+import coremem.util.Size;
 
+/**
+ * Class VolumeManager
+ *
+ * Pool of volumes organized in size classes: volumes with the same native type
+ * and dimensions are interchangeable and are recycled instead of being
+ * reallocated. The number of pooled volumes is bounded and the total number of
+ * bytes of the volumes handed out by this manager can be limited. When this
+ * budget is exhausted, pooled volumes are evicted and freed starting with the
+ * least recently returned ones. If that is not enough, requests either wait
+ * for volumes to be returned or fail right away.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
 public class VolumeManager implements ClearVolumeCloseable
 {
 
-	private final ArrayBlockingQueue<SoftReference<Volume>> mAvailableVolumesQueue;
-
 	private final int mMaxAvailableVolumes;
+	private final long mMaxResidentBytes;
+	private final boolean mWaitWhenBudgetExhausted;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mVolumeReturnedCondition = mLock.newCondition();
+
+	// pooled volumes per size class, and all pooled volumes in the order they
+	// were returned:
+	private final HashMap<SizeClass, ArrayDeque<Volume>> mAvailableVolumesMap = new HashMap<SizeClass, ArrayDeque<Volume>>();
+	private final LinkedList<Volume> mAvailableVolumesList = new LinkedList<Volume>();
+
+	// all volumes known to this manager with their size in bytes, volumes that
+	// are dropped by their users are garbage collected and disappear from here:
+	private final WeakHashMap<Volume, Long> mResidentVolumesMap = new WeakHashMap<Volume, Long>();
 
+	private long mNumberOfHits, mNumberOfMisses, mNumberOfAllocations,
+			mNumberOfEvictions;
+
+	/**
+	 * Constructs a volume manager that pools up to a given number of volumes,
+	 * without limit on the number of bytes.
+	 *
+	 * @param pMaxAvailableVolumes
+	 *          max number of pooled volumes
+	 */
 	public VolumeManager(int pMaxAvailableVolumes)
+	{
+		this(pMaxAvailableVolumes, Long.MAX_VALUE, true);
+	}
+
+	/**
+	 * Constructs a volume manager that pools up to a given number of volumes and
+	 * never holds more than a given number of bytes.
+	 *
+	 * @param pMaxAvailableVolumes
+	 *          max number of pooled volumes
+	 * @param pMaxResidentBytes
+	 *          max number of bytes of all the volumes handed out or pooled
+	 * @param pWaitWhenBudgetExhausted
+	 *          if true requests wait (up to their time out) for volumes to be
+	 *          returned when the budget is exhausted, otherwise they fail right
+	 *          away.
+	 */
+	public VolumeManager(	int pMaxAvailableVolumes,
+												long pMaxResidentBytes,
+												boolean pWaitWhenBudgetExhausted)
 	{
 		super();
 		mMaxAvailableVolumes = pMaxAvailableVolumes;
-		mAvailableVolumesQueue = new ArrayBlockingQueue<SoftReference<Volume>>(mMaxAvailableVolumes);
+		mMaxResidentBytes = pMaxResidentBytes;
+		mWaitWhenBudgetExhausted = pWaitWhenBudgetExhausted;
 	}
 
 	public Volume requestAndWaitForVolumeLike(int pTimeOut,
@@ -41,72 +105,192 @@ public class VolumeManager implements ClearVolumeCloseable
 
 	}
 
+	/**
+	 * Returns a volume of given type and dimensions. A pooled volume is returned
+	 * if there is one, otherwise a new volume is allocated. If interrupted while
+	 * waiting for the budget, null is returned and the interrupt flag is kept set.
+	 *
+	 * @param pTimeOut
+	 *          max time to wait for the budget to allow the allocation
+	 * @param pTimeUnit
+	 *          time unit
+	 * @param pType
+	 *          native type
+	 * @param pDimensions
+	 *          dimensions in voxels
+	 * @return volume, or null if interrupted while waiting for the budget
+	 * @throws ClearVolumeMemoryBudgetException
+	 *           if the budget does not allow to allocate the volume.
+	 */
 	public Volume requestAndWaitForVolume(long pTimeOut,
 																				TimeUnit pTimeUnit,
 																				NativeTypeEnum pType,
 																				long... pDimensions)
 	{
-		do
+		final SizeClass lSizeClass = new SizeClass(pType, pDimensions);
+		final long lSizeInBytes = lSizeClass.getSizeInBytes();
+
+		if (lSizeInBytes > mMaxResidentBytes)
+			throw new ClearVolumeMemoryBudgetException(String.format("Volume of %d bytes larger than the budget of %d bytes",
+																																lSizeInBytes,
+																																mMaxResidentBytes));
+
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+
+		mLock.lock();
+		try
 		{
-			try
+			while (true)
 			{
-				SoftReference<Volume> lPolledVolumeReference;
-				// System.out.println("mAvailableVolumesQueue.size()=" +
-				// mAvailableVolumesQueue.size());
-				lPolledVolumeReference = mAvailableVolumesQueue.poll(	pTimeOut,
-																															pTimeUnit);
+				final ArrayDeque<Volume> lAvailableVolumes = mAvailableVolumesMap.get(lSizeClass);
+				if (lAvailableVolumes != null && !lAvailableVolumes.isEmpty())
+				{
+					final Volume lVolume = lAvailableVolumes.pollLast();
+					if (lAvailableVolumes.isEmpty())
+						mAvailableVolumesMap.remove(lSizeClass);
+					mAvailableVolumesList.remove(lVolume);
+					lVolume.resetNumberOfHolders();
+					mNumberOfHits++;
+					return lVolume;
+				}
 
-				if (lPolledVolumeReference == null)
-					return allocateAndUseNewVolume(pType, pDimensions);
-				final Volume lVolume = lPolledVolumeReference.get();
+				while (getResidentBytesInternal() + lSizeInBytes > mMaxResidentBytes && !mAvailableVolumesList.isEmpty())
+					evict(mAvailableVolumesList.getFirst());
 
-				if (lVolume == null)
+				if (getResidentBytesInternal() + lSizeInBytes <= mMaxResidentBytes)
+				{
+					mNumberOfMisses++;
 					return allocateAndUseNewVolume(pType, pDimensions);
+				}
 
-				if (!lVolume.isCompatibleWith(pType, pDimensions))
-					return allocateAndUseNewVolume(pType, pDimensions);
-
-				return lVolume;
-			}
-			catch (final InterruptedException e)
-			{
+				final long lRemainingNanos = lDeadline - System.nanoTime();
+				if (!mWaitWhenBudgetExhausted || lRemainingNanos <= 0)
+					throw new ClearVolumeMemoryBudgetException(String.format("Memory budget of %d bytes exhausted, %d bytes in use",
+																																		mMaxResidentBytes,
+																																		getResidentBytesInternal()));
+				try
+				{
+					mVolumeReturnedCondition.awaitNanos(lRemainingNanos);
+				}
+				catch (final InterruptedException e)
+				{
+					// gives up, the caller sees the interruption:
+					Thread.currentThread().interrupt();
+					return null;
+				}
 			}
 		}
-		while (true);
+		finally
+		{
+			mLock.unlock();
+		}
 	}
 
+	/**
+	 * Returns the most recently returned volume whatever its size class, or null
+	 * if no volume is returned before the time out or if interrupted while
+	 * waiting. The interrupt flag is then kept set.
+	 *
+	 * @param pTimeOut
+	 *          time out
+	 * @param pTimeUnit
+	 *          time unit
+	 * @return volume or null
+	 */
 	public Volume requestAndWaitForNextAvailableVolume(	long pTimeOut,
 																											TimeUnit pTimeUnit)
 	{
-		do
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+
+		mLock.lock();
+		try
 		{
-			try
+			while (mAvailableVolumesList.isEmpty())
 			{
-				SoftReference<Volume> lPolledVolumeReference;
-				// System.out.println("mAvailableVolumesQueue.size()=" +
-				// mAvailableVolumesQueue.size());
-				lPolledVolumeReference = mAvailableVolumesQueue.poll(	pTimeOut,
-																															pTimeUnit);
-
-				if (lPolledVolumeReference == null)
+				final long lRemainingNanos = lDeadline - System.nanoTime();
+				if (lRemainingNanos <= 0)
 					return null;
-				final Volume lVolume = lPolledVolumeReference.get();
-
-				if (lVolume == null)
+				try
+				{
+					mVolumeReturnedCondition.awaitNanos(lRemainingNanos);
+				}
+				catch (final InterruptedException e)
+				{
+					// gives up, the caller sees the interruption:
+					Thread.currentThread().interrupt();
 					return null;
-
-				return lVolume;
+				}
 			}
-			catch (final InterruptedException e)
+
+			final Volume lVolume = mAvailableVolumesList.removeLast();
+			removeFromSizeClass(lVolume);
+			lVolume.resetNumberOfHolders();
+			mNumberOfHits++;
+			return lVolume;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a volume to this manager. If the pool is full the least recently
+	 * returned volume is freed. Holders of a volume should call
+	 * {@link Volume#makeAvailableToManager()} instead, so that the volume is only
+	 * returned once all of them are done with it.
+	 *
+	 * @param pVolume
+	 *          volume
+	 */
+	public <T> void makeAvailable(Volume pVolume)
+	{
+		mLock.lock();
+		try
+		{
+			if (pVolume.getDataBuffer() == null || mAvailableVolumesList.contains(pVolume))
+				return;
+
+			// volumes can change size while in use, or come from elsewhere:
+			mResidentVolumesMap.put(pVolume, pVolume.getDataBufferCapacity());
+
+			final SizeClass lSizeClass = SizeClass.of(pVolume);
+			ArrayDeque<Volume> lAvailableVolumes = mAvailableVolumesMap.get(lSizeClass);
+			if (lAvailableVolumes == null)
 			{
+				lAvailableVolumes = new ArrayDeque<Volume>();
+				mAvailableVolumesMap.put(lSizeClass, lAvailableVolumes);
 			}
+			lAvailableVolumes.addLast(pVolume);
+			mAvailableVolumesList.addLast(pVolume);
+
+			while (mAvailableVolumesList.size() > mMaxAvailableVolumes)
+				evict(mAvailableVolumesList.getFirst());
+
+			mVolumeReturnedCondition.signalAll();
+		}
+		finally
+		{
+			mLock.unlock();
 		}
-		while (true);
 	}
 
-	public <T> void makeAvailable(Volume pVolume)
+	private void evict(Volume pVolume)
 	{
-		mAvailableVolumesQueue.offer(new SoftReference<Volume>(pVolume));
+		mAvailableVolumesList.remove(pVolume);
+		removeFromSizeClass(pVolume);
+		mResidentVolumesMap.remove(pVolume);
+		pVolume.free();
+		mNumberOfEvictions++;
+	}
+
+	private void removeFromSizeClass(Volume pVolume)
+	{
+		final SizeClass lSizeClass = SizeClass.of(pVolume);
+		final ArrayDeque<Volume> lAvailableVolumes = mAvailableVolumesMap.get(lSizeClass);
+		lAvailableVolumes.remove(pVolume);
+		if (lAvailableVolumes.isEmpty())
+			mAvailableVolumesMap.remove(lSizeClass);
 	}
 
 	private Volume allocateAndUseNewVolume(	NativeTypeEnum pType,
@@ -114,19 +298,203 @@ public class VolumeManager implements ClearVolumeCloseable
 	{
 		final Volume lVolume = new Volume(pType, pDimensions);
 		lVolume.setManager(this);
+		mResidentVolumesMap.put(lVolume, lVolume.getDataBufferCapacity());
+		mNumberOfAllocations++;
 		return lVolume;
 	}
 
+	private long getResidentBytesInternal()
+	{
+		long lResidentBytes = 0;
+		for (final Long lSizeInBytes : mResidentVolumesMap.values())
+			lResidentBytes += lSizeInBytes;
+		return lResidentBytes;
+	}
+
+	/**
+	 * Returns the number of requests served with a pooled volume.
+	 *
+	 * @return number of hits
+	 */
+	public long getNumberOfHits()
+	{
+		mLock.lock();
+		try
+		{
+			return mNumberOfHits;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests for which no pooled volume was available.
+	 *
+	 * @return number of misses
+	 */
+	public long getNumberOfMisses()
+	{
+		mLock.lock();
+		try
+		{
+			return mNumberOfMisses;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of volumes allocated by this manager.
+	 *
+	 * @return number of allocations
+	 */
+	public long getNumberOfAllocations()
+	{
+		mLock.lock();
+		try
+		{
+			return mNumberOfAllocations;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of pooled volumes that have been freed.
+	 *
+	 * @return number of evictions
+	 */
+	public long getNumberOfEvictions()
+	{
+		mLock.lock();
+		try
+		{
+			return mNumberOfEvictions;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of all volumes handed out or pooled by this
+	 * manager.
+	 *
+	 * @return resident bytes
+	 */
+	public long getResidentBytes()
+	{
+		mLock.lock();
+		try
+		{
+			return getResidentBytesInternal();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of currently pooled volumes.
+	 *
+	 * @return number of pooled volumes
+	 */
+	public int getNumberOfAvailableVolumes()
+	{
+		mLock.lock();
+		try
+		{
+			return mAvailableVolumesList.size();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public long getMaxResidentBytes()
+	{
+		return mMaxResidentBytes;
+	}
+
 	@Override
 	public void close()
 	{
-		for (final SoftReference<Volume> lVolumeSoftReference : mAvailableVolumesQueue)
+		mLock.lock();
+		try
+		{
+			while (!mAvailableVolumesList.isEmpty())
+				evict(mAvailableVolumesList.getFirst());
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"VolumeManager [hits=%d, misses=%d, allocations=%d, evictions=%d, available=%d, residentbytes=%d, maxresidentbytes=%d]",
+													getNumberOfHits(),
+													getNumberOfMisses(),
+													getNumberOfAllocations(),
+													getNumberOfEvictions(),
+													getNumberOfAvailableVolumes(),
+													getResidentBytes(),
+													mMaxResidentBytes);
+	}
+
+	private static final class SizeClass
+	{
+		private final NativeTypeEnum mType;
+		private final long[] mDimensions;
+
+		private SizeClass(NativeTypeEnum pType, long[] pDimensions)
+		{
+			mType = pType;
+			mDimensions = pDimensions == null	? new long[0]
+																				: Arrays.copyOf(pDimensions,
+																												pDimensions.length);
+		}
+
+		private static SizeClass of(Volume pVolume)
+		{
+			return new SizeClass(	pVolume.getNativeType(),
+														pVolume.getDimensionsInVoxels());
+		}
+
+		private long getSizeInBytes()
+		{
+			long lSizeInBytes = Size.of(mType);
+			for (final long lDimension : mDimensions)
+				lSizeInBytes *= lDimension;
+			return lSizeInBytes;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * (mType == null ? 0 : mType.hashCode()) + Arrays.hashCode(mDimensions);
+		}
+
+		@Override
+		public boolean equals(Object pObject)
 		{
-			final Volume lVolume = lVolumeSoftReference.get();
-			if (lVolume != null)
-				lVolume.close();
+			if (!(pObject instanceof SizeClass))
+				return false;
+			final SizeClass lSizeClass = (SizeClass) pObject;
+			return mType == lSizeClass.mType && Arrays.equals(mDimensions,
+																												lSizeClass.mDimensions);
 		}
-		mAvailableVolumesQueue.clear();
 	}
 
 }
@@ -1,9 +1,9 @@
 package clearvolume.volume.sink;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import clearvolume.network.ringbuffer.RingBuffer;
+import clearvolume.network.ringbuffer.RingBufferWaitStrategy;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 
@@ -13,7 +13,7 @@ public class AsynchronousVolumeSinkAdapter implements
 
 	private final VolumeSinkInterface mDelegatedVolumeSink;
 
-	private final BlockingQueue<Volume> mVolumeQueue;
+	private final RingBuffer<Volume> mVolumeQueue;
 	private final long mTimeOut;
 	private final TimeUnit mTimeUnit;
 
@@ -24,12 +24,40 @@ public class AsynchronousVolumeSinkAdapter implements
 																				int pMaxCapacity,
 																				long pTimeOut,
 																				TimeUnit pTimeUnit)
+	{
+		this(	pDelegatedVolumeSink,
+					pMaxCapacity,
+					pTimeOut,
+					pTimeUnit,
+					RingBufferWaitStrategy.Park);
+	}
+
+	/**
+	 * Constructs an asynchronous adapter with a given wait strategy for the
+	 * thread forwarding volumes and for producers facing a full queue.
+	 *
+	 * @param pDelegatedVolumeSink
+	 *          sink to forward volumes to
+	 * @param pMaxCapacity
+	 *          queue capacity, rounded up to a power of two
+	 * @param pTimeOut
+	 *          how long sendVolume waits for room before giving up on a volume
+	 * @param pTimeUnit
+	 *          time out unit
+	 * @param pWaitStrategy
+	 *          wait strategy
+	 */
+	public AsynchronousVolumeSinkAdapter(	VolumeSinkInterface pDelegatedVolumeSink,
+																				int pMaxCapacity,
+																				long pTimeOut,
+																				TimeUnit pTimeUnit,
+																				RingBufferWaitStrategy pWaitStrategy)
 	{
 		super();
 		mDelegatedVolumeSink = pDelegatedVolumeSink;
 		mTimeOut = pTimeOut;
 		mTimeUnit = pTimeUnit;
-		mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
+		mVolumeQueue = new RingBuffer<Volume>(pMaxCapacity, pWaitStrategy);
 	}
 
 	@Override
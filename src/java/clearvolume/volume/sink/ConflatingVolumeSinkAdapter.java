@@ -0,0 +1,186 @@
+package clearvolume.volume.sink;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+
+/**
+ * Asynchronous adapter for live display: instead of queuing volumes, it keeps
+ * only the newest volume of each channel. A volume superseded before being
+ * forwarded goes straight back to its volume manager, and the forwarding thread
+ * is woken up as soon as a volume arrives. When the delegated sink is slower
+ * than the source, the display is at most one volume behind per channel
+ * whatever the input rate.
+ *
+ * Once stopped, volumes that were not forwarded, and volumes sent afterwards,
+ * are handed back to their volume manager.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class ConflatingVolumeSinkAdapter implements VolumeSinkInterface
+{
+	private static final long cParkTimeOutInNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final VolumeSinkInterface mDelegatedVolumeSink;
+
+	private final ConcurrentHashMap<Integer, AtomicReference<Volume>> mChannelToLatestVolumeMap = new ConcurrentHashMap<>();
+	private final AtomicLong mNumberOfForwardedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfConflatedVolumes = new AtomicLong();
+
+	private volatile Thread mThread;
+	private volatile boolean mStopSignal;
+	private volatile boolean mStoppedSignal;
+
+	public ConflatingVolumeSinkAdapter(VolumeSinkInterface pDelegatedVolumeSink)
+	{
+		super();
+		mDelegatedVolumeSink = pDelegatedVolumeSink;
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		final int lChannelID = pVolume.getChannelID();
+		AtomicReference<Volume> lLatestVolume = mChannelToLatestVolumeMap.get(lChannelID);
+		if (lLatestVolume == null)
+		{
+			final AtomicReference<Volume> lNewReference = new AtomicReference<>();
+			lLatestVolume = mChannelToLatestVolumeMap.putIfAbsent(lChannelID,
+																														lNewReference);
+			if (lLatestVolume == null)
+				lLatestVolume = lNewReference;
+		}
+
+		final Volume lSupersededVolume = lLatestVolume.getAndSet(pVolume);
+		if (lSupersededVolume != null)
+		{
+			mNumberOfConflatedVolumes.incrementAndGet();
+			lSupersededVolume.makeAvailableToManager();
+		}
+
+		// the forwarding thread may have drained the slots before this volume
+		// arrived, whoever takes it back first hands it back:
+		if (mStopSignal)
+		{
+			releaseLatestVolume(lLatestVolume);
+			return;
+		}
+
+		final Thread lThread = mThread;
+		if (lThread != null)
+			LockSupport.unpark(lThread);
+	}
+
+	public boolean start()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				while (!mStopSignal)
+				{
+					try
+					{
+						if (!forwardLatestVolumes())
+							LockSupport.parkNanos(cParkTimeOutInNanos);
+					}
+					catch (final Throwable e)
+					{
+						e.printStackTrace();
+					}
+				}
+				releaseLatestVolumes();
+				mStoppedSignal = true;
+			}
+		};
+
+		final Thread lThread = new Thread(lRunnable,
+																			this.getClass().getSimpleName());
+		lThread.setDaemon(true);
+		mThread = lThread;
+		lThread.start();
+		return true;
+	}
+
+	private boolean forwardLatestVolumes()
+	{
+		boolean lForwarded = false;
+		for (final AtomicReference<Volume> lLatestVolume : mChannelToLatestVolumeMap.values())
+		{
+			if (mStopSignal)
+				break;
+			final Volume lVolume = lLatestVolume.getAndSet(null);
+			if (lVolume != null)
+			{
+				mDelegatedVolumeSink.sendVolume(lVolume);
+				mNumberOfForwardedVolumes.incrementAndGet();
+				lForwarded = true;
+			}
+		}
+		return lForwarded;
+	}
+
+	private void releaseLatestVolumes()
+	{
+		for (final AtomicReference<Volume> lLatestVolume : mChannelToLatestVolumeMap.values())
+			releaseLatestVolume(lLatestVolume);
+	}
+
+	private static void releaseLatestVolume(AtomicReference<Volume> pLatestVolume)
+	{
+		final Volume lVolume = pLatestVolume.getAndSet(null);
+		if (lVolume != null)
+			lVolume.makeAvailableToManager();
+	}
+
+	public boolean stop()
+	{
+		mStopSignal = true;
+		final Thread lThread = mThread;
+		if (lThread != null)
+			LockSupport.unpark(lThread);
+		else
+			releaseLatestVolumes();
+		return true;
+	}
+
+	public boolean waitForStop()
+	{
+		while (!mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return true;
+	}
+
+	public long getNumberOfForwardedVolumes()
+	{
+		return mNumberOfForwardedVolumes.get();
+	}
+
+	public long getNumberOfConflatedVolumes()
+	{
+		return mNumberOfConflatedVolumes.get();
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		return mDelegatedVolumeSink.getManager();
+	}
+}
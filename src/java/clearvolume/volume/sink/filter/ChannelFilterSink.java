@@ -35,7 +35,6 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 	private final ConcurrentHashMap<Integer, Volume> mChanneltoVolumeMap = new ConcurrentHashMap<>();
 
 	private final VolumeManager mEmptyVolumeManager = new VolumeManager(2);
-	private final VolumeSinkInterface mVolumeSinkForFilteredVolumes = new NullVolumeSink();;
 
 	AbstractListModel<String> mChannelListModel = new AbstractListModel<String>()
 	{
@@ -126,10 +125,13 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 			final int lChannelID = pVolume.getChannelID();
 			final String lChannelName = pVolume.getChannelName();
 
-			if (mChanneltoVolumeMap.get(lChannelID) != null)
-				if (mVolumeSinkForFilteredVolumes != null)
-					mVolumeSinkForFilteredVolumes.sendVolume(mChanneltoVolumeMap.get(lChannelID));
-			mChanneltoVolumeMap.put(lChannelID, pVolume);
+			// the last volume of each channel is kept to be sent again when the
+			// channel is reactivated, the hold of the sender is kept for that and
+			// released once the volume is superseded:
+			final Volume lSupersededVolume = mChanneltoVolumeMap.put(	lChannelID,
+																																pVolume);
+			if (lSupersededVolume != null)
+				lSupersededVolume.makeAvailableToManager();
 
 			if (!mSeenChannelList.contains(lChannelID))
 			{
@@ -165,16 +167,22 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 		synchronized (mLock)
 		{
 			final Volume lVolume = mChanneltoVolumeMap.get(lChannelID);
+			if (lVolume == null)
+				return;
+
 			final Boolean lBoolean = mActiveChannelMap.get(lChannelID);
 			if (lBoolean != null && lBoolean)
 			{
-				forward(lVolume);
+				// downstream sinks get their own hold:
+				forward(lVolume.retain());
 			}
 			else
 			{
 				final Volume lEmptyVolume = mEmptyVolumeManager.requestAndWaitForVolumeLike(1,
 																																										TimeUnit.MILLISECONDS,
 																																										lVolume);
+				if (lEmptyVolume == null)
+					return;
 				lEmptyVolume.copyMetaDataFrom(lVolume);
 				forward(lEmptyVolume);
 			}
@@ -194,6 +202,8 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 	{
 		if (getRelaySink() != null)
 			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
 	}
 
 	public ListModel<String> getChannelListModel()
@@ -209,6 +219,9 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 			mSeenChannelIdToNameMap.clear();
 			mSeenChannelList.clear();
 			mActiveChannelMap.clear();
+			for (final Volume lVolume : mChanneltoVolumeMap.values())
+				lVolume.makeAvailableToManager();
+			mChanneltoVolumeMap.clear();
 			mEmptyVolumeManager.close();
 		}
 	}
@@ -0,0 +1,102 @@
+package clearvolume.volume.sink.filter.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.filter.ChannelFilterSink;
+import clearvolume.volume.sink.renderer.ClearVolumeRendererSink;
+import coremem.types.NativeTypeEnum;
+
+public class ChannelFilterSinkTests
+{
+
+	@Test
+	public void testReactivationAfterDownstreamRelease() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+		final HeadlessCPUVolumeRenderer lRenderer = new HeadlessCPUVolumeRenderer("test",
+																																							32,
+																																							32,
+																																							NativeTypeEnum.UnsignedByte,
+																																							2);
+		final ClearVolumeRendererSink lClearVolumeRendererSink = new ClearVolumeRendererSink(	lRenderer,
+																																													lVolumeManager,
+																																													1,
+																																													TimeUnit.SECONDS);
+		lClearVolumeRendererSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		final ChannelFilterSink lChannelFilterSink = new ChannelFilterSink(lClearVolumeRendererSink);
+
+		final Volume lVolume0 = newVolume(lVolumeManager, 0, 0);
+		final Volume lVolume1 = newVolume(lVolumeManager, 1, 0);
+		lChannelFilterSink.sendVolume(lVolume0);
+		lChannelFilterSink.sendVolume(lVolume1);
+		waitForUploads(lClearVolumeRendererSink, 2);
+
+		// downstream sinks released their hold, the filter keeps its own:
+		assertEquals(1, lVolume0.getNumberOfHolders());
+		assertEquals(1, lVolume1.getNumberOfHolders());
+
+		// deactivating channel 0 sends an empty volume, reactivating it sends the
+		// kept volume again, still intact:
+		lChannelFilterSink.setActiveChannels(new int[]
+		{ 1 });
+		waitForUploads(lClearVolumeRendererSink, 3);
+		lChannelFilterSink.setActiveChannels(new int[]
+		{ 0, 1 });
+		waitForUploads(lClearVolumeRendererSink, 4);
+		assertEquals(1, lVolume0.getNumberOfHolders());
+		assertEquals(0, lVolume0.getTimeIndex());
+		assertEquals(0, lVolume0.getChannelID());
+		assertEquals(7, lVolume0.getDataBuffer().get(0));
+
+		// a new volume of channel 0 supersedes the kept one, which is released:
+		final Volume lNextVolume0 = newVolume(lVolumeManager, 0, 1);
+		lChannelFilterSink.sendVolume(lNextVolume0);
+		waitForUploads(lClearVolumeRendererSink, 5);
+		assertEquals(0, lVolume0.getNumberOfHolders());
+		assertEquals(1, lNextVolume0.getNumberOfHolders());
+
+		// closing releases the kept volumes:
+		lChannelFilterSink.close();
+		assertEquals(0, lNextVolume0.getNumberOfHolders());
+		assertEquals(0, lVolume1.getNumberOfHolders());
+
+		lClearVolumeRendererSink.close();
+	}
+
+	private static Volume newVolume(VolumeManager pVolumeManager,
+																	int pChannelID,
+																	long pTimeIndex)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(1,
+																																	TimeUnit.SECONDS,
+																																	NativeTypeEnum.UnsignedByte,
+																																	1,
+																																	16,
+																																	16,
+																																	16);
+		lVolume.setChannelID(pChannelID);
+		lVolume.setTimeIndex(pTimeIndex);
+		lVolume.getDataBuffer().put(0, (byte) 7);
+		return lVolume;
+	}
+
+	private static void waitForUploads(	ClearVolumeRendererSink pClearVolumeRendererSink,
+																			long pNumberOfUploadedVolumes) throws InterruptedException
+	{
+		final long lDeadline = System.currentTimeMillis() + 10000;
+		while (pClearVolumeRendererSink.getNumberOfUploadedVolumes() < pNumberOfUploadedVolumes
+						&& System.currentTimeMillis() < lDeadline)
+			Thread.sleep(1);
+		assertEquals(	pNumberOfUploadedVolumes,
+									pClearVolumeRendererSink.getNumberOfUploadedVolumes());
+	}
+
+}
@@ -2,9 +2,11 @@ package clearvolume.volume.sink.renderer;
 
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearvolume.ClearVolumeCloseable;
 import clearvolume.exceptions.ClearVolumeException;
+import clearvolume.network.ringbuffer.RingBuffer;
 import clearvolume.renderer.ClearVolumeRendererInterface;
 import clearvolume.renderer.factory.ClearVolumeRendererFactory;
 import clearvolume.transferf.TransferFunction;
@@ -35,6 +37,18 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 
 	private final TreeMap<Integer, String> mSeenChannelIdToNameMap = new TreeMap<Integer, String>();
 
+	// one volume staged while the previous one is uploaded and rendered:
+	private final RingBuffer<Volume> mStagedVolumes = new RingBuffer<Volume>(1);
+	// per render layer, the last volume whose copy was not confirmed in time:
+	private final TreeMap<Integer, Volume> mPendingVolumes = new TreeMap<Integer, Volume>();
+	private volatile boolean mPipelined = true;
+	private volatile boolean mStopUploadSignal;
+	private Thread mUploadThread;
+
+	private final AtomicLong mNumberOfUploadedVolumes = new AtomicLong();
+	private final AtomicLong mUploadNs = new AtomicLong();
+	private final AtomicLong mStagingWaitNs = new AtomicLong();
+
 	public ClearVolumeRendererSink(	ClearVolumeRendererInterface pClearVolumeRendererInterface,
 																	VolumeManager pVolumeManager,
 																	long pWaitForCopyTimeout,
@@ -69,9 +83,79 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 		createRenderer(pNativeTypeEnum, pNumberOfLayers);
 	}
 
+	/**
+	 * Hands a volume over for upload and display. When pipelined, this returns as
+	 * soon as the volume is staged, so that the caller can receive the next
+	 * volume while this one is uploaded and rendered. It only blocks if the
+	 * previously staged volume has not been picked up yet.
+	 *
+	 * @param pVolume
+	 *          volume
+	 */
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
+		if (!mPipelined)
+		{
+			uploadVolume(pVolume);
+			return;
+		}
+
+		ensureUploadThreadStarted();
+		final long lStartNs = System.nanoTime();
+		try
+		{
+			mStagedVolumes.put(pVolume);
+		}
+		catch (final InterruptedException e)
+		{
+			// the volume is dropped, the caller decides what to do with the
+			// interruption:
+			pVolume.makeAvailableToManager();
+			Thread.currentThread().interrupt();
+			return;
+		}
+		mStagingWaitNs.addAndGet(System.nanoTime() - lStartNs);
+	}
+
+	private void ensureUploadThreadStarted()
+	{
+		synchronized (mStagedVolumes)
+		{
+			if (mUploadThread != null)
+				return;
+
+			final Runnable lRunnable = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					while (!mStopUploadSignal)
+					{
+						try
+						{
+							final Volume lVolume = mStagedVolumes.poll(	10,
+																												TimeUnit.MILLISECONDS);
+							if (lVolume != null)
+								uploadVolume(lVolume);
+						}
+						catch (final Throwable e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+			};
+			mUploadThread = new Thread(	lRunnable,
+																	this.getClass().getSimpleName() + "Upload");
+			mUploadThread.setDaemon(true);
+			mUploadThread.start();
+		}
+	}
+
+	private void uploadVolume(Volume pVolume)
+	{
+		final long lStartNs = System.nanoTime();
 		final long lTimePointIndex = pVolume.getTimeIndex();
 		final int lChannelID = pVolume.getChannelID();
 		final String lChannelName = pVolume.getChannelName();
@@ -111,13 +195,43 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 			lTransferFunction = TransferFunctions.getGradientForColor(lRenderLayer);
 
 		mClearVolumeRendererInterface.setTransferFunction(lTransferFunction);
-		mClearVolumeRendererInterface.setVolumeDataBuffer(lRenderLayer,
-																											pVolume);
+		// hands the buffer over without waiting, the copy happens on the next
+		// display:
+		boolean lCopied = mClearVolumeRendererInterface.setVolumeDataBuffer(0,
+																																				TimeUnit.SECONDS,
+																																				lRenderLayer,
+																																				pVolume.getDataBuffer(),
+																																				pVolume.getWidthInVoxels(),
+																																				pVolume.getHeightInVoxels(),
+																																				pVolume.getDepthInVoxels(),
+																																				pVolume.getVoxelWidthInRealUnits(),
+																																				pVolume.getVoxelHeightInRealUnits(),
+																																				pVolume.getVoxelDepthInRealUnits());
+
+		// a volume of this layer whose copy was never confirmed is superseded,
+		// the renderer no longer reads from it:
+		releasePendingVolume(lRenderLayer);
 
 		mClearVolumeRendererInterface.requestDisplay();
 
-		mClearVolumeRendererInterface.waitToFinishAllDataBufferCopy(mWaitForCopyTimeout,
-																																mTimeUnit);
+		if (!lCopied)
+			lCopied = mClearVolumeRendererInterface.waitToFinishDataBufferCopy(	lRenderLayer,
+																																					mWaitForCopyTimeout,
+																																					mTimeUnit);
+
+		mUploadNs.addAndGet(System.nanoTime() - lStartNs);
+		mNumberOfUploadedVolumes.incrementAndGet();
+
+		if (!lCopied)
+		{
+			// the renderer may still read from the volume, it is kept until it is
+			// superseded or the renderer is closed:
+			synchronized (mPendingVolumes)
+			{
+				mPendingVolumes.put(lRenderLayer, pVolume);
+			}
+			return;
+		}
 
 		if (getRelaySink() != null)
 			getRelaySink().sendVolume(pVolume);
@@ -126,6 +240,99 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 
 	}
 
+	private void releasePendingVolume(int pRenderLayer)
+	{
+		final Volume lPendingVolume;
+		synchronized (mPendingVolumes)
+		{
+			lPendingVolume = mPendingVolumes.remove(pRenderLayer);
+		}
+		if (lPendingVolume != null)
+			lPendingVolume.makeAvailableToManager();
+	}
+
+	private void releasePendingVolumes()
+	{
+		synchronized (mPendingVolumes)
+		{
+			for (final Volume lPendingVolume : mPendingVolumes.values())
+				lPendingVolume.makeAvailableToManager();
+			mPendingVolumes.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of volumes handed to the renderer whose copy has not
+	 * been confirmed within the time out. They are held back until a later
+	 * volume of the same layer supersedes them.
+	 *
+	 * @return number of pending volumes
+	 */
+	public int getNumberOfPendingVolumes()
+	{
+		synchronized (mPendingVolumes)
+		{
+			return mPendingVolumes.size();
+		}
+	}
+
+	/**
+	 * Sets whether volumes are staged and uploaded on a separate thread, on by
+	 * default. Otherwise sendVolume blocks until the volume is copied by the
+	 * renderer. To be set before the first volume is sent.
+	 *
+	 * @param pPipelined
+	 *          true for pipelined upload
+	 */
+	public void setPipelined(boolean pPipelined)
+	{
+		mPipelined = pPipelined;
+	}
+
+	public boolean isPipelined()
+	{
+		return mPipelined;
+	}
+
+	public long getNumberOfUploadedVolumes()
+	{
+		return mNumberOfUploadedVolumes.get();
+	}
+
+	/**
+	 * Returns the fraction of the upload and render time that was hidden from
+	 * the sender, 1 meaning that the sender never waited for an upload and 0
+	 * that it waited as long as without pipelining.
+	 *
+	 * @return upload overlap between 0 and 1
+	 */
+	public double getUploadOverlap()
+	{
+		final long lUploadNs = mUploadNs.get();
+		if (lUploadNs == 0)
+			return 0;
+		return Math.max(0, 1 - (double) mStagingWaitNs.get() / lUploadNs);
+	}
+
+	/**
+	 * Returns a one line report on the upload pipeline.
+	 *
+	 * @return report
+	 */
+	public String getUploadReport()
+	{
+		final long lNumberOfUploadedVolumes = mNumberOfUploadedVolumes.get();
+		return String.format(	"uploaded %d volumes, %.3f ms upload per volume, %.3f ms sender wait per volume, overlap %.1f%%",
+													lNumberOfUploadedVolumes,
+													lNumberOfUploadedVolumes == 0	? 0
+																												: 1e-6 * mUploadNs.get()
+																														/ lNumberOfUploadedVolumes,
+													lNumberOfUploadedVolumes == 0	? 0
+																												: 1e-6 * mStagingWaitNs.get()
+																														/ lNumberOfUploadedVolumes,
+													100 * getUploadOverlap());
+	}
+
 	private void createRenderer(NativeTypeEnum pNativeTypeEnum,
 															int pNumberOfLayers)
 	{
@@ -138,6 +345,7 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 		catch (final Throwable e)
 		{
 		}
+		releasePendingVolumes();
 
 		mClearVolumeRendererInterface = ClearVolumeRendererFactory.newBestRenderer(	mRequestedWindowTitle,
 																																								mRequestedWindowWidth,
@@ -201,8 +409,24 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 	@Override
 	public void close() throws ClearVolumeException
 	{
+		mStopUploadSignal = true;
+		synchronized (mStagedVolumes)
+		{
+			if (mUploadThread != null)
+				try
+				{
+					mUploadThread.join();
+				}
+				catch (final InterruptedException e)
+				{
+				}
+		}
+		Volume lStagedVolume;
+		while ((lStagedVolume = mStagedVolumes.poll()) != null)
+			lStagedVolume.makeAvailableToManager();
 		if (mClearVolumeRendererInterface != null)
 			mClearVolumeRendererInterface.close();
+		releasePendingVolumes();
 	}
 
 	public ClearVolumeRendererInterface getClearVolumeRenderer()
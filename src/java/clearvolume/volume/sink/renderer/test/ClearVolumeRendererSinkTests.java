@@ -0,0 +1,63 @@
+package clearvolume.volume.sink.renderer.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.renderer.cpu.HeadlessCPUVolumeRenderer;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.renderer.ClearVolumeRendererSink;
+
+import coremem.types.NativeTypeEnum;
+
+public class ClearVolumeRendererSinkTests
+{
+
+	@Test
+	public void testPipelinedUpload() throws InterruptedException
+	{
+		final int lNumberOfVolumes = 20;
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+		final ClearVolumeRendererSink lClearVolumeRendererSink = new ClearVolumeRendererSink(	new HeadlessCPUVolumeRenderer(	64,
+																																																											64),
+																																													lVolumeManager,
+																																													1,
+																																													TimeUnit.SECONDS);
+
+		for (int i = 0; i < lNumberOfVolumes; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																		TimeUnit.SECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		32,
+																																		32,
+																																		32);
+			lVolume.setTimeIndex(i);
+			lClearVolumeRendererSink.sendVolume(lVolume);
+
+			// stands for receiving the next volume from the network:
+			Thread.sleep(5);
+		}
+
+		while (lClearVolumeRendererSink.getNumberOfUploadedVolumes() < lNumberOfVolumes)
+			Thread.sleep(1);
+
+		// uploads happened while the sender was busy receiving:
+		assertEquals(	lNumberOfVolumes,
+									lClearVolumeRendererSink.getNumberOfUploadedVolumes());
+		assertTrue(lClearVolumeRendererSink.getUploadReport(),
+								lClearVolumeRendererSink.getUploadOverlap() > 0.5);
+
+		// all copies were confirmed, the volumes went back to the manager:
+		assertEquals(0, lClearVolumeRendererSink.getNumberOfPendingVolumes());
+		assertTrue(lVolumeManager.getNumberOfAvailableVolumes() > 0);
+
+		lClearVolumeRendererSink.close();
+	}
+
+}
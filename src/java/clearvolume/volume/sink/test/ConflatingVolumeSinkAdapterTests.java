@@ -0,0 +1,171 @@
+package clearvolume.volume.sink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.ConflatingVolumeSinkAdapter;
+import clearvolume.volume.sink.VolumeSinkInterface;
+import coremem.types.NativeTypeEnum;
+
+public class ConflatingVolumeSinkAdapterTests
+{
+
+	@Test
+	public void testSlowSink() throws InterruptedException
+	{
+		final int lNumberOfTimePoints = 100;
+		final VolumeManager lVolumeManager = new VolumeManager(20);
+		final AtomicLongArray lLastTimeIndexPerChannel = new AtomicLongArray(2);
+
+		// this sink takes much longer than the source to handle a volume:
+		final VolumeSinkInterface lSlowVolumeSink = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				try
+				{
+					Thread.sleep(5);
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				lLastTimeIndexPerChannel.set(	pVolume.getChannelID(),
+																			pVolume.getTimeIndex());
+				pVolume.makeAvailableToManager();
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		final ConflatingVolumeSinkAdapter lConflatingVolumeSinkAdapter = new ConflatingVolumeSinkAdapter(lSlowVolumeSink);
+		assertTrue(lConflatingVolumeSinkAdapter.start());
+
+		for (int i = 0; i < lNumberOfTimePoints; i++)
+			for (int c = 0; c < 2; c++)
+			{
+				final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																			TimeUnit.SECONDS,
+																																			NativeTypeEnum.UnsignedByte,
+																																			1,
+																																			16,
+																																			16,
+																																			16);
+				lVolume.setTimeIndex(i);
+				lVolume.setChannelID(c);
+				lConflatingVolumeSinkAdapter.sendVolume(lVolume);
+			}
+
+		while (lConflatingVolumeSinkAdapter.getNumberOfForwardedVolumes() + lConflatingVolumeSinkAdapter.getNumberOfConflatedVolumes() < 2 * lNumberOfTimePoints)
+			Thread.sleep(1);
+		Thread.sleep(20);
+
+		// the newest volume of each channel always makes it through:
+		assertEquals(lNumberOfTimePoints - 1, lLastTimeIndexPerChannel.get(0));
+		assertEquals(lNumberOfTimePoints - 1, lLastTimeIndexPerChannel.get(1));
+		assertTrue(lConflatingVolumeSinkAdapter.getNumberOfConflatedVolumes() > 0);
+
+		// superseded volumes are recycled right away:
+		assertTrue(lVolumeManager.getNumberOfAllocations() < 20);
+
+		assertTrue(lConflatingVolumeSinkAdapter.stop());
+		assertTrue(lConflatingVolumeSinkAdapter.waitForStop());
+	}
+
+	@Test
+	public void testStopReleasesPendingVolumes() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(20);
+		final ArrayList<Volume> lForwardedVolumes = new ArrayList<Volume>();
+		final CountDownLatch lSinkEntered = new CountDownLatch(1);
+		final CountDownLatch lSinkReleased = new CountDownLatch(1);
+
+		// this sink blocks on the first volume until told otherwise:
+		final VolumeSinkInterface lBlockingVolumeSink = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				synchronized (lForwardedVolumes)
+				{
+					lForwardedVolumes.add(pVolume);
+				}
+				lSinkEntered.countDown();
+				try
+				{
+					lSinkReleased.await();
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				pVolume.makeAvailableToManager();
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		final ConflatingVolumeSinkAdapter lConflatingVolumeSinkAdapter = new ConflatingVolumeSinkAdapter(lBlockingVolumeSink);
+		assertTrue(lConflatingVolumeSinkAdapter.start());
+
+		final Volume lForwardedVolume = requestVolume(lVolumeManager, 0);
+		lConflatingVolumeSinkAdapter.sendVolume(lForwardedVolume);
+		assertTrue(lSinkEntered.await(10, TimeUnit.SECONDS));
+
+		// these wait in their slots while the sink is busy:
+		final Volume lPendingVolume0 = requestVolume(lVolumeManager, 0);
+		final Volume lPendingVolume1 = requestVolume(lVolumeManager, 1);
+		lConflatingVolumeSinkAdapter.sendVolume(lPendingVolume0);
+		lConflatingVolumeSinkAdapter.sendVolume(lPendingVolume1);
+
+		assertTrue(lConflatingVolumeSinkAdapter.stop());
+		lSinkReleased.countDown();
+		assertTrue(lConflatingVolumeSinkAdapter.waitForStop());
+
+		// pending volumes are handed back instead of being forwarded:
+		assertEquals(1, lForwardedVolumes.size());
+		assertSame(lForwardedVolume, lForwardedVolumes.get(0));
+		assertEquals(0, lPendingVolume0.getNumberOfHolders());
+		assertEquals(0, lPendingVolume1.getNumberOfHolders());
+		assertEquals(3, lVolumeManager.getNumberOfAvailableVolumes());
+
+		// volumes sent after stopping are handed back right away:
+		final Volume lLateVolume = requestVolume(lVolumeManager, 2);
+		lConflatingVolumeSinkAdapter.sendVolume(lLateVolume);
+		assertEquals(0, lLateVolume.getNumberOfHolders());
+		assertEquals(1, lForwardedVolumes.size());
+		assertEquals(3, lVolumeManager.getNumberOfAvailableVolumes());
+	}
+
+	private static Volume requestVolume(VolumeManager pVolumeManager,
+																			int pChannelID)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(1,
+																																	TimeUnit.SECONDS,
+																																	NativeTypeEnum.UnsignedByte,
+																																	1,
+																																	16,
+																																	16,
+																																	16);
+		lVolume.setChannelID(pChannelID);
+		return lVolume;
+	}
+
+}
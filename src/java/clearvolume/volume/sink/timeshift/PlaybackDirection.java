@@ -0,0 +1,24 @@
+package clearvolume.volume.sink.timeshift;
+
+/**
+ * Direction in which the time shifting playback moves through time points.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public enum PlaybackDirection
+{
+	Forward(1), Backward(-1);
+
+	private final int mStep;
+
+	private PlaybackDirection(int pStep)
+	{
+		mStep = pStep;
+	}
+
+	public int getStep()
+	{
+		return mStep;
+	}
+}
@@ -0,0 +1,218 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.ClearVolumeCloseable;
+
+/**
+ * Replays the time points held by a time shifting sink at a steady frame rate,
+ * forward or backward, optionally looping over everything still available in
+ * memory or on disk. While the current time point is shown, the following ones
+ * are prefetched in the background so that each frame is ready when its turn
+ * comes. Incoming volumes keep being recorded but are not forwarded while the
+ * playback runs.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class TimeShiftingPlayback implements ClearVolumeCloseable
+{
+	public static final double cDefaultFrameRate = 10;
+
+	private final TimeShiftingSink mTimeShiftingSink;
+	private final ScheduledExecutorService mScheduledExecutorService;
+
+	private final Object mLock = new Object();
+	private ScheduledFuture<?> mScheduledFuture;
+	private volatile double mFrameRate = cDefaultFrameRate;
+	private volatile PlaybackDirection mPlaybackDirection = PlaybackDirection.Forward;
+	private volatile boolean mLooping = true;
+	private volatile long mTimePoint;
+	private volatile long mNumberOfFramesShown;
+	private boolean mWasPlaying;
+
+	/**
+	 * Constructs a playback engine for a given sink. Use
+	 * TimeShiftingSink.getPlayback() so that seeking through the sink moves the
+	 * playback too.
+	 *
+	 * @param pTimeShiftingSink
+	 *          time shifting sink
+	 */
+	TimeShiftingPlayback(TimeShiftingSink pTimeShiftingSink)
+	{
+		super();
+		mTimeShiftingSink = pTimeShiftingSink;
+		mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable pRunnable)
+			{
+				final Thread lThread = new Thread(pRunnable,
+																					"TimeShiftingPlayback");
+				lThread.setDaemon(true);
+				return lThread;
+			}
+		});
+	}
+
+	/**
+	 * Starts playing back from the time point currently shown. Does nothing if
+	 * already running.
+	 */
+	public void start()
+	{
+		synchronized (mLock)
+		{
+			if (mScheduledFuture != null)
+				return;
+
+			mWasPlaying = mTimeShiftingSink.isPlaying();
+			mTimeShiftingSink.pause();
+			mTimePoint = mTimeShiftingSink.getNumberOfTimepoints() + mTimeShiftingSink.getTimeShift();
+
+			final Runnable lRunnable = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						step();
+					}
+					catch (final Throwable e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			final long lPeriodInNanos = Math.max(1,
+																						Math.round(1e9 / mFrameRate));
+			mScheduledFuture = mScheduledExecutorService.scheduleAtFixedRate(	lRunnable,
+																																				0,
+																																				lPeriodInNanos,
+																																				TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stops playing back. The last time point shown stays, and the sink goes
+	 * back to forwarding incoming volumes if it did so before start().
+	 */
+	public void stop()
+	{
+		synchronized (mLock)
+		{
+			if (mScheduledFuture == null)
+				return;
+			mScheduledFuture.cancel(false);
+			mScheduledFuture = null;
+			mTimeShiftingSink.clearPrefetchWindow();
+			if (mWasPlaying)
+				mTimeShiftingSink.play();
+		}
+	}
+
+	public boolean isRunning()
+	{
+		synchronized (mLock)
+		{
+			return mScheduledFuture != null;
+		}
+	}
+
+	/**
+	 * Moves the playback to a given time point, the next frame is shown from
+	 * there.
+	 *
+	 * @param pTimePoint
+	 *          time point
+	 */
+	public void seek(long pTimePoint)
+	{
+		mTimePoint = pTimePoint - mPlaybackDirection.getStep();
+	}
+
+	/**
+	 * Sets the frame rate, takes effect at the next start().
+	 *
+	 * @param pFrameRate
+	 *          time points shown per second
+	 */
+	public void setFrameRate(double pFrameRate)
+	{
+		mFrameRate = pFrameRate;
+	}
+
+	public double getFrameRate()
+	{
+		return mFrameRate;
+	}
+
+	public void setDirection(PlaybackDirection pPlaybackDirection)
+	{
+		mPlaybackDirection = pPlaybackDirection;
+	}
+
+	public PlaybackDirection getDirection()
+	{
+		return mPlaybackDirection;
+	}
+
+	/**
+	 * Sets whether playback wraps around at the ends of the available time
+	 * points, otherwise it holds the last frame.
+	 *
+	 * @param pLooping
+	 *          true for looped replay
+	 */
+	public void setLooping(boolean pLooping)
+	{
+		mLooping = pLooping;
+	}
+
+	public boolean isLooping()
+	{
+		return mLooping;
+	}
+
+	public long getTimePoint()
+	{
+		return mTimePoint;
+	}
+
+	public long getNumberOfFramesShown()
+	{
+		return mNumberOfFramesShown;
+	}
+
+	private void step()
+	{
+		final int lStep = mPlaybackDirection.getStep();
+		final long lOldest = mTimeShiftingSink.getOldestTimePoint();
+		final long lNewest = mTimeShiftingSink.getNumberOfTimepoints();
+
+		long lTimePoint = mTimePoint + lStep;
+		if (lTimePoint > lNewest)
+			lTimePoint = mLooping ? lOldest : lNewest;
+		else if (lTimePoint < lOldest)
+			lTimePoint = mLooping ? lNewest : lOldest;
+		mTimePoint = lTimePoint;
+
+		mTimeShiftingSink.showTimePoint(lTimePoint);
+		mTimeShiftingSink.prefetch(lTimePoint, lStep);
+		mNumberOfFramesShown++;
+	}
+
+	@Override
+	public void close()
+	{
+		stop();
+		mScheduledExecutorService.shutdown();
+	}
+
+}
@@ -1,14 +1,17 @@
 package clearvolume.volume.sink.timeshift;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
@@ -18,32 +21,103 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 																											RelaySinkInterface,
 																											ClearVolumeCloseable
 {
-	private static final float cCleanUpRatio = 0.25f;
+	public static final int cDefaultPrefetchDepth = 8;
+	private static final long cPrefetchTimeOutInMilliseconds = 100;
 
 	private static final ExecutorService mSeekingExecutor = Executors.newSingleThreadExecutor();
-	private final SwitchableSoftReferenceManager<Volume> mSwitchableSoftReferenceManager;
+	private static final ExecutorService mPrefetchingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable pRunnable)
+		{
+			final Thread lThread = new Thread(pRunnable,
+																				"TimeShiftingSinkPrefetch");
+			lThread.setDaemon(true);
+			return lThread;
+		}
+	});
+	private final TimeShiftingVolumeCache mVolumeCache;
+	private final VolumeSpillStore mVolumeSpillStore;
 
 	private final Object mLock = new Object();
-	private HashMap<Integer, TreeMap<Long, SwitchableSoftReference<Volume>>> mChannelToVolumeListsMap = new HashMap<>();
+	private final ArrayList<Volume> mEvictedVolumes = new ArrayList<>();
 	private final TreeSet<Integer> mAvailableChannels = new TreeSet<>();
+	private final HashMap<Integer, Long> mSpilledTimeIndices = new HashMap<>();
 
 	private volatile long mSoftMemoryHorizonInTimePointIndices;
 	private volatile long mHardMemoryHorizonInTimePointIndices;
-	private volatile long mCleanUpPeriodInTimePoints;
+	private volatile long mNumberOfCacheHits;
+	private volatile long mNumberOfCacheMisses;
+	private volatile long mNumberOfPrefetchedVolumes;
+	private volatile int mPrefetchDepth = cDefaultPrefetchDepth;
+	private volatile long mPrefetchWindowLow = Long.MAX_VALUE;
+	private volatile long mPrefetchWindowHigh = Long.MIN_VALUE;
+	private final AtomicBoolean mPrefetchPending = new AtomicBoolean();
+	private TimeShiftingPlayback mPlayback;
 	private volatile long mHighestTimePointIndexSeen = 0;
 	private volatile long mTimeShift = 0;
 	private volatile boolean mIsPlaying = true;
 
 	public TimeShiftingSink(long pSoftMemoryHoryzonInTimePointIndices,
 													long pHardMemoryHoryzonInTimePointIndices)
+	{
+		this(	pSoftMemoryHoryzonInTimePointIndices,
+					pHardMemoryHoryzonInTimePointIndices,
+					Long.MAX_VALUE,
+					null);
+	}
+
+	/**
+	 * Constructs a time shifting sink with a disk tier: volumes leaving the soft
+	 * memory horizon are spilled to disk, and seeking reloads any time point
+	 * still within the disk budget. The spill store is closed, and its files
+	 * deleted, when this sink is closed.
+	 *
+	 * @param pSoftMemoryHoryzonInTimePointIndices
+	 *          soft memory horizon
+	 * @param pHardMemoryHoryzonInTimePointIndices
+	 *          hard memory horizon
+	 * @param pVolumeSpillStore
+	 *          disk tier, can be null
+	 */
+	public TimeShiftingSink(long pSoftMemoryHoryzonInTimePointIndices,
+													long pHardMemoryHoryzonInTimePointIndices,
+													VolumeSpillStore pVolumeSpillStore)
+	{
+		this(	pSoftMemoryHoryzonInTimePointIndices,
+					pHardMemoryHoryzonInTimePointIndices,
+					Long.MAX_VALUE,
+					pVolumeSpillStore);
+	}
+
+	/**
+	 * Constructs a time shifting sink with a memory budget. Volumes are evicted
+	 * when they fall behind the hard memory horizon, or in least recently used
+	 * order when the data they hold exceeds the budget. Evicted volumes are
+	 * spilled to the disk tier if there is one, and released: they go back to
+	 * their volume manager once the relay sink has released them too.
+	 *
+	 * @param pSoftMemoryHoryzonInTimePointIndices
+	 *          soft memory horizon, beyond it volumes are spilled to disk
+	 * @param pHardMemoryHoryzonInTimePointIndices
+	 *          hard memory horizon, beyond it volumes are evicted
+	 * @param pMemoryBudgetInBytes
+	 *          maximal number of bytes of volume data kept in memory
+	 * @param pVolumeSpillStore
+	 *          disk tier, can be null
+	 */
+	public TimeShiftingSink(long pSoftMemoryHoryzonInTimePointIndices,
+													long pHardMemoryHoryzonInTimePointIndices,
+													long pMemoryBudgetInBytes,
+													VolumeSpillStore pVolumeSpillStore)
 	{
 		super();
-		mSwitchableSoftReferenceManager = new SwitchableSoftReferenceManager<>();
+		mVolumeSpillStore = pVolumeSpillStore;
+		mVolumeCache = new TimeShiftingVolumeCache(pMemoryBudgetInBytes);
 		mSoftMemoryHorizonInTimePointIndices = Math.min(pSoftMemoryHoryzonInTimePointIndices,
 																										pHardMemoryHoryzonInTimePointIndices);
 		mHardMemoryHorizonInTimePointIndices = Math.max(pHardMemoryHoryzonInTimePointIndices,
 																										pSoftMemoryHoryzonInTimePointIndices);
-		mCleanUpPeriodInTimePoints = (long) (mSoftMemoryHorizonInTimePointIndices * cCleanUpRatio);
 	}
 
 	public void setTimeShiftNormalized(final double pTimeShiftNormalized)
@@ -59,15 +133,39 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 					final long lPreviousTimeShift = mTimeShift;
 
 					// find the available data interval to evade invalid indices
-					final long startPos = Math.max(	0,
-																					mHighestTimePointIndexSeen - mHardMemoryHorizonInTimePointIndices);
+					long startPos = Math.max(	0,
+																		mHighestTimePointIndexSeen - mHardMemoryHorizonInTimePointIndices);
+					if (mVolumeSpillStore != null)
+					{
+						final Long lOldestOnDisk = mVolumeSpillStore.getOldestTimeIndex();
+						if (lOldestOnDisk != null)
+							startPos = Math.min(startPos, lOldestOnDisk);
+					}
 					final long interval = mHighestTimePointIndexSeen - startPos;
 
 					// System.err.println("interval=[" + startPos +"," +interval+"]");
-					mTimeShift = -Math.round(interval * pTimeShiftNormalized);
-					if (lPreviousTimeShift != mTimeShift)
-						for (final int lChannel : mAvailableChannels)
-							sendVolumeInternal(lChannel);
+					final long lTimeShift = -Math.round(interval * pTimeShiftNormalized);
+					if (lPreviousTimeShift == lTimeShift)
+						return;
+
+					final long lTargetTimePoint = mHighestTimePointIndexSeen + lTimeShift;
+					if (mPlayback != null && mPlayback.isRunning())
+					{
+						// playback continues from where the slider is:
+						mPlayback.seek(lTargetTimePoint);
+						return;
+					}
+
+					mTimeShift = lTimeShift;
+					for (final int lChannel : mAvailableChannels)
+						sendVolumeInternal(lChannel);
+
+					// scrubbing tends to continue in the same direction:
+					if (lTimeShift != 0)
+						prefetch(	lTargetTimePoint,
+											lTimeShift > lPreviousTimeShift ? 1 : -1);
+					else
+						clearPrefetchWindow();
 				}
 			}
 		};
@@ -100,6 +198,108 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 		return mHighestTimePointIndexSeen;
 	}
 
+	public VolumeSpillStore getVolumeSpillStore()
+	{
+		return mVolumeSpillStore;
+	}
+
+	public long getNumberOfCacheHits()
+	{
+		return mNumberOfCacheHits;
+	}
+
+	public long getNumberOfCacheMisses()
+	{
+		return mNumberOfCacheMisses;
+	}
+
+	public long getNumberOfCacheEvictions()
+	{
+		synchronized (mLock)
+		{
+			return mVolumeCache.getNumberOfEvictions();
+		}
+	}
+
+	public long getResidentBytes()
+	{
+		synchronized (mLock)
+		{
+			return mVolumeCache.getResidentBytes();
+		}
+	}
+
+	public long getMemoryBudgetInBytes()
+	{
+		return mVolumeCache.getMemoryBudgetInBytes();
+	}
+
+	public long getNumberOfPrefetchedVolumes()
+	{
+		return mNumberOfPrefetchedVolumes;
+	}
+
+	/**
+	 * Sets how many time points ahead of the current one are loaded in the
+	 * background when seeking or during playback. Only volumes that left memory
+	 * for the disk tier need prefetching, 0 disables it.
+	 *
+	 * @param pPrefetchDepth
+	 *          number of time points per channel
+	 */
+	public void setPrefetchDepth(int pPrefetchDepth)
+	{
+		mPrefetchDepth = Math.max(0, pPrefetchDepth);
+	}
+
+	public int getPrefetchDepth()
+	{
+		return mPrefetchDepth;
+	}
+
+	/**
+	 * Returns the playback engine of this sink, created on first call.
+	 *
+	 * @return playback engine
+	 */
+	public TimeShiftingPlayback getPlayback()
+	{
+		synchronized (mLock)
+		{
+			if (mPlayback == null)
+				mPlayback = new TimeShiftingPlayback(this);
+			return mPlayback;
+		}
+	}
+
+	/**
+	 * Returns the oldest time point still available, in memory or on disk.
+	 *
+	 * @return oldest time point
+	 */
+	public long getOldestTimePoint()
+	{
+		synchronized (mLock)
+		{
+			long lOldest = mHighestTimePointIndexSeen;
+			final Long lOldestInMemory = mVolumeCache.getOldestTimeIndex();
+			if (lOldestInMemory != null)
+				lOldest = Math.min(lOldest, lOldestInMemory);
+			if (mVolumeSpillStore != null)
+			{
+				final Long lOldestOnDisk = mVolumeSpillStore.getOldestTimeIndex();
+				if (lOldestOnDisk != null)
+					lOldest = Math.min(lOldest, lOldestOnDisk);
+			}
+			return lOldest;
+		}
+	}
+
+	public boolean isPlaying()
+	{
+		return mIsPlaying;
+	}
+
 	public int getNumberOfAvailableChannels()
 	{
 		return mAvailableChannels.size();
@@ -117,25 +317,16 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 		{
 			final int lVolumeChannelID = pVolume.getChannelID();
 			mAvailableChannels.add(lVolumeChannelID);
-			TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMapReference = mChannelToVolumeListsMap.get(lVolumeChannelID);
-
-			if (lTimePointIndexToVolumeMapReference == null)
-			{
-				lTimePointIndexToVolumeMapReference = new TreeMap<>();
-				mChannelToVolumeListsMap.put(	lVolumeChannelID,
-																			lTimePointIndexToVolumeMapReference);
-			}
 
-			lTimePointIndexToVolumeMapReference.put(pVolume.getTimeIndex(),
-																							wrapWithReference(pVolume));
+			mVolumeCache.put(pVolume, mEvictedVolumes);
 
 			mHighestTimePointIndexSeen = Math.max(mHighestTimePointIndexSeen,
 																						pVolume.getTimeIndex());
 
+			cleanUpOldVolumes(mHighestTimePointIndexSeen, lVolumeChannelID);
+
 			if (mIsPlaying)
 				sendVolumeInternal(lVolumeChannelID);
-
-			cleanUpOldVolumes(mHighestTimePointIndexSeen, lVolumeChannelID);
 		}
 	}
 
@@ -147,99 +338,270 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 
 			if (lVolumeToSend != null)
 			{
-				getRelaySink().sendVolume(lVolumeToSend);
+				// the cache keeps its own hold, the volume goes back to the manager
+				// once it is evicted and the relay sink has released it:
+				getRelaySink().sendVolume(lVolumeToSend.retain());
 			}
 			else
 			{
 				System.err.println("Did not have any volume to send :(");
 			}
+		}
+	}
 
-			cleanUpOldVolumes(mHighestTimePointIndexSeen, lVolumeChannelID);
+	/**
+	 * Sends the volumes of all channels at a given time point, or the closest
+	 * earlier ones, to the relay sink. Used by the playback engine.
+	 *
+	 * @param pTimePoint
+	 *          time point
+	 */
+	void showTimePoint(long pTimePoint)
+	{
+		synchronized (mLock)
+		{
+			mTimeShift = Math.min(0, pTimePoint - mHighestTimePointIndexSeen);
+			for (final int lChannel : mAvailableChannels)
+				sendVolumeInternal(lChannel);
 		}
 	}
 
-	private SwitchableSoftReference<Volume> wrapWithReference(final Volume pVolume)
+	/**
+	 * Loads in the background, into the memory tier, the volumes of the time
+	 * points following a given one in a given direction. Volumes within that
+	 * window are also protected from the hard horizon until the window moves.
+	 * Nothing happens if a prefetch is already underway.
+	 *
+	 * @param pTimePoint
+	 *          current time point
+	 * @param pDirection
+	 *          1 for forward, -1 for backward
+	 */
+	void prefetch(final long pTimePoint, final int pDirection)
 	{
-		final Runnable lCleaningRunnable = new Runnable()
+		final int lPrefetchDepth = mPrefetchDepth;
+		if (mVolumeSpillStore == null || lPrefetchDepth == 0)
+			return;
+
+		mPrefetchWindowLow = Math.min(pTimePoint,
+																	pTimePoint + pDirection * lPrefetchDepth);
+		mPrefetchWindowHigh = Math.max(	pTimePoint,
+																		pTimePoint + pDirection * lPrefetchDepth);
+
+		if (!mPrefetchPending.compareAndSet(false, true))
+			return;
+
+		final Runnable lRunnable = new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				System.out.println("CLEANING!");
-				pVolume.makeAvailableToManager();
+				try
+				{
+					final Integer[] lChannels;
+					synchronized (mLock)
+					{
+						lChannels = mAvailableChannels.toArray(new Integer[0]);
+					}
+					for (int i = 1; i <= lPrefetchDepth; i++)
+						for (final int lChannel : lChannels)
+							prefetchTimePoint(lChannel, pTimePoint + pDirection * i);
+				}
+				finally
+				{
+					mPrefetchPending.set(false);
+				}
 			}
 		};
-		return mSwitchableSoftReferenceManager.wrapReference(	pVolume,
-																													lCleaningRunnable);
+		mPrefetchingExecutor.execute(lRunnable);
 	}
 
-	private Volume getVolumeToSend(int pVolumeChannelID)
+	void clearPrefetchWindow()
 	{
+		mPrefetchWindowLow = Long.MAX_VALUE;
+		mPrefetchWindowHigh = Long.MIN_VALUE;
+	}
+
+	private void prefetchTimePoint(int pChannelID, long pTimePoint)
+	{
+		final Long lDiskTimePoint;
 		synchronized (mLock)
 		{
-			final TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMap = mChannelToVolumeListsMap.get(pVolumeChannelID);
-
-			if (lTimePointIndexToVolumeMap.isEmpty())
-				return null;
-
-			Entry<Long, SwitchableSoftReference<Volume>> lIndexVolumeEntry = lTimePointIndexToVolumeMap.floorEntry(mHighestTimePointIndexSeen + mTimeShift);
-			if (lIndexVolumeEntry == null)
-				lIndexVolumeEntry = lTimePointIndexToVolumeMap.ceilingEntry(mHighestTimePointIndexSeen + mTimeShift);
+			lDiskTimePoint = mVolumeSpillStore.floorTimeIndex(pChannelID,
+																												pTimePoint);
+			if (lDiskTimePoint == null || isCachedAtOrAfter(pChannelID,
+																											lDiskTimePoint,
+																											pTimePoint))
+				return;
+		}
 
-			if (lIndexVolumeEntry == null)
-				return null;
+		// the disk read happens outside of the lock, incoming volumes and
+		// playback are not held up by it:
+		final Volume lVolume;
+		try
+		{
+			lVolume = mVolumeSpillStore.load(	pChannelID,
+																				lDiskTimePoint,
+																				getManager(),
+																				cPrefetchTimeOutInMilliseconds,
+																				TimeUnit.MILLISECONDS);
+		}
+		catch (final ClearVolumeMemoryBudgetException e)
+		{
+			// prefetching is best effort, it does not compete for memory:
+			return;
+		}
+		if (lVolume == null)
+			return;
 
-			final Volume lVolume = lIndexVolumeEntry.getValue().get();
-			if (lVolume == null)
+		synchronized (mLock)
+		{
+			if (isCachedAtOrAfter(pChannelID, lDiskTimePoint, pTimePoint))
 			{
-				lTimePointIndexToVolumeMap.remove(lIndexVolumeEntry.getKey());
-				return getVolumeToSend(pVolumeChannelID);
+				lVolume.makeAvailableToManager();
+				return;
 			}
-			return lVolume;
+			mVolumeCache.put(lVolume, mEvictedVolumes);
+			releaseEvictedVolumes();
+			mNumberOfPrefetchedVolumes++;
 		}
 	}
 
-	private void cleanUpOldVolumes(long pTimePointIndex, int pChannelID)
+	private boolean isCachedAtOrAfter(int pChannelID,
+																		long pTimePoint,
+																		long pTargetTimePoint)
+	{
+		final Entry<Long, Volume> lFloorEntry = mVolumeCache.floorEntry(pChannelID,
+																																		pTargetTimePoint);
+		return lFloorEntry != null && lFloorEntry.getKey() >= pTimePoint;
+	}
+
+	private Volume getVolumeToSend(int pVolumeChannelID)
 	{
 		synchronized (mLock)
 		{
-			if (pTimePointIndex % mCleanUpPeriodInTimePoints != 0)
-				return;
+			final long lTargetTimePoint = mHighestTimePointIndexSeen + mTimeShift;
 
-			final TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMap = mChannelToVolumeListsMap.get(pChannelID);
-			if (lTimePointIndexToVolumeMap.isEmpty())
+			final Entry<Long, Volume> lFloorEntry = mVolumeCache.floorEntry(pVolumeChannelID,
+																																			lTargetTimePoint);
+
+			// the disk tier may hold a time point closer to the target:
+			if (mVolumeSpillStore != null)
 			{
-				mChannelToVolumeListsMap.remove(pChannelID);
-				return;
+				final Long lDiskTimePoint = mVolumeSpillStore.floorTimeIndex(	pVolumeChannelID,
+																																			lTargetTimePoint);
+				if (lDiskTimePoint != null && (lFloorEntry == null || lDiskTimePoint > lFloorEntry.getKey()))
+				{
+					final Volume lVolume = loadFromDisk(pVolumeChannelID,
+																							lDiskTimePoint);
+					if (lVolume != null)
+					{
+						mNumberOfCacheMisses++;
+						return lVolume;
+					}
+				}
 			}
-			final Long lLastTimePoint = lTimePointIndexToVolumeMap.lastKey();
 
-			Long lTimePoint = lLastTimePoint;
-			while (lTimePoint != null && lTimePoint > lLastTimePoint - mSoftMemoryHorizonInTimePointIndices)
+			Entry<Long, Volume> lIndexVolumeEntry = lFloorEntry;
+			if (lIndexVolumeEntry == null)
+				lIndexVolumeEntry = mVolumeCache.ceilingEntry(pVolumeChannelID,
+																											lTargetTimePoint);
+
+			if (lIndexVolumeEntry == null)
 			{
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
+				mNumberOfCacheMisses++;
+				return null;
 			}
-			while (lTimePoint != null && lTimePoint > lLastTimePoint - mHardMemoryHorizonInTimePointIndices)
+
+			mNumberOfCacheHits++;
+			mVolumeCache.touch(pVolumeChannelID, lIndexVolumeEntry.getKey());
+			return lIndexVolumeEntry.getValue();
+		}
+	}
+
+	private Volume loadFromDisk(int pVolumeChannelID, long pTimePoint)
+	{
+		// called with the lock held, no waiting for the manager's budget:
+		final Volume lVolume;
+		try
+		{
+			lVolume = mVolumeSpillStore.load(	pVolumeChannelID,
+																				pTimePoint,
+																				getManager(),
+																				0,
+																				TimeUnit.MILLISECONDS);
+		}
+		catch (final ClearVolumeMemoryBudgetException e)
+		{
+			return null;
+		}
+		if (lVolume == null)
+			return null;
+
+		// cached so that scrubbing back and forth does not hit the disk, the
+		// budget and horizon decide how long it stays:
+		mVolumeCache.put(lVolume, mEvictedVolumes);
+		releaseEvictedVolumes();
+		return lVolume;
+	}
+
+	private void cleanUpOldVolumes(long pTimePointIndex, int pChannelID)
+	{
+		synchronized (mLock)
+		{
+			final long lHardHorizon = pTimePointIndex - mHardMemoryHorizonInTimePointIndices;
+			final long lSoftHorizon = pTimePointIndex - mSoftMemoryHorizonInTimePointIndices;
+
+			// beyond the soft horizon volumes are also written to disk, so that
+			// dropping them later loses nothing. Only volumes that crossed the
+			// soft horizon since the last call are spilled, evicted volumes that
+			// arrived late are spilled on eviction:
+			if (mVolumeSpillStore != null)
 			{
-				final SwitchableSoftReference<Volume> lSwitchableSoftReference = lTimePointIndexToVolumeMap.get(lTimePoint);
-				if (lSwitchableSoftReference.isGone())
+				final Long lSpilledTimeIndex = mSpilledTimeIndices.get(pChannelID);
+				final long lFromTimeIndex = lSpilledTimeIndex == null	? lHardHorizon
+																															: Math.max(	lHardHorizon,
+																																					lSpilledTimeIndex + 1);
+				if (lFromTimeIndex < lSoftHorizon)
 				{
-					lTimePointIndexToVolumeMap.remove(lTimePoint);
-					continue;
+					for (final Volume lVolume : mVolumeCache.getVolumes(pChannelID,
+																															lFromTimeIndex,
+																															lSoftHorizon))
+						mVolumeSpillStore.spill(lVolume);
+					mSpilledTimeIndices.put(pChannelID, lSoftHorizon - 1);
 				}
-				lSwitchableSoftReference.soften();
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
 			}
-			while (lTimePoint != null)
+
+			// the prefetch window is spared, its volumes are about to be shown:
+			final long lWindowLow = mPrefetchWindowLow;
+			final long lWindowHigh = mPrefetchWindowHigh;
+			if (lWindowLow <= lWindowHigh)
 			{
-				final SwitchableSoftReference<Volume> lSwitchableSoftReference = lTimePointIndexToVolumeMap.get(lTimePoint);
-				final Volume lVolume = lSwitchableSoftReference.get();
-				if (lVolume != null)
-					lVolume.makeAvailableToManager();
-				lTimePointIndexToVolumeMap.remove(lTimePoint);
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
+				mVolumeCache.evictOlderThan(pChannelID,
+																		Math.min(lHardHorizon, lWindowLow),
+																		mEvictedVolumes);
+				mVolumeCache.evictRange(pChannelID,
+																lWindowHigh + 1,
+																lHardHorizon,
+																mEvictedVolumes);
 			}
+			else
+				mVolumeCache.evictOlderThan(pChannelID,
+																		lHardHorizon,
+																		mEvictedVolumes);
+			releaseEvictedVolumes();
+		}
+	}
+
+	private void releaseEvictedVolumes()
+	{
+		for (final Volume lVolume : mEvictedVolumes)
+		{
+			if (mVolumeSpillStore != null)
+				mVolumeSpillStore.spill(lVolume);
+			lVolume.makeAvailableToManager();
 		}
+		mEvictedVolumes.clear();
 	}
 
 	@Override
@@ -253,25 +615,21 @@ public class TimeShiftingSink extends RelaySinkAdapter implements
 	{
 		synchronized (mLock)
 		{
-			for (final Map.Entry<Integer, TreeMap<Long, SwitchableSoftReference<Volume>>> lTimeLineForChannelEntry : mChannelToVolumeListsMap.entrySet())
-			{
-				final TreeMap<Long, SwitchableSoftReference<Volume>> lTimeLineTreeMap = lTimeLineForChannelEntry.getValue();
+			if (mPlayback != null)
+				mPlayback.close();
 
-				for (final Map.Entry<Long, SwitchableSoftReference<Volume>> lTimePointEntry : lTimeLineTreeMap.entrySet())
-				{
-					final SwitchableSoftReference<Volume> lVolumeSoftReference = lTimePointEntry.getValue();
-					final Volume lVolume = lVolumeSoftReference.get();
-					if (lVolume != null)
-						lVolume.close();
-					lVolumeSoftReference.soften();
-				}
-
-				lTimeLineTreeMap.clear();
-			}
-			mChannelToVolumeListsMap.clear();
-			mChannelToVolumeListsMap = null;
+			// releases the hold of the cache, volumes still used downstream
+			// stay alive until released there:
+			mVolumeCache.clear(mEvictedVolumes);
+			for (final Volume lVolume : mEvictedVolumes)
+				lVolume.close();
+			mEvictedVolumes.clear();
 
 			mAvailableChannels.clear();
+			mSpilledTimeIndices.clear();
+
+			if (mVolumeSpillStore != null)
+				mVolumeSpillStore.close();
 		}
 
 	}
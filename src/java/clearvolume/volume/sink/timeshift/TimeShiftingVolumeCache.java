@@ -0,0 +1,295 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import clearvolume.volume.Volume;
+
+/**
+ * In-memory tier of the time shifting sink: volumes indexed per channel by time
+ * point, with a byte budget enforced in least recently used order. Evicted
+ * volumes are handed back to the caller, which decides where they go (disk
+ * tier, volume manager). Not thread safe, the owner synchronizes.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class TimeShiftingVolumeCache
+{
+	private final long mMemoryBudgetInBytes;
+
+	private final HashMap<Integer, TreeMap<Long, Volume>> mChannelToTimeLineMap = new HashMap<>();
+	private final LinkedHashMap<Key, Volume> mLeastRecentlyUsedMap = new LinkedHashMap<>(	16,
+																																												0.75f,
+																																												true);
+	private long mResidentBytes;
+	private long mNumberOfEvictions;
+
+	private static final class Key
+	{
+		final int mChannelID;
+		final long mTimeIndex;
+
+		Key(int pChannelID, long pTimeIndex)
+		{
+			mChannelID = pChannelID;
+			mTimeIndex = pTimeIndex;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * mChannelID + (int) (mTimeIndex ^ (mTimeIndex >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object pObject)
+		{
+			if (!(pObject instanceof Key))
+				return false;
+			final Key lKey = (Key) pObject;
+			return mChannelID == lKey.mChannelID && mTimeIndex == lKey.mTimeIndex;
+		}
+	}
+
+	/**
+	 * Constructs a cache with a given memory budget.
+	 *
+	 * @param pMemoryBudgetInBytes
+	 *          maximal number of bytes of volume data held
+	 */
+	public TimeShiftingVolumeCache(long pMemoryBudgetInBytes)
+	{
+		super();
+		mMemoryBudgetInBytes = pMemoryBudgetInBytes;
+	}
+
+	/**
+	 * Adds a volume as most recently used. A volume already cached for the same
+	 * channel and time point is replaced and returned as evicted.
+	 *
+	 * @param pVolume
+	 *          volume
+	 * @param pEvictedVolumes
+	 *          receives the volumes evicted to stay within budget
+	 */
+	public void put(Volume pVolume, List<Volume> pEvictedVolumes)
+	{
+		final int lChannelID = pVolume.getChannelID();
+		final long lTimeIndex = pVolume.getTimeIndex();
+
+		TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(lChannelID);
+		if (lTimeLine == null)
+		{
+			lTimeLine = new TreeMap<>();
+			mChannelToTimeLineMap.put(lChannelID, lTimeLine);
+		}
+
+		final Volume lPrevious = lTimeLine.put(lTimeIndex, pVolume);
+		mLeastRecentlyUsedMap.put(new Key(lChannelID, lTimeIndex), pVolume);
+		mResidentBytes += pVolume.getDataBufferCapacity();
+		if (lPrevious != null && lPrevious != pVolume)
+		{
+			mResidentBytes -= lPrevious.getDataBufferCapacity();
+			mNumberOfEvictions++;
+			pEvictedVolumes.add(lPrevious);
+		}
+		else if (lPrevious == pVolume)
+			mResidentBytes -= pVolume.getDataBufferCapacity();
+
+		// the volume just added stays, even if it alone exceeds the budget:
+		final Iterator<Entry<Key, Volume>> lIterator = mLeastRecentlyUsedMap.entrySet()
+																																				.iterator();
+		while (mResidentBytes > mMemoryBudgetInBytes && mLeastRecentlyUsedMap.size() > 1)
+		{
+			final Entry<Key, Volume> lEldest = lIterator.next();
+			lIterator.remove();
+			remove(lEldest.getKey(), lEldest.getValue(), pEvictedVolumes);
+		}
+	}
+
+	/**
+	 * Returns the cached volume of a channel at the highest time point lower or
+	 * equal to a given one, without changing its recency.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @return entry or null
+	 */
+	public Entry<Long, Volume> floorEntry(int pChannelID, long pTimeIndex)
+	{
+		final TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(pChannelID);
+		return lTimeLine == null ? null : lTimeLine.floorEntry(pTimeIndex);
+	}
+
+	/**
+	 * Returns the cached volume of a channel at the lowest time point greater or
+	 * equal to a given one, without changing its recency.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @return entry or null
+	 */
+	public Entry<Long, Volume> ceilingEntry(int pChannelID, long pTimeIndex)
+	{
+		final TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(pChannelID);
+		return lTimeLine == null ? null : lTimeLine.ceilingEntry(pTimeIndex);
+	}
+
+	/**
+	 * Marks a cached volume as most recently used.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 */
+	public void touch(int pChannelID, long pTimeIndex)
+	{
+		mLeastRecentlyUsedMap.get(new Key(pChannelID, pTimeIndex));
+	}
+
+	/**
+	 * Returns the volumes of a channel that are older than a given time point,
+	 * this is the time horizon part of the eviction policy.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time points strictly lower are evicted
+	 * @param pEvictedVolumes
+	 *          receives the evicted volumes
+	 */
+	public void evictOlderThan(	int pChannelID,
+															long pTimeIndex,
+															List<Volume> pEvictedVolumes)
+	{
+		evictRange(pChannelID, Long.MIN_VALUE, pTimeIndex, pEvictedVolumes);
+	}
+
+	/**
+	 * Evicts the volumes of a channel between two time points.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pFromTimeIndex
+	 *          lowest time point, inclusive
+	 * @param pToTimeIndex
+	 *          highest time point, exclusive
+	 * @param pEvictedVolumes
+	 *          receives the evicted volumes
+	 */
+	public void evictRange(	int pChannelID,
+													long pFromTimeIndex,
+													long pToTimeIndex,
+													List<Volume> pEvictedVolumes)
+	{
+		final TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(pChannelID);
+		if (lTimeLine == null)
+			return;
+
+		Entry<Long, Volume> lEntry;
+		while ((lEntry = lTimeLine.ceilingEntry(pFromTimeIndex)) != null && lEntry.getKey() < pToTimeIndex)
+		{
+			final Key lKey = new Key(pChannelID, lEntry.getKey());
+			mLeastRecentlyUsedMap.remove(lKey);
+			remove(lKey, lEntry.getValue(), pEvictedVolumes);
+		}
+	}
+
+	/**
+	 * Returns the oldest cached time point over all channels.
+	 *
+	 * @return oldest time point or null if the cache is empty
+	 */
+	public Long getOldestTimeIndex()
+	{
+		Long lOldest = null;
+		for (final TreeMap<Long, Volume> lTimeLine : mChannelToTimeLineMap.values())
+			if (!lTimeLine.isEmpty())
+			{
+				final Long lFirstKey = lTimeLine.firstKey();
+				if (lOldest == null || lFirstKey < lOldest)
+					lOldest = lFirstKey;
+			}
+		return lOldest;
+	}
+
+	/**
+	 * Returns the cached volumes of a channel between two time points, oldest
+	 * first.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pFromTimeIndex
+	 *          lowest time point, inclusive
+	 * @param pToTimeIndex
+	 *          highest time point, exclusive
+	 * @return volumes, possibly empty
+	 */
+	public Iterable<Volume> getVolumes(	int pChannelID,
+																			long pFromTimeIndex,
+																			long pToTimeIndex)
+	{
+		final TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(pChannelID);
+		if (lTimeLine == null || pFromTimeIndex >= pToTimeIndex)
+			return new TreeMap<Long, Volume>().values();
+		return lTimeLine.subMap(pFromTimeIndex, pToTimeIndex).values();
+	}
+
+	/**
+	 * Removes all volumes.
+	 *
+	 * @param pEvictedVolumes
+	 *          receives all volumes that were cached
+	 */
+	public void clear(List<Volume> pEvictedVolumes)
+	{
+		pEvictedVolumes.addAll(mLeastRecentlyUsedMap.values());
+		mLeastRecentlyUsedMap.clear();
+		mChannelToTimeLineMap.clear();
+		mResidentBytes = 0;
+	}
+
+	private void remove(Key pKey,
+											Volume pVolume,
+											List<Volume> pEvictedVolumes)
+	{
+		final TreeMap<Long, Volume> lTimeLine = mChannelToTimeLineMap.get(pKey.mChannelID);
+		lTimeLine.remove(pKey.mTimeIndex);
+		if (lTimeLine.isEmpty())
+			mChannelToTimeLineMap.remove(pKey.mChannelID);
+		mResidentBytes -= pVolume.getDataBufferCapacity();
+		mNumberOfEvictions++;
+		pEvictedVolumes.add(pVolume);
+	}
+
+	public long getResidentBytes()
+	{
+		return mResidentBytes;
+	}
+
+	public long getMemoryBudgetInBytes()
+	{
+		return mMemoryBudgetInBytes;
+	}
+
+	public int getNumberOfVolumes()
+	{
+		return mLeastRecentlyUsedMap.size();
+	}
+
+	public long getNumberOfEvictions()
+	{
+		return mNumberOfEvictions;
+	}
+
+}
@@ -0,0 +1,393 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeException;
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+
+/**
+ * Disk tier for time shifting: volumes are appended in serialized form to
+ * per-channel segment files, and an index maps each time point to its location.
+ * Volumes are read back through memory mapping, so nothing is held on heap or
+ * off-heap between reads. When the disk budget is exceeded, the oldest segment
+ * of the channel using the most disk is deleted together with its time points.
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+public class VolumeSpillStore implements ClearVolumeCloseable
+{
+	public static final long cDefaultSegmentLengthInBytes = 1L << 30;
+
+	private final File mDirectory;
+	private final long mDiskBudgetInBytes;
+	private final long mSegmentLengthInBytes;
+
+	private final HashMap<Integer, ChannelSpill> mChannelSpills = new HashMap<>();
+	private long mUsedBytes = 0;
+	private ByteBuffer mHeaderByteBuffer;
+
+	private static class Segment
+	{
+		final File mFile;
+		final FileChannel mFileChannel;
+		long mLength;
+
+		Segment(File pFile) throws IOException
+		{
+			mFile = pFile;
+			mFileChannel = FileChannel.open(pFile.toPath(),
+																			StandardOpenOption.CREATE,
+																			StandardOpenOption.TRUNCATE_EXISTING,
+																			StandardOpenOption.READ,
+																			StandardOpenOption.WRITE);
+		}
+
+		void delete() throws IOException
+		{
+			mFileChannel.close();
+			mFile.delete();
+		}
+	}
+
+	private static class Location
+	{
+		final Segment mSegment;
+		final long mOffset;
+		final long mLength;
+
+		Location(Segment pSegment, long pOffset, long pLength)
+		{
+			mSegment = pSegment;
+			mOffset = pOffset;
+			mLength = pLength;
+		}
+	}
+
+	private static class ChannelSpill
+	{
+		final TreeMap<Long, Location> mIndex = new TreeMap<>();
+		final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+		long mUsedBytes;
+		int mNextSegmentNumber;
+	}
+
+	/**
+	 * Constructs a spill store writing into a given directory.
+	 *
+	 * @param pDirectory
+	 *          directory for the segment files, created if needed
+	 * @param pDiskBudgetInBytes
+	 *          maximal disk usage in bytes
+	 */
+	public VolumeSpillStore(File pDirectory, long pDiskBudgetInBytes)
+	{
+		this(	pDirectory,
+					pDiskBudgetInBytes,
+					Math.min(	cDefaultSegmentLengthInBytes,
+										Math.max(1, pDiskBudgetInBytes / 8)));
+	}
+
+	/**
+	 * Constructs a spill store writing into a given directory.
+	 *
+	 * @param pDirectory
+	 *          directory for the segment files, created if needed
+	 * @param pDiskBudgetInBytes
+	 *          maximal disk usage in bytes
+	 * @param pSegmentLengthInBytes
+	 *          length after which a new segment file is started, disk space is
+	 *          reclaimed one segment at a time
+	 */
+	public VolumeSpillStore(File pDirectory,
+													long pDiskBudgetInBytes,
+													long pSegmentLengthInBytes)
+	{
+		super();
+		mDirectory = pDirectory;
+		mDiskBudgetInBytes = pDiskBudgetInBytes;
+		mSegmentLengthInBytes = pSegmentLengthInBytes;
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			throw new ClearVolumeException("Cannot create spill directory: " + mDirectory,
+																			null);
+	}
+
+	/**
+	 * Appends a volume to the file of its channel. Nothing happens if that time
+	 * point is already on disk.
+	 *
+	 * @param pVolume
+	 *          volume to spill
+	 * @return true if the volume is on disk after this call
+	 */
+	public synchronized boolean spill(Volume pVolume)
+	{
+		final ChannelSpill lChannelSpill = getChannelSpill(pVolume.getChannelID());
+		if (lChannelSpill.mIndex.containsKey(pVolume.getTimeIndex()))
+			return true;
+
+		try
+		{
+			Segment lSegment = lChannelSpill.mSegments.peekLast();
+			if (lSegment == null || lSegment.mLength >= mSegmentLengthInBytes)
+			{
+				final File lFile = new File(mDirectory,
+																		String.format("channel%d-%d.cvspill",
+																									pVolume.getChannelID(),
+																									lChannelSpill.mNextSegmentNumber++));
+				lSegment = new Segment(lFile);
+				lChannelSpill.mSegments.addLast(lSegment);
+			}
+
+			final long lOffset = lSegment.mLength;
+			lSegment.mFileChannel.position(lOffset);
+			mHeaderByteBuffer = ClearVolumeSerialization.write(	lSegment.mFileChannel,
+																													pVolume,
+																													mHeaderByteBuffer);
+			final long lLength = lSegment.mFileChannel.position() - lOffset;
+
+			lSegment.mLength += lLength;
+			lChannelSpill.mUsedBytes += lLength;
+			mUsedBytes += lLength;
+			lChannelSpill.mIndex.put(	pVolume.getTimeIndex(),
+																new Location(lSegment, lOffset, lLength));
+
+			enforceBudget();
+
+			return lChannelSpill.mIndex.containsKey(pVolume.getTimeIndex());
+		}
+		catch (final IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the highest time point on disk lower or equal to a given one.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @return time point or null if none
+	 */
+	public synchronized Long floorTimeIndex(int pChannelID, long pTimeIndex)
+	{
+		final ChannelSpill lChannelSpill = mChannelSpills.get(pChannelID);
+		return lChannelSpill == null ? null
+																: lChannelSpill.mIndex.floorKey(pTimeIndex);
+	}
+
+	/**
+	 * Returns the lowest time point on disk greater or equal to a given one.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @return time point or null if none
+	 */
+	public synchronized Long ceilingTimeIndex(int pChannelID, long pTimeIndex)
+	{
+		final ChannelSpill lChannelSpill = mChannelSpills.get(pChannelID);
+		return lChannelSpill == null	? null
+																	: lChannelSpill.mIndex.ceilingKey(pTimeIndex);
+	}
+
+	/**
+	 * Returns the oldest time point on disk over all channels.
+	 *
+	 * @return oldest time point or null if nothing is on disk
+	 */
+	public synchronized Long getOldestTimeIndex()
+	{
+		Long lOldest = null;
+		for (final ChannelSpill lChannelSpill : mChannelSpills.values())
+			if (!lChannelSpill.mIndex.isEmpty())
+			{
+				final Long lFirstKey = lChannelSpill.mIndex.firstKey();
+				if (lOldest == null || lFirstKey < lOldest)
+					lOldest = lFirstKey;
+			}
+		return lOldest;
+	}
+
+	public synchronized boolean contains(int pChannelID, long pTimeIndex)
+	{
+		final ChannelSpill lChannelSpill = mChannelSpills.get(pChannelID);
+		return lChannelSpill != null && lChannelSpill.mIndex.containsKey(pTimeIndex);
+	}
+
+	/**
+	 * Reads a volume back from disk.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @param pVolume
+	 *          volume to read into, can be null
+	 * @return volume or null if that time point is not on disk
+	 */
+	public synchronized Volume load(int pChannelID,
+																	long pTimeIndex,
+																	Volume pVolume)
+	{
+		final MappedByteBuffer lMappedByteBuffer = map(pChannelID, pTimeIndex);
+		if (lMappedByteBuffer == null)
+			return null;
+		if (pVolume == null)
+			pVolume = new Volume();
+		return ClearVolumeSerialization.deserialize(lMappedByteBuffer, pVolume);
+	}
+
+	/**
+	 * Reads a volume back from disk into a volume requested from a volume
+	 * manager with the type and dimensions found on disk. The file is mapped
+	 * while holding the lock of this store, but the volume is requested and read
+	 * outside of it, so that spilling is not held up by the manager.
+	 *
+	 * @param pChannelID
+	 *          channel
+	 * @param pTimeIndex
+	 *          time point
+	 * @param pVolumeManager
+	 *          volume manager, can be null
+	 * @param pTimeOut
+	 *          max time to wait for the manager's budget
+	 * @param pTimeUnit
+	 *          time unit
+	 * @return volume or null if that time point is not on disk
+	 * @throws ClearVolumeMemoryBudgetException
+	 *           if the manager's budget does not allow the volume
+	 */
+	public Volume load(	int pChannelID,
+											long pTimeIndex,
+											VolumeManager pVolumeManager,
+											long pTimeOut,
+											TimeUnit pTimeUnit)
+	{
+		final MappedByteBuffer lMappedByteBuffer = map(pChannelID, pTimeIndex);
+		if (lMappedByteBuffer == null)
+			return null;
+		return ClearVolumeSerialization.deserialize(lMappedByteBuffer,
+																								pVolumeManager,
+																								pTimeOut,
+																								pTimeUnit);
+	}
+
+	private synchronized MappedByteBuffer map(int pChannelID, long pTimeIndex)
+	{
+		final ChannelSpill lChannelSpill = mChannelSpills.get(pChannelID);
+		if (lChannelSpill == null)
+			return null;
+		final Location lLocation = lChannelSpill.mIndex.get(pTimeIndex);
+		if (lLocation == null)
+			return null;
+
+		try
+		{
+			// mappings stay valid even if the segment is deleted afterwards:
+			final MappedByteBuffer lMappedByteBuffer = lLocation.mSegment.mFileChannel.map(	MapMode.READ_ONLY,
+																																											lLocation.mOffset,
+																																											lLocation.mLength);
+			lMappedByteBuffer.order(ByteOrder.nativeOrder());
+			return lMappedByteBuffer;
+		}
+		catch (final IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return mUsedBytes;
+	}
+
+	public long getDiskBudgetInBytes()
+	{
+		return mDiskBudgetInBytes;
+	}
+
+	public synchronized int getNumberOfTimePoints()
+	{
+		int lNumberOfTimePoints = 0;
+		for (final ChannelSpill lChannelSpill : mChannelSpills.values())
+			lNumberOfTimePoints += lChannelSpill.mIndex.size();
+		return lNumberOfTimePoints;
+	}
+
+	private ChannelSpill getChannelSpill(int pChannelID)
+	{
+		ChannelSpill lChannelSpill = mChannelSpills.get(pChannelID);
+		if (lChannelSpill == null)
+		{
+			lChannelSpill = new ChannelSpill();
+			mChannelSpills.put(pChannelID, lChannelSpill);
+		}
+		return lChannelSpill;
+	}
+
+	private void enforceBudget() throws IOException
+	{
+		while (mUsedBytes > mDiskBudgetInBytes)
+		{
+			// reclaims from the channel using the most disk:
+			ChannelSpill lLargest = null;
+			for (final ChannelSpill lChannelSpill : mChannelSpills.values())
+				if (!lChannelSpill.mSegments.isEmpty() && (lLargest == null || lChannelSpill.mUsedBytes > lLargest.mUsedBytes))
+					lLargest = lChannelSpill;
+			if (lLargest == null)
+				return;
+
+			final Segment lOldestSegment = lLargest.mSegments.pollFirst();
+			final Iterator<Location> lIterator = lLargest.mIndex.values()
+																													.iterator();
+			while (lIterator.hasNext())
+				if (lIterator.next().mSegment == lOldestSegment)
+					lIterator.remove();
+
+			lLargest.mUsedBytes -= lOldestSegment.mLength;
+			mUsedBytes -= lOldestSegment.mLength;
+			lOldestSegment.delete();
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		for (final Map.Entry<Integer, ChannelSpill> lEntry : mChannelSpills.entrySet())
+			for (final Segment lSegment : lEntry.getValue().mSegments)
+				try
+				{
+					lSegment.delete();
+				}
+				catch (final IOException e)
+				{
+					e.printStackTrace();
+				}
+		mChannelSpills.clear();
+		mUsedBytes = 0;
+	}
+
+}
@@ -161,6 +161,7 @@ public class TimeShiftingSinkJPanel extends JPanel
 				public void actionPerformed(ActionEvent e)
 				{
 					setPlayBarPaused();
+					pTimeShiftingSink.getPlayback().stop();
 					pTimeShiftingSink.pause();
 				}
 			});
@@ -176,7 +177,11 @@ public class TimeShiftingSinkJPanel extends JPanel
 				public void actionPerformed(ActionEvent e)
 				{
 					setPlayBarPlaying();
-					pTimeShiftingSink.play();
+					// in the past, play replays from there at a steady rate:
+					if (pTimeShiftingSink.getTimeShift() != 0)
+						pTimeShiftingSink.getPlayback().start();
+					else
+						pTimeShiftingSink.play();
 				}
 			});
 		lPlayPausePanel.add(lPlayButton, "cell 2 0");
@@ -191,6 +196,7 @@ public class TimeShiftingSinkJPanel extends JPanel
 				public void actionPerformed(ActionEvent e)
 				{
 					setTimeShiftSliderToNow();
+					pTimeShiftingSink.getPlayback().stop();
 					pTimeShiftingSink.setTimeShiftNormalized(0);
 				}
 			});
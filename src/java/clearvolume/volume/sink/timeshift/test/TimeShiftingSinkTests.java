@@ -1,13 +1,26 @@
 package clearvolume.volume.sink.timeshift.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.VolumeSinkInterface;
+import clearvolume.volume.sink.timeshift.PlaybackDirection;
+import clearvolume.volume.sink.timeshift.TimeShiftingPlayback;
 import clearvolume.volume.sink.timeshift.TimeShiftingSink;
+import clearvolume.volume.sink.timeshift.VolumeSpillStore;
 import coremem.types.NativeTypeEnum;
 
 public class TimeShiftingSinkTests
@@ -76,4 +89,218 @@ public class TimeShiftingSinkTests
 
 	}
 
+	@Test
+	public void testDiskTier() throws InterruptedException, IOException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(20);
+		final AtomicReference<Volume> lLastReceivedVolume = new AtomicReference<>();
+		final VolumeSinkInterface lVolumeSinkInterface = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lLastReceivedVolume.set(pVolume);
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		final File lDirectory = Files.createTempDirectory("TimeShiftingSinkTests")
+																	.toFile();
+		final TimeShiftingSink lTimeShiftingSink = new TimeShiftingSink(4,
+																																		8,
+																																		new VolumeSpillStore(	lDirectory,
+																																													1L << 30));
+		lTimeShiftingSink.setRelaySink(lVolumeSinkInterface);
+
+		for (int i = 0; i < 100; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+			lVolume.setTimeIndex(i);
+			lVolume.getDataBuffer().put(0, (byte) i);
+			lTimeShiftingSink.sendVolume(lVolume);
+		}
+
+		// time point 20 left memory long ago, it comes back from disk:
+		assertTrue(lTimeShiftingSink.getVolumeSpillStore().contains(0, 20));
+		lTimeShiftingSink.setTimeShiftNormalized(0.8);
+		Thread.sleep(500);
+		assertEquals(20, lLastReceivedVolume.get().getTimeIndex());
+		assertEquals(20, lLastReceivedVolume.get().getDataBuffer().get(0));
+
+		lTimeShiftingSink.close();
+		assertEquals(0, lDirectory.list().length);
+		lDirectory.delete();
+	}
+
+	@Test
+	public void testMemoryBudget() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(20);
+		final VolumeSinkInterface lVolumeSinkInterface = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		// the budget holds 5 volumes although the horizon would keep 50:
+		final long lVolumeLength = 10 * 10 * 10;
+		final TimeShiftingSink lTimeShiftingSink = new TimeShiftingSink(25,
+																																		50,
+																																		5 * lVolumeLength,
+																																		null);
+		lTimeShiftingSink.setRelaySink(lVolumeSinkInterface);
+
+		for (int i = 0; i < 100; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+			lVolume.setTimeIndex(i);
+			lTimeShiftingSink.sendVolume(lVolume);
+		}
+
+		assertTrue(lTimeShiftingSink.getResidentBytes() <= lTimeShiftingSink.getMemoryBudgetInBytes());
+		assertEquals(95, lTimeShiftingSink.getNumberOfCacheEvictions());
+		assertEquals(100, lTimeShiftingSink.getNumberOfCacheHits());
+		assertEquals(0, lTimeShiftingSink.getNumberOfCacheMisses());
+
+		lTimeShiftingSink.close();
+	}
+
+	@Test
+	public void testDownstreamHold()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(100);
+		final List<Volume> lHeldVolumes = new ArrayList<Volume>();
+		final VolumeSinkInterface lVolumeSinkInterface = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lHeldVolumes.add(pVolume);
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		final TimeShiftingSink lTimeShiftingSink = new TimeShiftingSink(2,
+																																		4);
+		lTimeShiftingSink.setRelaySink(lVolumeSinkInterface);
+
+		for (int i = 0; i < 10; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+			lVolume.setTimeIndex(i);
+			lTimeShiftingSink.sendVolume(lVolume);
+		}
+
+		// time points 0 to 4 are evicted but still held downstream:
+		assertEquals(10, lHeldVolumes.size());
+		assertEquals(0, lVolumeManager.getNumberOfAvailableVolumes());
+
+		for (final Volume lVolume : lHeldVolumes)
+			lVolume.makeAvailableToManager();
+		assertEquals(5, lVolumeManager.getNumberOfAvailableVolumes());
+
+		lTimeShiftingSink.close();
+		assertEquals(10, lVolumeManager.getNumberOfAvailableVolumes());
+	}
+
+	@Test
+	public void testPlayback() throws InterruptedException, IOException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(40);
+		final List<Long> lReceivedTimePoints = Collections.synchronizedList(new ArrayList<Long>());
+		final VolumeSinkInterface lVolumeSinkInterface = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lReceivedTimePoints.add(pVolume.getTimeIndex());
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return lVolumeManager;
+			}
+		};
+
+		final File lDirectory = Files.createTempDirectory("TimeShiftingSinkTests")
+																	.toFile();
+		final TimeShiftingSink lTimeShiftingSink = new TimeShiftingSink(4,
+																																		8,
+																																		new VolumeSpillStore(	lDirectory,
+																																													1L << 30));
+		lTimeShiftingSink.setRelaySink(lVolumeSinkInterface);
+
+		for (int i = 0; i < 100; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+			lVolume.setTimeIndex(i);
+			lTimeShiftingSink.sendVolume(lVolume);
+		}
+
+		// replays backward from time point 49 down to the oldest one on disk,
+		// the first frame shown is the one after the current one:
+		lTimeShiftingSink.setTimeShift(-50);
+		final TimeShiftingPlayback lPlayback = lTimeShiftingSink.getPlayback();
+		lPlayback.setFrameRate(200);
+		lPlayback.setDirection(PlaybackDirection.Backward);
+		lPlayback.setLooping(false);
+		lReceivedTimePoints.clear();
+		lPlayback.start();
+		Thread.sleep(1000);
+		lPlayback.stop();
+
+		assertEquals(48, (long) lReceivedTimePoints.get(0));
+		for (int i = 1; i < lReceivedTimePoints.size(); i++)
+			assertTrue(lReceivedTimePoints.get(i) <= lReceivedTimePoints.get(i - 1));
+		assertEquals(0, (long) lReceivedTimePoints.get(lReceivedTimePoints.size() - 1));
+		assertTrue(lTimeShiftingSink.getNumberOfPrefetchedVolumes() > 0);
+		assertTrue(lTimeShiftingSink.getNumberOfCacheHits() > 0);
+
+		lTimeShiftingSink.close();
+		lDirectory.delete();
+	}
+
 }
@@ -0,0 +1,67 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.TimeShiftingVolumeCache;
+import coremem.types.NativeTypeEnum;
+
+public class TimeShiftingVolumeCacheTests
+{
+
+	@Test
+	public void testLeastRecentlyUsedEviction()
+	{
+		final long lVolumeLength = newVolume(0, 0).getDataBufferCapacity();
+		final TimeShiftingVolumeCache lVolumeCache = new TimeShiftingVolumeCache(3 * lVolumeLength);
+		final ArrayList<Volume> lEvictedVolumes = new ArrayList<>();
+
+		final Volume lVolume0 = newVolume(0, 0);
+		lVolumeCache.put(lVolume0, lEvictedVolumes);
+		lVolumeCache.put(newVolume(0, 1), lEvictedVolumes);
+		lVolumeCache.put(newVolume(1, 1), lEvictedVolumes);
+		assertEquals(0, lEvictedVolumes.size());
+
+		// time point 0 was used last, so time point 1 of channel 0 goes first:
+		lVolumeCache.touch(0, 0);
+		lVolumeCache.put(newVolume(0, 2), lEvictedVolumes);
+		assertEquals(1, lEvictedVolumes.size());
+		assertEquals(1, lEvictedVolumes.get(0).getTimeIndex());
+		assertEquals(0, lEvictedVolumes.get(0).getChannelID());
+		assertEquals(3 * lVolumeLength, lVolumeCache.getResidentBytes());
+
+		assertSame(lVolume0, lVolumeCache.floorEntry(0, 1).getValue());
+		assertEquals(Long.valueOf(2), lVolumeCache.ceilingEntry(0, 1).getKey());
+		assertNull(lVolumeCache.floorEntry(2, 1));
+
+		lEvictedVolumes.clear();
+		lVolumeCache.evictOlderThan(0, 2, lEvictedVolumes);
+		assertSame(lVolume0, lEvictedVolumes.get(0));
+		assertEquals(2, lVolumeCache.getNumberOfVolumes());
+		assertEquals(2, lVolumeCache.getNumberOfEvictions());
+
+		lEvictedVolumes.clear();
+		lVolumeCache.clear(lEvictedVolumes);
+		assertEquals(2, lEvictedVolumes.size());
+		assertEquals(0, lVolumeCache.getResidentBytes());
+	}
+
+	private static Volume newVolume(int pChannel, int pTimePoint)
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedByte,
+																			1,
+																			8,
+																			8,
+																			8);
+		lVolume.setChannelID(pChannel);
+		lVolume.setTimeIndex(pTimePoint);
+		return lVolume;
+	}
+
+}
@@ -0,0 +1,95 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.VolumeSpillStore;
+import coremem.types.NativeTypeEnum;
+
+public class VolumeSpillStoreTests
+{
+
+	@Test
+	public void testSpillAndLoad() throws IOException
+	{
+		final File lDirectory = Files.createTempDirectory("VolumeSpillStoreTests")
+																	.toFile();
+		final VolumeSpillStore lVolumeSpillStore = new VolumeSpillStore(lDirectory,
+																																		1L << 30);
+		try
+		{
+			for (int i = 0; i < 10; i++)
+				assertTrue(lVolumeSpillStore.spill(newVolume(i % 2, i / 2)));
+
+			assertEquals(10, lVolumeSpillStore.getNumberOfTimePoints());
+			assertEquals(Long.valueOf(3), lVolumeSpillStore.floorTimeIndex(1, 3));
+			assertEquals(Long.valueOf(4), lVolumeSpillStore.floorTimeIndex(1, 100));
+			assertNull(lVolumeSpillStore.ceilingTimeIndex(1, 5));
+
+			final Volume lVolume = lVolumeSpillStore.load(1, 3, null);
+			assertEquals(1, lVolume.getChannelID());
+			assertEquals(3, lVolume.getTimeIndex());
+			assertEquals(13, lVolume.getDataBuffer().get(0));
+			assertNull(lVolumeSpillStore.load(2, 3, null));
+		}
+		finally
+		{
+			lVolumeSpillStore.close();
+		}
+		assertEquals(0, lDirectory.list().length);
+		lDirectory.delete();
+	}
+
+	@Test
+	public void testDiskBudget() throws IOException
+	{
+		final File lDirectory = Files.createTempDirectory("VolumeSpillStoreTests")
+																	.toFile();
+		final long lVolumeLength = newVolume(0, 0).getDataSizeInBytes();
+
+		// room for about 10 volumes, segments of 2 volumes:
+		final VolumeSpillStore lVolumeSpillStore = new VolumeSpillStore(lDirectory,
+																																		10 * lVolumeLength + 1000,
+																																		2 * lVolumeLength);
+		try
+		{
+			for (int i = 0; i < 100; i++)
+				lVolumeSpillStore.spill(newVolume(0, i));
+
+			assertTrue(lVolumeSpillStore.getUsedBytes() <= lVolumeSpillStore.getDiskBudgetInBytes());
+			assertFalse(lVolumeSpillStore.contains(0, 0));
+			assertTrue(lVolumeSpillStore.contains(0, 99));
+			assertTrue(lVolumeSpillStore.getOldestTimeIndex() > 80);
+			assertEquals(	99,
+										lVolumeSpillStore.load(0, 99, null).getDataBuffer().get(0));
+		}
+		finally
+		{
+			lVolumeSpillStore.close();
+		}
+		lDirectory.delete();
+	}
+
+	private static Volume newVolume(int pChannel, int pTimePoint)
+	{
+		final Volume lVolume = new Volume(NativeTypeEnum.UnsignedByte,
+																			1,
+																			16,
+																			16,
+																			16);
+		lVolume.setChannelID(pChannel);
+		lVolume.setTimeIndex(pTimePoint);
+		lVolume.getDataBuffer().put(0, (byte) (10 * pChannel + pTimePoint));
+		return lVolume;
+	}
+
+}
@@ -1,9 +1,9 @@
 package clearvolume.volume.source;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import clearvolume.network.ringbuffer.RingBuffer;
+import clearvolume.network.ringbuffer.RingBufferWaitStrategy;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.VolumeSinkInterface;
@@ -13,15 +13,33 @@ public class SourceToSinkBufferedAdapter implements
 																				VolumeSourceInterface
 {
 
-	private final BlockingQueue<Volume> mVolumeQueue;
+	private final RingBuffer<Volume> mVolumeQueue;
 	private final VolumeManager mVolumeManager;
 
 	public SourceToSinkBufferedAdapter(	VolumeManager pVolumeManager,
 																			int pMaxCapacity)
+	{
+		this(pVolumeManager, pMaxCapacity, RingBufferWaitStrategy.Park);
+	}
+
+	/**
+	 * Constructs a buffered adapter with a given wait strategy for consumers
+	 * facing an empty queue.
+	 *
+	 * @param pVolumeManager
+	 *          volume manager
+	 * @param pMaxCapacity
+	 *          queue capacity, rounded up to a power of two
+	 * @param pWaitStrategy
+	 *          wait strategy
+	 */
+	public SourceToSinkBufferedAdapter(	VolumeManager pVolumeManager,
+																			int pMaxCapacity,
+																			RingBufferWaitStrategy pWaitStrategy)
 	{
 		super();
 		mVolumeManager = pVolumeManager;
-		mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
+		mVolumeQueue = new RingBuffer<Volume>(pMaxCapacity, pWaitStrategy);
 	}
 
 	@Override
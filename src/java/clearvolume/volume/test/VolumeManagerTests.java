@@ -0,0 +1,274 @@
+package clearvolume.volume.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.exceptions.ClearVolumeMemoryBudgetException;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import coremem.types.NativeTypeEnum;
+
+public class VolumeManagerTests
+{
+
+	@Test
+	public void testSizeClasses()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+
+		final Volume lVolumeA = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		8,
+																																		8,
+																																		8);
+		lVolumeA.makeAvailableToManager();
+
+		final Volume lVolumeB = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedShort,
+																																		1,
+																																		8,
+																																		8,
+																																		8);
+		assertNotSame(lVolumeA, lVolumeB);
+
+		final Volume lVolumeC = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		8,
+																																		8,
+																																		8);
+		assertSame(lVolumeA, lVolumeC);
+
+		assertEquals(1, lVolumeManager.getNumberOfHits());
+		assertEquals(2, lVolumeManager.getNumberOfMisses());
+		assertEquals(2, lVolumeManager.getNumberOfAllocations());
+		assertEquals(512 + 1024, lVolumeManager.getResidentBytes());
+
+		lVolumeManager.close();
+	}
+
+	@Test
+	public void testHolders()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+
+		final Volume lVolume = lVolumeManager.requestAndWaitForVolume(1,
+																																	TimeUnit.MILLISECONDS,
+																																	NativeTypeEnum.UnsignedByte,
+																																	1,
+																																	8,
+																																	8,
+																																	8);
+		assertEquals(1, lVolume.getNumberOfHolders());
+
+		// a second holder keeps the volume out of the pool:
+		lVolume.retain();
+		lVolume.makeAvailableToManager();
+		assertEquals(0, lVolumeManager.getNumberOfAvailableVolumes());
+		assertNotNull(lVolume.getDataBuffer());
+
+		lVolume.close();
+		assertEquals(1, lVolumeManager.getNumberOfAvailableVolumes());
+
+		// releasing again does nothing:
+		lVolume.makeAvailableToManager();
+		assertEquals(0, lVolume.getNumberOfHolders());
+		assertEquals(1, lVolumeManager.getNumberOfAvailableVolumes());
+
+		assertSame(lVolume,
+								lVolumeManager.requestAndWaitForVolume(	1,
+																												TimeUnit.MILLISECONDS,
+																												NativeTypeEnum.UnsignedByte,
+																												1,
+																												8,
+																												8,
+																												8));
+		assertEquals(1, lVolume.getNumberOfHolders());
+
+		// volumes without manager are freed by their last holder:
+		final Volume lUnmanagedVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+																								1,
+																								8,
+																								8,
+																								8);
+		lUnmanagedVolume.close();
+		assertNull(lUnmanagedVolume.getDataBuffer());
+
+		lVolumeManager.close();
+	}
+
+	@Test
+	public void testBoundedPool()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(2);
+
+		final Volume[] lVolumes = new Volume[4];
+		for (int i = 0; i < lVolumes.length; i++)
+			lVolumes[i] = lVolumeManager.requestAndWaitForVolume(	1,
+																														TimeUnit.MILLISECONDS,
+																														NativeTypeEnum.UnsignedByte,
+																														1,
+																														4,
+																														4,
+																														4);
+		for (final Volume lVolume : lVolumes)
+			lVolume.makeAvailableToManager();
+
+		assertEquals(2, lVolumeManager.getNumberOfAvailableVolumes());
+		assertEquals(2, lVolumeManager.getNumberOfEvictions());
+		assertEquals(2 * 64, lVolumeManager.getResidentBytes());
+		assertNull(lVolumes[0].getDataBuffer());
+
+		lVolumeManager.close();
+		assertEquals(0, lVolumeManager.getResidentBytes());
+	}
+
+	@Test
+	public void testBudget()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(	10,
+																														2 * 1000,
+																														false);
+
+		final Volume lVolumeA = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+		lVolumeManager.requestAndWaitForVolume(	1,
+																						TimeUnit.MILLISECONDS,
+																						NativeTypeEnum.UnsignedByte,
+																						1,
+																						10,
+																						10,
+																						10);
+		try
+		{
+			lVolumeManager.requestAndWaitForVolume(	1,
+																							TimeUnit.MILLISECONDS,
+																							NativeTypeEnum.UnsignedByte,
+																							1,
+																							10,
+																							10,
+																							10);
+			fail();
+		}
+		catch (final ClearVolumeMemoryBudgetException e)
+		{
+		}
+
+		// a pooled volume of another size class is evicted to make room:
+		lVolumeA.makeAvailableToManager();
+		final Volume lVolumeC = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		5);
+		assertEquals(1, lVolumeManager.getNumberOfEvictions());
+		assertEquals(1500, lVolumeManager.getResidentBytes());
+		lVolumeC.makeAvailableToManager();
+
+		lVolumeManager.close();
+	}
+
+	@Test
+	public void testWaitForBudget() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(	1,
+																														1000,
+																														true);
+
+		final Volume lVolumeA = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+
+		final Thread lThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				lVolumeA.makeAvailableToManager();
+			}
+		};
+		lThread.start();
+
+		// waits until the first volume is returned, then evicts it:
+		final Volume lVolumeB = lVolumeManager.requestAndWaitForVolume(	10,
+																																		TimeUnit.SECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		5,
+																																		10,
+																																		10);
+		lThread.join();
+
+		assertEquals(500, lVolumeB.getDataBufferCapacity());
+		assertEquals(1, lVolumeManager.getNumberOfEvictions());
+
+		lVolumeManager.close();
+	}
+
+	@Test
+	public void testInterruptedWait()
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(	1,
+																														1000,
+																														true);
+
+		final Volume lVolumeA = lVolumeManager.requestAndWaitForVolume(	1,
+																																		TimeUnit.MILLISECONDS,
+																																		NativeTypeEnum.UnsignedByte,
+																																		1,
+																																		10,
+																																		10,
+																																		10);
+
+		// an interrupted wait gives up and keeps the interrupt flag set:
+		Thread.currentThread().interrupt();
+		assertNull(lVolumeManager.requestAndWaitForVolume(10,
+																											TimeUnit.SECONDS,
+																											NativeTypeEnum.UnsignedByte,
+																											1,
+																											10,
+																											10,
+																											10));
+		assertTrue(Thread.interrupted());
+
+		Thread.currentThread().interrupt();
+		assertNull(lVolumeManager.requestAndWaitForNextAvailableVolume(	10,
+																																		TimeUnit.SECONDS));
+		assertTrue(Thread.interrupted());
+
+		lVolumeA.makeAvailableToManager();
+		lVolumeManager.close();
+	}
+
+}
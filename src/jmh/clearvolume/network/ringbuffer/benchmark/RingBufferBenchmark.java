@@ -0,0 +1,190 @@
+package clearvolume.network.ringbuffer.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import clearvolume.network.ringbuffer.RingBuffer;
+import clearvolume.network.ringbuffer.RingBufferWaitStrategy;
+
+/**
+ * JMH benchmark of the hand-off between producers and a single consumer, the
+ * pattern of the asynchronous sink adapters, through the lock-free ring buffer
+ * and through ArrayBlockingQueue, with 1, 2 and 8 producers. Only successful
+ * offers and polls are counted, as 'offered' and 'polled' operations per
+ * microsecond.
+ *
+ * Run with: gradle jmh
+ *
+ * @author Loic Royer (2015)
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RingBufferBenchmark
+{
+	private static final Integer cEntry = 42;
+
+	@Param(
+	{ "RingBuffer", "ArrayBlockingQueue" })
+	public String mQueueType;
+
+	@Param(
+	{ "1024" })
+	public int mCapacity;
+
+	private HandOff mHandOff;
+
+	private interface HandOff
+	{
+		boolean offer(Integer pEntry);
+
+		Integer poll();
+	}
+
+	@AuxCounters
+	@State(Scope.Thread)
+	public static class Counters
+	{
+		public long offered;
+		public long polled;
+
+		@Setup(Level.Iteration)
+		public void clean()
+		{
+			offered = 0;
+			polled = 0;
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup()
+	{
+		if ("RingBuffer".equals(mQueueType))
+		{
+			final RingBuffer<Integer> lRingBuffer = new RingBuffer<Integer>(mCapacity,
+																																			RingBufferWaitStrategy.BusySpin);
+			mHandOff = new HandOff()
+			{
+				@Override
+				public boolean offer(Integer pEntry)
+				{
+					return lRingBuffer.offer(pEntry);
+				}
+
+				@Override
+				public Integer poll()
+				{
+					return lRingBuffer.poll();
+				}
+			};
+		}
+		else
+		{
+			final ArrayBlockingQueue<Integer> lArrayBlockingQueue = new ArrayBlockingQueue<Integer>(mCapacity);
+			mHandOff = new HandOff()
+			{
+				@Override
+				public boolean offer(Integer pEntry)
+				{
+					return lArrayBlockingQueue.offer(pEntry);
+				}
+
+				@Override
+				public Integer poll()
+				{
+					return lArrayBlockingQueue.poll();
+				}
+			};
+		}
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public void offer1(Counters pCounters)
+	{
+		offer(pCounters);
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public void poll1(Counters pCounters)
+	{
+		poll(pCounters);
+	}
+
+	@Benchmark
+	@Group("producers2")
+	@GroupThreads(2)
+	public void offer2(Counters pCounters)
+	{
+		offer(pCounters);
+	}
+
+	@Benchmark
+	@Group("producers2")
+	@GroupThreads(1)
+	public void poll2(Counters pCounters)
+	{
+		poll(pCounters);
+	}
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(8)
+	public void offer8(Counters pCounters)
+	{
+		offer(pCounters);
+	}
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(1)
+	public void poll8(Counters pCounters)
+	{
+		poll(pCounters);
+	}
+
+	private void offer(Counters pCounters)
+	{
+		if (mHandOff.offer(cEntry))
+			pCounters.offered++;
+	}
+
+	private void poll(Counters pCounters)
+	{
+		if (mHandOff.poll() != null)
+			pCounters.polled++;
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder().include(RingBufferBenchmark.class.getSimpleName())
+																		.build()).run();
+	}
+
+}